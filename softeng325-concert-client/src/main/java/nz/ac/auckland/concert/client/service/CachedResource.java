@@ -0,0 +1,131 @@
+package nz.ac.auckland.concert.client.service;
+
+import javax.ws.rs.client.Invocation.Builder;
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A resource that DefaultService keeps between calls, along with the
+ * validators (ETag and Last-Modified) and the expiry that the Web service sent
+ * with it. Once expired, the resource is revalidated with a conditional GET,
+ * which the Web service answers with a 304 and no entity if it is unchanged.
+ *
+ * @param <T> the type of the resource's entity.
+ */
+class CachedResource<T> {
+
+    private final GenericType<T> _type;
+
+    private volatile T _value;
+
+    private volatile EntityTag _tag;
+
+    private volatile Date _lastModified;
+
+    private volatile long _expiresAt;
+
+    // Set when the cached entity is known to be out of date, e.g. after this client changed it
+    private volatile boolean _invalid;
+
+    private final AtomicBoolean _refreshing = new AtomicBoolean();
+
+    CachedResource(GenericType<T> type) {
+        _type = type;
+    }
+
+    T get() {
+        return _value;
+    }
+
+    /**
+     * @return whether there's an entity that may be returned, even if it has
+     * expired.
+     */
+    boolean isUsable() {
+        return _value != null && !_invalid;
+    }
+
+    boolean isExpired() {
+        return System.currentTimeMillis() >= _expiresAt;
+    }
+
+    /**
+     * Marks the cached entity as out of date, so that it isn't returned again
+     * before it has been revalidated.
+     */
+    void invalidate() {
+        _invalid = true;
+    }
+
+    /**
+     * Forgets the cached entity and its validators, e.g. because it belongs to
+     * a user who is no longer authenticated.
+     */
+    void clear() {
+        _value = null;
+        _tag = null;
+        _lastModified = null;
+        _expiresAt = 0;
+        _invalid = false;
+    }
+
+    /**
+     * Makes a request conditional on the cached entity having changed.
+     */
+    Builder conditional(Builder builder) {
+        if (_value == null) {
+            return builder;
+        }
+        if (_tag != null) {
+            builder.header(HttpHeaders.IF_NONE_MATCH, _tag);
+        }
+        if (_lastModified != null) {
+            builder.header(HttpHeaders.IF_MODIFIED_SINCE, _lastModified);
+        }
+        return builder;
+    }
+
+    /**
+     * Updates the cache from a response to a conditional request. A 304 only
+     * extends the expiry, and a 200 replaces the entity and its validators.
+     *
+     * @return whether the response was a 200 or 304.
+     */
+    boolean update(Response response) {
+        if (response.getStatus() == Response.Status.OK.getStatusCode()) {
+            _value = response.readEntity(_type);
+            _tag = response.getEntityTag();
+            _lastModified = response.getLastModified();
+        } else if (response.getStatus() != Response.Status.NOT_MODIFIED.getStatusCode() || _value == null) {
+            return false;
+        }
+
+        _invalid = false;
+        String cacheControl = response.getHeaderString(HttpHeaders.CACHE_CONTROL);
+        if (cacheControl != null) {
+            Date dateReceived = response.getDate() != null ? response.getDate() : new Date();
+            _expiresAt = dateReceived.getTime() + CacheControl.valueOf(cacheControl).getMaxAge() * 1000L;
+        }
+        response.close();
+        return true;
+    }
+
+    /**
+     * Claims the one background refresh allowed at a time.
+     *
+     * @return whether the caller should refresh the cache, after which it must
+     * call endRefresh().
+     */
+    boolean startRefresh() {
+        return _refreshing.compareAndSet(false, true);
+    }
+
+    void endRefresh() {
+        _refreshing.set(false);
+    }
+}
@@ -1,14 +1,19 @@
 package nz.ac.auckland.concert.client.service;
 
 import java.awt.Image;
+import java.time.LocalDateTime;
+import java.util.List;
 import java.util.Set;
 
+import nz.ac.auckland.concert.common.dto.AvailabilityDTO;
 import nz.ac.auckland.concert.common.dto.BookingDTO;
 import nz.ac.auckland.concert.common.dto.ConcertDTO;
 import nz.ac.auckland.concert.common.dto.CreditCardDTO;
 import nz.ac.auckland.concert.common.dto.PerformerDTO;
 import nz.ac.auckland.concert.common.dto.ReservationDTO;
 import nz.ac.auckland.concert.common.dto.ReservationRequestDTO;
+import nz.ac.auckland.concert.common.dto.ReservationResultDTO;
+import nz.ac.auckland.concert.common.dto.SeatMapDTO;
 import nz.ac.auckland.concert.common.dto.UserDTO;
 
 
@@ -48,6 +53,43 @@ public interface ConcertService {
 	 */
 	Set<PerformerDTO> getPerformers() throws ServiceException;
 	
+	/**
+	 * Returns the availability of every seat for a performance. Repeated calls
+	 * for the same performance only transfer the seat map again when it has
+	 * changed.
+	 * 
+	 * @param concertId the identity of the concert.
+	 * @param dateTime the date/time of the performance.
+	 * 
+	 * @throws ServiceException in response to any of the following conditions.
+	 * The exception's message is defined in 
+	 * class nz.ac.auckland.concert.common.Messages.
+	 * 
+	 * Condition: the concert isn't scheduled on the date/time.
+	 * Messages.CONCERT_NOT_SCHEDULED_ON_RESERVATION_DATE
+	 * 
+	 * Condition: there is a communication error.
+	 * Messages.SERVICE_COMMUNICATION_ERROR
+	 * 
+	 */
+	SeatMapDTO getSeatMap(Long concertId, LocalDateTime dateTime) throws ServiceException;
+	
+	/**
+	 * Returns the number of free, pending and booked seats in each price band
+	 * of every performance of a concert.
+	 * 
+	 * @param concertId the identity of the concert.
+	 * 
+	 * @return a List with one AvailabilityDTO per performance and price band,
+	 * ordered by date/time.
+	 * 
+	 * @throws ServiceException if there's an error communicating with the
+	 * service, or the concert doesn't exist. The exception's message is
+	 * Messages.SERVICE_COMMUNICATION_ERROR.
+	 * 
+	 */
+	List<AvailabilityDTO> getAvailability(Long concertId) throws ServiceException;
+	
 	/**
 	 * Attempts to create a new user. When successful, the new user is 
 	 * automatically authenticated and logged into the remote service.
@@ -164,6 +206,36 @@ public interface ConcertService {
 	 * 
 	 */
 	ReservationDTO reserveSeats(ReservationRequestDTO reservationRequest) throws ServiceException;
+
+	/**
+	 * Attempts to reserve seats for many reservation requests at once, e.g. on
+	 * behalf of several customers. Each request is handled as reserveSeats()
+	 * would handle it, except that a request for a concert that is too busy
+	 * fails rather than waiting.
+	 * 
+	 * @param reservationRequests the reservations to make.
+	 * 
+	 * @return a List with one ReservationResultDTO per request, in the order of
+	 * the requests. A successful result holds the ReservationDTO made for its
+	 * request; an unsuccessful one holds one of the messages that reserveSeats()
+	 * may fail with, or Messages.CONCERT_BUSY_FOR_RESERVATION.
+	 * 
+	 * @throws ServiceException in response to any of the following conditions.
+	 * The exception's message is defined in 
+	 * class nz.ac.auckland.concert.common.Messages.
+	 * 
+	 * Condition: the request is made by an unauthenticated user.
+	 * Messages.UNAUTHENTICATED_REQUEST
+	 * 
+	 * Condition: the request includes an authentication token but it's not
+	 * recognised by the remote service.
+	 * Messages.BAD_AUTHENTICATON_TOKEN
+	 * 
+	 * Condition: there is a communication error.
+	 * Messages.SERVICE_COMMUNICATION_ERROR
+	 * 
+	 */
+	List<ReservationResultDTO> reserveSeats(List<ReservationRequestDTO> reservationRequests) throws ServiceException;
 	
 	/**
 	 * Confirms a reservation. Prior to calling this method, a successful 
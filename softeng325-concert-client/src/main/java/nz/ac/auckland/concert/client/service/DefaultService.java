@@ -6,6 +6,8 @@ import com.amazonaws.regions.Regions;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.fasterxml.jackson.jaxrs.smile.JacksonJaxbSmileProvider;
+import nz.ac.auckland.concert.common.Config;
 import nz.ac.auckland.concert.common.dto.*;
 import nz.ac.auckland.concert.common.message.Messages;
 import nz.ac.auckland.concert.common.types.Subscription;
@@ -15,10 +17,20 @@ import org.slf4j.LoggerFactory;
 import java.awt.*;
 import java.io.File;
 import java.io.IOException;
-import java.util.Date;
-import java.util.HashSet;
+import java.net.URI;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import javax.imageio.ImageIO;
+import javax.ws.rs.ProcessingException;
 import javax.ws.rs.client.*;
 import javax.ws.rs.client.Invocation.Builder;
 import javax.ws.rs.core.*;
@@ -38,11 +50,28 @@ public class DefaultService implements ConcertService, NewsItemService{
     private static final String AUTH_SERVICE = USER_SERVICE + "/auth";
     private static final String BOOKINGS_SERVICE = WEB_SERVICE_URI + "/bookings";
     private static final String RESERVATION_SERVICE = BOOKINGS_SERVICE + "/reserve";
+    private static final String BATCH_RESERVATION_SERVICE = RESERVATION_SERVICE + "/batch";
     private static final String BOOKING_CONFIRMATION_SERVICE = BOOKINGS_SERVICE + "/book";
+    private static final String ADMISSION_SERVICE = BOOKINGS_SERVICE + "/admission";
     private static final String CREDIT_CARD_SERVICE = USER_SERVICE + "/credit_card";
     private static final String NEWS_ITEM_SERVICE = WEB_SERVICE_URI + "/news_items";
     private static final String NEWS_ITEM_SUB_SERVICE = NEWS_ITEM_SERVICE + "/sub";
 
+    /* Retries */
+
+    // Times a reservation or booking request is sent before giving up on reaching the service
+    private static final int IDEMPOTENT_ATTEMPTS = 3;
+
+    /* Paging */
+
+    // Concerts or performers fetched per request when iterating over them
+    private static final int CATALOGUE_PAGE_SIZE = 50;
+
+    /* Admission */
+
+    // Seconds that each poll for admission to a busy concert waits for
+    private static final int ADMISSION_WAIT_SECONDS = 10;
+
     /* AWS */
 
     // AWS S3 access credentials for performer images.
@@ -69,38 +98,73 @@ public class DefaultService implements ConcertService, NewsItemService{
     private static Logger _logger = LoggerFactory
             .getLogger(DefaultService.class);
 
+    // Media type that DTOs are sent and received in
+    private final MediaType _mediaType;
+
     // auth token
     private Cookie _authToken;
 
     private Subscription _subscription = new Subscription();
 
     // caching
-    private Set<ConcertDTO> _concertCache = new HashSet<>();
-    private Set<PerformerDTO> _performerCache = new HashSet<>();
-    private Set<BookingDTO> _bookingCache = new HashSet<>();
+    private CachedResource<Set<ConcertDTO>> _concertCache =
+            new CachedResource<>(new GenericType<Set<ConcertDTO>>() {});
+    private CachedResource<Set<PerformerDTO>> _performerCache =
+            new CachedResource<>(new GenericType<Set<PerformerDTO>>() {});
+    private CachedResource<Set<BookingDTO>> _bookingCache =
+            new CachedResource<>(new GenericType<Set<BookingDTO>>() {});
+
+    // Revalidates expired caches in the background, while their stale contents are returned
+    private static final ExecutorService CACHE_REFRESHER = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "cache-refresher");
+        thread.setDaemon(true);
+        return thread;
+    });
 
-    private Date _concertCacheExpiry;
-    private Date _performerCacheExpiry;
-    private Date _bookingCacheExpiry;
+    private final Executor _cacheRefresher;
+
+    // Seat maps by performance path, revalidated against their ETags
+    private Map<String, SeatMapDTO> _seatMapCache = new HashMap<>();
+    private Map<String, EntityTag> _seatMapTags = new HashMap<>();
 
 
     /*** FUNCTIONS ***/
 
 
+    public DefaultService() {
+        this(MediaType.APPLICATION_XML_TYPE);
+    }
+
+    /**
+     * @param mediaType the media type to exchange DTOs with the Web service
+     *                  in: XML, JSON or Config.APPLICATION_SMILE, a compact
+     *                  binary encoding.
+     */
+    public DefaultService(MediaType mediaType) {
+        this(mediaType, CACHE_REFRESHER);
+    }
+
+    /**
+     * @param cacheRefresher runs the background revalidation of expired
+     *                       caches.
+     */
+    DefaultService(MediaType mediaType, Executor cacheRefresher) {
+        _mediaType = mediaType;
+        _cacheRefresher = cacheRefresher;
+    }
+
+    /**
+     * @return a new client, which can read and write DTOs as Smile as well as
+     * XML and JSON.
+     */
+    static Client newClient() {
+        return ClientBuilder.newClient().register(JacksonJaxbSmileProvider.class);
+    }
+
     @Override
     public Set<ConcertDTO> getConcerts() throws ServiceException {
         try {
-            // Check cache
-            if (_concertCacheExpiry == null || _concertCache == null) {
-                _logger.debug("First time request, getting concerts");
-                // make request and set expiry
-                this.revalidateConcertCache();
-            } else if (new Date().after(_concertCacheExpiry)) {
-                _logger.debug("Cache out of date revalidating");
-                // cache is invalidated revalidate
-                this.revalidateConcertCache();
-            }
-            return _concertCache;
+            return this.getCached(_concertCache, this::revalidateConcertCache);
         } catch (Exception e) {
             throw new ServiceException(Messages.SERVICE_COMMUNICATION_ERROR);
         }
@@ -109,27 +173,17 @@ public class DefaultService implements ConcertService, NewsItemService{
     private void revalidateConcertCache() throws ServiceException {
         _logger.debug("Update concerts cache");
         Response response;
-        Client client = ClientBuilder.newClient();
+        Client client = newClient();
 
         try {
             Builder builder = client.target(CONCERT_SERVICE).request()
-                    .accept(MediaType.APPLICATION_XML);
-            response = builder.get();
+                    .accept(_mediaType);
+            response = _concertCache.conditional(builder).get();
 
-            if (response.getStatus() != Response.Status.OK.getStatusCode()) {
+            // Update Cache, or just its expiry if the concerts are unchanged
+            if (!_concertCache.update(response)) {
                 throw new ServiceException(response.readEntity(String.class));
             }
-
-            if (response.getHeaderString(HttpHeaders.CACHE_CONTROL) != null) {
-                // Update cache expiry
-                CacheControl cacheControl = CacheControl.valueOf(response.getHeaderString(HttpHeaders.CACHE_CONTROL));
-                Date dateRecieved = response.getDate();
-                _concertCacheExpiry = new Date();
-                _concertCacheExpiry.setTime(dateRecieved.getTime() + cacheControl.getMaxAge() * 1000);
-            }
-
-            // Update Cache
-            _concertCache = response.readEntity(new GenericType<Set<ConcertDTO>>() {});
         } catch (Exception e) {
             throw new ServiceException(Messages.SERVICE_COMMUNICATION_ERROR);
         } finally {
@@ -140,17 +194,7 @@ public class DefaultService implements ConcertService, NewsItemService{
     @Override
     public Set<PerformerDTO> getPerformers() throws ServiceException {
         try {
-            // Check cache
-            if (_performerCacheExpiry == null || _performerCache == null) {
-                _logger.debug("First time request, getting performers");
-                // make request and set expiry
-                this.revalidatePerformerCache();
-            } else if (new Date().after(_performerCacheExpiry)) {
-                _logger.debug("Cache out of date revalidating");
-                // cache is invalidated revalidate
-                this.revalidatePerformerCache();
-            }
-            return _performerCache;
+            return this.getCached(_performerCache, this::revalidatePerformerCache);
         } catch (Exception e) {
             throw new ServiceException(Messages.SERVICE_COMMUNICATION_ERROR);
         }
@@ -159,27 +203,101 @@ public class DefaultService implements ConcertService, NewsItemService{
     private void revalidatePerformerCache() throws ServiceException {
         _logger.debug("Update performers cache");
         Response response;
-        Client client = ClientBuilder.newClient();
+        Client client = newClient();
 
         try {
             Builder builder = client.target(PERFORMER_SERVICE).request()
-                    .accept(MediaType.APPLICATION_XML);
+                    .accept(_mediaType);
+            response = _performerCache.conditional(builder).get();
+
+            // Update Cache, or just its expiry if the performers are unchanged
+            if (!_performerCache.update(response)) {
+                throw new ServiceException(response.readEntity(String.class));
+            }
+        } catch (Exception e) {
+            throw new ServiceException(Messages.SERVICE_COMMUNICATION_ERROR);
+        } finally {
+            client.close();
+        }
+    }
+
+    /**
+     * Iterates over the concerts, fetching them a page at a time as the
+     * iterator reaches each page, rather than all at once. Unlike
+     * getConcerts(), the concerts aren't cached.
+     */
+    public Iterator<ConcertDTO> iterateConcerts() {
+        return new PagedIterator<>(URI.create(CONCERT_SERVICE + "?limit=" + CATALOGUE_PAGE_SIZE), _mediaType,
+                new GenericType<List<ConcertDTO>>() {});
+    }
+
+    /**
+     * Iterates over the performers, fetching them a page at a time as the
+     * iterator reaches each page, rather than all at once. Unlike
+     * getPerformers(), the performers aren't cached.
+     */
+    public Iterator<PerformerDTO> iteratePerformers() {
+        return new PagedIterator<>(URI.create(PERFORMER_SERVICE + "?limit=" + CATALOGUE_PAGE_SIZE), _mediaType,
+                new GenericType<List<PerformerDTO>>() {});
+    }
+
+    @Override
+    public SeatMapDTO getSeatMap(Long concertId, LocalDateTime dateTime) throws ServiceException {
+        String performance = concertId + "/performances/" + dateTime + "/seats";
+        Response response;
+        Client client = newClient();
+
+        try {
+            Builder builder = client.target(CONCERT_SERVICE).path(performance).request()
+                    .accept(_mediaType);
+            EntityTag tag = _seatMapTags.get(performance);
+            if (tag != null) {
+                builder.header(HttpHeaders.IF_NONE_MATCH, tag);
+            }
             response = builder.get();
 
+            if (response.getStatus() == Response.Status.NOT_MODIFIED.getStatusCode()) {
+                _logger.debug("Seat map unchanged for " + performance);
+                return _seatMapCache.get(performance);
+            }
+            if (response.getStatus() == Response.Status.NOT_FOUND.getStatusCode()) {
+                throw new ServiceException(Messages.CONCERT_NOT_SCHEDULED_ON_RESERVATION_DATE);
+            }
             if (response.getStatus() != Response.Status.OK.getStatusCode()) {
-                throw new ServiceException(response.readEntity(String.class));
+                throw new ServiceException(Messages.SERVICE_COMMUNICATION_ERROR);
             }
 
-            if (response.getHeaderString(HttpHeaders.CACHE_CONTROL) != null) {
-                // Update cache expiry
-                CacheControl cacheControl = CacheControl.valueOf(response.getHeaderString(HttpHeaders.CACHE_CONTROL));
-                Date dateRecieved = response.getDate();
-                _performerCacheExpiry = new Date();
-                _performerCacheExpiry.setTime(dateRecieved.getTime() + cacheControl.getMaxAge() * 1000);
+            SeatMapDTO seatMap = response.readEntity(SeatMapDTO.class);
+            if (response.getEntityTag() != null) {
+                _seatMapCache.put(performance, seatMap);
+                _seatMapTags.put(performance, response.getEntityTag());
+            }
+            return seatMap;
+        } catch (Exception e) {
+            if (e instanceof ServiceException) {
+                throw e;
+            } else {
+                throw new ServiceException(Messages.SERVICE_COMMUNICATION_ERROR);
             }
+        } finally {
+            client.close();
+        }
+    }
 
-            // Update Cache
-            _performerCache = response.readEntity(new GenericType<Set<PerformerDTO>>() {});
+    @Override
+    public List<AvailabilityDTO> getAvailability(Long concertId) throws ServiceException {
+        Response response;
+        Client client = newClient();
+
+        try {
+            Builder builder = client.target(CONCERT_SERVICE).path(concertId + "/availability").request()
+                    .accept(_mediaType);
+            response = builder.get();
+
+            if (response.getStatus() != Response.Status.OK.getStatusCode()) {
+                throw new ServiceException(Messages.SERVICE_COMMUNICATION_ERROR);
+            }
+            return response.readEntity(new GenericType<List<AvailabilityDTO>>() {});
         } catch (Exception e) {
             throw new ServiceException(Messages.SERVICE_COMMUNICATION_ERROR);
         } finally {
@@ -189,16 +307,16 @@ public class DefaultService implements ConcertService, NewsItemService{
 
     @Override
     public UserDTO createUser(UserDTO newUser) throws ServiceException {
-        Client client = ClientBuilder.newClient();
+        Client client = newClient();
         Response response;
 
         try {
             Builder builder = client.target(USER_SERVICE).request()
-                    .accept(MediaType.APPLICATION_XML);
+                    .accept(_mediaType);
 
             _logger.debug("Making create user request");
 
-            response = builder.post(Entity.entity(newUser, MediaType.APPLICATION_XML));
+            response = builder.post(Entity.entity(newUser, _mediaType));
 
             if (response.getStatus() != Response.Status.CREATED.getStatusCode()) {
                 _logger.debug(String.valueOf(response.getStatus()));
@@ -207,6 +325,7 @@ public class DefaultService implements ConcertService, NewsItemService{
 
             _authToken = (Cookie) response.getCookies().values().toArray()[0];
             _logger.debug("Auth token set to: " + _authToken);
+            _bookingCache.clear();
 
             _logger.debug("User Successfully created at url: " + response.getLocation());
             return new UserDTO(newUser.getUsername(), newUser.getPassword(),
@@ -224,17 +343,17 @@ public class DefaultService implements ConcertService, NewsItemService{
 
     @Override
     public UserDTO authenticateUser(UserDTO user) throws ServiceException {
-        Client client = ClientBuilder.newClient();
+        Client client = newClient();
         Response response;
 
         try {
             Builder builder = client.target(AUTH_SERVICE).request()
-                    .accept(MediaType.APPLICATION_XML);
+                    .accept(_mediaType);
 
             _logger.debug("Making auth request");
 
             try {
-                response = builder.put(Entity.entity(user, MediaType.APPLICATION_XML));
+                response = builder.put(Entity.entity(user, _mediaType));
             } catch (Exception e) {
                 throw new ServiceException(Messages.SERVICE_COMMUNICATION_ERROR);
             }
@@ -246,6 +365,7 @@ public class DefaultService implements ConcertService, NewsItemService{
 
             _authToken = (Cookie) response.getCookies().values().toArray()[0];
             _logger.debug("Auth token set to: " + _authToken);
+            _bookingCache.clear();
 
             _logger.debug("User successfully authenticated!");
             return response.readEntity(UserDTO.class);
@@ -316,7 +436,61 @@ public class DefaultService implements ConcertService, NewsItemService{
 
     @Override
     public ReservationDTO reserveSeats(ReservationRequestDTO reservationRequest) throws ServiceException {
-        Client client = ClientBuilder.newClient();
+        Client client = newClient();
+        Response response;
+
+        try {
+            if (_authToken == null) {
+                throw new ServiceException(Messages.UNAUTHENTICATED_REQUEST);
+            }
+
+            // The same key is sent with every attempt, so the reservation is only ever made once
+            String idempotencyKey = UUID.randomUUID().toString();
+            String admissionTicket = null;
+            while (true) {
+                Builder builder = client.target(RESERVATION_SERVICE).request()
+                        .accept(_mediaType)
+                        .header(Config.IDEMPOTENCY_KEY_HEADER, idempotencyKey);
+                if (admissionTicket != null) {
+                    builder.header(Config.ADMISSION_TICKET_HEADER, admissionTicket);
+                }
+
+                _logger.debug("Making reservation request");
+                response = this.postIdempotently(builder
+                        .cookie("AuthToken", _authToken.getValue()),
+                        Entity.entity(reservationRequest, _mediaType));
+
+                // The concert is busy, wait to be admitted and try again
+                if (response.getStatus() == Response.Status.SERVICE_UNAVAILABLE.getStatusCode()
+                        && _mediaType.isCompatible(response.getMediaType())) {
+                    AdmissionTicketDTO ticket = response.readEntity(AdmissionTicketDTO.class);
+                    admissionTicket = this.waitForAdmission(client, ticket, response.getLocation());
+                    continue;
+                }
+
+                // Throw appropriate exception baseed on response
+                if (response.getStatus() != Response.Status.ACCEPTED.getStatusCode()) {
+                    _logger.debug(String.valueOf(response.getStatus()));
+                    throw new ServiceException(response.readEntity(String.class));
+                }
+
+                return response.readEntity(ReservationDTO.class);
+            }
+        } catch (Exception e) {
+            if (e instanceof ServiceException) {
+                throw e;
+            } else {
+                throw new ServiceException(Messages.SERVICE_COMMUNICATION_ERROR);
+            }
+        } finally {
+            client.close();
+        }
+    }
+
+    @Override
+    public List<ReservationResultDTO> reserveSeats(List<ReservationRequestDTO> reservationRequests)
+            throws ServiceException {
+        Client client = newClient();
         Response response;
 
         try {
@@ -324,21 +498,21 @@ public class DefaultService implements ConcertService, NewsItemService{
                 throw new ServiceException(Messages.UNAUTHENTICATED_REQUEST);
             }
 
-            Builder builder = client.target(RESERVATION_SERVICE).request()
-                    .accept(MediaType.APPLICATION_XML);
+            Builder builder = client.target(BATCH_RESERVATION_SERVICE).request()
+                    .accept(_mediaType);
 
-            _logger.debug("Making reservation request");
+            _logger.debug("Making batch of " + reservationRequests.size() + " reservation requests");
             response = builder
                     .cookie("AuthToken", _authToken.getValue())
-                    .post(Entity.entity(reservationRequest, MediaType.APPLICATION_XML));
+                    .post(Entity.entity(new GenericEntity<List<ReservationRequestDTO>>(reservationRequests) {},
+                            _mediaType));
 
-            // Throw appropriate exception baseed on response
-            if (response.getStatus() != Response.Status.ACCEPTED.getStatusCode()) {
+            if (response.getStatus() != Response.Status.OK.getStatusCode()) {
                 _logger.debug(String.valueOf(response.getStatus()));
                 throw new ServiceException(response.readEntity(String.class));
             }
 
-            return response.readEntity(ReservationDTO.class);
+            return response.readEntity(new GenericType<List<ReservationResultDTO>>() {});
         } catch (Exception e) {
             if (e instanceof ServiceException) {
                 throw e;
@@ -350,9 +524,68 @@ public class DefaultService implements ConcertService, NewsItemService{
         }
     }
 
+    /**
+     * Posts a request that carries an Idempotency-Key, sending it again if it
+     * fails to reach the service or its response is lost. The service answers
+     * a repeated request with its original response, or with 409 while the
+     * original is still being processed, in which case it is sent again later.
+     */
+    private Response postIdempotently(Builder builder, Entity<?> entity) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                Response response = builder.post(entity);
+                if (response.getStatus() != Response.Status.CONFLICT.getStatusCode()
+                        || attempt >= IDEMPOTENT_ATTEMPTS) {
+                    return response;
+                }
+                String retryAfter = response.getHeaderString(HttpHeaders.RETRY_AFTER);
+                response.close();
+                _logger.debug("Retrying request still in progress");
+                Thread.sleep(TimeUnit.SECONDS.toMillis(retryAfter == null ? 1 : Long.parseLong(retryAfter)));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ProcessingException(e);
+            } catch (ProcessingException e) {
+                if (attempt >= IDEMPOTENT_ATTEMPTS) {
+                    throw e;
+                }
+                _logger.debug("Retrying request after: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Long-polls the status of an admission ticket until it is admitted.
+     *
+     * @param location where the service said the ticket can be polled, e.g.
+     *                 on the node that queued it, or null for the usual place.
+     * @return the id of the admitted ticket, or null if the ticket expired, in
+     * which case the reservation request should be made again without one.
+     */
+    private String waitForAdmission(Client client, AdmissionTicketDTO ticket, URI location) {
+        _logger.debug("Waiting for admission: " + ticket);
+
+        while (!ticket.isAdmitted()) {
+            WebTarget target = location != null
+                    ? client.target(location) : client.target(ADMISSION_SERVICE).path(ticket.getId());
+            Response response = target
+                    .queryParam("wait", ADMISSION_WAIT_SECONDS)
+                    .request()
+                    .accept(_mediaType)
+                    .get();
+
+            if (response.getStatus() != Response.Status.OK.getStatusCode()) {
+                response.close();
+                return null;
+            }
+            ticket = response.readEntity(AdmissionTicketDTO.class);
+        }
+        return ticket.getId();
+    }
+
     @Override
     public void confirmReservation(ReservationDTO reservation) throws ServiceException {
-        Client client = ClientBuilder.newClient();
+        Client client = newClient();
         Response response;
 
         try {
@@ -361,19 +594,21 @@ public class DefaultService implements ConcertService, NewsItemService{
             }
 
             Builder builder = client.target(BOOKING_CONFIRMATION_SERVICE).request()
-                    .accept(MediaType.APPLICATION_XML);
+                    .accept(_mediaType)
+                    .header(Config.IDEMPOTENCY_KEY_HEADER, UUID.randomUUID().toString());
 
             _logger.debug("Making reservation confirmation request to " + BOOKING_CONFIRMATION_SERVICE);
 
-            response = builder
-                    .cookie("AuthToken", _authToken.getValue())
-                    .post(Entity.entity(reservation, MediaType.APPLICATION_XML));
+            response = this.postIdempotently(builder
+                    .cookie("AuthToken", _authToken.getValue()),
+                    Entity.entity(reservation, _mediaType));
 
             if (response.getStatus() != Response.Status.OK.getStatusCode()) {
                 _logger.debug(String.valueOf(response.getStatus()));
                 throw new ServiceException(response.readEntity(String.class));
             }
 
+            _bookingCache.invalidate();
             _logger.debug("Successfully booked tickets!");
         } catch (Exception e) {
             if (e instanceof ServiceException) {
@@ -388,7 +623,7 @@ public class DefaultService implements ConcertService, NewsItemService{
 
     @Override
     public void registerCreditCard(CreditCardDTO creditCard) throws ServiceException {
-        Client client = ClientBuilder.newClient();
+        Client client = newClient();
         Response response;
 
         try {
@@ -397,11 +632,11 @@ public class DefaultService implements ConcertService, NewsItemService{
             }
 
             Builder builder = client.target(CREDIT_CARD_SERVICE).request()
-                    .accept(MediaType.APPLICATION_XML);
+                    .accept(_mediaType);
 
             response = builder
                     .cookie("AuthToken", _authToken.getValue())
-                    .post(Entity.entity(creditCard, MediaType.APPLICATION_XML));
+                    .post(Entity.entity(creditCard, _mediaType));
 
             // Throw appropriate exception baseed on response
             if (response.getStatus() != Response.Status.ACCEPTED.getStatusCode()) {
@@ -426,18 +661,9 @@ public class DefaultService implements ConcertService, NewsItemService{
             throw new ServiceException(Messages.UNAUTHENTICATED_REQUEST);
         }
         try {
-            // Check cache
-            if (_bookingCacheExpiry == null || _bookingCache == null) {
-                _logger.debug("First time request, getting bookings");
-                // make request and set expiry
-                this.revalidateBookingCache();
-            } else if (new Date().after(_bookingCacheExpiry)) {
-                _logger.debug("Cache out of date revalidating");
-                // cache is invalidated revalidate
-                this.revalidateBookingCache();
-            }
+            Set<BookingDTO> bookings = this.getCached(_bookingCache, this::revalidateBookingCache);
             _logger.debug("returning bookings");
-            return _bookingCache;
+            return bookings;
         } catch (Exception e) {
             if (e instanceof ServiceException) {
                 throw e;
@@ -450,31 +676,21 @@ public class DefaultService implements ConcertService, NewsItemService{
     private void revalidateBookingCache() throws ServiceException {
         _logger.debug("Update booking cache");
         Response response;
-        Client client = ClientBuilder.newClient();
+        Client client = newClient();
 
         try {
             Builder builder = client.target(BOOKINGS_SERVICE).request()
-                    .accept(MediaType.APPLICATION_XML);
+                    .accept(_mediaType);
 
-            response = builder
+            response = _bookingCache.conditional(builder)
                     .cookie("AuthToken", _authToken.getValue())
                     .get();
 
-            if (response.getStatus() != Response.Status.OK.getStatusCode()) {
+            // Update Cache, or just its expiry if the bookings are unchanged
+            if (!_bookingCache.update(response)) {
                 _logger.debug(String.valueOf(response.getStatus()));
                 throw new ServiceException(response.readEntity(String.class));
             }
-
-            if (response.getHeaderString(HttpHeaders.CACHE_CONTROL) != null) {
-                // Update cache expiry
-                CacheControl cacheControl = CacheControl.valueOf(response.getHeaderString(HttpHeaders.CACHE_CONTROL));
-                Date dateRecieved = response.getDate();
-                _bookingCacheExpiry = new Date();
-                _bookingCacheExpiry.setTime(dateRecieved.getTime() + cacheControl.getMaxAge() * 1000);
-            }
-
-            // Update Cache
-            _bookingCache = response.readEntity(new GenericType<Set<BookingDTO>>() {});
         } catch (Exception e) {
             if (e instanceof ServiceException) {
                 throw e;
@@ -486,18 +702,47 @@ public class DefaultService implements ConcertService, NewsItemService{
         }
     }
 
+    /**
+     * Returns a cache's contents, fetching them first if there's no usable
+     * copy. Expired contents are returned as they are while a single
+     * background request revalidates them.
+     */
+    private <T> T getCached(CachedResource<T> cache, Revalidation revalidation) throws ServiceException {
+        if (!cache.isUsable()) {
+            _logger.debug("First time request, or cache invalidated");
+            revalidation.run();
+        } else if (cache.isExpired() && cache.startRefresh()) {
+            _logger.debug("Cache out of date revalidating in the background");
+            _cacheRefresher.execute(() -> {
+                try {
+                    revalidation.run();
+                } catch (ServiceException e) {
+                    _logger.debug("Failed to revalidate cache: " + e.getMessage());
+                } finally {
+                    cache.endRefresh();
+                }
+            });
+        }
+        return cache.get();
+    }
+
+    @FunctionalInterface
+    private interface Revalidation {
+        void run() throws ServiceException;
+    }
+
     @Override
     public void createNewsItem(NewsItemDTO newsItemDTO) throws ServiceException {
-        Client client = ClientBuilder.newClient();
+        Client client = newClient();
         Response response;
 
         try {
             Builder builder = client.target(NEWS_ITEM_SERVICE).request()
-                    .accept(MediaType.APPLICATION_XML);
+                    .accept(_mediaType);
 
             _logger.debug("Create news item request ");
 
-            response = builder.post(Entity.entity(newsItemDTO, MediaType.APPLICATION_XML));
+            response = builder.post(Entity.entity(newsItemDTO, _mediaType));
 
             if (response.getStatus() != Response.Status.CREATED.getStatusCode()) {
                 _logger.debug(String.valueOf(response.getStatus()));
@@ -518,7 +763,7 @@ public class DefaultService implements ConcertService, NewsItemService{
 
     @Override
     public void cancelNewsItemSub() throws ServiceException{
-        Client client = ClientBuilder.newClient();
+        Client client = newClient();
         Response response;
         try {
             if (_authToken == null) {
@@ -526,7 +771,7 @@ public class DefaultService implements ConcertService, NewsItemService{
             }
 
             Builder builder = client.target(NEWS_ITEM_SUB_SERVICE).request()
-                    .accept(MediaType.APPLICATION_XML);
+                    .accept(_mediaType);
 
             _logger.debug("Making create delete sub request");
 
@@ -552,7 +797,7 @@ public class DefaultService implements ConcertService, NewsItemService{
 
     @Override
     public void newsItemSub() throws ServiceException{
-        Client client = ClientBuilder.newClient();
+        Client client = newClient();
 
         try {
             if (_authToken == null) {
@@ -563,7 +808,7 @@ public class DefaultService implements ConcertService, NewsItemService{
 
             client.target(NEWS_ITEM_SUB_SERVICE)
                     .request()
-                    .accept(MediaType.APPLICATION_XML)
+                    .accept(_mediaType)
                     .cookie("AuthToken", _authToken.getValue())
                     .async()
                     .get(new NewsItemCallback(target, _subscription, this._authToken));
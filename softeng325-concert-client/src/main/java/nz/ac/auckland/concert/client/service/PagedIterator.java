@@ -0,0 +1,84 @@
+package nz.ac.auckland.concert.client.service;
+
+import nz.ac.auckland.concert.common.message.Messages;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.Link;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.net.URI;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over a paged list of the Web service, fetching each page only
+ * once the previous one has been used up. A page links to the one after it
+ * with rel="next", and the last page has no such link.
+ *
+ * hasNext() and next() throw a ServiceException if a page can't be fetched.
+ *
+ * @param <T> the type of the list's elements.
+ */
+class PagedIterator<T> implements Iterator<T> {
+
+    private final MediaType _mediaType;
+
+    private final GenericType<List<T>> _type;
+
+    private URI _next;
+
+    private Iterator<T> _page = Collections.emptyIterator();
+
+    /**
+     * @param first     the URI of the first page.
+     * @param mediaType the media type to fetch pages in.
+     */
+    PagedIterator(URI first, MediaType mediaType, GenericType<List<T>> type) {
+        _next = first;
+        _mediaType = mediaType;
+        _type = type;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!_page.hasNext() && _next != null) {
+            this.fetch();
+        }
+        return _page.hasNext();
+    }
+
+    @Override
+    public T next() {
+        if (!this.hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return _page.next();
+    }
+
+    private void fetch() {
+        Client client = DefaultService.newClient();
+
+        try {
+            Response response = client.target(_next).request()
+                    .accept(_mediaType)
+                    .get();
+
+            if (response.getStatus() != Response.Status.OK.getStatusCode()) {
+                response.close();
+                throw new ServiceException(Messages.SERVICE_COMMUNICATION_ERROR);
+            }
+
+            Link next = response.getLink("next");
+            _page = response.readEntity(_type).iterator();
+            _next = next == null ? null : next.getUri();
+        } catch (ProcessingException e) {
+            throw new ServiceException(Messages.SERVICE_COMMUNICATION_ERROR);
+        } finally {
+            client.close();
+        }
+    }
+}
@@ -1,22 +1,53 @@
 package nz.ac.auckland.concert.client.service;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.URI;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+
+import javax.persistence.EntityManager;
 
 import javax.ws.rs.client.Client;
 import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.core.Cookie;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
 
 import nz.ac.auckland.concert.common.Config;
 import nz.ac.auckland.concert.common.dto.*;
 import nz.ac.auckland.concert.common.message.Messages;
+import nz.ac.auckland.concert.common.types.Genre;
 import nz.ac.auckland.concert.common.types.PriceBand;
 import nz.ac.auckland.concert.common.types.SeatRow;
+import nz.ac.auckland.concert.service.ServiceConfig;
+import nz.ac.auckland.concert.service.domain.Performer;
+import nz.ac.auckland.concert.service.inventory.SeatLedger;
+import nz.ac.auckland.concert.service.metrics.MetricsRegistry;
 import nz.ac.auckland.concert.service.services.ConcertApplication;
+import nz.ac.auckland.concert.service.services.PersistenceManager;
 import nz.ac.auckland.concert.utility.TheatreLayout;
 
 import org.eclipse.jetty.server.Server;
@@ -60,6 +91,7 @@ public class ConcertServiceTest {
 			.getLogger(ConcertServiceTest.class);
 	
 	private static final int SERVER_PORT = 10000;
+	private static final String WEB_SERVICE_URI = "http://localhost:" + SERVER_PORT + "/services";
 	private static final String WEB_SERVICE_CLASS_NAME = ConcertApplication.class.getName();
 	private static final int RESERVATION_EXPIRY_TIME_IN_SECONDS = 5;
 	
@@ -242,6 +274,39 @@ public class ConcertServiceTest {
 		}
 	}
 	
+	@Test
+	public void testMakeBatchReservation() {
+		try {
+			UserDTO userDTO = new UserDTO("Bulldog", "123", "Churchill", "Winston");
+			_service.createUser(userDTO);
+			
+			LocalDateTime dateTime = LocalDateTime.of(2017, 2, 24, 17, 00);
+			LocalDateTime badDateTime = LocalDateTime.of(2018, 2, 24, 17, 00);
+			List<ReservationRequestDTO> requests = Arrays.asList(
+					new ReservationRequestDTO(2, PriceBand.PriceBandC, 1L, dateTime),
+					new ReservationRequestDTO(3, PriceBand.PriceBandA, 1L, dateTime),
+					new ReservationRequestDTO(2, PriceBand.PriceBandC, 1L, badDateTime));
+			
+			List<ReservationResultDTO> results = _service.reserveSeats(requests);
+			assertEquals(requests.size(), results.size());
+			
+			// The results are in the order of the requests.
+			for(int i = 0; i < 2; i++) {
+				ReservationDTO reservation = results.get(i).getReservation();
+				assertEquals(requests.get(i), reservation.getReservationRequest());
+				assertEquals(requests.get(i).getNumberOfSeats(), reservation.getSeats().size());
+				for(SeatDTO seat : reservation.getSeats()) {
+					assertTrue(TheatreLayout.getRowsForPriceBand(requests.get(i).getSeatType()).contains(seat.getRow()));
+				}
+			}
+			assertEquals(Messages.CONCERT_NOT_SCHEDULED_ON_RESERVATION_DATE, results.get(2).getError());
+			
+		} catch(ServiceException e) {
+			_logger.debug(e.getMessage());
+			fail();
+		}
+	}
+	
 	@Test
 	public void testMakeReservationWithBadRequest() {
 		try {
@@ -310,6 +375,441 @@ public class ConcertServiceTest {
 		}
 	}
 	
+	@Test
+	public void testRequestWithUnrecognisedAuthToken() {
+		Response response = _client.target(WEB_SERVICE_URI + "/bookings").request()
+				.cookie(new Cookie("AuthToken", "unrecognised"))
+				.get();
+		
+		assertEquals(Response.Status.UNAUTHORIZED.getStatusCode(), response.getStatus());
+		assertEquals(Messages.BAD_AUTHENTICATON_TOKEN, response.readEntity(String.class));
+	}
+	
+	@Test
+	public void testSignedAuthTokenIsRejectedAfterLogout() {
+		ServiceConfig.AuthTokenMode authTokenMode = ServiceConfig.AUTH_TOKEN_MODE;
+		ServiceConfig.AUTH_TOKEN_MODE = ServiceConfig.AuthTokenMode.SIGNED;
+		
+		try {
+			UserDTO userDTO = new UserDTO("Bulldog", "123", "Churchill", "Winston");
+			Response response = _client.target(WEB_SERVICE_URI + "/users").request()
+					.post(Entity.entity(userDTO, MediaType.APPLICATION_XML));
+			assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+			Cookie authToken = response.getCookies().get("AuthToken");
+			response.close();
+			assertTrue(authToken.getValue().split("\\.").length == 4);
+			
+			response = _client.target(WEB_SERVICE_URI + "/bookings").request()
+					.cookie(authToken)
+					.get();
+			assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+			response.close();
+			
+			// A token whose username has been changed no longer matches its
+			// signature. It is sent by another client, as _client would also
+			// send the cookie it was issued.
+			String[] parts = authToken.getValue().split("\\.");
+			parts[0] = Base64.getUrlEncoder().withoutPadding().encodeToString("Churchill".getBytes());
+			Client other = ClientBuilder.newClient();
+			try {
+				response = other.target(WEB_SERVICE_URI + "/bookings").request()
+						.cookie(new Cookie("AuthToken", String.join(".", parts)))
+						.get();
+				assertEquals(Response.Status.UNAUTHORIZED.getStatusCode(), response.getStatus());
+				response.close();
+			} finally {
+				other.close();
+			}
+			
+			response = _client.target(WEB_SERVICE_URI + "/users/auth").request()
+					.cookie(authToken)
+					.delete();
+			assertEquals(Response.Status.NO_CONTENT.getStatusCode(), response.getStatus());
+			response.close();
+			
+			response = _client.target(WEB_SERVICE_URI + "/bookings").request()
+					.cookie(authToken)
+					.get();
+			assertEquals(Response.Status.UNAUTHORIZED.getStatusCode(), response.getStatus());
+			assertEquals(Messages.BAD_AUTHENTICATON_TOKEN, response.readEntity(String.class));
+			
+			// Authenticating again issues a new token
+			_service.authenticateUser(new UserDTO("Bulldog", "123"));
+			assertTrue(_service.getBookings().isEmpty());
+		} catch(ServiceException e) {
+			fail();
+		} finally {
+			ServiceConfig.AUTH_TOKEN_MODE = authTokenMode;
+		}
+	}
+	
+	@Test
+	public void testRetrieveSeatMap() {
+		try {
+			UserDTO userDTO = new UserDTO("Bulldog", "123", "Churchill", "Winston");
+			_service.createUser(userDTO);
+			
+			LocalDateTime dateTime = LocalDateTime.of(2017, 2, 24, 17, 00);
+			SeatMapDTO seatMap = _service.getSeatMap(1L, dateTime);
+			for(SeatMapRowDTO row : seatMap.getRows()) {
+				assertEquals(TheatreLayout.getNumberOfSeatsForRow(row.getRow()), row.getNumberOfSeats());
+				assertEquals(row.getNumberOfSeats(), row.getNumberOfFreeSeats());
+			}
+			
+			// An unchanged seat map is revalidated rather than sent again
+			assertSame(seatMap, _service.getSeatMap(1L, dateTime));
+			
+			ReservationDTO reservation = _service.reserveSeats(
+					new ReservationRequestDTO(2, PriceBand.PriceBandC, 1L, dateTime));
+			SeatMapDTO changed = _service.getSeatMap(1L, dateTime);
+			assertTrue(changed.getVersion() > seatMap.getVersion());
+			assertEquals(seatMap.getNumberOfFreeSeats() - 2, changed.getNumberOfFreeSeats());
+			for(SeatMapRowDTO row : changed.getRows()) {
+				for(SeatDTO seat : reservation.getSeats()) {
+					if(seat.getRow() == row.getRow()) {
+						assertFalse(row.isFree(seat.getNumber().intValue()));
+					}
+				}
+			}
+		} catch(ServiceException e) {
+			fail();
+		}
+	}
+	
+	@Test
+	public void testRetrieveAvailability() {
+		try {
+			UserDTO userDTO = new UserDTO("Bulldog", "123", "Churchill", "Winston");
+			_service.createUser(userDTO);
+			
+			LocalDateTime dateTime = LocalDateTime.of(2017, 2, 24, 17, 00);
+			_service.reserveSeats(new ReservationRequestDTO(3, PriceBand.PriceBandB, 1L, dateTime));
+			
+			List<AvailabilityDTO> availability = _service.getAvailability(1L);
+			assertEquals(5 * PriceBand.values().length, availability.size());
+			for(AvailabilityDTO bandAvailability : availability) {
+				int capacity = 0;
+				for(SeatRow row : TheatreLayout.getRowsForPriceBand(bandAvailability.getPriceBand())) {
+					capacity += TheatreLayout.getNumberOfSeatsForRow(row);
+				}
+				int pending = bandAvailability.getDate().equals(dateTime)
+						&& bandAvailability.getPriceBand() == PriceBand.PriceBandB ? 3 : 0;
+				assertEquals(capacity - pending, bandAvailability.getNumberOfFree());
+				assertEquals(pending, bandAvailability.getNumberOfPending());
+				assertEquals(0, bandAvailability.getNumberOfBooked());
+			}
+		} catch(ServiceException e) {
+			fail();
+		}
+	}
+	
+	@Test
+	public void testReservationStatementsDoNotGrowWithOtherConcerts() throws Exception {
+		// Restart without creating every performance's seats in the background,
+		// so that seats are only added by the test
+		boolean eagerSeatProvisioning = ServiceConfig.EAGER_SEAT_PROVISIONING;
+		_server.stop();
+		ServiceConfig.EAGER_SEAT_PROVISIONING = false;
+		_server.start();
+		
+		try {
+			UserDTO userDTO = new UserDTO("Bulldog", "123", "Churchill", "Winston");
+			_service.createUser(userDTO);
+			
+			// The first reservation for a performance also creates its seats
+			LocalDateTime dateTime = LocalDateTime.of(2017, 2, 24, 17, 00);
+			_service.reserveSeats(new ReservationRequestDTO(1, PriceBand.PriceBandC, 1L, dateTime));
+			long statements = statementsToReserve(1L, dateTime);
+			
+			// Add the seats of every performance of two other concerts
+			for(LocalDateTime other : Arrays.asList(LocalDateTime.of(2017, 8, 8, 19, 30),
+					LocalDateTime.of(2017, 8, 31, 19, 30), LocalDateTime.of(2017, 9, 21, 16, 15),
+					LocalDateTime.of(2017, 10, 29, 19, 00), LocalDateTime.of(2017, 11, 9, 17, 00),
+					LocalDateTime.of(2017, 11, 23, 17, 00))) {
+				_service.reserveSeats(new ReservationRequestDTO(1, PriceBand.PriceBandC, 2L, other));
+			}
+			for(LocalDateTime other : Arrays.asList(LocalDateTime.of(2017, 7, 28, 16, 45),
+					LocalDateTime.of(2017, 8, 5, 16, 45), LocalDateTime.of(2017, 8, 9, 16, 45),
+					LocalDateTime.of(2017, 8, 19, 18, 00), LocalDateTime.of(2017, 8, 20, 18, 00),
+					LocalDateTime.of(2017, 9, 1, 18, 00))) {
+				_service.reserveSeats(new ReservationRequestDTO(1, PriceBand.PriceBandC, 3L, other));
+			}
+			
+			assertEquals(statements, statementsToReserve(1L, dateTime));
+		} catch(ServiceException e) {
+			fail();
+		} finally {
+			ServiceConfig.EAGER_SEAT_PROVISIONING = eagerSeatProvisioning;
+		}
+	}
+	
+	@Test
+	public void testLookupsUseIndexes() {
+		EntityManager em = PersistenceManager.instance().createEntityManager();
+		try {
+			assertTrue(plan(em, "SELECT * FROM SEATS WHERE CONCERT = 1 AND DATE_TIME = TIMESTAMP '2017-02-24 17:00:00' "
+					+ "AND STATUS = 'PENDING' AND PRICE_BAND = 'PriceBandC'").contains("SEATS_PERFORMANCE_STATUS"));
+			assertTrue(plan(em, "SELECT * FROM RESERVATIONS WHERE USER = 'Bulldog' AND CONFIRMED = TRUE")
+					.contains("RESERVATIONS_USER_CONFIRMED"));
+			assertTrue(plan(em, "SELECT * FROM USER WHERE TOKEN = 'token'").contains("USER_TOKEN"));
+		} finally {
+			em.close();
+		}
+	}
+	
+	@Test
+	public void testDatabaseConnectionsArePooled() {
+		try {
+			UserDTO userDTO = new UserDTO("Bulldog", "123", "Churchill", "Winston");
+			_service.createUser(userDTO);
+			for(int i = 0; i < 10; i++) {
+				_service.getBookings();
+			}
+			
+			Map<String, Number> metrics = MetricsRegistry.instance().snapshot();
+			assertTrue(metrics.get("db.pool.acquire.count").longValue() >= 10);
+			assertTrue(metrics.get("db.pool.total").intValue() <= ServiceConfig.DB_POOL_MAX_SIZE);
+			assertTrue(metrics.get("db.pool.active").intValue() <= metrics.get("db.pool.total").intValue());
+			assertEquals(0L, metrics.get("db.pool.timeouts").longValue());
+		} catch(ServiceException e) {
+			fail();
+		}
+	}
+	
+	@Test
+	public void testCatalogueIsCachedUntilChanged() {
+		List<ConcertDTO> concerts = _client.target(WEB_SERVICE_URI + "/concerts").request()
+				.get(new GenericType<List<ConcertDTO>>() {});
+		List<PerformerDTO> performers = _client.target(WEB_SERVICE_URI + "/performers").request()
+				.get(new GenericType<List<PerformerDTO>>() {});
+		long concertRebuilds = metric("catalogue.concerts.rebuild.count");
+		long performerRebuilds = metric("catalogue.performers.rebuild.count");
+		long concertMisses = metric("cache.query.concerts.misses");
+		long performerMisses = metric("cache.query.performers.misses");
+		
+		// The serialized catalogues are served again without being rebuilt
+		assertEquals(concerts.size(), _client.target(WEB_SERVICE_URI + "/concerts").request()
+				.get(new GenericType<List<ConcertDTO>>() {}).size());
+		assertEquals(performers.size(), _client.target(WEB_SERVICE_URI + "/performers").request()
+				.get(new GenericType<List<PerformerDTO>>() {}).size());
+		assertEquals(concertRebuilds, metric("catalogue.concerts.rebuild.count"));
+		assertEquals(performerRebuilds, metric("catalogue.performers.rebuild.count"));
+		
+		// Creating a performer invalidates the list of performers, but not the
+		// list of concerts
+		PerformerDTO performerDTO = new PerformerDTO(0L, "The Cached", "cached.jpg", Genre.Rock,
+				new HashSet<>(Arrays.asList(1L)));
+		Response response = _client.target(WEB_SERVICE_URI + "/performers").request()
+				.post(Entity.entity(performerDTO, MediaType.APPLICATION_XML));
+		assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+		String location = response.getLocation().getPath();
+		response.close();
+		
+		try {
+			assertEquals(concerts.size(), _client.target(WEB_SERVICE_URI + "/concerts").request()
+					.get(new GenericType<List<ConcertDTO>>() {}).size());
+			assertEquals(concertRebuilds, metric("catalogue.concerts.rebuild.count"));
+			assertEquals(concertMisses, metric("cache.query.concerts.misses"));
+			
+			assertEquals(performers.size() + 1, _client.target(WEB_SERVICE_URI + "/performers").request()
+					.get(new GenericType<List<PerformerDTO>>() {}).size());
+			assertEquals(performerRebuilds + 1, metric("catalogue.performers.rebuild.count"));
+			assertEquals(performerMisses + 1, metric("cache.query.performers.misses"));
+		} finally {
+			// Remove the performer, so that other tests see the initial catalogue
+			EntityManager em = PersistenceManager.instance().createEntityManager();
+			try {
+				em.getTransaction().begin();
+				em.remove(em.find(Performer.class, Long.parseLong(location.substring(location.lastIndexOf('/') + 1))));
+				em.getTransaction().commit();
+			} finally {
+				em.close();
+			}
+		}
+	}
+	
+	@Test
+	public void testCatalogueIsRevalidatedWithEntityTag() throws Exception {
+		Response response = _client.target(WEB_SERVICE_URI + "/concerts").request().get();
+		assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+		EntityTag tag = response.getEntityTag();
+		byte[] xml = response.readEntity(byte[].class);
+		assertFalse(tag.isWeak());
+		
+		// An unchanged catalogue is answered without a body or a rebuild
+		long rebuilds = metric("catalogue.concerts.rebuild.count");
+		response = _client.target(WEB_SERVICE_URI + "/concerts").request()
+				.header(HttpHeaders.IF_NONE_MATCH, tag.toString())
+				.get();
+		assertEquals(Response.Status.NOT_MODIFIED.getStatusCode(), response.getStatus());
+		assertEquals(tag, response.getEntityTag());
+		response.close();
+		assertEquals(rebuilds, metric("catalogue.concerts.rebuild.count"));
+		
+		// The gzip encoding has a tag of its own, and the same content
+		response = _client.target(WEB_SERVICE_URI + "/concerts").request()
+				.header(HttpHeaders.ACCEPT_ENCODING, "gzip")
+				.get();
+		assertEquals("gzip", response.getHeaderString(HttpHeaders.CONTENT_ENCODING));
+		assertFalse(tag.equals(response.getEntityTag()));
+		try (InputStream gzip = new GZIPInputStream(new ByteArrayInputStream(response.readEntity(byte[].class)))) {
+			ByteArrayOutputStream unzipped = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			for (int read; (read = gzip.read(buffer)) != -1; ) {
+				unzipped.write(buffer, 0, read);
+			}
+			assertTrue(Arrays.equals(xml, unzipped.toByteArray()));
+		}
+	}
+	
+	@Test
+	public void testCatalogueIsPagedByKeyset() {
+		Set<ConcertDTO> concerts = _service.getConcerts();
+		
+		// Follow the next links through pages of 10 concerts
+		List<ConcertDTO> paged = new ArrayList<>();
+		URI page = URI.create(WEB_SERVICE_URI + "/concerts?limit=10");
+		int pages = 0;
+		while (page != null) {
+			Response response = _client.target(page).request().accept(MediaType.APPLICATION_XML).get();
+			assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+			List<ConcertDTO> concertsOfPage = response.readEntity(new GenericType<List<ConcertDTO>>() {});
+			assertTrue(concertsOfPage.size() <= 10);
+			paged.addAll(concertsOfPage);
+			page = response.getLink("next") == null ? null : response.getLink("next").getUri();
+			pages++;
+		}
+		// Only a page shorter than the limit has no next link
+		assertEquals(concerts.size() / 10 + 1, pages);
+		assertEquals(concerts.size(), paged.size());
+		assertEquals(concerts, new HashSet<>(paged));
+		for (int i = 1; i < paged.size(); i++) {
+			assertTrue(paged.get(i - 1).getId() < paged.get(i).getId());
+		}
+		
+		// The client's iterator fetches the same concerts and performers
+		Set<ConcertDTO> iterated = new HashSet<>();
+		((DefaultService) _service).iterateConcerts().forEachRemaining(iterated::add);
+		assertEquals(concerts, iterated);
+		Set<PerformerDTO> performers = new HashSet<>();
+		((DefaultService) _service).iteratePerformers().forEachRemaining(performers::add);
+		assertEquals(_service.getPerformers(), performers);
+		
+		Response response = _client.target(WEB_SERVICE_URI + "/concerts").queryParam("limit", 0).request().get();
+		assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus());
+		response.close();
+	}
+	
+	@Test
+	public void testCatalogueIsStreamed() {
+		long streamed = MetricsRegistry.instance().counter("catalogue.streamed").sum();
+		Set<ConcertDTO> concerts = _client.target(WEB_SERVICE_URI + "/concerts")
+				.queryParam("stream", true)
+				.request()
+				.accept(MediaType.APPLICATION_XML)
+				.get(new GenericType<Set<ConcertDTO>>() {});
+		
+		assertEquals(_service.getConcerts(), concerts);
+		assertEquals(streamed + concerts.size(), MetricsRegistry.instance().counter("catalogue.streamed").sum());
+		
+		// A stream can start after a concert, and be limited
+		List<ConcertDTO> rest = _client.target(WEB_SERVICE_URI + "/concerts")
+				.queryParam("stream", true)
+				.queryParam("after", 5)
+				.queryParam("limit", 3)
+				.request()
+				.accept(MediaType.APPLICATION_XML)
+				.get(new GenericType<List<ConcertDTO>>() {});
+		assertEquals(3, rest.size());
+		assertEquals(new Long(6), rest.get(0).getId());
+	}
+	
+	@Test
+	public void testServiceIsUsedWithJsonAndSmile() {
+		MediaType smile = MediaType.valueOf(Config.APPLICATION_SMILE);
+		LocalDateTime dateTime = LocalDateTime.of(2017, 2, 24, 17, 00);
+		
+		Set<Long> concertIds = new HashSet<>();
+		_service.getConcerts().forEach(concert -> concertIds.add(concert.getId()));
+		
+		// XML reads an empty set back as null, so JSON and Smile are compared with each other
+		List<Set<ConcertDTO>> concerts = new ArrayList<>();
+		List<Set<PerformerDTO>> performers = new ArrayList<>();
+		
+		MediaType[] mediaTypes = {MediaType.APPLICATION_JSON_TYPE, smile};
+		for (int i = 0; i < mediaTypes.length; i++) {
+			MediaType mediaType = mediaTypes[i];
+			ConcertService service = new DefaultService(mediaType);
+			concerts.add(service.getConcerts());
+			performers.add(service.getPerformers());
+			
+			Set<Long> ids = new HashSet<>();
+			concerts.get(concerts.size() - 1).forEach(concert -> ids.add(concert.getId()));
+			assertEquals(concertIds, ids);
+			
+			service.createUser(new UserDTO("Bulldog-" + mediaType.getSubtype(), "123", "Churchill", "Winston"));
+			service.registerCreditCard(new CreditCardDTO(CreditCardDTO.Type.Visa, "Winston Churchill",
+					"4929-1500-0055-954" + i, LocalDate.of(2019, 7, 31)));
+			ReservationDTO reservation = service.reserveSeats(
+					new ReservationRequestDTO(2, PriceBand.PriceBandC, 1L, dateTime));
+			service.confirmReservation(reservation);
+			
+			Set<BookingDTO> bookings = service.getBookings();
+			assertEquals(1, bookings.size());
+			assertEquals(reservation.getSeats(), bookings.iterator().next().getSeats());
+			assertEquals(dateTime, bookings.iterator().next().getDateTime());
+		}
+		assertEquals(concerts.get(0), concerts.get(1));
+		assertEquals(performers.get(0), performers.get(1));
+		
+		// The catalogue is kept in each media type, with a tag of its own
+		Response xml = _client.target(WEB_SERVICE_URI + "/concerts").request().get();
+		assertTrue(MediaType.APPLICATION_XML_TYPE.isCompatible(xml.getMediaType()));
+		EntityTag xmlTag = xml.getEntityTag();
+		int xmlLength = xml.readEntity(byte[].class).length;
+		
+		Response binary = _client.target(WEB_SERVICE_URI + "/concerts").request().accept(smile).get();
+		assertTrue(smile.isCompatible(binary.getMediaType()));
+		assertFalse(xmlTag.equals(binary.getEntityTag()));
+		assertTrue(binary.readEntity(byte[].class).length < xmlLength);
+		
+		Response response = _client.target(WEB_SERVICE_URI + "/concerts").request().accept("image/png").get();
+		assertEquals(Response.Status.NOT_ACCEPTABLE.getStatusCode(), response.getStatus());
+		response.close();
+	}
+	
+	private static long metric(String name) {
+		return MetricsRegistry.instance().snapshot().get(name).longValue();
+	}
+	
+	/**
+	 * @return the number of SQL statements sent to the database to make and
+	 * store a reservation for a performance, once its seats exist.
+	 */
+	private long statementsToReserve(long concertId, LocalDateTime dateTime) throws ServiceException {
+		LongAdder statements = MetricsRegistry.instance().counter("db.statements");
+		SeatLedger.instance().awaitProjected();
+		long before = statements.sum();
+		
+		_service.reserveSeats(new ReservationRequestDTO(1, PriceBand.PriceBandC, concertId, dateTime));
+		SeatLedger.instance().awaitProjected();
+		return statements.sum() - before;
+	}
+	
+	private static String plan(EntityManager em, String sql) {
+		return String.valueOf(em.createNativeQuery("EXPLAIN " + sql).getSingleResult());
+	}
+	
+	@Test
+	public void testRetrieveSeatMapForUnscheduledPerformance() {
+		try {
+			_service.getSeatMap(1L, LocalDateTime.of(2018, 2, 24, 17, 00));
+			fail();
+		} catch(ServiceException e) {
+			assertEquals(Messages.CONCERT_NOT_SCHEDULED_ON_RESERVATION_DATE, e.getMessage());
+		}
+	}
+	
 	@Test
 	public void testConfirmReservation() {
 		try {
@@ -343,6 +843,85 @@ public class ConcertServiceTest {
 		}
 	}	
 	
+	@Test
+	public void testRevokedAuthTokenIsRejectedAfterRestart() throws Exception {
+		ServiceConfig.AuthTokenMode authTokenMode = ServiceConfig.AUTH_TOKEN_MODE;
+		ServiceConfig.AUTH_TOKEN_MODE = ServiceConfig.AuthTokenMode.SIGNED;
+		boolean clearDatabase = ServiceConfig.CLEAR_DATABASE_AT_STARTUP;
+		// A client of its own, whose connections don't outlive the restart
+		Client client = ClientBuilder.newClient();
+		
+		try {
+			UserDTO userDTO = new UserDTO("Bulldog", "123", "Churchill", "Winston");
+			Response response = client.target(WEB_SERVICE_URI + "/users").request()
+					.post(Entity.entity(userDTO, MediaType.APPLICATION_XML));
+			assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+			Cookie authToken = response.getCookies().get("AuthToken");
+			response.close();
+			
+			response = client.target(WEB_SERVICE_URI + "/users/auth").request()
+					.cookie(authToken)
+					.delete();
+			assertEquals(Response.Status.NO_CONTENT.getStatusCode(), response.getStatus());
+			response.close();
+			
+			// Restart, reloading the revoked tokens from the database
+			_server.stop();
+			ServiceConfig.CLEAR_DATABASE_AT_STARTUP = false;
+			_server.start();
+			
+			response = client.target(WEB_SERVICE_URI + "/bookings").request()
+					.cookie(authToken)
+					.get();
+			assertEquals(Response.Status.UNAUTHORIZED.getStatusCode(), response.getStatus());
+			assertEquals(Messages.BAD_AUTHENTICATON_TOKEN, response.readEntity(String.class));
+		} finally {
+			client.close();
+			ServiceConfig.AUTH_TOKEN_MODE = authTokenMode;
+			ServiceConfig.CLEAR_DATABASE_AT_STARTUP = clearDatabase;
+		}
+	}
+	
+	@Test
+	public void testReservationsAreRecoveredAfterRestart() throws Exception {
+		boolean clearDatabase = ServiceConfig.CLEAR_DATABASE_AT_STARTUP;
+		
+		try {
+			UserDTO userDTO = new UserDTO("Bulldog", "123", "Churchill", "Winston");
+			_service.createUser(userDTO);
+			CreditCardDTO creditCard = new CreditCardDTO(CreditCardDTO.Type.Visa, "Winston Churchill", "4929-1500-0055-9544", LocalDate.of(2019, 7, 31));
+			_service.registerCreditCard(creditCard);
+			
+			// Book one reservation, and leave another held
+			LocalDateTime dateTime = LocalDateTime.of(2017, 2, 24, 17, 00);
+			ReservationDTO booked = _service.reserveSeats(new ReservationRequestDTO(2, PriceBand.PriceBandA, 1L, dateTime));
+			_service.confirmReservation(booked);
+			ReservationDTO held = _service.reserveSeats(new ReservationRequestDTO(3, PriceBand.PriceBandB, 1L, dateTime));
+			
+			// Restart, recovering the seats from the journal and the database rather than clearing them
+			_server.stop();
+			ServiceConfig.CLEAR_DATABASE_AT_STARTUP = false;
+			_server.start();
+			
+			Set<BookingDTO> bookings = _service.getBookings();
+			assertEquals(1, bookings.size());
+			assertEquals(booked.getSeats(), bookings.iterator().next().getSeats());
+			
+			// The recovered hold can still be booked
+			_service.confirmReservation(held);
+			bookings = _service.getBookings();
+			assertEquals(2, bookings.size());
+			for(BookingDTO booking : bookings) {
+				assertEquals(booking.getPriceBand() == PriceBand.PriceBandA ? booked.getSeats() : held.getSeats(),
+						booking.getSeats());
+			}
+		} catch(ServiceException e) {
+			fail();
+		} finally {
+			ServiceConfig.CLEAR_DATABASE_AT_STARTUP = clearDatabase;
+		}
+	}
+	
 	@Test
 	public void testConfirmBookingWithExpiredReservation() {
 		try {
@@ -667,4 +1246,44 @@ public class ConcertServiceTest {
             fail();
         }
     }
+
+	@Test
+	public void testExpiredBookingsAreRevalidatedInBackground() throws Exception {
+		// Responses expire as soon as they arrive, and background revalidations
+		// are queued until the test runs them
+		int cacheExpirySeconds = Config.CACHE_EXPIRY_SECONDS;
+		Config.CACHE_EXPIRY_SECONDS = 0;
+		Queue<Runnable> revalidations = new ConcurrentLinkedQueue<>();
+		ConcertService service = new DefaultService(MediaType.APPLICATION_XML_TYPE, revalidations::add);
+		
+		try {
+			UserDTO userDTO = new UserDTO("Bulldog", "123", "Churchill", "Winston");
+			service.createUser(userDTO);
+			CreditCardDTO creditCard = new CreditCardDTO(CreditCardDTO.Type.Visa, "Winston Churchill", "4929-1500-0055-9544", LocalDate.of(2019, 7, 31));
+			service.registerCreditCard(creditCard);
+			
+			LongAdder notModified = MetricsRegistry.instance().counter("bookings.notModified");
+			Set<BookingDTO> bookings = service.getBookings();
+			assertTrue(bookings.isEmpty());
+			assertTrue(revalidations.isEmpty());
+			
+			// Once expired, the cached bookings are returned while a conditional
+			// request revalidates them, which the service answers with a 304
+			long before = notModified.sum();
+			assertSame(bookings, service.getBookings());
+			assertEquals(1, revalidations.size());
+			revalidations.poll().run();
+			assertEquals(before + 1, notModified.sum());
+			assertSame(bookings, service.getBookings());
+			
+			// Confirming a reservation invalidates the cached bookings
+			LocalDateTime dateTime = LocalDateTime.of(2017, 2, 24, 17, 00);
+			ReservationDTO reservation = service.reserveSeats(
+					new ReservationRequestDTO(2, PriceBand.PriceBandC, 1L, dateTime));
+			service.confirmReservation(reservation);
+			assertEquals(1, service.getBookings().size());
+		} finally {
+			Config.CACHE_EXPIRY_SECONDS = cacheExpirySeconds;
+		}
+	}
 }
@@ -0,0 +1,198 @@
+package nz.ac.auckland.concert.client.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.ws.rs.core.MediaType;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+
+import nz.ac.auckland.concert.common.Config;
+import nz.ac.auckland.concert.common.dto.*;
+import nz.ac.auckland.concert.common.types.PriceBand;
+import nz.ac.auckland.concert.common.types.SeatNumber;
+import nz.ac.auckland.concert.common.types.SeatRow;
+import nz.ac.auckland.concert.utility.TheatreLayout;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.jaxrs.json.JacksonJaxbJsonProvider;
+import com.fasterxml.jackson.jaxrs.smile.JacksonJaxbSmileProvider;
+
+/**
+ * Compares the cost of marshalling and unmarshalling DTOs, and the size of
+ * the payload, in each media type that the Web service offers.
+ *
+ * XML is marshalled with JAXB, as RESTEasy's JAXB provider does. JSON and
+ * Smile are marshalled with the ObjectMappers of the Jackson providers that
+ * the Web service and DefaultService use, so the DTOs are mapped in exactly
+ * the same way as they are on the wire.
+ *
+ * This is not a JUnit test, and isn't run with the tests. Run its main
+ * method with the client's test classpath, optionally passing the number of
+ * timed iterations per DTO and format.
+ */
+public class MediaTypeBenchmark {
+
+	private static final int WARMUP_ITERATIONS = 20000;
+	private static final int DEFAULT_ITERATIONS = 50000;
+
+	private interface Codec {
+		byte[] marshal(Object dto) throws Exception;
+
+		Object unmarshal(byte[] payload, Class<?> type) throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ITERATIONS;
+
+		Map<String, Codec> codecs = new LinkedHashMap<>();
+		codecs.put(MediaType.APPLICATION_XML, xml());
+		codecs.put(MediaType.APPLICATION_JSON, jackson(new JacksonJaxbJsonProvider()
+				.locateMapper(Object.class, MediaType.APPLICATION_JSON_TYPE)));
+		codecs.put(Config.APPLICATION_SMILE, jackson(new JacksonJaxbSmileProvider()
+				.locateMapper(Object.class, MediaType.valueOf(Config.APPLICATION_SMILE))));
+
+		System.out.println(String.format("%-20s %-28s %10s %14s %14s", "DTO", "Media type", "Bytes",
+				"Marshal ns/op", "Unmarshal ns/op"));
+		for (Object dto : dtos()) {
+			for (Map.Entry<String, Codec> codec : codecs.entrySet()) {
+				Result result = measure(codec.getValue(), dto, iterations);
+				System.out.println(String.format("%-20s %-28s %10d %14d %14d", dto.getClass().getSimpleName(),
+						codec.getKey(), result._bytes, result._marshalNanos, result._unmarshalNanos));
+			}
+		}
+	}
+
+	private static Result measure(Codec codec, Object dto, int iterations) throws Exception {
+		byte[] payload = codec.marshal(dto);
+		if (!dto.equals(codec.unmarshal(payload, dto.getClass()))) {
+			throw new IllegalStateException(dto.getClass().getSimpleName() + " doesn't survive a round trip");
+		}
+
+		// The sum of the payload sizes is kept so that the work can't be optimised away
+		long sink = 0;
+		for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+			sink += codec.marshal(dto).length;
+			sink += codec.unmarshal(payload, dto.getClass()).hashCode();
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			sink += codec.marshal(dto).length;
+		}
+		long marshal = (System.nanoTime() - start) / iterations;
+
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			sink += codec.unmarshal(payload, dto.getClass()).hashCode();
+		}
+		long unmarshal = (System.nanoTime() - start) / iterations;
+
+		if (sink == 42) {
+			System.out.println();
+		}
+		return new Result(payload.length, marshal, unmarshal);
+	}
+
+	private static Codec xml() {
+		Map<Class<?>, JAXBContext> contexts = new HashMap<>();
+		return new Codec() {
+			@Override
+			public byte[] marshal(Object dto) throws JAXBException {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				context(dto.getClass()).createMarshaller().marshal(dto, out);
+				return out.toByteArray();
+			}
+
+			@Override
+			public Object unmarshal(byte[] payload, Class<?> type) throws JAXBException {
+				return context(type).createUnmarshaller().unmarshal(new ByteArrayInputStream(payload));
+			}
+
+			private JAXBContext context(Class<?> type) throws JAXBException {
+				JAXBContext context = contexts.get(type);
+				if (context == null) {
+					context = JAXBContext.newInstance(type);
+					contexts.put(type, context);
+				}
+				return context;
+			}
+		};
+	}
+
+	private static Codec jackson(ObjectMapper mapper) {
+		return new Codec() {
+			@Override
+			public byte[] marshal(Object dto) throws Exception {
+				return mapper.writeValueAsBytes(dto);
+			}
+
+			@Override
+			public Object unmarshal(byte[] payload, Class<?> type) throws Exception {
+				return mapper.readValue(payload, type);
+			}
+		};
+	}
+
+	/**
+	 * @return DTOs of the kinds that make up most booking traffic.
+	 */
+	private static List<Object> dtos() {
+		LocalDateTime dateTime = LocalDateTime.of(2017, 2, 24, 17, 0);
+		ReservationRequestDTO request = new ReservationRequestDTO(6, PriceBand.PriceBandC, 1L, dateTime);
+
+		Set<SeatDTO> seats = new HashSet<>();
+		for (int number = 1; number <= request.getNumberOfSeats(); number++) {
+			seats.add(new SeatDTO(SeatRow.R, new SeatNumber(number)));
+		}
+
+		List<SeatMapRowDTO> rows = new ArrayList<>();
+		for (SeatRow row : SeatRow.values()) {
+			int numberOfSeats = TheatreLayout.getNumberOfSeatsForRow(row);
+			rows.add(new SeatMapRowDTO(row, numberOfSeats, (1L << numberOfSeats) - 1));
+		}
+
+		Map<PriceBand, BigDecimal> tariff = new EnumMap<>(PriceBand.class);
+		tariff.put(PriceBand.PriceBandA, new BigDecimal("150.00"));
+		tariff.put(PriceBand.PriceBandB, new BigDecimal("110.00"));
+		tariff.put(PriceBand.PriceBandC, new BigDecimal("85.00"));
+		Set<LocalDateTime> dates = new HashSet<>();
+		for (int week = 0; week < 5; week++) {
+			dates.add(dateTime.plusWeeks(week));
+		}
+		Set<Long> performerIds = new HashSet<>();
+		performerIds.add(1L);
+		performerIds.add(2L);
+
+		List<Object> dtos = new ArrayList<>();
+		dtos.add(new SeatDTO(SeatRow.A, new SeatNumber(1)));
+		dtos.add(request);
+		dtos.add(new ReservationDTO(1L, request, seats));
+		dtos.add(new BookingDTO(1L, "PINK in Concert", dateTime, seats, PriceBand.PriceBandC));
+		dtos.add(new ConcertDTO(1L, "PINK in Concert", dates, tariff, performerIds));
+		dtos.add(new SeatMapDTO(1L, dateTime, 1L, rows));
+		return dtos;
+	}
+
+	private static class Result {
+		private final int _bytes;
+		private final long _marshalNanos;
+		private final long _unmarshalNanos;
+
+		private Result(int bytes, long marshalNanos, long unmarshalNanos) {
+			_bytes = bytes;
+			_marshalNanos = marshalNanos;
+			_unmarshalNanos = unmarshalNanos;
+		}
+	}
+}
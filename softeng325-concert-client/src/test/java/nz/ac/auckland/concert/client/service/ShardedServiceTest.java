@@ -0,0 +1,345 @@
+package nz.ac.auckland.concert.client.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.core.Cookie;
+import javax.ws.rs.core.GenericEntity;
+import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import nz.ac.auckland.concert.common.dto.*;
+import nz.ac.auckland.concert.common.types.PriceBand;
+import nz.ac.auckland.concert.service.ServiceConfig;
+import nz.ac.auckland.concert.service.cluster.ShardForwarder;
+import nz.ac.auckland.concert.service.services.ConcertApplication;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.jboss.resteasy.plugins.server.servlet.HttpServletDispatcher;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests for a Web service sharded across several nodes.
+ *
+ * Before the tests run, NODES embedded servlet containers are started, each
+ * hosting the Web service on its own port, and are joined into one cluster.
+ * The containers run in this JVM and so share a database and seat inventory,
+ * which lets the tests check that requests reach the node that owns their
+ * performance, whichever node they are sent to.
+ *
+ * Unlike ConcertServiceTest, the nodes stay up for every test, so each test
+ * creates its own user.
+ */
+public class ShardedServiceTest {
+
+	private static final int FIRST_PORT = 10001;
+	private static final int NODES = 3;
+	private static final String WEB_SERVICE_CLASS_NAME = ConcertApplication.class.getName();
+	private static final String CLUSTER_KEY = "sharded-service-test";
+
+	// Performances of the first two concerts, by date
+	private static final Map<LocalDateTime, Long> PERFORMANCES = new HashMap<>();
+	static {
+		for (String date : new String[] {"2017-02-24T17:00", "2017-03-02T17:00", "2017-03-12T18:00",
+				"2017-03-21T18:00", "2017-04-15T18:30"}) {
+			PERFORMANCES.put(LocalDateTime.parse(date), 1L);
+		}
+		for (String date : new String[] {"2017-08-08T19:30", "2017-08-31T19:30", "2017-09-21T16:15",
+				"2017-10-29T19:00", "2017-11-09T17:00", "2017-11-23T17:00"}) {
+			PERFORMANCES.put(LocalDateTime.parse(date), 2L);
+		}
+	}
+
+	private static Client _client;
+	private static List<Server> _servers = new ArrayList<>();
+	private static List<URI> _nodes = new ArrayList<>();
+
+	private static int _users;
+	private static String _clusterSecret;
+
+	@BeforeClass
+	public static void startCluster() throws Exception {
+		_client = ClientBuilder.newClient();
+		_clusterSecret = ServiceConfig.CLUSTER_SECRET;
+		ServiceConfig.CLUSTER_SECRET = CLUSTER_KEY;
+
+		for (int i = 0; i < NODES; i++) {
+			// Initialise the Web service as the container starts, rather than
+			// on its first request, which would clear the database mid-test.
+			ServletHolder servletHolder = new ServletHolder(new HttpServletDispatcher());
+			servletHolder.setInitParameter("javax.ws.rs.Application", WEB_SERVICE_CLASS_NAME);
+			servletHolder.setInitOrder(0);
+			ServletContextHandler servletCtxHandler = new ServletContextHandler();
+			servletCtxHandler.setContextPath("/services");
+			servletCtxHandler.addServlet(servletHolder, "/");
+			Server server = new Server(FIRST_PORT + i);
+			server.setHandler(servletCtxHandler);
+			server.start();
+
+			_servers.add(server);
+			_nodes.add(URI.create("http://localhost:" + (FIRST_PORT + i) + "/services"));
+		}
+
+		for (URI node : _nodes) {
+			Response response = _client.target(_nodes.get(0)).path("cluster/nodes").request()
+					.header(ShardForwarder.CLUSTER_KEY_HEADER, CLUSTER_KEY)
+					.post(Entity.entity(node.toString(), MediaType.TEXT_PLAIN));
+			assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+			response.close();
+		}
+	}
+
+	@AfterClass
+	public static void stopCluster() throws Exception {
+		for (Server server : _servers) {
+			server.stop();
+		}
+		_client.close();
+		ServiceConfig.CLUSTER_SECRET = _clusterSecret;
+	}
+
+	@Test
+	public void testMembershipIsSharedByEveryNode() {
+		for (URI node : _nodes) {
+			assertEquals(new HashSet<>(_nodes), nodesOf(node));
+		}
+	}
+
+	@Test
+	public void testPerformancesAreSpreadAcrossNodes() {
+		Map<URI, Integer> performancesByOwner = new HashMap<>();
+		PERFORMANCES.forEach((date, concertId) ->
+				performancesByOwner.merge(ownerOf(concertId, date), 1, Integer::sum));
+
+		assertEquals(new HashSet<>(_nodes), performancesByOwner.keySet());
+	}
+
+	@Test
+	public void testReservationIsMadeByOwnerWhicheverNodeReceivesIt() {
+		LocalDateTime dateTime = LocalDateTime.of(2017, 2, 24, 17, 00);
+		URI owner = ownerOf(1L, dateTime);
+		URI other = _nodes.stream().filter(node -> !node.equals(owner)).findFirst().get();
+		Cookie authToken = createUser(other, true);
+
+		long forwarded = forwardedCount();
+		ReservationRequestDTO request = new ReservationRequestDTO(3, PriceBand.PriceBandB, 1L, dateTime);
+		Response response = _client.target(other).path("bookings/reserve").request()
+				.accept(MediaType.APPLICATION_XML)
+				.cookie(authToken)
+				.post(Entity.entity(request, MediaType.APPLICATION_XML));
+		assertEquals(Response.Status.ACCEPTED.getStatusCode(), response.getStatus());
+		ReservationDTO reservation = response.readEntity(ReservationDTO.class);
+		assertEquals(3, reservation.getSeats().size());
+		assertTrue(forwardedCount() > forwarded);
+
+		// Confirm the reservation through yet another node
+		URI third = _nodes.stream().filter(node -> !node.equals(owner) && !node.equals(other)).findFirst().get();
+		response = _client.target(third).path("bookings/book").request()
+				.cookie(authToken)
+				.post(Entity.entity(reservation, MediaType.APPLICATION_XML));
+		assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+		response.close();
+
+		Set<BookingDTO> bookings = _client.target(other).path("bookings").request()
+				.accept(MediaType.APPLICATION_XML)
+				.cookie(authToken)
+				.get(new GenericType<Set<BookingDTO>>() {});
+		assertEquals(1, bookings.size());
+		assertEquals(reservation.getSeats(), bookings.iterator().next().getSeats());
+	}
+
+	@Test
+	public void testBatchIsSplitBetweenOwners() {
+		List<ReservationRequestDTO> requests = new ArrayList<>();
+		Set<URI> owners = new HashSet<>();
+		PERFORMANCES.forEach((date, concertId) -> {
+			if (owners.add(ownerOf(concertId, date))) {
+				requests.add(new ReservationRequestDTO(2, PriceBand.PriceBandA, concertId, date));
+			}
+		});
+		assertEquals(NODES, requests.size());
+
+		Cookie authToken = createUser(_nodes.get(0), false);
+		List<ReservationResultDTO> results = _client.target(_nodes.get(0)).path("bookings/reserve/batch")
+				.request()
+				.accept(MediaType.APPLICATION_XML)
+				.cookie(authToken)
+				.post(Entity.entity(new GenericEntity<List<ReservationRequestDTO>>(requests) {},
+						MediaType.APPLICATION_XML), new GenericType<List<ReservationResultDTO>>() {});
+
+		assertEquals(requests.size(), results.size());
+		for (int i = 0; i < requests.size(); i++) {
+			assertTrue(results.get(i).isSuccessful());
+			assertEquals(requests.get(i), results.get(i).getReservation().getReservationRequest());
+		}
+	}
+
+	@Test
+	public void testMembershipChangesRequireClusterKey() {
+		URI leaving = _nodes.get(NODES - 1);
+
+		Response delete = _client.target(_nodes.get(0)).path("cluster/nodes")
+				.queryParam("node", leaving.toString())
+				.request()
+				.delete();
+		assertEquals(Response.Status.FORBIDDEN.getStatusCode(), delete.getStatus());
+		delete.close();
+
+		Response put = _client.target(_nodes.get(0)).path("cluster/nodes").request()
+				.header(ShardForwarder.CLUSTER_KEY_HEADER, "guess")
+				.put(Entity.entity(_nodes.get(0).toString(), MediaType.TEXT_PLAIN));
+		assertEquals(Response.Status.FORBIDDEN.getStatusCode(), put.getStatus());
+		put.close();
+
+		for (URI node : _nodes) {
+			assertEquals(new HashSet<>(_nodes), nodesOf(node));
+		}
+	}
+
+	@Test
+	public void testCataloguesAreOnlyInvalidatedWithClusterKey() {
+		Response response = _client.target(_nodes.get(1)).path("cluster/catalogues/CONCERTS").request().delete();
+		assertEquals(Response.Status.FORBIDDEN.getStatusCode(), response.getStatus());
+		response.close();
+
+		response = _client.target(_nodes.get(1)).path("cluster/catalogues/CONCERTS").request()
+				.header(ShardForwarder.CLUSTER_KEY_HEADER, CLUSTER_KEY)
+				.delete();
+		assertEquals(Response.Status.NO_CONTENT.getStatusCode(), response.getStatus());
+		response.close();
+
+		// The catalogue is rebuilt from the database
+		Set<ConcertDTO> concerts = _client.target(_nodes.get(1)).path("concerts").request()
+				.accept(MediaType.APPLICATION_XML)
+				.get(new GenericType<Set<ConcertDTO>>() {});
+		assertTrue(!concerts.isEmpty());
+	}
+
+	@Test
+	public void testClientCannotClaimRequestWasForwarded() {
+		LocalDateTime dateTime = LocalDateTime.of(2017, 8, 8, 19, 30);
+		URI owner = ownerOf(2L, dateTime);
+		URI other = _nodes.stream().filter(node -> !node.equals(owner)).findFirst().get();
+		Cookie authToken = createUser(other, false);
+
+		// The header is dropped, so the request is still forwarded to the owner
+		long forwarded = forwardedCount();
+		Response reserve = _client.target(other).path("bookings/reserve").request()
+				.accept(MediaType.APPLICATION_XML)
+				.cookie(authToken)
+				.header(ShardForwarder.FORWARDED_HEADER, "true")
+				.post(Entity.entity(new ReservationRequestDTO(1, PriceBand.PriceBandB, 2L, dateTime),
+						MediaType.APPLICATION_XML));
+		assertEquals(Response.Status.ACCEPTED.getStatusCode(), reserve.getStatus());
+		reserve.close();
+		assertTrue(forwardedCount() > forwarded);
+	}
+
+	@Test
+	public void testLeavingNodeHandsOverItsPerformances() {
+		URI leaving = _nodes.get(NODES - 1);
+
+		try {
+			Response response = _client.target(_nodes.get(0)).path("cluster/nodes")
+					.queryParam("node", leaving.toString())
+					.request()
+					.header(ShardForwarder.CLUSTER_KEY_HEADER, CLUSTER_KEY)
+					.delete();
+			assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+			response.close();
+
+			Set<URI> remaining = new HashSet<>(_nodes);
+			remaining.remove(leaving);
+			for (URI node : _nodes) {
+				assertEquals(remaining, nodesOf(node));
+			}
+
+			// The node that left sends requests on to the new owners
+			Cookie authToken = createUser(leaving, false);
+			PERFORMANCES.forEach((date, concertId) -> assertNotEquals(leaving, ownerOf(concertId, date)));
+			LocalDateTime dateTime = LocalDateTime.of(2017, 3, 2, 17, 00);
+			Response reserve = _client.target(leaving).path("bookings/reserve").request()
+					.accept(MediaType.APPLICATION_XML)
+					.cookie(authToken)
+					.post(Entity.entity(new ReservationRequestDTO(1, PriceBand.PriceBandC, 1L, dateTime),
+							MediaType.APPLICATION_XML));
+			assertEquals(Response.Status.ACCEPTED.getStatusCode(), reserve.getStatus());
+			reserve.close();
+		} finally {
+			Response response = _client.target(_nodes.get(0)).path("cluster/nodes").request()
+					.header(ShardForwarder.CLUSTER_KEY_HEADER, CLUSTER_KEY)
+					.post(Entity.entity(leaving.toString(), MediaType.TEXT_PLAIN));
+			response.close();
+		}
+	}
+
+	private static Set<URI> nodesOf(URI node) {
+		String nodes = _client.target(node).path("cluster/nodes").request().get(String.class);
+		Set<URI> members = new HashSet<>();
+		Arrays.stream(nodes.split("\n")).filter(line -> !line.isEmpty()).forEach(line -> members.add(URI.create(line)));
+		return members;
+	}
+
+	private static URI ownerOf(long concertId, LocalDateTime date) {
+		return URI.create(_client.target(_nodes.get(0)).path("cluster/owner")
+				.queryParam("concertId", concertId)
+				.queryParam("date", date.toString())
+				.request()
+				.get(String.class));
+	}
+
+	private static long forwardedCount() {
+		String metrics = _client.target(_nodes.get(0)).path("metrics").request().get(String.class);
+		for (String line : metrics.split("\n")) {
+			if (line.startsWith("cluster.forwarded ")) {
+				return Long.parseLong(line.substring(line.indexOf(' ') + 1));
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Creates a user through a node, optionally registering a credit card.
+	 *
+	 * @return the user's auth token.
+	 */
+	private static Cookie createUser(URI node, boolean withCreditCard) {
+		UserDTO user = new UserDTO("Sharded" + (++_users), "123", "Lastname", "Firstname");
+		Response response = _client.target(node).path("users").request()
+				.post(Entity.entity(user, MediaType.APPLICATION_XML));
+		assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+		Cookie authToken = response.getCookies().get("AuthToken");
+		response.close();
+
+		if (withCreditCard) {
+			CreditCardDTO creditCard = new CreditCardDTO(CreditCardDTO.Type.Visa, "Firstname Lastname",
+					"4929-1500-0055-9544", LocalDate.of(2019, 7, 31));
+			response = _client.target(node).path("users/credit_card").request()
+					.cookie(authToken)
+					.post(Entity.entity(creditCard, MediaType.APPLICATION_XML));
+			assertEquals(Response.Status.ACCEPTED.getStatusCode(), response.getStatus());
+			response.close();
+		}
+		return authToken;
+	}
+}
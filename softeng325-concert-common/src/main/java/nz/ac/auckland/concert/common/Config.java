@@ -5,4 +5,15 @@ public class Config {
     // This should probably be increased in the future so less requests are made
     // It's value will depend on how often the db is updated
     public static int CACHE_EXPIRY_SECONDS = 5;
+
+    // Header on a retried reservation request naming the admission ticket it was admitted with
+    public static final String ADMISSION_TICKET_HEADER = "Admission-Ticket";
+
+    // Header carrying a client chosen key, under which the response to a reservation or booking request is
+    // remembered, so that retrying the request doesn't make the reservation or booking again
+    public static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+
+    // Compact binary media type offered for the DTOs alongside XML and JSON. Smile is a binary encoding of JSON,
+    // so the DTOs are mapped to it from their JAXB annotations, just as they are to JSON
+    public static final String APPLICATION_SMILE = "application/x-jackson-smile";
 }
@@ -0,0 +1,97 @@
+package nz.ac.auckland.concert.common.dto;
+
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * DTO class to represent a place in the queue for making reservations for a
+ * concert that is busy.
+ *
+ * An AdmissionTicketDTO describes a ticket in terms of:
+ * _id        the unique identifier for the ticket, to be presented when
+ *            polling for admission and when retrying the reservation.
+ * _concertId the concert whose reservations the ticket queues for.
+ * _position  the number of tickets ahead of this one in the queue.
+ * _admitted  whether the ticket has been admitted, in which case the
+ *            reservation request should be retried with the ticket.
+ *
+ */
+@XmlAccessorType(XmlAccessType.FIELD)
+@XmlRootElement(name = "admission_ticket")
+public class AdmissionTicketDTO {
+
+	@XmlAttribute(name = "id")
+	private String _id;
+
+	@XmlElement(name = "concert")
+	private Long _concertId;
+
+	@XmlElement(name = "position")
+	private int _position;
+
+	@XmlElement(name = "admitted")
+	private boolean _admitted;
+
+	public AdmissionTicketDTO() {}
+
+	public AdmissionTicketDTO(String id, Long concertId, int position, boolean admitted) {
+		_id = id;
+		_concertId = concertId;
+		_position = position;
+		_admitted = admitted;
+	}
+
+	public String getId() {
+		return _id;
+	}
+
+	public Long getConcertId() {
+		return _concertId;
+	}
+
+	public int getPosition() {
+		return _position;
+	}
+
+	public boolean isAdmitted() {
+		return _admitted;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof AdmissionTicketDTO))
+			return false;
+		if (obj == this)
+			return true;
+
+		AdmissionTicketDTO rhs = (AdmissionTicketDTO) obj;
+		return new EqualsBuilder().
+				append(_id, rhs._id).
+				append(_concertId, rhs._concertId).
+				append(_position, rhs._position).
+				append(_admitted, rhs._admitted).
+				isEquals();
+	}
+
+	@Override
+	public int hashCode() {
+		return new HashCodeBuilder(17, 31).
+				append(_id).
+				append(_concertId).
+				append(_position).
+				append(_admitted).
+				hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return "Admission ticket " + _id + " for concert " + _concertId +
+				(_admitted ? ": admitted" : ": position " + _position);
+	}
+}
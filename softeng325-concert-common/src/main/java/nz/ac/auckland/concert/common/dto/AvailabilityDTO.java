@@ -0,0 +1,121 @@
+package nz.ac.auckland.concert.common.dto;
+
+import java.time.LocalDateTime;
+
+import nz.ac.auckland.concert.common.jaxb.LocalDateTimeAdapter;
+import nz.ac.auckland.concert.common.types.PriceBand;
+
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+
+import javax.xml.bind.annotation.*;
+import javax.xml.bind.annotation.adapters.XmlJavaTypeAdapter;
+
+/**
+ * DTO class to represent the availability of the seats in one price band of
+ * a performance.
+ *
+ * An AvailabilityDTO describes a price band's seats in terms of:
+ * _concertId       the identity of the concert.
+ * _date            the date/time of the performance.
+ * _priceBand       the price band.
+ * _numberOfFree    the number of seats that can be reserved.
+ * _numberOfPending the number of seats that are reserved but not yet booked.
+ * _numberOfBooked  the number of seats that are booked.
+ *
+ */
+@XmlRootElement(name = "availability")
+@XmlAccessorType(XmlAccessType.FIELD)
+public class AvailabilityDTO {
+
+	@XmlElement(name = "concert_id")
+	private Long _concertId;
+
+	@XmlElement(name = "date")
+	@XmlJavaTypeAdapter(LocalDateTimeAdapter.class)
+	private LocalDateTime _date;
+
+	@XmlElement(name = "price_band")
+	private PriceBand _priceBand;
+
+	@XmlElement(name = "free")
+	private int _numberOfFree;
+
+	@XmlElement(name = "pending")
+	private int _numberOfPending;
+
+	@XmlElement(name = "booked")
+	private int _numberOfBooked;
+
+	public AvailabilityDTO() {}
+
+	public AvailabilityDTO(Long concertId, LocalDateTime date, PriceBand priceBand,
+			int numberOfFree, int numberOfPending, int numberOfBooked) {
+		_concertId = concertId;
+		_date = date;
+		_priceBand = priceBand;
+		_numberOfFree = numberOfFree;
+		_numberOfPending = numberOfPending;
+		_numberOfBooked = numberOfBooked;
+	}
+
+	public Long getConcertId() {
+		return _concertId;
+	}
+
+	public LocalDateTime getDate() {
+		return _date;
+	}
+
+	public PriceBand getPriceBand() {
+		return _priceBand;
+	}
+
+	public int getNumberOfFree() {
+		return _numberOfFree;
+	}
+
+	public int getNumberOfPending() {
+		return _numberOfPending;
+	}
+
+	public int getNumberOfBooked() {
+		return _numberOfBooked;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof AvailabilityDTO))
+			return false;
+		if (obj == this)
+			return true;
+
+		AvailabilityDTO rhs = (AvailabilityDTO) obj;
+		return new EqualsBuilder().
+				append(_concertId, rhs._concertId).
+				append(_date, rhs._date).
+				append(_priceBand, rhs._priceBand).
+				append(_numberOfFree, rhs._numberOfFree).
+				append(_numberOfPending, rhs._numberOfPending).
+				append(_numberOfBooked, rhs._numberOfBooked).
+				isEquals();
+	}
+
+	@Override
+	public int hashCode() {
+		return new HashCodeBuilder(17, 31).
+				append(_concertId).
+				append(_date).
+				append(_priceBand).
+				append(_numberOfFree).
+				append(_numberOfPending).
+				append(_numberOfBooked).
+				hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return "concert " + _concertId + " on " + _date + ", " + _priceBand + ": " + _numberOfFree
+				+ " free, " + _numberOfPending + " pending, " + _numberOfBooked + " booked";
+	}
+}
@@ -0,0 +1,79 @@
+package nz.ac.auckland.concert.common.dto;
+
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * DTO class to represent the outcome of one reservation request in a batch.
+ *
+ * A ReservationResultDTO describes an outcome in terms of:
+ * _reservation the reservation that was made, or null if the request failed.
+ * _error       the reason the request failed, one of the messages in class
+ *              nz.ac.auckland.concert.common.message.Messages, or null if the
+ *              reservation was made.
+ *
+ */
+@XmlAccessorType(XmlAccessType.FIELD)
+@XmlRootElement(name = "reservation_result")
+public class ReservationResultDTO {
+
+	@XmlElement(name = "reservation")
+	private ReservationDTO _reservation;
+
+	@XmlElement(name = "error")
+	private String _error;
+
+	public ReservationResultDTO() {}
+
+	public ReservationResultDTO(ReservationDTO reservation) {
+		_reservation = reservation;
+	}
+
+	public ReservationResultDTO(String error) {
+		_error = error;
+	}
+
+	public ReservationDTO getReservation() {
+		return _reservation;
+	}
+
+	public String getError() {
+		return _error;
+	}
+
+	public boolean isSuccessful() {
+		return _reservation != null;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof ReservationResultDTO))
+			return false;
+		if (obj == this)
+			return true;
+
+		ReservationResultDTO rhs = (ReservationResultDTO) obj;
+		return new EqualsBuilder().
+				append(_reservation, rhs._reservation).
+				append(_error, rhs._error).
+				isEquals();
+	}
+
+	@Override
+	public int hashCode() {
+		return new HashCodeBuilder(17, 31).
+				append(_reservation).
+				append(_error).
+				hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return _reservation != null ? _reservation.toString() : _error;
+	}
+}
@@ -0,0 +1,104 @@
+package nz.ac.auckland.concert.common.dto;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import nz.ac.auckland.concert.common.jaxb.LocalDateTimeAdapter;
+
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+
+import javax.xml.bind.annotation.*;
+import javax.xml.bind.annotation.adapters.XmlJavaTypeAdapter;
+
+/**
+ * DTO class to represent the availability of every seat for a performance.
+ *
+ * A SeatMapDTO describes a performance's seats in terms of:
+ * _concertId the identity of the concert.
+ * _date      the date/time of the performance.
+ * _version   a number that increases whenever the availability of a seat
+ *            for the performance changes.
+ * _rows      the availability of each row of the venue, as SeatMapRowDTOs.
+ *
+ */
+@XmlRootElement(name = "seat_map")
+@XmlAccessorType(XmlAccessType.FIELD)
+public class SeatMapDTO {
+
+	@XmlElement(name = "concert_id")
+	private Long _concertId;
+
+	@XmlElement(name = "date")
+	@XmlJavaTypeAdapter(LocalDateTimeAdapter.class)
+	private LocalDateTime _date;
+
+	@XmlElement(name = "version")
+	private long _version;
+
+	@XmlElement(name = "rows")
+	private List<SeatMapRowDTO> _rows;
+
+	public SeatMapDTO() {}
+
+	public SeatMapDTO(Long concertId, LocalDateTime date, long version, List<SeatMapRowDTO> rows) {
+		_concertId = concertId;
+		_date = date;
+		_version = version;
+		_rows = new ArrayList<>(rows);
+	}
+
+	public Long getConcertId() {
+		return _concertId;
+	}
+
+	public LocalDateTime getDate() {
+		return _date;
+	}
+
+	public long getVersion() {
+		return _version;
+	}
+
+	public List<SeatMapRowDTO> getRows() {
+		return _rows == null ? Collections.<SeatMapRowDTO>emptyList() : Collections.unmodifiableList(_rows);
+	}
+
+	public int getNumberOfFreeSeats() {
+		return getRows().stream().mapToInt(SeatMapRowDTO::getNumberOfFreeSeats).sum();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof SeatMapDTO))
+			return false;
+		if (obj == this)
+			return true;
+
+		SeatMapDTO rhs = (SeatMapDTO) obj;
+		return new EqualsBuilder().
+				append(_concertId, rhs._concertId).
+				append(_date, rhs._date).
+				append(_version, rhs._version).
+				append(getRows(), rhs.getRows()).
+				isEquals();
+	}
+
+	@Override
+	public int hashCode() {
+		return new HashCodeBuilder(17, 31).
+				append(_concertId).
+				append(_date).
+				append(_version).
+				append(getRows()).
+				hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return "concert " + _concertId + " on " + _date + ", version " + _version + ": "
+				+ getNumberOfFreeSeats() + " seats free";
+	}
+}
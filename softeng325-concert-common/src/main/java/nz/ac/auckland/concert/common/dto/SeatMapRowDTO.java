@@ -0,0 +1,97 @@
+package nz.ac.auckland.concert.common.dto;
+
+import nz.ac.auckland.concert.common.types.SeatRow;
+
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * DTO class to represent the availability of the seats in one row of the
+ * concert venue.
+ *
+ * A SeatMapRowDTO describes a row in terms of:
+ * _row           the row.
+ * _numberOfSeats the number of seats in the row.
+ * _free          a bitset of the row's free seats, where bit n - 1 is set if
+ *                seat n is free. Seats that aren't free are either pending
+ *                or booked.
+ *
+ */
+@XmlAccessorType(XmlAccessType.FIELD)
+@XmlRootElement(name = "seat_map_row")
+public class SeatMapRowDTO {
+
+	@XmlElement(name = "row")
+	private SeatRow _row;
+
+	@XmlElement(name = "num_seats")
+	private int _numberOfSeats;
+
+	@XmlElement(name = "free")
+	private long _free;
+
+	public SeatMapRowDTO() {}
+
+	public SeatMapRowDTO(SeatRow row, int numberOfSeats, long free) {
+		_row = row;
+		_numberOfSeats = numberOfSeats;
+		_free = free;
+	}
+
+	public SeatRow getRow() {
+		return _row;
+	}
+
+	public int getNumberOfSeats() {
+		return _numberOfSeats;
+	}
+
+	public long getFree() {
+		return _free;
+	}
+
+	/**
+	 * @return whether seat number (1-based) of the row is free.
+	 */
+	public boolean isFree(int number) {
+		return number >= 1 && number <= _numberOfSeats && (_free & (1L << (number - 1))) != 0;
+	}
+
+	public int getNumberOfFreeSeats() {
+		return Long.bitCount(_free);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof SeatMapRowDTO))
+			return false;
+		if (obj == this)
+			return true;
+
+		SeatMapRowDTO rhs = (SeatMapRowDTO) obj;
+		return new EqualsBuilder().
+				append(_row, rhs._row).
+				append(_numberOfSeats, rhs._numberOfSeats).
+				append(_free, rhs._free).
+				isEquals();
+	}
+
+	@Override
+	public int hashCode() {
+		return new HashCodeBuilder(17, 31).
+				append(_row).
+				append(_numberOfSeats).
+				append(_free).
+				hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return _row + ": " + getNumberOfFreeSeats() + "/" + _numberOfSeats + " free";
+	}
+}
@@ -16,14 +16,19 @@ public class Messages {
 	
 	public static final String UNAUTHENTICATED_REQUEST = "Unable to process request - missing authentication token";
 	public static final String BAD_AUTHENTICATON_TOKEN = "Unable to process request - unrecognised authentication token";
+	public static final String UNTRUSTED_CLUSTER_NODE = "Unable to process cluster request - missing or incorrect cluster key";
 	
 	public static final String RESERVATION_REQUEST_WITH_MISSING_FIELDS = "Unable to process reservation - missing fields in the request";
 	public static final String CONCERT_NOT_SCHEDULED_ON_RESERVATION_DATE = "Unable to process reservation - concert isn't scheduled on spcecified date";
 	public static final String INSUFFICIENT_SEATS_AVAILABLE_FOR_RESERVATION = "Unable to make reservation - seats of the required type are not available";
+	public static final String CONCERT_BUSY_FOR_RESERVATION = "Unable to make reservation - too many reservations are in progress for the concert";
 	
 	public static final String CREDIT_CARD_NOT_REGISTERED = "Unable to confirm reservation - credit card not registered";
 	public static final String EXPIRED_RESERVATION = "Unable to confirm reservation - reservation has expired";
 
+	public static final String IDEMPOTENCY_KEY_REUSED = "Unable to process request - idempotency key was already used for a different request";
+	public static final String IDEMPOTENT_REQUEST_IN_PROGRESS = "Unable to process request - a request with the same idempotency key is still in progress";
+
 	public static final String NO_IMAGE_FOR_PERFORMER = "Unable to download image - no image associated with requested performer";
 
 	public static final String CREATE_NEWS_ITEM_ALREADY_EXISTS = "Unable to create new news item - news item with the supplied ID already exists";
@@ -0,0 +1,170 @@
+package nz.ac.auckland.concert.service;
+
+import java.io.File;
+
+/**
+ * Web service settings that may differ between deployments. Each setting can
+ * be overridden with a system property of the given name.
+ */
+public class ServiceConfig {
+    // Whether seats for every scheduled performance are created in the background at start up,
+    // rather than by the first reservation for that performance
+    public static boolean EAGER_SEAT_PROVISIONING = Boolean.parseBoolean(
+            System.getProperty("concert.seats.eagerProvisioning", "true"));
+
+    // JDBC URL and credentials of the database
+    public static String DB_URL = System.getProperty("concert.db.url", "jdbc:h2:~/test;mv_store=false");
+    public static String DB_USER = System.getProperty("concert.db.user", "sa");
+    public static String DB_PASSWORD = System.getProperty("concert.db.password", "sa");
+
+    // Most connections the database pool opens, and how many idle ones it keeps ready
+    public static int DB_POOL_MAX_SIZE = Integer.getInteger("concert.db.poolMaxSize", 20);
+    public static int DB_POOL_MIN_IDLE = Integer.getInteger("concert.db.poolMinIdle", 2);
+
+    // How long a request waits for a pooled connection before failing
+    public static long DB_POOL_CONNECTION_TIMEOUT_MILLIS = Long.getLong("concert.db.poolConnectionTimeoutMillis", 30000);
+
+    // How long a connection may be held before it is logged as a possible leak, or 0 for never
+    public static long DB_POOL_LEAK_DETECTION_MILLIS = Long.getLong("concert.db.poolLeakDetectionMillis", 10000);
+
+    // Number of seat rows written per JDBC batch, should match hibernate.jdbc.batch_size
+    public static int SEAT_BATCH_SIZE = Integer.getInteger("concert.seats.batchSize", 50);
+
+    // Longest time a request waits for another thread to finish creating the seats of a performance
+    public static long SEAT_PROVISIONING_TIMEOUT_MILLIS = Long.getLong("concert.seats.provisioningTimeoutMillis",
+            30000);
+
+    // Resolution of reservation expiry, i.e. how long after its hold lapses a seat may stay pending
+    public static long EXPIRY_TICK_MILLIS = Long.getLong("concert.seats.expiryTickMillis", 100);
+
+    // How reserve and book operations on the same performance are kept apart. OPTIMISTIC lets them run
+    // concurrently, and a seat claim that loses a compare-and-set to another on the same row is redone and
+    // counted in booking.optimistic.<operation>.aborts. PESSIMISTIC serialises them on a striped lock, along
+    // with their journal sync. Booking only moves seats already held, so it never aborts in either mode
+    public static LockMode BOOKING_LOCK_MODE = LockMode.valueOf(
+            System.getProperty("concert.booking.lockMode", "OPTIMISTIC").toUpperCase());
+
+    // Number of locks that performances are striped across in PESSIMISTIC mode
+    public static int LOCK_STRIPES = Integer.getInteger("concert.booking.lockStripes", 64);
+
+    // Bounds on retrying the provisioning of a performance's seats that fails because of contention, see
+    // RetryExecutor. Reserve and book no longer conflict in the database, so aren't retried
+    public static int RETRY_MAX_ATTEMPTS = Integer.getInteger("concert.retry.maxAttempts", 5);
+
+    public static long RETRY_INITIAL_BACKOFF_MILLIS = Long.getLong("concert.retry.initialBackoffMillis", 10);
+
+    public static long RETRY_MAX_BACKOFF_MILLIS = Long.getLong("concert.retry.maxBackoffMillis", 500);
+
+    public static long RETRY_DEADLINE_MILLIS = Long.getLong("concert.retry.deadlineMillis", 3000);
+
+    // Number of reservation requests for a single concert that may be processed at once. Requests over the
+    // cap are given an admission ticket and queue, in FIFO order, until admitted
+    public static int ADMISSION_CAP_PER_CONCERT = Integer.getInteger("concert.admission.capPerConcert", 8);
+
+    // How long an admitted ticket keeps its place before it is given to the next in the queue
+    public static long ADMISSION_PASS_MILLIS = Long.getLong("concert.admission.passMillis", 10000);
+
+    // How long a queued ticket may go without being polled before it's assumed abandoned
+    public static long ADMISSION_ABANDON_MILLIS = Long.getLong("concert.admission.abandonMillis", 30000);
+
+    // How long, and how many, responses to requests with an Idempotency-Key are kept for replay
+    public static long IDEMPOTENCY_TTL_MILLIS = Long.getLong("concert.idempotency.ttlMillis", 600000);
+
+    public static int IDEMPOTENCY_MAX_ENTRIES = Integer.getInteger("concert.idempotency.maxEntries", 10000);
+
+    // How long a retry waits for the original request with the same Idempotency-Key before being told to retry later
+    public static long IDEMPOTENCY_WAIT_MILLIS = Long.getLong("concert.idempotency.waitMillis", 10000);
+
+    // Directory holding the segments of the seat journal, the log that every change of seat state is written to
+    public static String JOURNAL_DIR = System.getProperty("concert.journal.dir",
+            System.getProperty("user.home") + File.separator + "concert-journal");
+
+    // Number of records in each memory-mapped segment of the seat journal
+    public static int JOURNAL_SEGMENT_RECORDS = Integer.getInteger("concert.journal.segmentRecords", 65536);
+
+    // Most journaled changes applied to the SEATS and RESERVATIONS tables in one transaction
+    public static int PROJECTION_BATCH_SIZE = Integer.getInteger("concert.journal.projectionBatchSize", 256);
+
+    // Attempts at applying a journaled change to the tables before it is dead-lettered, so one bad record can't
+    // hold up every projection after it
+    public static int PROJECTION_MAX_ATTEMPTS = Integer.getInteger("concert.journal.projectionMaxAttempts", 10);
+
+    // Longest time a read of the tables waits for them to catch up with the seat journal
+    public static long PROJECTION_TIMEOUT_MILLIS = Long.getLong("concert.journal.projectionTimeoutMillis", 5000);
+
+    // How often the seat state is snapshotted so the journal before it can be discarded, or 0 for never
+    public static long SNAPSHOT_INTERVAL_MILLIS = Long.getLong("concert.journal.snapshotIntervalMillis", 60000);
+
+    // Whether the database, seat journal and snapshots are emptied at start up. When false, seat state is
+    // recovered from them instead, which needs a database that outlives restarts
+    public static boolean CLEAR_DATABASE_AT_STARTUP = Boolean.parseBoolean(
+            System.getProperty("concert.startup.clearDatabase", "true"));
+
+    // How the schema is prepared when the database is first used, as a JPA schema generation action or an
+    // hbm2ddl value. drop-and-create also loads the concert catalogue, so a new database must be started with
+    // it; update keeps the rows of earlier runs, which recovering seat state without clearing depends on
+    public static String DB_SCHEMA_ACTION = System.getProperty("concert.db.schemaAction",
+            CLEAR_DATABASE_AT_STARTUP ? "drop-and-create" : "update");
+
+    // Base URIs of the nodes that seat inventory is sharded across, comma separated, e.g.
+    // http://host1:10000/services. Empty for a single node. Nodes can also join and leave at run time
+    public static String CLUSTER_NODES = System.getProperty("concert.cluster.nodes", "");
+
+    // Base URI of this node, when it runs in a JVM of its own. Ownership of performances is then handed
+    // over through the database as the cluster changes. When unset, a node is identified by the base URI
+    // a request arrives on, and nodes in the same JVM share their seat inventory
+    public static String CLUSTER_SELF = System.getProperty("concert.cluster.self");
+
+    // Key that nodes of a cluster, and whoever administers its membership, prove themselves with. It's sent in
+    // the cluster key header, and only requests carrying it may change the membership or be treated as
+    // forwarded. When unset, a random key is generated, so only nodes in the same JVM trust each other
+    public static String CLUSTER_SECRET = System.getProperty("concert.cluster.secret");
+
+    // Points on the consistent-hash ring per node, more spread performances more evenly
+    public static int CLUSTER_VIRTUAL_NODES = Integer.getInteger("concert.cluster.virtualNodes", 128);
+
+    // Connections kept open to each other node for forwarding requests, and how long a forwarded request waits
+    public static int CLUSTER_FORWARD_CONNECTIONS = Integer.getInteger("concert.cluster.forwardConnections", 50);
+    public static long CLUSTER_FORWARD_TIMEOUT_MILLIS = Long.getLong("concert.cluster.forwardTimeoutMillis", 30000);
+
+    // Reservation ids are CLUSTER_NODE_ID modulo RESERVATION_ID_STRIDE, so nodes with distinct ids below the
+    // stride never hand out the same reservation id
+    public static int CLUSTER_NODE_ID = Integer.getInteger("concert.cluster.nodeId", 0);
+    public static int RESERVATION_ID_STRIDE = Integer.getInteger("concert.cluster.reservationIdStride", 1);
+
+    // How long, and how many, auth tokens are remembered with the user they belong to. Other nodes of a
+    // cluster may keep resolving a reissued token for up to the TTL
+    public static long AUTH_CACHE_TTL_MILLIS = Long.getLong("concert.auth.cacheTtlMillis", 60000);
+
+    public static int AUTH_CACHE_MAX_ENTRIES = Integer.getInteger("concert.auth.cacheMaxEntries", 10000);
+
+    // How auth tokens are issued. RANDOM tokens are looked up in the USER table, SIGNED tokens carry their
+    // user and expiry and are verified against AUTH_TOKEN_SECRET without the database
+    public static AuthTokenMode AUTH_TOKEN_MODE = AuthTokenMode.valueOf(
+            System.getProperty("concert.auth.tokenMode", "RANDOM").toUpperCase());
+
+    // Key that SIGNED tokens are signed with, which every node of a cluster must share. When unset, a random
+    // key is generated and tokens are only accepted by the JVM that issued them
+    public static String AUTH_TOKEN_SECRET = System.getProperty("concert.auth.tokenSecret");
+
+    // How long a SIGNED token is accepted for after it is issued
+    public static long AUTH_TOKEN_TTL_MILLIS = Long.getLong("concert.auth.tokenTtlMillis", 86400000);
+
+    // How often a node checks the database for SIGNED tokens revoked by other nodes, in case it missed the
+    // logout they sent on
+    public static long AUTH_REVOCATION_REFRESH_MILLIS = Long.getLong("concert.auth.revocationRefreshMillis", 5000);
+
+    // Concerts or performers returned in a page of a catalogue when the client doesn't set a limit, and the
+    // most it may ask for. A streamed catalogue is also read from the database in batches of this size
+    public static int CATALOGUE_PAGE_SIZE = Integer.getInteger("concert.catalogue.pageSize", 50);
+
+    public static int CATALOGUE_MAX_PAGE_SIZE = Integer.getInteger("concert.catalogue.maxPageSize", 500);
+
+    public enum LockMode {
+        OPTIMISTIC, PESSIMISTIC
+    }
+
+    public enum AuthTokenMode {
+        RANDOM, SIGNED
+    }
+}
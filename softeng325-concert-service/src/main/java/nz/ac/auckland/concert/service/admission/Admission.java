@@ -0,0 +1,44 @@
+package nz.ac.auckland.concert.service.admission;
+
+import nz.ac.auckland.concert.common.dto.AdmissionTicketDTO;
+
+/**
+ * Outcome of asking AdmissionControl to process a reservation request. An
+ * admitted request holds a slot of its concert until leave() is called; a
+ * request that isn't admitted carries the ticket it has been queued with.
+ */
+public class Admission {
+
+    private final ConcertQueue _queue;
+
+    private final AdmissionTicketDTO _ticket;
+
+    private boolean _left;
+
+    Admission(ConcertQueue queue, AdmissionTicketDTO ticket) {
+        _queue = queue;
+        _ticket = ticket;
+    }
+
+    public boolean isAdmitted() {
+        return _queue != null;
+    }
+
+    /**
+     * @return the ticket to wait on, if the request wasn't admitted.
+     */
+    public AdmissionTicketDTO getTicket() {
+        return _ticket;
+    }
+
+    /**
+     * Gives up the request's slot, if it was admitted. Only the first call has
+     * any effect.
+     */
+    public void leave() {
+        if (_queue != null && !_left) {
+            _left = true;
+            _queue.leave();
+        }
+    }
+}
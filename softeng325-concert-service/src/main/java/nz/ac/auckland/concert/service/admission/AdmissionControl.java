@@ -0,0 +1,106 @@
+package nz.ac.auckland.concert.service.admission;
+
+import nz.ac.auckland.concert.common.dto.AdmissionTicketDTO;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Singleton that bounds the number of reservation requests processed at once
+ * for each concert, so that a popular on-sale queues in memory rather than in
+ * the database. Requests over a concert's cap get an admission ticket and
+ * wait, in FIFO order, for one of the requests in progress to finish; they
+ * then retry with the ticket to use the slot it was admitted to.
+ */
+public class AdmissionControl {
+    private static final AdmissionControl _instance = new AdmissionControl();
+
+    private final Map<Long, ConcertQueue> _queues = new ConcurrentHashMap<>();
+
+    private final Map<String, Ticket> _tickets = new ConcurrentHashMap<>();
+
+    protected AdmissionControl() {}
+
+    public static AdmissionControl instance() {
+        return _instance;
+    }
+
+    /**
+     * Asks to process a reservation request for a concert. Callers must have
+     * authenticated the request and checked that the concert exists, as each
+     * concert asked for gets a queue.
+     *
+     * @param username the user making the request.
+     * @param ticketId the admission ticket presented with the request, or
+     *                 null. It is only honoured if it was issued to the same
+     *                 user for the same concert.
+     */
+    public Admission admit(long concertId, String username, String ticketId) {
+        ConcertQueue queue = _queues.computeIfAbsent(concertId, id -> new ConcertQueue(id, _tickets));
+
+        Ticket presented = ticketId == null ? null : _tickets.get(ticketId);
+        if (presented != null && presented.getConcertId() == concertId
+                && presented.getUsername().equals(username)) {
+            if (queue.enter(presented)) {
+                return new Admission(queue, null);
+            }
+            if (presented.getState() == Ticket.State.WAITING) {
+                // Retried before being admitted, keep the ticket's place
+                return new Admission(null, this.toDTO(queue, presented));
+            }
+        }
+
+        Ticket ticket = queue.enter(username);
+        return ticket == null ? new Admission(queue, null) : new Admission(null, this.toDTO(queue, ticket));
+    }
+
+    /**
+     * Asks to process a reservation request for a concert without queuing,
+     * e.g. as part of a batch. A request that isn't admitted has no ticket.
+     * Callers must have checked that the concert exists.
+     */
+    public Admission tryAdmit(long concertId) {
+        ConcertQueue queue = _queues.computeIfAbsent(concertId, id -> new ConcertQueue(id, _tickets));
+        return new Admission(queue.tryEnter() ? queue : null, null);
+    }
+
+    /**
+     * @return the current state of a ticket, or null if the ticket has been
+     * used or has expired.
+     */
+    public AdmissionTicketDTO status(String ticketId) {
+        Ticket ticket = _tickets.get(ticketId);
+        if (ticket == null) {
+            return null;
+        }
+        AdmissionTicketDTO status = this.toDTO(_queues.get(ticket.getConcertId()), ticket);
+        return ticket.getState() == Ticket.State.EXPIRED ? null : status;
+    }
+
+    /**
+     * @return a future that completes when a ticket is admitted or expires, or
+     * null if the ticket has been used or has expired.
+     */
+    public CompletableFuture<Void> whenAdmitted(String ticketId) {
+        Ticket ticket = _tickets.get(ticketId);
+        return ticket == null ? null : ticket.whenAdmitted();
+    }
+
+    /**
+     * Expires every ticket. Called when the database is cleared.
+     */
+    public void reset() {
+        for (ConcertQueue queue : _queues.values()) {
+            queue.clear();
+        }
+        _queues.clear();
+        _tickets.clear();
+    }
+
+    private AdmissionTicketDTO toDTO(ConcertQueue queue, Ticket ticket) {
+        int position = queue.position(ticket);
+        return new AdmissionTicketDTO(ticket.getId(), ticket.getConcertId(), position,
+                ticket.getState() == Ticket.State.ADMITTED);
+    }
+}
@@ -0,0 +1,189 @@
+package nz.ac.auckland.concert.service.admission;
+
+import nz.ac.auckland.concert.service.ServiceConfig;
+import nz.ac.auckland.concert.service.metrics.MetricsRegistry;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.LongSupplier;
+
+/**
+ * Admission state of a single concert: the number of reservation requests in
+ * progress, and the FIFO queue of tickets waiting for one of them to finish.
+ *
+ * A slot is counted from the moment a ticket is admitted, so the cap also
+ * covers admitted clients that haven't come back yet. Admitted tickets that
+ * aren't used within ServiceConfig.ADMISSION_PASS_MILLIS, and waiting tickets
+ * that aren't polled within ServiceConfig.ADMISSION_ABANDON_MILLIS, expire and
+ * give their slot or place to the next ticket.
+ */
+class ConcertQueue {
+
+    private final long _concertId;
+
+    // All live tickets, shared with AdmissionControl so tickets can be found by id
+    private final Map<String, Ticket> _tickets;
+
+    private final Deque<Ticket> _waiting = new ArrayDeque<>();
+
+    private final Set<Ticket> _admitted = new HashSet<>();
+
+    private final MetricsRegistry _metrics = MetricsRegistry.instance();
+
+    private final LongSupplier _clock;
+
+    // Requests in progress plus admitted tickets not yet used
+    private int _active;
+
+    ConcertQueue(long concertId, Map<String, Ticket> tickets) {
+        this(concertId, tickets, System::currentTimeMillis);
+    }
+
+    ConcertQueue(long concertId, Map<String, Ticket> tickets, LongSupplier clock) {
+        _concertId = concertId;
+        _tickets = tickets;
+        _clock = clock;
+    }
+
+    /**
+     * Takes a slot if one is free and nobody is queued for it, or joins the
+     * queue otherwise.
+     *
+     * @param username the user making the request, who owns any ticket.
+     * @return null if a slot was taken, or the ticket that joined the queue.
+     */
+    synchronized Ticket enter(String username) {
+        this.expire();
+        if (_waiting.isEmpty() && _active < ServiceConfig.ADMISSION_CAP_PER_CONCERT) {
+            _active++;
+            _metrics.counter("admission.admitted").increment();
+            return null;
+        }
+
+        Ticket ticket = new Ticket(UUID.randomUUID().toString(), _concertId, username, _clock.getAsLong());
+        _waiting.add(ticket);
+        _tickets.put(ticket.getId(), ticket);
+        _metrics.counter("admission.queued").increment();
+        return ticket;
+    }
+
+    /**
+     * Takes a slot only if one is free and nobody is queued for it.
+     *
+     * @return whether a slot was taken.
+     */
+    synchronized boolean tryEnter() {
+        this.expire();
+        if (_waiting.isEmpty() && _active < ServiceConfig.ADMISSION_CAP_PER_CONCERT) {
+            _active++;
+            _metrics.counter("admission.admitted").increment();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Takes the slot held by an admitted ticket.
+     *
+     * @return whether the ticket had been admitted and not used before.
+     */
+    synchronized boolean enter(Ticket ticket) {
+        this.expire();
+        if (!_admitted.remove(ticket)) {
+            return false;
+        }
+        ticket.use();
+        _tickets.remove(ticket.getId());
+        _metrics.histogram("admission.waitMillis").record(_clock.getAsLong() - ticket.getCreatedAt());
+        return true;
+    }
+
+    /**
+     * Gives up a slot taken by enter(String), admitting the next ticket in the queue.
+     */
+    synchronized void leave() {
+        _active--;
+        this.admitNext();
+    }
+
+    /**
+     * @return the number of tickets ahead of a waiting ticket, or 0 if it is
+     * no longer waiting.
+     */
+    synchronized int position(Ticket ticket) {
+        ticket.seen(_clock.getAsLong());
+        this.expire();
+        if (ticket.getState() != Ticket.State.WAITING) {
+            return 0;
+        }
+        // Counted, as tickets ahead may have expired out of the middle of the queue
+        int ahead = 0;
+        for (Ticket waiting : _waiting) {
+            if (waiting == ticket) {
+                break;
+            }
+            ahead++;
+        }
+        return ahead;
+    }
+
+    /**
+     * Expires every ticket, e.g. because the database was cleared.
+     */
+    synchronized void clear() {
+        for (Ticket ticket : _waiting) {
+            ticket.expire();
+        }
+        for (Ticket ticket : _admitted) {
+            ticket.expire();
+        }
+        _waiting.clear();
+        _admitted.clear();
+    }
+
+    private void admitNext() {
+        while (_active < ServiceConfig.ADMISSION_CAP_PER_CONCERT && !_waiting.isEmpty()) {
+            Ticket ticket = _waiting.poll();
+            _active++;
+            _admitted.add(ticket);
+            ticket.admit(_clock.getAsLong());
+            _metrics.counter("admission.admitted").increment();
+        }
+    }
+
+    private void expire() {
+        long now = _clock.getAsLong();
+
+        Iterator<Ticket> admitted = _admitted.iterator();
+        while (admitted.hasNext()) {
+            Ticket ticket = admitted.next();
+            if (now - ticket.getAdmittedAt() > ServiceConfig.ADMISSION_PASS_MILLIS) {
+                admitted.remove();
+                _active--;
+                this.expire(ticket);
+            }
+        }
+
+        Iterator<Ticket> waiting = _waiting.iterator();
+        while (waiting.hasNext()) {
+            Ticket ticket = waiting.next();
+            if (now - ticket.getLastSeen() > ServiceConfig.ADMISSION_ABANDON_MILLIS) {
+                waiting.remove();
+                this.expire(ticket);
+            }
+        }
+
+        this.admitNext();
+    }
+
+    private void expire(Ticket ticket) {
+        ticket.expire();
+        _tickets.remove(ticket.getId());
+        _metrics.counter("admission.expired").increment();
+    }
+}
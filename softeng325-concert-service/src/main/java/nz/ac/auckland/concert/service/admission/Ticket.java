@@ -0,0 +1,95 @@
+package nz.ac.auckland.concert.service.admission;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A place in a ConcertQueue. A ticket waits in the queue until it is admitted,
+ * and is then used by a reservation request that its owner presents it with.
+ * State is guarded by the ticket's ConcertQueue.
+ */
+class Ticket {
+
+    enum State {
+        WAITING, ADMITTED, USED, EXPIRED
+    }
+
+    private final String _id;
+
+    private final long _concertId;
+
+    // Username of the user the ticket was issued to
+    private final String _username;
+
+    private final long _createdAt;
+
+    private final CompletableFuture<Void> _admitted = new CompletableFuture<>();
+
+    private volatile State _state = State.WAITING;
+
+    private volatile long _lastSeen;
+
+    private long _admittedAt;
+
+    Ticket(String id, long concertId, String username, long createdAt) {
+        _id = id;
+        _concertId = concertId;
+        _username = username;
+        _createdAt = createdAt;
+        _lastSeen = createdAt;
+    }
+
+    String getId() {
+        return _id;
+    }
+
+    long getConcertId() {
+        return _concertId;
+    }
+
+    String getUsername() {
+        return _username;
+    }
+
+    long getCreatedAt() {
+        return _createdAt;
+    }
+
+    long getAdmittedAt() {
+        return _admittedAt;
+    }
+
+    long getLastSeen() {
+        return _lastSeen;
+    }
+
+    void seen(long now) {
+        _lastSeen = now;
+    }
+
+    State getState() {
+        return _state;
+    }
+
+    /**
+     * @return a future that completes when the ticket leaves the queue, by
+     * being admitted or by expiring.
+     */
+    CompletableFuture<Void> whenAdmitted() {
+        return _admitted;
+    }
+
+    void admit(long now) {
+        _state = State.ADMITTED;
+        _admittedAt = now;
+        _admitted.complete(null);
+    }
+
+    void use() {
+        _state = State.USED;
+    }
+
+    void expire() {
+        _state = State.EXPIRED;
+        _admitted.complete(null);
+    }
+}
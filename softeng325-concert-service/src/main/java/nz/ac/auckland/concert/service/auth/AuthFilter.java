@@ -0,0 +1,92 @@
+package nz.ac.auckland.concert.service.auth;
+
+import nz.ac.auckland.concert.service.domain.User;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Priority;
+import javax.persistence.EntityManager;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.core.Cookie;
+import javax.ws.rs.core.SecurityContext;
+import javax.ws.rs.ext.Provider;
+import java.security.Principal;
+
+/**
+ * Resolves the AuthToken cookie of each request to the user it belongs to,
+ * through the PrincipalCache. Resources get the user as the UserPrincipal of
+ * an injected SecurityContext, which has no principal if the request has no
+ * AuthToken or it isn't recognised. Requests aren't rejected here, so each
+ * resource still reports a missing or bad token in its own way.
+ */
+@Provider
+@Priority(Priorities.AUTHENTICATION)
+public class AuthFilter implements ContainerRequestFilter {
+
+    public static final String AUTH_TOKEN_COOKIE = "AuthToken";
+
+    private static Logger _logger = LoggerFactory
+            .getLogger(AuthFilter.class);
+
+    private PrincipalCache _principals = PrincipalCache.instance();
+
+    @Override
+    public void filter(ContainerRequestContext requestContext) {
+        Cookie authToken = requestContext.getCookies().get(AUTH_TOKEN_COOKIE);
+        if (authToken == null) {
+            return;
+        }
+
+        UserPrincipal principal = _principals.resolve(authToken.getValue());
+        if (principal == null) {
+            _logger.debug("No user corresponding to auth token");
+            return;
+        }
+        requestContext.setSecurityContext(new TokenSecurityContext(principal, requestContext.getSecurityContext()));
+    }
+
+    /**
+     * Loads the user that made a request. A resource that only needs their
+     * username should take the name of the request's principal instead.
+     *
+     * @return the user that made a request, or null if the request wasn't
+     * authenticated.
+     */
+    public static User userOf(EntityManager em, SecurityContext securityContext) {
+        Principal principal = securityContext.getUserPrincipal();
+        return principal == null ? null : em.find(User.class, principal.getName());
+    }
+
+    private static class TokenSecurityContext implements SecurityContext {
+        private final UserPrincipal _principal;
+
+        private final boolean _secure;
+
+        private TokenSecurityContext(UserPrincipal principal, SecurityContext original) {
+            _principal = principal;
+            _secure = original != null && original.isSecure();
+        }
+
+        @Override
+        public Principal getUserPrincipal() {
+            return _principal;
+        }
+
+        @Override
+        public boolean isUserInRole(String role) {
+            return false;
+        }
+
+        @Override
+        public boolean isSecure() {
+            return _secure;
+        }
+
+        @Override
+        public String getAuthenticationScheme() {
+            return AUTH_TOKEN_COOKIE;
+        }
+    }
+}
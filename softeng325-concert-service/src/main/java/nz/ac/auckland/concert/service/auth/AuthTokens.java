@@ -0,0 +1,247 @@
+package nz.ac.auckland.concert.service.auth;
+
+import nz.ac.auckland.concert.service.ServiceConfig;
+import nz.ac.auckland.concert.service.domain.RevokedToken;
+import nz.ac.auckland.concert.service.metrics.MetricsRegistry;
+import nz.ac.auckland.concert.service.services.PersistenceManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.persistence.EntityManager;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Singleton that issues auth tokens, and verifies and revokes them when
+ * ServiceConfig.AUTH_TOKEN_MODE is SIGNED.
+ *
+ * A signed token has the form username.issuedAt.expiresAt.signature, where
+ * the username and the HMAC-SHA256 signature of the first three parts are
+ * base64url encoded and the times are epoch milliseconds. It is verified by
+ * recomputing the signature, so authenticating a request needs neither the
+ * database nor any state shared between nodes, other than the key.
+ *
+ * Revoked tokens, e.g. those of users who have logged out, are recorded in
+ * the REVOKED_TOKEN table until they expire, so they stay revoked across
+ * restarts. Each node checks its own copy of the table, which it loads at
+ * start-up and then refreshes in the background every
+ * ServiceConfig.AUTH_REVOCATION_REFRESH_MILLIS. A logout is also sent on to
+ * every node of the cluster, so that it takes effect there straight away.
+ */
+public class AuthTokens {
+    private static final AuthTokens _instance = new AuthTokens();
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private static Logger _logger = LoggerFactory
+            .getLogger(AuthTokens.class);
+
+    private final SecretKeySpec _key;
+
+    // Expiry times of revoked tokens, by signature
+    private final Map<String, Long> _revoked = new ConcurrentHashMap<>();
+
+    // When _revoked was last refreshed from the database
+    private long _refreshedAt;
+
+    private ScheduledExecutorService _refreshExecutor;
+
+    private final MetricsRegistry _metrics = MetricsRegistry.instance();
+
+    protected AuthTokens() {
+        byte[] secret;
+        if (ServiceConfig.AUTH_TOKEN_SECRET != null) {
+            secret = ServiceConfig.AUTH_TOKEN_SECRET.getBytes(StandardCharsets.UTF_8);
+        } else {
+            secret = new byte[32];
+            new SecureRandom().nextBytes(secret);
+        }
+        _key = new SecretKeySpec(secret, ALGORITHM);
+    }
+
+    public static AuthTokens instance() {
+        return _instance;
+    }
+
+    public static boolean isSigned() {
+        return ServiceConfig.AUTH_TOKEN_MODE == ServiceConfig.AuthTokenMode.SIGNED;
+    }
+
+    /**
+     * @return a new auth token for a user, issued at a time.
+     */
+    public String issue(String username, long issuedAt) {
+        if (!isSigned()) {
+            return UUID.randomUUID().toString();
+        }
+
+        String payload = ENCODER.encodeToString(username.getBytes(StandardCharsets.UTF_8)) + "." + issuedAt
+                + "." + (issuedAt + ServiceConfig.AUTH_TOKEN_TTL_MILLIS);
+        return payload + "." + ENCODER.encodeToString(this.sign(payload));
+    }
+
+    /**
+     * Verifies a signed token.
+     *
+     * @return the user the token was issued to, or null if the token is
+     * malformed, forged, expired or revoked.
+     */
+    public UserPrincipal verify(String authToken) {
+        String[] parts = authToken.split("\\.");
+        if (parts.length != 4) {
+            return null;
+        }
+
+        try {
+            byte[] signature = DECODER.decode(parts[3]);
+            byte[] expected = this.sign(parts[0] + "." + parts[1] + "." + parts[2]);
+            if (!MessageDigest.isEqual(expected, signature)) {
+                _metrics.counter("auth.forgedTokens").increment();
+                return null;
+            }
+            if (System.currentTimeMillis() > Long.parseLong(parts[2]) || _revoked.containsKey(parts[3])) {
+                return null;
+            }
+            return new UserPrincipal(new String(DECODER.decode(parts[0]), StandardCharsets.UTF_8), authToken);
+        } catch (IllegalArgumentException e) {
+            // Not base64url, or the times aren't numbers
+            return null;
+        }
+    }
+
+    /**
+     * Stops a signed token from being accepted before it expires, recording
+     * the revocation in the database as part of a transaction.
+     */
+    public void revoke(EntityManager em, String authToken) {
+        RevokedToken revoked = this.revoke(authToken);
+        if (revoked != null) {
+            em.createQuery("DELETE FROM RevokedToken r WHERE r.expiresAt < :now")
+                    .setParameter("now", revoked.getRevokedAt())
+                    .executeUpdate();
+            em.merge(revoked);
+        }
+    }
+
+    /**
+     * Stops a signed token from being accepted by this node before it
+     * expires, once another node has recorded its revocation.
+     *
+     * @return the revocation, or null if the token isn't a signed one.
+     */
+    public RevokedToken revoke(String authToken) {
+        String[] parts = authToken.split("\\.");
+        if (parts.length != 4) {
+            return null;
+        }
+
+        long now = System.currentTimeMillis();
+        _revoked.values().removeIf(expiresAt -> now > expiresAt);
+        try {
+            long expiresAt = Long.parseLong(parts[2]);
+            _revoked.put(parts[3], expiresAt);
+            return new RevokedToken(parts[3], now, expiresAt);
+        } catch (NumberFormatException e) {
+            // Never accepted, so there's nothing to revoke
+            return null;
+        }
+    }
+
+    /**
+     * @return whether a user's current token should be replaced when they
+     * authenticate, because they don't have one or it is no longer accepted.
+     */
+    public boolean needsReissue(String authToken) {
+        return authToken == null || (isSigned() && this.verify(authToken) == null);
+    }
+
+    /**
+     * Replaces this node's copy of the revoked tokens with the database's, and
+     * starts refreshing it. Called at start-up, after the database may have
+     * been cleared.
+     */
+    public synchronized void reload() {
+        long now = System.currentTimeMillis();
+        List<RevokedToken> revocations = this.revokedSince(0, now);
+        if (revocations != null) {
+            _revoked.clear();
+            revocations.forEach(revoked -> _revoked.put(revoked.getSignature(), revoked.getExpiresAt()));
+            _refreshedAt = now;
+        }
+
+        if (_refreshExecutor == null) {
+            _refreshExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "token-revocations");
+                thread.setDaemon(true);
+                return thread;
+            });
+            _refreshExecutor.scheduleWithFixedDelay(this::refresh, ServiceConfig.AUTH_REVOCATION_REFRESH_MILLIS,
+                    ServiceConfig.AUTH_REVOCATION_REFRESH_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Adds the revocations recorded since the last refresh.
+     */
+    private synchronized void refresh() {
+        long now = System.currentTimeMillis();
+        // Look back a refresh further, for revocations that committed after the last refresh began
+        long since = _refreshedAt - ServiceConfig.AUTH_REVOCATION_REFRESH_MILLIS;
+        List<RevokedToken> revocations = this.revokedSince(since, now);
+        if (revocations != null) {
+            revocations.forEach(revoked -> _revoked.put(revoked.getSignature(), revoked.getExpiresAt()));
+            _refreshedAt = now;
+        }
+    }
+
+    /**
+     * @return the unexpired tokens revoked since a time, or null if they
+     * couldn't be read, in which case the revocations already loaded are kept.
+     */
+    private List<RevokedToken> revokedSince(long since, long now) {
+        EntityManager em = PersistenceManager.instance().createEntityManager();
+        try {
+            em.getTransaction().begin();
+
+            List<RevokedToken> revocations = em.createQuery("SELECT r FROM RevokedToken r " +
+                    "WHERE r.revokedAt >= :since AND r.expiresAt >= :now", RevokedToken.class)
+                    .setParameter("since", since)
+                    .setParameter("now", now)
+                    .getResultList();
+
+            em.getTransaction().commit();
+            return revocations;
+        } catch (RuntimeException e) {
+            _logger.warn("Failed to load revoked auth tokens: " + e.getMessage());
+            return null;
+        } finally {
+            em.close();
+        }
+    }
+
+    private byte[] sign(String payload) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(_key);
+            return mac.doFinal(payload.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        }
+    }
+}
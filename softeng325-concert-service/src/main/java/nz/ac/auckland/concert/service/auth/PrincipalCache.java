@@ -0,0 +1,148 @@
+package nz.ac.auckland.concert.service.auth;
+
+import nz.ac.auckland.concert.service.ServiceConfig;
+import nz.ac.auckland.concert.service.metrics.MetricsRegistry;
+import nz.ac.auckland.concert.service.services.PersistenceManager;
+
+import javax.persistence.EntityManager;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Singleton cache of the user that each auth token belongs to, so that an
+ * authenticated request needn't look its user up in the database.
+ *
+ * Entries are kept for ServiceConfig.AUTH_CACHE_TTL_MILLIS. When there are
+ * more than ServiceConfig.AUTH_CACHE_MAX_ENTRIES, expired entries are dropped,
+ * and then arbitrary ones until the cache is back to size. Unrecognised
+ * tokens aren't cached, so a token is usable as soon as it has been issued.
+ * A token that is reissued or revoked must be invalidated once the change is
+ * committed. A lookup that an invalidation overtakes isn't cached, so it
+ * can't bring the token back.
+ *
+ * When ServiceConfig.AUTH_TOKEN_MODE is SIGNED, tokens are verified by
+ * AuthTokens instead, which is cheaper than a cache lookup, and nothing is
+ * cached.
+ */
+public class PrincipalCache {
+    private static final PrincipalCache _instance = new PrincipalCache();
+
+    private final Map<String, Entry> _entries = new ConcurrentHashMap<>();
+
+    // Held by the one thread that trims the cache when it is over size
+    private final ReentrantLock _evictionLock = new ReentrantLock();
+
+    private final MetricsRegistry _metrics = MetricsRegistry.instance();
+
+    protected PrincipalCache() {}
+
+    public static PrincipalCache instance() {
+        return _instance;
+    }
+
+    /**
+     * @return the user that an auth token belongs to, or null if the token
+     * isn't recognised.
+     */
+    public UserPrincipal resolve(String authToken) {
+        if (AuthTokens.isSigned()) {
+            _metrics.counter("auth.verified").increment();
+            return AuthTokens.instance().verify(authToken);
+        }
+
+        Entry entry = _entries.get(authToken);
+        if (entry != null && entry._principal != null) {
+            if (!entry.isExpired()) {
+                _metrics.counter("auth.cacheHits").increment();
+                return entry._principal;
+            }
+            _entries.remove(authToken, entry);
+        }
+
+        _metrics.counter("auth.cacheMisses").increment();
+
+        // Stands in for the entry while the token is looked up. Invalidating the token removes it, and then the
+        // result isn't cached. If another thread is already looking the token up, this one doesn't cache either
+        Entry loading = new Entry(null);
+        boolean caching = _entries.putIfAbsent(authToken, loading) == null;
+        UserPrincipal principal = null;
+        try {
+            principal = load(authToken);
+        } finally {
+            if (caching && (principal == null || !_entries.replace(authToken, loading, new Entry(principal)))) {
+                _entries.remove(authToken, loading);
+            }
+        }
+        if (caching && _entries.size() > ServiceConfig.AUTH_CACHE_MAX_ENTRIES) {
+            this.evict();
+        }
+        return principal;
+    }
+
+    /**
+     * Forgets an auth token, e.g. because its user has been issued another.
+     */
+    public void invalidate(String authToken) {
+        if (authToken != null) {
+            _entries.remove(authToken);
+        }
+    }
+
+    /**
+     * Forgets every entry. Called when the database is cleared.
+     */
+    public void reset() {
+        _entries.clear();
+    }
+
+    private void evict() {
+        if (!_evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            _entries.values().removeIf(Entry::isExpired);
+            Iterator<String> tokens = _entries.keySet().iterator();
+            while (_entries.size() > ServiceConfig.AUTH_CACHE_MAX_ENTRIES && tokens.hasNext()) {
+                tokens.next();
+                tokens.remove();
+            }
+        } finally {
+            _evictionLock.unlock();
+        }
+    }
+
+    private static UserPrincipal load(String authToken) {
+        EntityManager em = PersistenceManager.instance().createEntityManager();
+
+        try {
+            em.getTransaction().begin();
+
+            String username = em.createQuery("SELECT u.username FROM User u WHERE u.authToken = :token", String.class)
+                    .setParameter("token", authToken)
+                    .getResultList()
+                    .stream().findFirst().orElse(null);
+
+            em.getTransaction().commit();
+            return username == null ? null : new UserPrincipal(username, authToken);
+        } finally {
+            em.close();
+        }
+    }
+
+    private static class Entry {
+        private final long _expiresAt = System.currentTimeMillis() + ServiceConfig.AUTH_CACHE_TTL_MILLIS;
+
+        // Null while the token is being looked up
+        private final UserPrincipal _principal;
+
+        private Entry(UserPrincipal principal) {
+            _principal = principal;
+        }
+
+        private boolean isExpired() {
+            return System.currentTimeMillis() > _expiresAt;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package nz.ac.auckland.concert.service.auth;
+
+import java.security.Principal;
+
+/**
+ * The user that an authenticated request was made by, identified by username.
+ */
+public class UserPrincipal implements Principal {
+
+    private final String _username;
+
+    private final String _authToken;
+
+    public UserPrincipal(String username, String authToken) {
+        _username = username;
+        _authToken = authToken;
+    }
+
+    @Override
+    public String getName() {
+        return _username;
+    }
+
+    public String getAuthToken() {
+        return _authToken;
+    }
+
+    @Override
+    public String toString() {
+        return _username;
+    }
+}
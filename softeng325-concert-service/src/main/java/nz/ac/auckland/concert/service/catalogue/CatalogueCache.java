@@ -0,0 +1,325 @@
+package nz.ac.auckland.concert.service.catalogue;
+
+import nz.ac.auckland.concert.common.Config;
+import nz.ac.auckland.concert.common.dto.ConcertDTO;
+import nz.ac.auckland.concert.common.dto.PerformerDTO;
+import nz.ac.auckland.concert.service.ServiceConfig;
+import nz.ac.auckland.concert.service.cluster.ClusterMembership;
+import nz.ac.auckland.concert.service.cluster.ShardForwarder;
+import nz.ac.auckland.concert.service.domain.Concert;
+import nz.ac.auckland.concert.service.domain.Performer;
+import nz.ac.auckland.concert.service.mappers.ConcertMapper;
+import nz.ac.auckland.concert.service.mappers.PerformerMapper;
+import nz.ac.auckland.concert.service.metrics.MetricsRegistry;
+import nz.ac.auckland.concert.service.metrics.Timer;
+import nz.ac.auckland.concert.service.services.PersistenceManager;
+import org.hibernate.annotations.QueryHints;
+import org.jboss.resteasy.spi.ResteasyProviderFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.persistence.EntityManager;
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Variant;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Providers;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.net.URI;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Singleton that keeps the body of each catalogue, i.e. the lists of
+ * concerts and of performers, which is the same for every client. A catalogue
+ * is queried and mapped once per version, and marshalled in each media type
+ * of VARIANTS by the JAX-RS writer that would otherwise marshal it for each
+ * request, so the cached body is byte for byte what the client would have
+ * been sent.
+ *
+ * Each write of a concert or performer bumps its catalogue's version, once
+ * the write has committed (see CatalogueListener), and the catalogue is
+ * rebuilt by a background thread. A request that arrives before the rebuild
+ * is done waits for it rather than being sent the old version.
+ *
+ * When ServiceConfig.CLUSTER_SELF is set, each node has its own cache, so a
+ * write is also sent on to the other nodes of the cluster, which drop the
+ * catalogue and Hibernate's cached copies of its entities. A node that can't
+ * be reached keeps serving the old catalogue until the next write, and is
+ * counted in the catalogue.invalidationFailures metric.
+ */
+public class CatalogueCache {
+    private static final CatalogueCache _instance = new CatalogueCache();
+
+    private static Logger _logger = LoggerFactory
+            .getLogger(CatalogueCache.class);
+
+    public enum Catalogue {
+        CONCERTS(Concert.class, ConcertDTO.class, new GenericType<List<ConcertDTO>>() {}.getType(),
+                PersistenceManager.CONCERTS_QUERY_REGION, concert -> ConcertMapper.toDTO((Concert) concert)),
+
+        PERFORMERS(Performer.class, PerformerDTO.class, new GenericType<List<PerformerDTO>>() {}.getType(),
+                PersistenceManager.PERFORMERS_QUERY_REGION, performer -> PerformerMapper.toDTO((Performer) performer));
+
+        private final Class<?> _entity;
+
+        private final Class<?> _dto;
+
+        private final Type _type;
+
+        private final String _queryRegion;
+
+        private final Function<Object, Object> _mapper;
+
+        Catalogue(Class<?> entity, Class<?> dto, Type type, String queryRegion, Function<Object, Object> mapper) {
+            _entity = entity;
+            _dto = dto;
+            _type = type;
+            _queryRegion = queryRegion;
+            _mapper = mapper;
+        }
+
+        /**
+         * @return the type of the catalogue's DTOs.
+         */
+        public Class<?> getDtoClass() {
+            return _dto;
+        }
+
+        /**
+         * @return the type of a list of the catalogue's DTOs.
+         */
+        Type getListType() {
+            return _type;
+        }
+
+        /**
+         * @return the DTO of one of the catalogue's entities.
+         */
+        Object toDTO(Object entity) {
+            return _mapper.apply(entity);
+        }
+
+        /**
+         * @return JPQL selecting the catalogue's entities whose ids follow
+         * :after, in id order.
+         */
+        String keysetQuery() {
+            return "SELECT e FROM " + _entity.getSimpleName() + " e WHERE e.id > :after ORDER BY e.id";
+        }
+
+        /**
+         * @return the DTOs of the whole catalogue, through the query cache.
+         */
+        private List<?> load(EntityManager em) {
+            return em.createQuery("SELECT e FROM " + _entity.getSimpleName() + " e", _entity)
+                    .setHint(QueryHints.CACHEABLE, true)
+                    .setHint(QueryHints.CACHE_REGION, _queryRegion)
+                    .getResultList()
+                    .stream().map(_mapper).collect(Collectors.toList());
+        }
+
+        /**
+         * Reads one page of the catalogue, by keyset rather than offset, so a
+         * page costs the same however far into the catalogue it is.
+         *
+         * @param after the id of the last entity of the previous page, or 0
+         *              for the first page.
+         * @return up to limit entities, in id order.
+         */
+        List<?> page(EntityManager em, long after, int limit) {
+            return em.createQuery(this.keysetQuery(), _entity)
+                    .setParameter("after", after)
+                    .setMaxResults(limit)
+                    .getResultList();
+        }
+    }
+
+    // Media types that the catalogues are kept in, the first of which is served to clients without a preference
+    public static final List<Variant> VARIANTS = Variant.mediaTypes(MediaType.APPLICATION_XML_TYPE,
+            MediaType.APPLICATION_JSON_TYPE, MediaType.valueOf(Config.APPLICATION_SMILE)).build();
+
+    private final Map<Catalogue, Slot> _slots = new EnumMap<>(Catalogue.class);
+
+    private final ExecutorService _rebuilder = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "catalogue-rebuilder");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Sends writes on to the other nodes, so a slow node doesn't hold up rebuilds here
+    private final ExecutorService _notifier = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "catalogue-notifier");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Writers of the deployment that last served a catalogue, for rebuilding in the background
+    private volatile Providers _providers;
+
+    private final MetricsRegistry _metrics = MetricsRegistry.instance();
+
+    protected CatalogueCache() {
+        for (Catalogue catalogue : Catalogue.values()) {
+            _slots.put(catalogue, new Slot());
+        }
+    }
+
+    public static CatalogueCache instance() {
+        return _instance;
+    }
+
+    /**
+     * @param type      one of the media types of VARIANTS.
+     * @param providers the writers of the deployment serving the request,
+     *                  which the catalogue is marshalled with.
+     * @return the current version of a catalogue, in a media type.
+     */
+    public SerializedCatalogue get(Catalogue catalogue, MediaType type, Providers providers) {
+        _providers = providers;
+        Slot slot = _slots.get(catalogue);
+        Map<MediaType, SerializedCatalogue> current = slot._current;
+        if (!isCurrent(current, slot._version.get())) {
+            current = this.rebuild(catalogue, providers);
+        }
+        return current.get(type);
+    }
+
+    /**
+     * Marks a catalogue as changed by a write made through this node, and
+     * rebuilds it in the background. The other nodes of the cluster are told
+     * to do the same.
+     */
+    public void invalidate(Catalogue catalogue) {
+        this.bump(catalogue);
+
+        if (ServiceConfig.CLUSTER_SELF != null) {
+            _notifier.execute(() -> this.notifyPeers(catalogue));
+        }
+    }
+
+    /**
+     * Marks a catalogue as changed by a write made through another node, and
+     * rebuilds it in the background.
+     */
+    public void invalidateFromPeer(Catalogue catalogue) {
+        PersistenceManager.instance().evict(catalogue._entity, catalogue._queryRegion);
+        this.bump(catalogue);
+    }
+
+    private void notifyPeers(Catalogue catalogue) {
+        URI self = ClusterMembership.normalise(URI.create(ServiceConfig.CLUSTER_SELF));
+        for (URI node : ClusterMembership.instance().nodes()) {
+            if (node.equals(self)) {
+                continue;
+            }
+            try {
+                Response response = ShardForwarder.instance().send(node, "cluster/catalogues/" + catalogue.name(),
+                        HttpMethod.DELETE, null, null, Collections.emptyMap());
+                int status = response.getStatus();
+                response.close();
+                if (status != Response.Status.NO_CONTENT.getStatusCode()) {
+                    throw new ProcessingException("status " + status);
+                }
+            } catch (ProcessingException e) {
+                _logger.warn("Failed to invalidate " + catalogue + " catalogue on " + node + ": " + e.getMessage());
+                _metrics.counter("catalogue.invalidationFailures").increment();
+            }
+        }
+    }
+
+    private void bump(Catalogue catalogue) {
+        _slots.get(catalogue)._version.incrementAndGet();
+
+        Providers providers = _providers;
+        if (providers == null) {
+            // Never served, so there's nothing to rebuild
+            return;
+        }
+        _rebuilder.execute(() -> {
+            // Writers look up the deployment's context through RESTEasy, which a request thread would provide
+            ResteasyProviderFactory.pushContext(Providers.class, providers);
+            try {
+                this.rebuild(catalogue, providers);
+            } catch (RuntimeException e) {
+                _logger.warn("Failed to rebuild " + catalogue + " catalogue: " + e.getMessage());
+            } finally {
+                ResteasyProviderFactory.clearContextData();
+            }
+        });
+    }
+
+    private Map<MediaType, SerializedCatalogue> rebuild(Catalogue catalogue, Providers providers) {
+        Slot slot = _slots.get(catalogue);
+
+        synchronized (slot) {
+            // Read the version first, so that a write made while rebuilding makes the result stale
+            long version = slot._version.get();
+            if (isCurrent(slot._current, version)) {
+                return slot._current;
+            }
+
+            Timer timer = _metrics.timer("catalogue." + catalogue.name().toLowerCase() + ".rebuild");
+            long start = timer.start();
+            EntityManager em = PersistenceManager.instance().createEntityManager();
+
+            try {
+                em.getTransaction().begin();
+                List<?> dtos = catalogue.load(em);
+                em.getTransaction().commit();
+
+                Map<MediaType, SerializedCatalogue> bodies = new HashMap<>();
+                for (Variant variant : VARIANTS) {
+                    MediaType type = variant.getMediaType();
+                    bodies.put(type, new SerializedCatalogue(version, type,
+                            marshal(dtos, catalogue._type, type, providers)));
+                }
+                slot._current = Collections.unmodifiableMap(bodies);
+                _logger.debug("Rebuilt " + catalogue + " catalogue at version " + version);
+                return slot._current;
+            } finally {
+                em.close();
+                timer.stop(start);
+            }
+        }
+    }
+
+    private static boolean isCurrent(Map<MediaType, SerializedCatalogue> bodies, long version) {
+        return bodies != null && bodies.values().iterator().next().getVersion() == version;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static byte[] marshal(List<?> dtos, Type type, MediaType mediaType, Providers providers) {
+        Annotation[] annotations = new Annotation[0];
+        MessageBodyWriter writer = providers.getMessageBodyWriter(List.class, type, annotations, mediaType);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            writer.writeTo(dtos, List.class, type, annotations, mediaType, new MultivaluedHashMap<>(), out);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to marshal catalogue", e);
+        }
+        return out.toByteArray();
+    }
+
+    private static class Slot {
+        private final AtomicLong _version = new AtomicLong();
+
+        // Bodies of the current version, by media type
+        private volatile Map<MediaType, SerializedCatalogue> _current;
+    }
+}
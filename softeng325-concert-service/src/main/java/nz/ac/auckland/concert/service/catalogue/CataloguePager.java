@@ -0,0 +1,111 @@
+package nz.ac.auckland.concert.service.catalogue;
+
+import nz.ac.auckland.concert.service.ServiceConfig;
+import nz.ac.auckland.concert.service.metrics.MetricsRegistry;
+import nz.ac.auckland.concert.service.services.PersistenceManager;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceUnitUtil;
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.GenericEntity;
+import javax.ws.rs.core.Link;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriInfo;
+import javax.ws.rs.core.Variant;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Singleton that serves a catalogue in parts, for clients that don't want
+ * the whole list at once.
+ *
+ * A page holds up to limit entities whose ids follow after, in id order. A
+ * full page carries a Link header with rel="next" to the following page, so
+ * a client walks the catalogue by following links until there's none.
+ *
+ * A catalogue can instead be streamed, in which case it's written out as it
+ * is read from the database by a CatalogueStream.
+ */
+public class CataloguePager {
+    private static final CataloguePager _instance = new CataloguePager();
+
+    public static final String NEXT = "next";
+
+    private final MetricsRegistry _metrics = MetricsRegistry.instance();
+
+    protected CataloguePager() {}
+
+    public static CataloguePager instance() {
+        return _instance;
+    }
+
+    /**
+     * @param limit the most entities to return, or null for
+     *              CATALOGUE_PAGE_SIZE. Limits over CATALOGUE_MAX_PAGE_SIZE
+     *              are reduced to it.
+     * @param after the id of the last entity of the previous page, or null
+     *              for the first page.
+     * @return a page of the catalogue, or a 400 if limit or after is invalid.
+     */
+    public Response page(CatalogueCache.Catalogue catalogue, Integer limit, Long after, UriInfo uriInfo,
+                         CacheControl cacheControl) {
+        if ((limit != null && limit < 1) || (after != null && after < 0)) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+        int size = limit == null ? ServiceConfig.CATALOGUE_PAGE_SIZE
+                : Math.min(limit, ServiceConfig.CATALOGUE_MAX_PAGE_SIZE);
+
+        EntityManager em = PersistenceManager.instance().createEntityManager();
+
+        try {
+            em.getTransaction().begin();
+            List<?> entities = catalogue.page(em, after == null ? 0 : after, size);
+            List<?> dtos = entities.stream().map(catalogue::toDTO).collect(Collectors.toList());
+            em.getTransaction().commit();
+
+            _metrics.counter("catalogue.pages").increment();
+            Response.ResponseBuilder builder = Response
+                    .ok(new GenericEntity<>(dtos, catalogue.getListType()))
+                    .cacheControl(cacheControl);
+
+            if (entities.size() == size) {
+                PersistenceUnitUtil util = em.getEntityManagerFactory().getPersistenceUnitUtil();
+                Object last = util.getIdentifier(entities.get(entities.size() - 1));
+                builder.links(Link.fromUriBuilder(uriInfo.getRequestUriBuilder()
+                        .replaceQueryParam("limit", size)
+                        .replaceQueryParam("after", last))
+                        .rel(NEXT)
+                        .build());
+            }
+            return builder.build();
+        } finally {
+            em.close();
+        }
+    }
+
+    /**
+     * @param type  the media type negotiated with the client. Catalogues are
+     *              only streamed as XML.
+     * @param limit the most entities to stream, or null for all of them.
+     * @param after the id that the streamed entities follow, or null.
+     * @return the catalogue, written as it is read, a 400 if limit or after
+     * is invalid, or a 406 if the client doesn't accept XML.
+     */
+    public Response stream(CatalogueCache.Catalogue catalogue, MediaType type, Integer limit, Long after,
+                           CacheControl cacheControl) {
+        if ((limit != null && limit < 1) || (after != null && after < 0)) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+        if (!type.isCompatible(MediaType.APPLICATION_XML_TYPE)) {
+            return Response.notAcceptable(Variant.mediaTypes(MediaType.APPLICATION_XML_TYPE).build()).build();
+        }
+
+        _metrics.counter("catalogue.streams").increment();
+        CatalogueStream stream = new CatalogueStream(catalogue, after == null ? 0 : after, limit);
+        return Response
+                .ok(stream, MediaType.APPLICATION_XML_TYPE)
+                .cacheControl(cacheControl)
+                .build();
+    }
+}
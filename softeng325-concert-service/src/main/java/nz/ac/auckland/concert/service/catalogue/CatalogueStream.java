@@ -0,0 +1,123 @@
+package nz.ac.auckland.concert.service.catalogue;
+
+import nz.ac.auckland.concert.service.ServiceConfig;
+import nz.ac.auckland.concert.service.metrics.MetricsRegistry;
+import nz.ac.auckland.concert.service.services.PersistenceManager;
+import org.hibernate.CacheMode;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.query.Query;
+
+import javax.persistence.EntityManager;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Writes a catalogue to the response as it is read, rather than building the
+ * whole list first. Entities are read through a forward-only database cursor
+ * and each is marshalled as soon as it is mapped, and the persistence context
+ * is cleared every CATALOGUE_PAGE_SIZE entities, so the memory used stays the
+ * same however large the catalogue is.
+ *
+ * The body is the same <collection> document that the JAX-RS writer produces
+ * for a list, so clients read it in the same way.
+ */
+public class CatalogueStream implements StreamingOutput {
+
+    // Element that RESTEasy wraps a marshalled list in
+    private static final String COLLECTION_ELEMENT = "collection";
+
+    private static final XMLOutputFactory _xmlOutputFactory = XMLOutputFactory.newFactory();
+
+    private static final Map<CatalogueCache.Catalogue, JAXBContext> _contexts =
+            new EnumMap<>(CatalogueCache.Catalogue.class);
+
+    static {
+        try {
+            for (CatalogueCache.Catalogue catalogue : CatalogueCache.Catalogue.values()) {
+                _contexts.put(catalogue, JAXBContext.newInstance(catalogue.getDtoClass()));
+            }
+        } catch (JAXBException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final CatalogueCache.Catalogue _catalogue;
+
+    private final long _after;
+
+    private final Integer _limit;
+
+    /**
+     * @param after the id that the streamed entities follow, or 0 for the
+     *              whole catalogue.
+     * @param limit the most entities to stream, or null for no limit.
+     */
+    public CatalogueStream(CatalogueCache.Catalogue catalogue, long after, Integer limit) {
+        _catalogue = catalogue;
+        _after = after;
+        _limit = limit;
+    }
+
+    @Override
+    public void write(OutputStream output) throws IOException, WebApplicationException {
+        EntityManager em = PersistenceManager.instance().createEntityManager();
+        ScrollableResults results = null;
+
+        try {
+            em.getTransaction().begin();
+            Session session = em.unwrap(Session.class);
+
+            Query<?> query = session.createQuery(_catalogue.keysetQuery())
+                    .setParameter("after", _after)
+                    .setReadOnly(true)
+                    .setFetchSize(ServiceConfig.CATALOGUE_PAGE_SIZE)
+                    // Use cached entities, but don't fill the cache with the whole catalogue
+                    .setCacheMode(CacheMode.GET);
+            if (_limit != null) {
+                query.setMaxResults(_limit);
+            }
+            results = query.scroll(ScrollMode.FORWARD_ONLY);
+
+            Marshaller marshaller = _contexts.get(_catalogue).createMarshaller();
+            marshaller.setProperty(Marshaller.JAXB_FRAGMENT, true);
+            XMLStreamWriter xml = _xmlOutputFactory.createXMLStreamWriter(output, "UTF-8");
+            xml.writeStartDocument("UTF-8", "1.0");
+            xml.writeStartElement(COLLECTION_ELEMENT);
+
+            long streamed = 0;
+            while (results.next()) {
+                marshaller.marshal(_catalogue.toDTO(results.get(0)), xml);
+                if (++streamed % ServiceConfig.CATALOGUE_PAGE_SIZE == 0) {
+                    session.clear();
+                    xml.flush();
+                }
+            }
+
+            xml.writeEndElement();
+            xml.writeEndDocument();
+            xml.flush();
+            em.getTransaction().commit();
+
+            MetricsRegistry.instance().counter("catalogue.streamed").add(streamed);
+        } catch (JAXBException | XMLStreamException e) {
+            throw new IOException("Failed to stream " + _catalogue + " catalogue", e);
+        } finally {
+            if (results != null) {
+                results.close();
+            }
+            em.close();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package nz.ac.auckland.concert.service.catalogue;
+
+import nz.ac.auckland.concert.service.metrics.MetricsRegistry;
+
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Immutable body of one version of a catalogue, e.g. the list of concerts,
+ * in one media type, along with its gzip encoding and a strong entity tag
+ * that is a hash of its content. The gzip encoding is tagged with the same hash and a
+ * "-gzip" suffix, as it is a different representation of the same content.
+ */
+public class SerializedCatalogue {
+
+    private static final String GZIP = "gzip";
+
+    private final long _version;
+
+    private final MediaType _type;
+
+    private final byte[] _body;
+
+    private final byte[] _gzip;
+
+    private final String _hash;
+
+    SerializedCatalogue(long version, MediaType type, byte[] body) {
+        _version = version;
+        _type = type;
+        _body = body;
+        _gzip = gzip(body);
+        _hash = hash(body);
+    }
+
+    public long getVersion() {
+        return _version;
+    }
+
+    public MediaType getType() {
+        return _type;
+    }
+
+    public EntityTag getTag(boolean gzip) {
+        return new EntityTag(gzip ? _hash + "-" + GZIP : _hash);
+    }
+
+    /**
+     * @return whether an If-None-Match header lists either encoding of this
+     * catalogue.
+     */
+    public boolean matches(String ifNoneMatch) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.equals("*")) {
+                return true;
+            }
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            tag = tag.replace("\"", "");
+            if (tag.equals(_hash) || tag.equals(_hash + "-" + GZIP)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return a 304 response if the client already has this catalogue, and
+     * otherwise the catalogue, gzipped if the client accepts it.
+     */
+    public Response toResponse(String ifNoneMatch, String acceptEncoding, CacheControl cacheControl) {
+        boolean gzip = acceptsGzip(acceptEncoding);
+        boolean notModified = this.matches(ifNoneMatch);
+        MetricsRegistry.instance().counter(notModified ? "catalogue.notModified" : "catalogue.served").increment();
+
+        Response.ResponseBuilder builder = notModified
+                ? Response.notModified()
+                : Response.ok(gzip ? _gzip : _body, _type);
+        if (gzip) {
+            builder.encoding(GZIP);
+        }
+        return builder
+                .tag(this.getTag(gzip))
+                .cacheControl(cacheControl)
+                .header(HttpHeaders.VARY, HttpHeaders.ACCEPT + ", " + HttpHeaders.ACCEPT_ENCODING)
+                .build();
+    }
+
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parameters = coding.split(";");
+            if (parameters[0].trim().equalsIgnoreCase(GZIP)) {
+                return parameters.length == 1 || !parameters[1].trim().matches("q=0(\\.0*)?");
+            }
+        }
+        return false;
+    }
+
+    private static byte[] gzip(byte[] bytes) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(bytes);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to gzip catalogue", e);
+        }
+        return out.toByteArray();
+    }
+
+    private static String hash(byte[] bytes) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
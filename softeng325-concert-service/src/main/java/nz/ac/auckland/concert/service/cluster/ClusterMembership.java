@@ -0,0 +1,211 @@
+package nz.ac.auckland.concert.service.cluster;
+
+import nz.ac.auckland.concert.common.message.Messages;
+import nz.ac.auckland.concert.service.ServiceConfig;
+import nz.ac.auckland.concert.service.inventory.PerformanceKey;
+import nz.ac.auckland.concert.service.inventory.SeatLedger;
+import nz.ac.auckland.concert.service.services.PersistenceManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.persistence.EntityManager;
+import javax.ws.rs.ServiceUnavailableException;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.net.URI;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Singleton view of the nodes that seat inventory is sharded across, and of
+ * which node owns each performance.
+ *
+ * Performances are placed on a HashRing by concert and date/time. Requests
+ * for a performance are served by its owner, and other nodes forward them
+ * there. With no nodes configured, every request is served locally.
+ *
+ * When ServiceConfig.CLUSTER_SELF is set, the node keeps only the seats of
+ * the performances it owns in memory. When the ring changes, it hands the
+ * performances it no longer owns over through the database, and it adopts a
+ * performance from the database the first time it serves it.
+ */
+public class ClusterMembership {
+    private static final ClusterMembership _instance = new ClusterMembership();
+
+    private static Logger _logger = LoggerFactory
+            .getLogger(ClusterMembership.class);
+
+    private volatile HashRing _ring = new HashRing(new ArrayList<>(), ServiceConfig.CLUSTER_VIRTUAL_NODES);
+
+    // Performances whose seats this node has loaded since it last owned them
+    private final Map<PerformanceKey, Boolean> _adopted = new ConcurrentHashMap<>();
+
+    protected ClusterMembership() {}
+
+    public static ClusterMembership instance() {
+        return _instance;
+    }
+
+    /**
+     * Decides where a request for a performance is served. A request that has
+     * already been forwarded isn't forwarded again. If it reaches a node that
+     * doesn't own the performance, because the nodes disagree about the ring,
+     * it's served there only if the nodes share their seat inventory, i.e.
+     * ServiceConfig.CLUSTER_SELF is unset; otherwise the node would adopt
+     * seats that the owner may still be selling.
+     *
+     * @param baseUri   the base URI the request arrived on.
+     * @param forwarded whether the request came from another node, as
+     *                  vouched for by the PeerFilter.
+     * @return the node to forward the request to, or null to serve it here,
+     * in which case this node has adopted the performance.
+     * @throws ServiceUnavailableException if a forwarded request can't be
+     * served here, so the client retries once the ring has settled.
+     */
+    public URI route(Long concertId, LocalDateTime dateTime, URI baseUri, boolean forwarded) {
+        HashRing ring = _ring;
+        if (ring.isEmpty() || concertId == null || dateTime == null) {
+            return null;
+        }
+
+        PerformanceKey performance = new PerformanceKey(concertId, dateTime);
+        URI owner = ring.nodeFor(performance.toString());
+        if (!owner.equals(self(baseUri))) {
+            if (!forwarded) {
+                return owner;
+            }
+            if (ServiceConfig.CLUSTER_SELF != null) {
+                _logger.debug("Refused forwarded request for " + performance + ", which " + owner + " owns");
+                throw new ServiceUnavailableException(Response
+                        .status(Response.Status.SERVICE_UNAVAILABLE)
+                        .header(HttpHeaders.RETRY_AFTER, 1)
+                        .entity(Messages.SERVICE_COMMUNICATION_ERROR)
+                        .type(MediaType.TEXT_PLAIN)
+                        .build());
+            }
+        }
+
+        if (ServiceConfig.CLUSTER_SELF != null) {
+            _adopted.computeIfAbsent(performance, this::adopt);
+        }
+        return null;
+    }
+
+    /**
+     * @return the node that owns a performance, or null if there's no cluster.
+     */
+    public URI ownerOf(long concertId, LocalDateTime dateTime) {
+        return _ring.nodeFor(new PerformanceKey(concertId, dateTime).toString());
+    }
+
+    public Set<URI> nodes() {
+        return _ring.nodes();
+    }
+
+    /**
+     * Adds a node to the ring.
+     *
+     * @return whether the node wasn't already a member.
+     */
+    public synchronized boolean join(URI node) {
+        node = normalise(node);
+        if (_ring.nodes().contains(node)) {
+            return false;
+        }
+        this.changeRing(_ring.with(node));
+        return true;
+    }
+
+    /**
+     * Removes a node from the ring.
+     *
+     * @return whether the node was a member.
+     */
+    public synchronized boolean leave(URI node) {
+        node = normalise(node);
+        if (!_ring.nodes().contains(node)) {
+            return false;
+        }
+        this.changeRing(_ring.without(node));
+        return true;
+    }
+
+    /**
+     * Replaces the members of the ring, e.g. with the membership sent by the
+     * node that handled a join or leave.
+     */
+    public synchronized void setNodes(Collection<URI> nodes) {
+        List<URI> members = new ArrayList<>();
+        nodes.forEach(node -> members.add(normalise(node)));
+        this.changeRing(new HashRing(members, ServiceConfig.CLUSTER_VIRTUAL_NODES));
+    }
+
+    /**
+     * Restores the configured membership. Called when the Web service starts,
+     * after the seat inventory has been recovered.
+     */
+    public synchronized void reset() {
+        List<URI> nodes = new ArrayList<>();
+        for (String node : ServiceConfig.CLUSTER_NODES.split(",")) {
+            if (!node.trim().isEmpty()) {
+                nodes.add(normalise(URI.create(node.trim())));
+            }
+        }
+        _adopted.clear();
+        this.changeRing(new HashRing(nodes, ServiceConfig.CLUSTER_VIRTUAL_NODES));
+    }
+
+    /**
+     * @return a node's base URI without a trailing slash, so that the URIs a
+     * node is configured with and reached on compare equal.
+     */
+    public static URI normalise(URI node) {
+        String uri = node.toString();
+        return uri.endsWith("/") ? URI.create(uri.substring(0, uri.length() - 1)) : node;
+    }
+
+    /**
+     * Switches to a new ring, handing over the performances that this node no
+     * longer owns before returning. Called with the membership locked.
+     */
+    private void changeRing(HashRing ring) {
+        _ring = ring;
+        _logger.debug("Cluster is now " + ring.nodes());
+
+        if (ServiceConfig.CLUSTER_SELF == null) {
+            return;
+        }
+        URI self = normalise(URI.create(ServiceConfig.CLUSTER_SELF));
+        if (ring.isEmpty()) {
+            return;
+        }
+        SeatLedger.instance().handOff(performance -> !self.equals(ring.nodeFor(performance.toString())));
+        _adopted.keySet().removeIf(performance -> !self.equals(ring.nodeFor(performance.toString())));
+    }
+
+    private Boolean adopt(PerformanceKey performance) {
+        EntityManager em = PersistenceManager.instance().createEntityManager();
+
+        try {
+            em.getTransaction().begin();
+            SeatLedger.instance().adopt(em, performance);
+            em.getTransaction().commit();
+            return Boolean.TRUE;
+        } finally {
+            em.close();
+        }
+    }
+
+    /**
+     * @return this node's base URI, given the base URI a request arrived on.
+     */
+    public static URI self(URI baseUri) {
+        return normalise(ServiceConfig.CLUSTER_SELF != null ? URI.create(ServiceConfig.CLUSTER_SELF) : baseUri);
+    }
+}
@@ -0,0 +1,87 @@
+package nz.ac.auckland.concert.service.cluster;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Immutable consistent-hash ring of service nodes, identified by their base
+ * URIs.
+ *
+ * Each node is placed at a number of points on the ring, and a key belongs
+ * to the node at the first point at or after the key's hash. Adding or
+ * removing a node therefore only moves the keys next to its points, about
+ * 1/N of them, rather than reshuffling every key.
+ */
+public class HashRing {
+
+    private final NavigableMap<Long, URI> _points = new TreeMap<>();
+
+    private final Set<URI> _nodes;
+
+    private final int _virtualNodes;
+
+    public HashRing(Collection<URI> nodes, int virtualNodes) {
+        _nodes = Collections.unmodifiableSet(new LinkedHashSet<>(nodes));
+        _virtualNodes = virtualNodes;
+
+        for (URI node : _nodes) {
+            for (int i = 0; i < virtualNodes; i++) {
+                _points.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    /**
+     * @return the node that a key belongs to, or null if the ring is empty.
+     */
+    public URI nodeFor(String key) {
+        if (_points.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, URI> point = _points.ceilingEntry(hash(key));
+        return point == null ? _points.firstEntry().getValue() : point.getValue();
+    }
+
+    public HashRing with(URI node) {
+        Set<URI> nodes = new LinkedHashSet<>(_nodes);
+        nodes.add(node);
+        return new HashRing(nodes, _virtualNodes);
+    }
+
+    public HashRing without(URI node) {
+        Set<URI> nodes = new LinkedHashSet<>(_nodes);
+        nodes.remove(node);
+        return new HashRing(nodes, _virtualNodes);
+    }
+
+    public Set<URI> nodes() {
+        return _nodes;
+    }
+
+    public boolean isEmpty() {
+        return _nodes.isEmpty();
+    }
+
+    /**
+     * @return the first 8 bytes of the key's MD5 digest, which spreads similar
+     * keys, e.g. consecutive performances of a concert, around the ring.
+     */
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            return ByteBuffer.wrap(digest).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package nz.ac.auckland.concert.service.cluster;
+
+import javax.annotation.Priority;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.PreMatching;
+import javax.ws.rs.ext.Provider;
+
+/**
+ * Only trusts ShardForwarder.FORWARDED_HEADER on requests from other nodes
+ * of the cluster, i.e. those with the cluster key. It's removed from any
+ * other request, so a client can't have a node serve a performance it
+ * doesn't own, or skip the checks made before forwarding.
+ */
+@Provider
+@PreMatching
+@Priority(Priorities.AUTHENTICATION)
+public class PeerFilter implements ContainerRequestFilter {
+
+    private ShardForwarder _forwarder = ShardForwarder.instance();
+
+    @Override
+    public void filter(ContainerRequestContext requestContext) {
+        if (!_forwarder.isPeer(requestContext.getHeaderString(ShardForwarder.CLUSTER_KEY_HEADER))) {
+            requestContext.getHeaders().remove(ShardForwarder.FORWARDED_HEADER);
+        }
+    }
+}
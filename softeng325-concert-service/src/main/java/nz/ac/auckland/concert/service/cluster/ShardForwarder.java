@@ -0,0 +1,163 @@
+package nz.ac.auckland.concert.service.cluster;
+
+import nz.ac.auckland.concert.common.message.Messages;
+import nz.ac.auckland.concert.service.ServiceConfig;
+import nz.ac.auckland.concert.service.metrics.MetricsRegistry;
+import nz.ac.auckland.concert.service.metrics.Timer;
+import org.jboss.resteasy.client.jaxrs.ResteasyClientBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.Invocation;
+import javax.ws.rs.core.Cookie;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Singleton that sends requests on to the node of the cluster that owns
+ * them, over a pool of connections shared by every request.
+ *
+ * Forwarded requests carry FORWARDED_HEADER, and a node never forwards such a
+ * request again. So while nodes disagree about the ring, e.g. during a join,
+ * a request is forwarded at most once rather than bouncing between them.
+ * They also carry the cluster key in CLUSTER_KEY_HEADER, without which the
+ * PeerFilter of the receiving node ignores FORWARDED_HEADER.
+ */
+public class ShardForwarder {
+    private static final ShardForwarder _instance = new ShardForwarder();
+
+    public static final String FORWARDED_HEADER = "X-Concert-Forwarded";
+
+    public static final String CLUSTER_KEY_HEADER = "X-Concert-Cluster-Key";
+
+    // Media types accepted from another node, unless the request passes on the client's Accept header
+    private static final String DEFAULT_ACCEPT = MediaType.APPLICATION_XML + ", " + MediaType.TEXT_PLAIN;
+
+    // Response headers that are passed back to the client along with the status and entity
+    private static final List<String> RELAYED_HEADERS = Arrays.asList(
+            HttpHeaders.LOCATION, HttpHeaders.RETRY_AFTER, HttpHeaders.CACHE_CONTROL, HttpHeaders.ETAG);
+
+    private static Logger _logger = LoggerFactory
+            .getLogger(ShardForwarder.class);
+
+    private final Client _client = new ResteasyClientBuilder()
+            .connectionPoolSize(ServiceConfig.CLUSTER_FORWARD_CONNECTIONS)
+            .maxPooledPerRoute(ServiceConfig.CLUSTER_FORWARD_CONNECTIONS)
+            .socketTimeout(ServiceConfig.CLUSTER_FORWARD_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+            .build();
+
+    private final MetricsRegistry _metrics = MetricsRegistry.instance();
+
+    // Cluster key used when ServiceConfig.CLUSTER_SECRET is unset
+    private final String _generatedKey;
+
+    protected ShardForwarder() {
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        _generatedKey = Base64.getUrlEncoder().withoutPadding().encodeToString(key);
+    }
+
+    public static ShardForwarder instance() {
+        return _instance;
+    }
+
+    /**
+     * Forwards a request to another node, and returns its response for
+     * passing back to the client.
+     */
+    public Response forward(URI node, String path, String method, Entity<?> entity, Cookie authToken,
+                            Map<String, String> headers) {
+        try {
+            return relay(this.send(node, path, method, entity, authToken, headers));
+        } catch (ProcessingException e) {
+            _logger.debug("Failed to forward " + path + " to " + node + ": " + e.getMessage());
+            return Response.serverError().entity(Messages.SERVICE_COMMUNICATION_ERROR).build();
+        }
+    }
+
+    /**
+     * Sends a request to another node, marked as forwarded. The caller must
+     * close the response.
+     *
+     * @param authToken the client's auth token, or null.
+     * @param headers   request headers to pass on, whose null values are
+     *                  left out. The client's Accept header should be passed
+     *                  on when the response is relayed to the client.
+     * @throws ProcessingException if the node can't be reached.
+     */
+    public Response send(URI node, String path, String method, Entity<?> entity, Cookie authToken,
+                         Map<String, String> headers) {
+        Timer timer = _metrics.timer("cluster.forward");
+        long start = timer.start();
+
+        try {
+            String accept = headers.get(HttpHeaders.ACCEPT);
+            Invocation.Builder builder = _client.target(node).path(path).request()
+                    .accept(accept != null ? accept : DEFAULT_ACCEPT)
+                    .header(FORWARDED_HEADER, "true")
+                    .header(CLUSTER_KEY_HEADER, this.clusterKey());
+            if (authToken != null) {
+                builder.cookie(authToken.getName(), authToken.getValue());
+            }
+            headers.forEach((name, value) -> {
+                if (value != null && !name.equals(HttpHeaders.ACCEPT)) {
+                    builder.header(name, value);
+                }
+            });
+
+            _metrics.counter("cluster.forwarded").increment();
+            return entity == null ? builder.method(method) : builder.method(method, entity);
+        } finally {
+            timer.stop(start);
+        }
+    }
+
+    /**
+     * @return whether a request's cluster key shows it came from another node
+     * of the cluster, or from its administrator.
+     */
+    public boolean isPeer(String key) {
+        return key != null && MessageDigest.isEqual(key.getBytes(StandardCharsets.UTF_8),
+                this.clusterKey().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String clusterKey() {
+        String secret = ServiceConfig.CLUSTER_SECRET;
+        return secret != null ? secret : _generatedKey;
+    }
+
+    /**
+     * Copies a response received from another node, so that it can be
+     * returned to the client.
+     */
+    private static Response relay(Response response) {
+        try {
+            Response.ResponseBuilder builder = Response.status(response.getStatus());
+            if (response.hasEntity()) {
+                builder.entity(response.readEntity(byte[].class)).type(response.getMediaType());
+            }
+            for (String header : RELAYED_HEADERS) {
+                String value = response.getHeaderString(header);
+                if (value != null) {
+                    builder.header(header, value);
+                }
+            }
+            return builder.build();
+        } finally {
+            response.close();
+        }
+    }
+}
@@ -3,6 +3,9 @@ package nz.ac.auckland.concert.service.domain;
 import nz.ac.auckland.concert.common.types.PriceBand;
 import nz.ac.auckland.concert.service.domain.jpa.LocalDateTimeConverter;
 
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+
 import javax.persistence.*;
 import java.math.BigDecimal;
 import java.time.LocalDateTime;
@@ -12,6 +15,8 @@ import java.util.Set;
 
 @Entity
 @Table(name="CONCERTS")
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
 public class Concert {
 
     @Id
@@ -23,18 +28,21 @@ public class Concert {
     private String title;
 
     @ElementCollection
+    @Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
     @CollectionTable(name = "CONCERT_DATES", joinColumns = @JoinColumn(name="CID"))
     @Column(name = "DATE_TIME", nullable = false, unique = true)
     @Convert(converter=LocalDateTimeConverter.class)
     private Set<LocalDateTime> dates;
 
     @ManyToMany
+    @Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
     @JoinTable(name = "CONCERT_PERFORMER", joinColumns = @JoinColumn(name="CID"),
             inverseJoinColumns = @JoinColumn(name="PID"))
     @Column(name = "PERFORMER", nullable = false, unique = true)
     private Set<Performer> performers;
 
     @ElementCollection
+    @Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
     @JoinTable(name="CONCERT_TARIFS", joinColumns = @JoinColumn(name="CID"))
     @MapKeyColumn(name = "PRICE_BAND", nullable = false)
     @MapKeyEnumerated(EnumType.STRING)
@@ -2,12 +2,17 @@ package nz.ac.auckland.concert.service.domain;
 
 import nz.ac.auckland.concert.common.types.Genre;
 
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+
 import javax.persistence.*;
 import java.util.HashSet;
 import java.util.Set;
 
 @Entity
 @Table(name="PERFORMERS")
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
 public class Performer {
 
     @Id
@@ -26,6 +31,7 @@ public class Performer {
     private String name;
 
     @ManyToMany
+    @Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
     @JoinTable(name = "CONCERT_PERFORMERS", joinColumns = @JoinColumn(name="PID"),
             inverseJoinColumns = @JoinColumn(name="CID"))
     private Set<Concert> concerts;
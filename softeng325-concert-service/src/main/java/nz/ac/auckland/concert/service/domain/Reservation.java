@@ -11,11 +11,14 @@ import java.time.LocalDateTime;
 import java.util.Set;
 
 @Entity
-@Table(name="RESERVATIONS")
+@Table(name="RESERVATIONS", indexes = {
+        // Finds a user's bookings
+        @Index(name = "RESERVATIONS_USER_CONFIRMED", columnList = "USER, CONFIRMED")
+})
 public class Reservation {
 
+    // Assigned by the SeatLedger, so a reservation needn't wait for its row to be inserted
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
     @Column(name = "RID", nullable = false)
     private long id;
 
@@ -60,6 +63,10 @@ public class Reservation {
         return id;
     }
 
+    public void setId(long id) {
+        this.id = id;
+    }
+
     public User getUser() {
         return user;
     }
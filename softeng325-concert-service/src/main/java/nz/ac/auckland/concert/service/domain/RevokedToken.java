@@ -0,0 +1,41 @@
+package nz.ac.auckland.concert.service.domain;
+
+import javax.persistence.*;
+
+@Entity
+@Table(name = "REVOKED_TOKEN", indexes = {
+        // Finds the revocations other nodes haven't seen yet
+        @Index(name = "REVOKED_TOKEN_REVOKED_AT", columnList = "REVOKED_AT")
+})
+public class RevokedToken {
+
+    @Id
+    @Column(name = "SIGNATURE", nullable = false)
+    private String signature;
+
+    @Column(name = "REVOKED_AT", nullable = false)
+    private long revokedAt;
+
+    @Column(name = "EXPIRES_AT", nullable = false)
+    private long expiresAt;
+
+    public RevokedToken() {}
+
+    public RevokedToken(String signature, long revokedAt, long expiresAt) {
+        this.signature = signature;
+        this.revokedAt = revokedAt;
+        this.expiresAt = expiresAt;
+    }
+
+    public String getSignature() {
+        return signature;
+    }
+
+    public long getRevokedAt() {
+        return revokedAt;
+    }
+
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+}
@@ -16,7 +16,10 @@ import java.io.Serializable;
 import java.time.LocalDateTime;
 
 @Entity
-@Table(name = "SEATS")
+@Table(name = "SEATS", indexes = {
+        // Finds the seats of a performance that are in a given state
+        @Index(name = "SEATS_PERFORMANCE_STATUS", columnList = "CONCERT, DATE_TIME, STATUS, PRICE_BAND")
+})
 public class Seat implements Serializable {
 
     @Version
@@ -24,6 +27,7 @@ public class Seat implements Serializable {
 
     @Id
     @ManyToOne
+    @JoinColumn(name = "CONCERT")
     private Concert concert;
 
     @Id
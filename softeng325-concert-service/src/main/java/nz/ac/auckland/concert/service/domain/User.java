@@ -4,7 +4,10 @@ import javax.persistence.*;
 import java.time.LocalDate;
 
 @Entity
-@Table(name="USER")
+@Table(name="USER", indexes = {
+        // Finds the user making an authenticated request
+        @Index(name = "USER_TOKEN", columnList = "TOKEN")
+})
 public class User {
 
     @Id
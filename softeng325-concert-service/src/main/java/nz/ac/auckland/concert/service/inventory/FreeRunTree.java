@@ -0,0 +1,95 @@
+package nz.ac.auckland.concert.service.inventory;
+
+/**
+ * Segment tree over the rows of a price band, holding the longest run of
+ * adjacent free seats in each row. It answers "which row nearest to a given
+ * row has a run of at least n free seats" in logarithmic time.
+ *
+ * The tree is a hint derived from the free bitsets of PerformanceSeats: a
+ * row's entry is recomputed from its bitset word after every change to it, so
+ * callers must still verify a row's seats with a compare-and-set. Updates and
+ * lookups are serialised on the tree, and each costs O(log rows).
+ */
+class FreeRunTree {
+
+    private final int _size;
+
+    // Node 1 is the root, the children of node i are 2i and 2i + 1
+    private final int[] _maxRun;
+
+    FreeRunTree(int size) {
+        _size = size;
+        _maxRun = new int[4 * Math.max(size, 1)];
+    }
+
+    /**
+     * Sets the longest free run of a row.
+     */
+    synchronized void update(int rowIndex, int run) {
+        this.update(1, 0, _size - 1, rowIndex, run);
+    }
+
+    /**
+     * @return the index of the row closest to centre that has a run of at
+     * least minRun free seats, or -1 if no row has.
+     */
+    synchronized int nearest(int minRun, int centre) {
+        if (_size == 0 || _maxRun[1] < minRun) {
+            return -1;
+        }
+        int after = this.first(1, 0, _size - 1, centre, minRun);
+        int before = centre == 0 ? -1 : this.last(1, 0, _size - 1, centre - 1, minRun);
+
+        if (after < 0) {
+            return before;
+        }
+        if (before < 0 || after - centre <= centre - before) {
+            return after;
+        }
+        return before;
+    }
+
+    private void update(int node, int lo, int hi, int rowIndex, int run) {
+        if (lo == hi) {
+            _maxRun[node] = run;
+            return;
+        }
+        int mid = (lo + hi) / 2;
+        if (rowIndex <= mid) {
+            this.update(2 * node, lo, mid, rowIndex, run);
+        } else {
+            this.update(2 * node + 1, mid + 1, hi, rowIndex, run);
+        }
+        _maxRun[node] = Math.max(_maxRun[2 * node], _maxRun[2 * node + 1]);
+    }
+
+    /**
+     * @return the lowest row index >= from with a run of at least minRun, or -1.
+     */
+    private int first(int node, int lo, int hi, int from, int minRun) {
+        if (hi < from || _maxRun[node] < minRun) {
+            return -1;
+        }
+        if (lo == hi) {
+            return lo;
+        }
+        int mid = (lo + hi) / 2;
+        int found = this.first(2 * node, lo, mid, from, minRun);
+        return found >= 0 ? found : this.first(2 * node + 1, mid + 1, hi, from, minRun);
+    }
+
+    /**
+     * @return the highest row index <= to with a run of at least minRun, or -1.
+     */
+    private int last(int node, int lo, int hi, int to, int minRun) {
+        if (lo > to || _maxRun[node] < minRun) {
+            return -1;
+        }
+        if (lo == hi) {
+            return lo;
+        }
+        int mid = (lo + hi) / 2;
+        int found = this.last(2 * node + 1, mid + 1, hi, to, minRun);
+        return found >= 0 ? found : this.last(2 * node, lo, mid, to, minRun);
+    }
+}
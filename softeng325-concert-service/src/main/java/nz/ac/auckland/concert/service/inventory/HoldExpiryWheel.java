@@ -0,0 +1,214 @@
+package nz.ac.auckland.concert.service.inventory;
+
+import nz.ac.auckland.concert.service.ServiceConfig;
+import nz.ac.auckland.concert.utility.SeatUtility;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongPredicate;
+import java.util.function.LongSupplier;
+
+/**
+ * Singleton that expires the holds placed on seats by reservations that are
+ * never booked.
+ *
+ * Holds are kept in a hashed timing wheel of WHEEL_SIZE buckets, each covering
+ * ServiceConfig.EXPIRY_TICK_MILLIS. A single background thread advances the
+ * wheel one bucket per tick, so scheduling and cancelling a hold is O(1) and
+ * expiry never runs on a request thread. When a hold lapses all of its
+ * reservation's seats are freed together by the SeatLedger, and are given back
+ * to the SeatAvailabilityIndex straight away.
+ */
+public class HoldExpiryWheel {
+    private static final HoldExpiryWheel _instance = new HoldExpiryWheel();
+
+    private static final int WHEEL_SIZE = 512;
+
+    private static Logger _logger = LoggerFactory
+            .getLogger(HoldExpiryWheel.class);
+
+    private final List<Hold>[] _buckets = newBuckets();
+
+    // Holds that are due to expire, by reservation id. A hold is cancelled by removing it from here
+    private final Map<Long, Hold> _holds = new ConcurrentHashMap<>();
+
+    // Holds scheduled since the last tick, moved into the buckets by the wheel thread
+    private final Queue<Hold> _scheduled = new ConcurrentLinkedQueue<>();
+
+    private final long _tickNanos = TimeUnit.MILLISECONDS.toNanos(ServiceConfig.EXPIRY_TICK_MILLIS);
+
+    // Frees a reservation's seats, returning false if its hold hasn't lapsed yet
+    private final LongPredicate _expirer;
+
+    private final LongSupplier _clock;
+
+    private long _startNanos;
+
+    private long _tick;
+
+    private ScheduledExecutorService _executor;
+
+    protected HoldExpiryWheel() {
+        this(reservationId -> SeatLedger.instance().expire(reservationId), System::nanoTime);
+        this.start();
+    }
+
+    /**
+     * Creates a wheel that isn't advanced by a background thread, so that
+     * tests can turn it themselves with tick().
+     */
+    HoldExpiryWheel(LongPredicate expirer, LongSupplier clock) {
+        _expirer = expirer;
+        _clock = clock;
+        _startNanos = clock.getAsLong();
+    }
+
+    public static HoldExpiryWheel instance() {
+        return _instance;
+    }
+
+    /**
+     * Schedules the seats of a reservation, held at holdTime, to be freed once
+     * the hold is older than SeatUtility.RESERVATION_EXPIRY_TIME_IN_SECONDS.
+     */
+    public void schedule(long reservationId, LocalDateTime holdTime) {
+        Duration remaining = Duration.between(LocalDateTime.now(),
+                holdTime.plusSeconds(SeatUtility.RESERVATION_EXPIRY_TIME_IN_SECONDS));
+
+        Hold hold = new Hold(reservationId, _clock.getAsLong() + Math.max(0, remaining.toNanos()));
+        _holds.put(reservationId, hold);
+        _scheduled.add(hold);
+    }
+
+    /**
+     * Stops a reservation's hold from expiring, e.g. because it has been booked.
+     */
+    public void cancel(long reservationId) {
+        _holds.remove(reservationId);
+    }
+
+    /**
+     * Forgets every hold and restarts the wheel. Called when the database is
+     * cleared.
+     */
+    public synchronized void reset() {
+        _executor.shutdownNow();
+        try {
+            _executor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        _holds.clear();
+        _scheduled.clear();
+        for (List<Hold> bucket : _buckets) {
+            bucket.clear();
+        }
+        this.start();
+    }
+
+    private void start() {
+        _startNanos = _clock.getAsLong();
+        _tick = 0;
+        _executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "hold-expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        _executor.scheduleAtFixedRate(this::tick, ServiceConfig.EXPIRY_TICK_MILLIS,
+                ServiceConfig.EXPIRY_TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Advances the wheel by one bucket, expiring the holds in it that are on
+     * their last round. Only ever runs on the wheel thread, or on the test
+     * thread turning a wheel without one.
+     */
+    void tick() {
+        Hold scheduled;
+        while ((scheduled = _scheduled.poll()) != null) {
+            long deadlineTick = Math.max(_tick,
+                    (scheduled._deadlineNanos - _startNanos + _tickNanos - 1) / _tickNanos);
+            scheduled._rounds = (deadlineTick - _tick) / WHEEL_SIZE;
+            _buckets[(int) (deadlineTick % WHEEL_SIZE)].add(scheduled);
+        }
+
+        List<Hold> expired = new ArrayList<>();
+        Iterator<Hold> bucket = _buckets[(int) (_tick % WHEEL_SIZE)].iterator();
+        while (bucket.hasNext()) {
+            Hold hold = bucket.next();
+            if (_holds.get(hold._reservationId) != hold) {
+                // Cancelled, or replaced by a later schedule
+                bucket.remove();
+            } else if (hold._rounds > 0) {
+                hold._rounds--;
+            } else {
+                bucket.remove();
+                expired.add(hold);
+            }
+        }
+        _tick++;
+
+        for (Hold hold : expired) {
+            try {
+                this.expire(hold);
+            } catch (RuntimeException e) {
+                _logger.warn("Failed to expire hold of reservation " + hold._reservationId + ", will retry: "
+                        + e.getMessage());
+                this.retryLater(hold);
+            }
+        }
+    }
+
+    /**
+     * Frees the seats of an expired hold through the SeatLedger.
+     */
+    private void expire(Hold hold) {
+        if (_expirer.test(hold._reservationId)) {
+            _holds.remove(hold._reservationId, hold);
+        } else {
+            // The wheel ran slightly ahead of the hold's time stamp
+            this.retryLater(hold);
+        }
+    }
+
+    private void retryLater(Hold hold) {
+        hold._deadlineNanos = _clock.getAsLong() + _tickNanos;
+        _scheduled.add(hold);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Hold>[] newBuckets() {
+        List<Hold>[] buckets = new List[WHEEL_SIZE];
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            buckets[i] = new LinkedList<>();
+        }
+        return buckets;
+    }
+
+    private static class Hold {
+        private final long _reservationId;
+
+        private long _deadlineNanos;
+
+        // Number of further turns of the wheel before the hold expires
+        private long _rounds;
+
+        private Hold(long reservationId, long deadlineNanos) {
+            _reservationId = reservationId;
+            _deadlineNanos = deadlineNanos;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package nz.ac.auckland.concert.service.inventory;
+
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+
+import java.time.LocalDateTime;
+
+/**
+ * Identifies a single performance of a concert, i.e. a (concert, date/time)
+ * pair. Seat inventory is held and searched per performance.
+ */
+public class PerformanceKey {
+
+    private final long _concertId;
+
+    private final LocalDateTime _dateTime;
+
+    public PerformanceKey(long concertId, LocalDateTime dateTime) {
+        _concertId = concertId;
+        _dateTime = dateTime;
+    }
+
+    public long getConcertId() {
+        return _concertId;
+    }
+
+    public LocalDateTime getDateTime() {
+        return _dateTime;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof PerformanceKey))
+            return false;
+        if (obj == this)
+            return true;
+
+        PerformanceKey rhs = (PerformanceKey) obj;
+        return new EqualsBuilder().
+                append(_concertId, rhs._concertId).
+                append(_dateTime, rhs._dateTime).
+                isEquals();
+    }
+
+    @Override
+    public int hashCode() {
+        return new HashCodeBuilder(17, 31).
+                append(_concertId).
+                append(_dateTime).
+                hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return _concertId + "@" + _dateTime;
+    }
+}
@@ -0,0 +1,36 @@
+package nz.ac.auckland.concert.service.inventory;
+
+import nz.ac.auckland.concert.service.ServiceConfig;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Singleton striped lock table for performances. Every performance maps to one
+ * of ServiceConfig.LOCK_STRIPES locks, so operations on the same performance
+ * are serialised while operations on performances in different stripes run
+ * in parallel. Used by the booking path in pessimistic mode.
+ */
+public class PerformanceLocks {
+    private static final PerformanceLocks _instance = new PerformanceLocks();
+
+    private final ReentrantLock[] _stripes;
+
+    protected PerformanceLocks() {
+        _stripes = new ReentrantLock[Math.max(1, ServiceConfig.LOCK_STRIPES)];
+        for (int i = 0; i < _stripes.length; i++) {
+            _stripes[i] = new ReentrantLock(true);
+        }
+    }
+
+    public static PerformanceLocks instance() {
+        return _instance;
+    }
+
+    public ReentrantLock lockFor(long concertId, LocalDateTime dateTime) {
+        int hash = new PerformanceKey(concertId, dateTime).hashCode();
+        // Spread the high bits, as HashMap does, before picking a stripe
+        hash ^= hash >>> 16;
+        return _stripes[Math.floorMod(hash, _stripes.length)];
+    }
+}
@@ -0,0 +1,379 @@
+package nz.ac.auckland.concert.service.inventory;
+
+import nz.ac.auckland.concert.common.dto.SeatDTO;
+import nz.ac.auckland.concert.common.dto.SeatMapDTO;
+import nz.ac.auckland.concert.common.dto.SeatMapRowDTO;
+import nz.ac.auckland.concert.common.types.PriceBand;
+import nz.ac.auckland.concert.common.types.SeatNumber;
+import nz.ac.auckland.concert.common.types.SeatRow;
+import nz.ac.auckland.concert.common.types.SeatStatus;
+import nz.ac.auckland.concert.service.util.TheatreUtility;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Seat state of a single performance, and the lock-free engine used to claim
+ * seats in it.
+ *
+ * Each price band is kept as two bitsets with one word per row. A set bit in
+ * the free bitset means the seat is FREE; a set bit in the booked bitset means
+ * it is BOOKED; a seat in neither is PENDING. Seats move FREE -> PENDING by a
+ * compare-and-set on their row's free word, so concurrent reservations for
+ * the same performance always claim disjoint seats and never have to abort.
+ * The database write that follows a claim only confirms a seat that has
+ * already been won.
+ *
+ * Each band also keeps a FreeRunTree of the longest free run in each row, so
+ * that a request can be seated together, as close to the centre of the band
+ * as possible, without scanning every row, and counts its seats in each
+ * SeatStatus, so that availability is known without counting bits.
+ *
+ * Every change bumps a version number, which lets clients that poll the seat
+ * map revalidate it without it being rebuilt. Versions are qualified by an
+ * epoch unique to this instance, since a performance that is evicted and
+ * loaded again starts counting from zero.
+ */
+public class PerformanceSeats {
+
+    private final Map<PriceBand, AtomicLongArray> _free = new EnumMap<>(PriceBand.class);
+
+    private final Map<PriceBand, AtomicLongArray> _booked = new EnumMap<>(PriceBand.class);
+
+    private final Map<PriceBand, FreeRunTree> _freeRuns = new EnumMap<>(PriceBand.class);
+
+    // Number of seats in each price band, indexed by SeatStatus ordinal
+    private final Map<PriceBand, AtomicIntegerArray> _counts = new EnumMap<>(PriceBand.class);
+
+    private static final AtomicLong _epochs = new AtomicLong(System.currentTimeMillis() << 16);
+
+    private final long _epoch = _epochs.incrementAndGet();
+
+    private final AtomicLong _version = new AtomicLong();
+
+    PerformanceSeats() {
+        for (PriceBand priceBand : PriceBand.values()) {
+            PriceBandLayout layout = PriceBandLayout.of(priceBand);
+            AtomicLongArray words = new AtomicLongArray(layout.getNumberOfRows());
+            for (int i = 0; i < words.length(); i++) {
+                words.set(i, layout.getFullRowMask(i));
+            }
+            _free.put(priceBand, words);
+            _booked.put(priceBand, new AtomicLongArray(layout.getNumberOfRows()));
+
+            AtomicIntegerArray counts = new AtomicIntegerArray(SeatStatus.values().length);
+            counts.set(SeatStatus.FREE.ordinal(), layout.getCapacity());
+            _counts.put(priceBand, counts);
+
+            _freeRuns.put(priceBand, new FreeRunTree(layout.getNumberOfRows()));
+            for (int i = 0; i < words.length(); i++) {
+                this.refreshFreeRun(priceBand, i);
+            }
+        }
+    }
+
+    /**
+     * Attempts to claim a number of free seats in a price band, moving them
+     * from FREE to PENDING. Adjacent seats in a single row are preferred; if
+     * no row has enough adjacent free seats, the seats are gathered from
+     * across the band.
+     *
+     * @return the claimed seats, or the empty set if the band doesn't have
+     * enough free seats, in which case nothing is claimed.
+     */
+    public Set<SeatDTO> claimSeats(int numberOfSeats, PriceBand priceBand) {
+        return this.claimSeats(numberOfSeats, priceBand, new LongAdder());
+    }
+
+    /**
+     * As claimSeats(numberOfSeats, priceBand), counting the compare-and-sets
+     * that lost to a concurrent change of the same row and had to be redone.
+     */
+    public Set<SeatDTO> claimSeats(int numberOfSeats, PriceBand priceBand, LongAdder conflicts) {
+        if (numberOfSeats <= 0 || availableSeats(priceBand) < numberOfSeats) {
+            return new HashSet<>();
+        }
+
+        Set<SeatDTO> claimed = this.claimBlock(numberOfSeats, priceBand, conflicts);
+        if (claimed.isEmpty()) {
+            claimed = this.claimScattered(numberOfSeats, priceBand, conflicts);
+        }
+        if (!claimed.isEmpty()) {
+            _version.incrementAndGet();
+        }
+        return claimed;
+    }
+
+    /**
+     * Claims a block of adjacent free seats in the row nearest the centre of
+     * the band that has one, choosing the block nearest the centre of the row.
+     *
+     * @return the claimed seats, or the empty set if no row has enough
+     * adjacent free seats.
+     */
+    private Set<SeatDTO> claimBlock(int numberOfSeats, PriceBand priceBand, LongAdder conflicts) {
+        Set<SeatDTO> claimed = new HashSet<>();
+        PriceBandLayout layout = PriceBandLayout.of(priceBand);
+        AtomicLongArray words = _free.get(priceBand);
+        FreeRunTree freeRuns = _freeRuns.get(priceBand);
+        int centre = (words.length() - 1) / 2;
+
+        while (true) {
+            int rowIndex = freeRuns.nearest(numberOfSeats, centre);
+            if (rowIndex < 0) {
+                return claimed;
+            }
+
+            long word = words.get(rowIndex);
+            long block = TheatreUtility.findSeatBlock(word, numberOfSeats,
+                    Long.bitCount(layout.getFullRowMask(rowIndex)));
+
+            if (block == 0) {
+                // The tree was behind the row, correct it and look again
+                this.refreshFreeRun(priceBand, rowIndex);
+            } else if (words.compareAndSet(rowIndex, word, word & ~block)) {
+                this.refreshFreeRun(priceBand, rowIndex);
+                this.count(priceBand, SeatStatus.FREE, SeatStatus.PENDING, Long.bitCount(block));
+                addSeats(claimed, layout.getRow(rowIndex), block);
+                return claimed;
+            } else {
+                conflicts.increment();
+            }
+        }
+    }
+
+    /**
+     * Claims free seats from wherever they are in the band. The scan starts
+     * from a random row, so that concurrent requests for the same band tend
+     * not to contend on the same word, and wraps around the band.
+     */
+    private Set<SeatDTO> claimScattered(int numberOfSeats, PriceBand priceBand, LongAdder conflicts) {
+        Set<SeatDTO> claimed = new HashSet<>();
+        PriceBandLayout layout = PriceBandLayout.of(priceBand);
+        AtomicLongArray words = _free.get(priceBand);
+        int start = ThreadLocalRandom.current().nextInt(words.length());
+
+        for (int i = 0; i < words.length() && claimed.size() < numberOfSeats; i++) {
+            int rowIndex = (start + i) % words.length();
+
+            long word;
+            long taken;
+            while (true) {
+                word = words.get(rowIndex);
+                taken = lowestBits(word, numberOfSeats - claimed.size());
+                if (taken == 0 || words.compareAndSet(rowIndex, word, word & ~taken)) {
+                    break;
+                }
+                conflicts.increment();
+            }
+
+            if (taken != 0) {
+                this.refreshFreeRun(priceBand, rowIndex);
+                this.count(priceBand, SeatStatus.FREE, SeatStatus.PENDING, Long.bitCount(taken));
+                addSeats(claimed, layout.getRow(rowIndex), taken);
+            }
+        }
+
+        if (claimed.size() < numberOfSeats) {
+            // Lost a race for the last seats of the band, give back what we have
+            this.release(claimed);
+            claimed.clear();
+        }
+        return claimed;
+    }
+
+    /**
+     * Moves claimed seats from PENDING back to FREE.
+     */
+    public void release(Iterable<SeatDTO> seats) {
+        for (SeatDTO seat : seats) {
+            if (setBit(_free, seat.getRow(), seat.getNumber(), true)) {
+                this.count(PriceBandLayout.bandOf(seat.getRow()), SeatStatus.PENDING, SeatStatus.FREE, 1);
+            }
+            this.refreshFreeRun(seat.getRow());
+        }
+        _version.incrementAndGet();
+    }
+
+    /**
+     * Moves claimed seats from PENDING to BOOKED.
+     */
+    public void book(Iterable<SeatDTO> seats) {
+        for (SeatDTO seat : seats) {
+            if (setBit(_booked, seat.getRow(), seat.getNumber(), true)) {
+                this.count(PriceBandLayout.bandOf(seat.getRow()), SeatStatus.PENDING, SeatStatus.BOOKED, 1);
+            }
+        }
+        _version.incrementAndGet();
+    }
+
+    /**
+     * @return the number of free seats in a price band.
+     */
+    public int availableSeats(PriceBand priceBand) {
+        return this.countSeats(priceBand, SeatStatus.FREE);
+    }
+
+    /**
+     * @return the number of seats in a price band that have a status. The
+     * counts of a band are updated one after another, so while seats are
+     * changing they may briefly not add up to its capacity.
+     */
+    public int countSeats(PriceBand priceBand, SeatStatus status) {
+        return _counts.get(priceBand).get(status.ordinal());
+    }
+
+    /**
+     * @return the number of seats in a price band of a performance that
+     * nothing has been reserved for.
+     */
+    public static int capacityOf(PriceBand priceBand) {
+        return PriceBandLayout.of(priceBand).getCapacity();
+    }
+
+    public long getVersion() {
+        return _version.get();
+    }
+
+    /**
+     * @return an entity tag for a version of the seat map.
+     */
+    public String getTag(long version) {
+        return Long.toHexString(_epoch) + "-" + Long.toHexString(version);
+    }
+
+    /**
+     * Copies the free bitset of every row in the TheatreLayout. The version
+     * is read before the rows, so the copy is at least as new as the version
+     * it is labelled with, and a client holding it always sees later changes.
+     */
+    public SeatMapDTO toSeatMap(long concertId, LocalDateTime dateTime) {
+        long version = _version.get();
+        List<SeatMapRowDTO> rows = new ArrayList<>();
+        for (SeatRow row : SeatRow.values()) {
+            PriceBand priceBand = PriceBandLayout.bandOf(row);
+            if (priceBand != null) {
+                PriceBandLayout layout = PriceBandLayout.of(priceBand);
+                int rowIndex = layout.indexOf(row);
+                rows.add(new SeatMapRowDTO(row, Long.bitCount(layout.getFullRowMask(rowIndex)),
+                        _free.get(priceBand).get(rowIndex)));
+            }
+        }
+        return new SeatMapDTO(concertId, dateTime, version, rows);
+    }
+
+    public SeatStatus statusOf(SeatRow row, SeatNumber number) {
+        PriceBand priceBand = PriceBandLayout.bandOf(row);
+        if (priceBand == null) {
+            return null;
+        }
+        int rowIndex = PriceBandLayout.of(priceBand).indexOf(row);
+        long bit = bit(number);
+        if ((_free.get(priceBand).get(rowIndex) & bit) != 0) {
+            return SeatStatus.FREE;
+        }
+        if ((_booked.get(priceBand).get(rowIndex) & bit) != 0) {
+            return SeatStatus.BOOKED;
+        }
+        return SeatStatus.PENDING;
+    }
+
+    /**
+     * Forces the state of a seat, regardless of its current state. Used when
+     * loading the state of a performance from the database.
+     */
+    void setStatus(SeatRow row, SeatNumber number, SeatStatus status) {
+        SeatStatus previous = this.statusOf(row, number);
+        setBit(_free, row, number, status == SeatStatus.FREE);
+        setBit(_booked, row, number, status == SeatStatus.BOOKED);
+        if (previous != null && previous != status) {
+            this.count(PriceBandLayout.bandOf(row), previous, status, 1);
+        }
+        this.refreshFreeRun(row);
+        _version.incrementAndGet();
+    }
+
+    private void count(PriceBand priceBand, SeatStatus from, SeatStatus to, int numberOfSeats) {
+        AtomicIntegerArray counts = _counts.get(priceBand);
+        counts.addAndGet(to.ordinal(), numberOfSeats);
+        counts.addAndGet(from.ordinal(), -numberOfSeats);
+    }
+
+    private void refreshFreeRun(SeatRow row) {
+        PriceBand priceBand = PriceBandLayout.bandOf(row);
+        if (priceBand != null) {
+            this.refreshFreeRun(priceBand, PriceBandLayout.of(priceBand).indexOf(row));
+        }
+    }
+
+    /**
+     * Recomputes a row's entry in the FreeRunTree. The row's word is read while
+     * holding the tree, so the last refresh after any change always leaves the
+     * entry matching the word.
+     */
+    private void refreshFreeRun(PriceBand priceBand, int rowIndex) {
+        FreeRunTree freeRuns = _freeRuns.get(priceBand);
+        synchronized (freeRuns) {
+            freeRuns.update(rowIndex, TheatreUtility.longestFreeRun(_free.get(priceBand).get(rowIndex)));
+        }
+    }
+
+    private static void addSeats(Set<SeatDTO> seats, SeatRow row, long bits) {
+        while (bits != 0) {
+            int bit = Long.numberOfTrailingZeros(bits);
+            seats.add(new SeatDTO(row, new SeatNumber(bit + 1)));
+            bits &= bits - 1;
+        }
+    }
+
+    /**
+     * @return whether the bit was changed, rather than already having the
+     * value.
+     */
+    private static boolean setBit(Map<PriceBand, AtomicLongArray> bitsets, SeatRow row, SeatNumber number,
+                                  boolean value) {
+        PriceBand priceBand = PriceBandLayout.bandOf(row);
+        if (priceBand == null) {
+            // Rows outside the TheatreLayout bands are never offered for sale
+            return false;
+        }
+        int rowIndex = PriceBandLayout.of(priceBand).indexOf(row);
+        long bit = bit(number);
+        AtomicLongArray words = bitsets.get(priceBand);
+        long previous;
+        if (value) {
+            previous = words.getAndAccumulate(rowIndex, bit, (word, b) -> word | b);
+        } else {
+            previous = words.getAndAccumulate(rowIndex, bit, (word, b) -> word & ~b);
+        }
+        return ((previous & bit) != 0) != value;
+    }
+
+    /**
+     * @return a word containing at most n of the lowest set bits of word.
+     */
+    private static long lowestBits(long word, int n) {
+        long taken = 0;
+        while (word != 0 && n > 0) {
+            long lowest = word & -word;
+            taken |= lowest;
+            word &= ~lowest;
+            n--;
+        }
+        return taken;
+    }
+
+    private static long bit(SeatNumber number) {
+        return 1L << (number.intValue() - 1);
+    }
+}
@@ -0,0 +1,101 @@
+package nz.ac.auckland.concert.service.inventory;
+
+import nz.ac.auckland.concert.common.types.PriceBand;
+import nz.ac.auckland.concert.common.types.SeatRow;
+import nz.ac.auckland.concert.utility.TheatreLayout;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Fixed mapping from the rows of a price band (as defined by TheatreLayout) to
+ * bitset words. Each row of the band occupies one 64 bit word, and seat number
+ * n of that row is bit n - 1. Rows are ordered front to back.
+ */
+class PriceBandLayout {
+
+    private static final Map<PriceBand, PriceBandLayout> _layouts = new EnumMap<>(PriceBand.class);
+
+    private static final Map<SeatRow, PriceBand> _bandForRow = new EnumMap<>(SeatRow.class);
+
+    static {
+        for (PriceBand priceBand : PriceBand.values()) {
+            PriceBandLayout layout = new PriceBandLayout(priceBand);
+            _layouts.put(priceBand, layout);
+            for (SeatRow row : layout._rows) {
+                _bandForRow.put(row, priceBand);
+            }
+        }
+    }
+
+    private final PriceBand _priceBand;
+
+    private final SeatRow[] _rows;
+
+    private final long[] _fullRowMasks;
+
+    private final int _capacity;
+
+    private PriceBandLayout(PriceBand priceBand) {
+        _priceBand = priceBand;
+
+        Set<SeatRow> rowsInBand = TheatreLayout.getRowsForPriceBand(priceBand);
+        _rows = new SeatRow[rowsInBand.size()];
+        _fullRowMasks = new long[rowsInBand.size()];
+
+        int i = 0;
+        int capacity = 0;
+        for (SeatRow row : SeatRow.values()) {
+            if (rowsInBand.contains(row)) {
+                int seats = TheatreLayout.getNumberOfSeatsForRow(row);
+                _rows[i] = row;
+                _fullRowMasks[i] = (1L << seats) - 1;
+                capacity += seats;
+                i++;
+            }
+        }
+        _capacity = capacity;
+    }
+
+    static PriceBandLayout of(PriceBand priceBand) {
+        return _layouts.get(priceBand);
+    }
+
+    /**
+     * @return the price band that a row is sold in, or null if the row is not
+     * part of any band in the TheatreLayout.
+     */
+    static PriceBand bandOf(SeatRow row) {
+        return _bandForRow.get(row);
+    }
+
+    PriceBand getPriceBand() {
+        return _priceBand;
+    }
+
+    int getNumberOfRows() {
+        return _rows.length;
+    }
+
+    SeatRow getRow(int rowIndex) {
+        return _rows[rowIndex];
+    }
+
+    int indexOf(SeatRow row) {
+        for (int i = 0; i < _rows.length; i++) {
+            if (_rows[i] == row) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    long getFullRowMask(int rowIndex) {
+        return _fullRowMasks[rowIndex];
+    }
+
+    int getCapacity() {
+        return _capacity;
+    }
+}
@@ -0,0 +1,65 @@
+package nz.ac.auckland.concert.service.inventory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Singleton in-memory index of seat state, holding a PerformanceSeats for
+ * every performance that has been booked against.
+ *
+ * Seats are claimed here before the database is written, so a transaction on
+ * the SEATS table only ever confirms a claim that has already been won.
+ * Releases are applied here after the database has committed them. The index
+ * is restored from the SeatLedger when the Web service starts.
+ */
+public class SeatAvailabilityIndex {
+    private static final SeatAvailabilityIndex _instance = new SeatAvailabilityIndex();
+
+    private static Logger _logger = LoggerFactory
+            .getLogger(SeatAvailabilityIndex.class);
+
+    private final Map<PerformanceKey, PerformanceSeats> _performances = new ConcurrentHashMap<>();
+
+    protected SeatAvailabilityIndex() {}
+
+    public static SeatAvailabilityIndex instance() {
+        return _instance;
+    }
+
+    /**
+     * Returns the seats of a performance. Performances that the index hasn't
+     * seen yet have all seats free.
+     */
+    public PerformanceSeats seatsFor(long concertId, LocalDateTime dateTime) {
+        return _performances.computeIfAbsent(new PerformanceKey(concertId, dateTime),
+                key -> new PerformanceSeats());
+    }
+
+    /**
+     * @return the seats of a performance, or null if the index hasn't seen it
+     * yet, in which case all of its seats are free.
+     */
+    public PerformanceSeats find(long concertId, LocalDateTime dateTime) {
+        return _performances.get(new PerformanceKey(concertId, dateTime));
+    }
+
+    /**
+     * Discards the index, so every seat is free. Called by the SeatLedger
+     * before it restores the unavailable seats.
+     */
+    void clear() {
+        _performances.clear();
+    }
+
+    /**
+     * Discards the seats of a performance, e.g. because another node of the
+     * cluster now owns it.
+     */
+    void evict(PerformanceKey performance) {
+        _performances.remove(performance);
+    }
+}
@@ -0,0 +1,451 @@
+package nz.ac.auckland.concert.service.inventory;
+
+import nz.ac.auckland.concert.service.ServiceConfig;
+import nz.ac.auckland.concert.service.metrics.Histogram;
+import nz.ac.auckland.concert.service.metrics.MetricsRegistry;
+import nz.ac.auckland.concert.service.metrics.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Singleton append-only log of seat state changes, kept in memory-mapped
+ * segment files under ServiceConfig.JOURNAL_DIR.
+ *
+ * Each SeatTransition is written as a fixed-size record with the next sequence
+ * number, so appending is a copy into the current segment. Durability is by
+ * group commit: a single background thread forces the segments to disk, and
+ * every append that was waiting when a force began is made durable by it, so
+ * concurrent appenders share one fsync rather than queueing for their own.
+ */
+public class SeatJournal {
+    private static final SeatJournal _instance = new SeatJournal();
+
+    private static final String SEGMENT_SUFFIX = ".journal";
+
+    // Wait before forcing the segments again after a failure
+    private static final long SYNC_RETRY_MILLIS = 100;
+
+    private static Logger _logger = LoggerFactory
+            .getLogger(SeatJournal.class);
+
+    private final LongAdder _records;
+
+    private final LongAdder _syncs;
+
+    private final Timer _syncTimer;
+
+    private final Histogram _recordsPerSync;
+
+    private Segment _segment;
+
+    // Segments written to since the last sync
+    private List<Segment> _unsynced = new ArrayList<>();
+
+    private long _appended;
+
+    private long _durable;
+
+    // Why the last attempt to force the segments failed, or null if it didn't
+    private RuntimeException _syncFailure;
+
+    private Thread _syncThread;
+
+    protected SeatJournal() {
+        MetricsRegistry metrics = MetricsRegistry.instance();
+        _records = metrics.counter("journal.records");
+        _syncs = metrics.counter("journal.syncs");
+        _syncTimer = metrics.timer("journal.sync");
+        _recordsPerSync = metrics.histogram("journal.recordsPerSync");
+
+        this.start();
+    }
+
+    public static SeatJournal instance() {
+        return _instance;
+    }
+
+    /**
+     * Appends transitions to the journal, with consecutive sequence numbers.
+     * The records aren't durable until sync() has returned for the last of
+     * them.
+     *
+     * @return the sequence number of the last transition.
+     */
+    public synchronized long append(List<SeatTransition> transitions) {
+        for (SeatTransition transition : transitions) {
+            if (_segment == null || _segment._buffer.remaining() < SeatTransition.SIZE) {
+                this.roll();
+            }
+            transition.writeTo(_segment._buffer, ++_appended);
+
+            if (!_segment._unsynced) {
+                _segment._unsynced = true;
+                _unsynced.add(_segment);
+            }
+        }
+        _records.add(transitions.size());
+        this.notifyAll();
+        return _appended;
+    }
+
+    /**
+     * Waits until every record up to a sequence number is on disk.
+     *
+     * @throws IllegalStateException if the records can't be forced to disk
+     * at present. They're still in the journal, and will be forced once the
+     * disk allows it.
+     */
+    public synchronized void sync(long sequence) {
+        while (_durable < sequence) {
+            if (_syncThread == null || !_syncThread.isAlive()) {
+                throw new IllegalStateException("Seat journal is closed");
+            }
+            if (_syncFailure != null) {
+                throw new IllegalStateException("Seat journal failed to sync", _syncFailure);
+            }
+            try {
+                this.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted waiting for seat journal sync", e);
+            }
+        }
+    }
+
+    /**
+     * @return the sequence number of the last record appended.
+     */
+    public synchronized long lastSequence() {
+        return _appended;
+    }
+
+    /**
+     * Reads the journal left by an earlier run, and carries on appending after
+     * its last record. Reading stops at the first record that is missing or
+     * torn; any records after it are discarded.
+     *
+     * @throws IllegalStateException if the journal starts after afterSequence,
+     * i.e. records the snapshot doesn't cover have been discarded.
+     *
+     * @param afterSequence records up to this sequence number are skipped, as
+     *                      they're already covered by a snapshot.
+     * @param replay        receives each record after afterSequence, in order.
+     * @return the number of records replayed.
+     */
+    public synchronized long replay(long afterSequence, Consumer<SeatTransition> replay) {
+        long replayed = 0;
+        long last = 0;
+        boolean torn = false;
+
+        List<Path> paths = segmentPaths();
+        if (!paths.isEmpty() && firstSequenceOf(paths.get(0)) > afterSequence + 1) {
+            throw new IllegalStateException("Seat journal starts at record " + firstSequenceOf(paths.get(0))
+                    + ", but records after " + afterSequence + " are needed");
+        }
+
+        for (Path path : paths) {
+            if (torn || (last != 0 && firstSequenceOf(path) != last + 1)) {
+                // After a torn record, or a gap, nothing is trustworthy
+                this.deleteSegment(path);
+                continue;
+            }
+
+            Segment segment = this.openSegment(path);
+            MappedByteBuffer buffer = segment._buffer;
+            long expected = last == 0 ? firstSequenceOf(path) : last + 1;
+
+            while (buffer.remaining() >= SeatTransition.SIZE) {
+                int position = buffer.position();
+                long sequence = buffer.getLong(position);
+                SeatTransition transition = SeatTransition.readFrom(buffer);
+                if (transition == null || sequence != expected) {
+                    buffer.position(position);
+                    torn = sequence != 0;
+                    break;
+                }
+
+                last = sequence;
+                expected++;
+                if (sequence > afterSequence) {
+                    replay.accept(transition);
+                    replayed++;
+                }
+            }
+
+            if (_segment != null) {
+                _segment.close();
+            }
+            _segment = segment;
+        }
+
+        if (torn) {
+            // Blank out the torn tail, so it can't be mistaken for records later
+            int position = _segment._buffer.position();
+            while (_segment._buffer.hasRemaining()) {
+                _segment._buffer.put((byte) 0);
+            }
+            _segment._buffer.position(position);
+            _segment._buffer.force();
+        }
+
+        _appended = Math.max(last, afterSequence);
+        _durable = _appended;
+        return replayed;
+    }
+
+    /**
+     * Deletes the segments whose records all have sequence numbers up to a
+     * given one, e.g. because a snapshot covers them.
+     */
+    public synchronized void discardThrough(long sequence) {
+        List<Path> paths = segmentPaths();
+        for (int i = 0; i + 1 < paths.size(); i++) {
+            if (firstSequenceOf(paths.get(i + 1)) > sequence + 1) {
+                break;
+            }
+            this.deleteSegment(paths.get(i));
+        }
+    }
+
+    /**
+     * Discards every segment and starts an empty journal. Called when the
+     * database is cleared.
+     */
+    public void reset() {
+        this.close();
+        synchronized (this) {
+            segmentPaths().forEach(this::deleteSegment);
+        }
+        this.start();
+    }
+
+    /**
+     * Stops the sync thread and closes the segments, leaving them on disk to
+     * be replayed by the next journal, as if the service had stopped.
+     */
+    void close() {
+        Thread syncThread;
+        synchronized (this) {
+            syncThread = _syncThread;
+            _syncThread = null;
+            this.notifyAll();
+        }
+        syncThread.interrupt();
+        try {
+            syncThread.join(30000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this) {
+            _unsynced.remove(_segment);
+            _unsynced.forEach(Segment::close);
+            _unsynced.clear();
+            if (_segment != null) {
+                _segment.close();
+                _segment = null;
+            }
+            _appended = 0;
+            _durable = 0;
+            _syncFailure = null;
+        }
+    }
+
+    private synchronized void start() {
+        _syncThread = new Thread(this::syncLoop, "journal-sync");
+        _syncThread.setDaemon(true);
+        _syncThread.start();
+    }
+
+    /**
+     * Starts a new segment, named after the sequence number of its first
+     * record. Called with the journal locked.
+     */
+    private void roll() {
+        Path path = directory().resolve(String.format("%020d", _appended + 1) + SEGMENT_SUFFIX);
+        long size = (long) ServiceConfig.JOURNAL_SEGMENT_RECORDS * SeatTransition.SIZE;
+
+        try {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            Segment segment = new Segment(channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+
+            if (_segment != null && !_segment._unsynced) {
+                _segment.close();
+            }
+            _segment = segment;
+            _logger.debug("Started seat journal segment " + path);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to create seat journal segment " + path, e);
+        }
+    }
+
+    private Segment openSegment(Path path) {
+        try {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            return new Segment(channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to open seat journal segment " + path, e);
+        }
+    }
+
+    private void deleteSegment(Path path) {
+        try {
+            Files.delete(path);
+            _logger.debug("Deleted seat journal segment " + path);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to delete seat journal segment " + path, e);
+        }
+    }
+
+    /**
+     * Forces segments to disk whenever records are waiting, until the journal
+     * is reset. Runs on the sync thread.
+     */
+    private void syncLoop() {
+        Thread self = Thread.currentThread();
+
+        while (true) {
+            List<Segment> segments;
+            long target;
+            long previous;
+
+            synchronized (this) {
+                while (_syncThread == self && _durable == _appended) {
+                    try {
+                        this.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (_syncThread != self) {
+                    return;
+                }
+                segments = _unsynced;
+                _unsynced = new ArrayList<>();
+                segments.forEach(segment -> segment._unsynced = false);
+                target = _appended;
+                previous = _durable;
+            }
+
+            long start = _syncTimer.start();
+            RuntimeException failure = null;
+            try {
+                for (Segment segment : segments) {
+                    segment._buffer.force();
+                }
+            } catch (RuntimeException e) {
+                failure = e;
+            }
+            _syncTimer.stop(start);
+
+            if (failure != null) {
+                _logger.warn("Failed to sync seat journal, will retry: " + failure.getMessage());
+                synchronized (this) {
+                    // None of the segments can be trusted to be on disk, so they're all forced again
+                    for (Segment segment : segments) {
+                        if (!segment._unsynced) {
+                            segment._unsynced = true;
+                            _unsynced.add(segment);
+                        }
+                    }
+                    _syncFailure = failure;
+                    this.notifyAll();
+                    try {
+                        this.wait(SYNC_RETRY_MILLIS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                continue;
+            }
+            _syncs.increment();
+            _recordsPerSync.record(target - previous);
+
+            synchronized (this) {
+                _syncFailure = null;
+                for (Segment segment : segments) {
+                    if (segment != _segment && !segment._unsynced) {
+                        // Rolled over while being synced, and nothing will write to it again
+                        segment.close();
+                    }
+                }
+                _durable = target;
+                this.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return the paths of the segments, in the order of their records.
+     */
+    private static List<Path> segmentPaths() {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> segments = Files.newDirectoryStream(directory(), "*" + SEGMENT_SUFFIX)) {
+            segments.forEach(paths::add);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to list seat journal segments", e);
+        }
+        // Names are zero-padded sequence numbers, so sort in sequence order
+        Collections.sort(paths);
+        return paths;
+    }
+
+    private static long firstSequenceOf(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * @return the directory of the journal, and of the SeatSnapshots taken of
+     * it, creating it if need be.
+     */
+    static Path directory() {
+        Path directory = Paths.get(ServiceConfig.JOURNAL_DIR);
+        try {
+            return Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to create seat journal directory " + directory, e);
+        }
+    }
+
+    private static class Segment {
+        private final FileChannel _channel;
+
+        private final MappedByteBuffer _buffer;
+
+        private boolean _unsynced;
+
+        private Segment(FileChannel channel, MappedByteBuffer buffer) {
+            _channel = channel;
+            _buffer = buffer;
+        }
+
+        /**
+         * Closes the segment's file. The mapping stays valid until the buffer
+         * is garbage collected.
+         */
+        private void close() {
+            try {
+                _channel.close();
+            } catch (IOException e) {
+                _logger.debug("Failed to close seat journal segment: " + e.getMessage());
+            }
+        }
+    }
+}
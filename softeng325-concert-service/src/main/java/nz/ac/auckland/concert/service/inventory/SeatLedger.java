@@ -0,0 +1,852 @@
+package nz.ac.auckland.concert.service.inventory;
+
+import nz.ac.auckland.concert.common.dto.SeatDTO;
+import nz.ac.auckland.concert.common.types.PriceBand;
+import nz.ac.auckland.concert.common.types.SeatNumber;
+import nz.ac.auckland.concert.common.types.SeatRow;
+import nz.ac.auckland.concert.common.types.SeatStatus;
+import nz.ac.auckland.concert.service.ServiceConfig;
+import nz.ac.auckland.concert.service.domain.Concert;
+import nz.ac.auckland.concert.service.domain.Reservation;
+import nz.ac.auckland.concert.service.domain.Seat;
+import nz.ac.auckland.concert.service.domain.User;
+import nz.ac.auckland.concert.service.metrics.MetricsRegistry;
+import nz.ac.auckland.concert.service.metrics.Timer;
+import nz.ac.auckland.concert.service.services.PersistenceManager;
+import nz.ac.auckland.concert.utility.SeatUtility;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceException;
+import javax.persistence.Query;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Singleton record of the reservations holding seats, and the path by which
+ * every change to a seat's state is made durable.
+ *
+ * A change is applied in memory, appended to the SeatJournal, and is complete
+ * once the journal has synced it; the SEATS and RESERVATIONS tables are then
+ * brought up to date by the SeatProjector in the background. If the sync
+ * fails, the change is undone in memory and by further journal records before
+ * the failure is rethrown. Reservation ids are handed out here rather than by
+ * the database, so that a reservation needn't wait for its row to be
+ * inserted. Call awaitProjected() before reading seat state from the tables,
+ * or awaitProjected(username) before reading one user's bookings.
+ *
+ * Every ServiceConfig.SNAPSHOT_INTERVAL_MILLIS the journaled state, i.e. the
+ * booked seats and the held reservations, is written to a SeatSnapshot and
+ * the journal before the oldest snapshot kept is discarded. At start up,
+ * recover() loads the latest readable snapshot and replays the journal
+ * written since.
+ */
+public class SeatLedger {
+    private static final SeatLedger _instance = new SeatLedger();
+
+    private static Logger _logger = LoggerFactory
+            .getLogger(SeatLedger.class);
+
+    private final SeatJournal _journal = SeatJournal.instance();
+
+    private final SeatProjector _projector = new SeatProjector(_journal);
+
+    private final SeatAvailabilityIndex _seatIndex = SeatAvailabilityIndex.instance();
+
+    private final MetricsRegistry _metrics = MetricsRegistry.instance();
+
+    // Reservations whose seats are PENDING, by id. Only changed while holding _appendLock
+    private final Map<Long, HeldReservation> _held = new ConcurrentHashMap<>();
+
+    // Booked seats of each performance, one word per SeatRow, by ordinal. Guarded by _appendLock
+    private final Map<PerformanceKey, long[]> _bookedRows = new HashMap<>();
+
+    // Journal record of each user's latest booking, or unbooking, until the tables have it
+    private final Map<String, Long> _bookingSequences = new ConcurrentHashMap<>();
+
+    // Reservation ids are handed out as multiples of the stride, offset by this node's id
+    private final AtomicLong _reservationIds = new AtomicLong();
+
+    // Held while appending to the journal, so the journaled state and the projection queue follow journal order
+    private final Object _appendLock = new Object();
+
+    // Held while writing a snapshot, so only one is written at a time
+    private final Object _snapshotLock = new Object();
+
+    private volatile long _snapshotSequence;
+
+    private ScheduledExecutorService _snapshotExecutor;
+
+    protected SeatLedger() {}
+
+    public static SeatLedger instance() {
+        return _instance;
+    }
+
+    /**
+     * Holds seats, already claimed in the SeatAvailabilityIndex, for new
+     * reservations of the same performance. Each reservation is given an id,
+     * and its seats become PENDING with a time stamp of holdTime. All of the
+     * reservations are journaled together.
+     *
+     * @param seats the seats of each reservation, in the order of the
+     *              reservations.
+     */
+    public void hold(List<Reservation> reservations, List<? extends Collection<SeatDTO>> seats,
+                     LocalDateTime holdTime) {
+        List<HeldReservation> held = new ArrayList<>();
+        List<SeatTransition> transitions = new ArrayList<>();
+
+        for (int i = 0; i < reservations.size(); i++) {
+            Reservation reservation = reservations.get(i);
+            reservation.setId(_reservationIds.incrementAndGet() * ServiceConfig.RESERVATION_ID_STRIDE
+                    + ServiceConfig.CLUSTER_NODE_ID);
+
+            HeldReservation hold = new HeldReservation(reservation.getId(),
+                    new PerformanceKey(reservation.getConcert().getId(), reservation.getDateTime()),
+                    reservation.getPriceBand(), reservation.getUser().getUsername(),
+                    new HashSet<>(seats.get(i)), holdTime);
+            held.add(hold);
+            transitions.addAll(hold.transitions(SeatStatus.PENDING));
+        }
+
+        long sequence = this.append(transitions, () -> held.forEach(hold -> _held.put(hold._id, hold)), em -> {
+            for (HeldReservation hold : held) {
+                // Unless a booking got there first
+                if (!hold._rowInserted) {
+                    em.persist(hold.newRow(em));
+                }
+            }
+            // The seats refer to the new rows, so they must be inserted first
+            em.flush();
+
+            for (HeldReservation hold : held) {
+                projectSeats(em, hold._performance, hold._seats, SeatStatus.PENDING,
+                        em.getReference(Reservation.class, hold._id), hold._holdTime);
+            }
+        });
+
+        held.forEach(hold -> hold._rowSequence = sequence);
+
+        try {
+            _journal.sync(sequence);
+        } catch (RuntimeException e) {
+            // The records may yet reach the disk, so the holds are undone by later ones rather than forgotten
+            List<SeatTransition> freed = new ArrayList<>();
+            held.forEach(hold -> freed.addAll(hold.transitions(SeatStatus.FREE)));
+            this.append(freed, () -> held.forEach(hold -> _held.remove(hold._id)), em -> held.forEach(hold ->
+                    projectSeats(em, hold._performance, hold._seats, SeatStatus.FREE, null, null)));
+            throw e;
+        }
+    }
+
+    /**
+     * Books the seats of a reservation, if its hold hasn't lapsed.
+     *
+     * @return the booked seats, or null if the reservation isn't holding
+     * seats, e.g. because its hold has expired or it's already booked.
+     */
+    public Set<SeatDTO> book(long reservationId) {
+        HeldReservation hold = _held.get(reservationId);
+        if (hold == null) {
+            return null;
+        }
+
+        // A booking is only made durable once the reservation's row is, so it's never recovered without one.
+        // Rather than wait for the projector to reach the row, the row alone is inserted here
+        if (!hold._rowInserted && !_projector.isProjected(hold._rowSequence)) {
+            this.insertRow(hold);
+        }
+
+        long sequence;
+        synchronized (hold) {
+            if (hold._finished || hold.hasLapsed()) {
+                return null;
+            }
+            hold._finished = true;
+
+            sequence = this.append(hold.transitions(SeatStatus.BOOKED), () -> _held.remove(reservationId), em -> {
+                em.createQuery("UPDATE Reservation r SET r.confirmed = true WHERE r.id = :id")
+                        .setParameter("id", hold._id)
+                        .executeUpdate();
+                projectSeats(em, hold._performance, hold._seats, SeatStatus.BOOKED,
+                        em.getReference(Reservation.class, hold._id), hold._holdTime);
+            });
+        }
+
+        this.bookingsChanged(hold, sequence);
+
+        try {
+            _journal.sync(sequence);
+        } catch (RuntimeException e) {
+            this.restore(hold);
+            throw e;
+        }
+        this.seatsOf(hold).book(hold._seats);
+        return new HashSet<>(hold._seats);
+    }
+
+    /**
+     * Frees the seats of a reservation if its hold has lapsed, giving them
+     * back to the SeatAvailabilityIndex.
+     *
+     * @return false if the reservation is still holding seats and its hold
+     * hasn't yet lapsed, otherwise true.
+     */
+    public boolean expire(long reservationId) {
+        HeldReservation hold = _held.get(reservationId);
+        if (hold == null) {
+            return true;
+        }
+
+        long sequence;
+        synchronized (hold) {
+            if (hold._finished) {
+                return true;
+            }
+            if (!hold.hasLapsed()) {
+                return false;
+            }
+            hold._finished = true;
+
+            sequence = this.append(hold.transitions(SeatStatus.FREE), () -> _held.remove(reservationId),
+                    em -> projectSeats(em, hold._performance, hold._seats, SeatStatus.FREE, null, null));
+        }
+
+        try {
+            _journal.sync(sequence);
+        } catch (RuntimeException e) {
+            this.restore(hold);
+            throw e;
+        }
+        _logger.debug("Freed " + hold._seats.size() + " seats of expired reservation " + reservationId);
+        this.seatsOf(hold).release(hold._seats);
+        return true;
+    }
+
+    /**
+     * Puts back a hold whose booking or expiry failed to sync, journaling its
+     * seats as PENDING again so the journal agrees if the failed records do
+     * reach the disk. Its expiry is scheduled again, as the HoldExpiryWheel
+     * may have given up on it while it was missing.
+     */
+    private void restore(HeldReservation hold) {
+        synchronized (hold) {
+            long sequence = this.append(hold.transitions(SeatStatus.PENDING), () -> _held.put(hold._id, hold), em -> {
+                em.createQuery("UPDATE Reservation r SET r.confirmed = false WHERE r.id = :id")
+                        .setParameter("id", hold._id)
+                        .executeUpdate();
+                projectSeats(em, hold._performance, hold._seats, SeatStatus.PENDING,
+                        em.getReference(Reservation.class, hold._id), hold._holdTime);
+            });
+            this.bookingsChanged(hold, sequence);
+            hold._finished = false;
+        }
+        HoldExpiryWheel.instance().schedule(hold._id, hold._holdTime);
+    }
+
+    /**
+     * Inserts the row of a held reservation ahead of its projection, which
+     * then leaves it be.
+     */
+    private void insertRow(HeldReservation hold) {
+        EntityManager em = PersistenceManager.instance().createEntityManager();
+        try {
+            em.getTransaction().begin();
+            if (em.find(Reservation.class, hold._id) == null) {
+                em.persist(hold.newRow(em));
+            }
+            em.getTransaction().commit();
+        } catch (PersistenceException e) {
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+            // The projector may have inserted it meanwhile
+            if (!rowExists(hold._id)) {
+                throw e;
+            }
+        } finally {
+            em.close();
+        }
+        hold._rowInserted = true;
+    }
+
+    private void bookingsChanged(HeldReservation hold, long sequence) {
+        if (hold._username != null) {
+            _bookingSequences.merge(hold._username, sequence, Math::max);
+        }
+    }
+
+    private static boolean rowExists(long reservationId) {
+        EntityManager em = PersistenceManager.instance().createEntityManager();
+        try {
+            return em.find(Reservation.class, reservationId) != null;
+        } finally {
+            em.close();
+        }
+    }
+
+    /**
+     * Waits until every change made so far has reached the SEATS and
+     * RESERVATIONS tables.
+     */
+    public void awaitProjected() {
+        _projector.awaitProjected(_journal.lastSequence());
+    }
+
+    /**
+     * Waits until a user's bookings have reached the tables, without waiting
+     * for changes made after them.
+     */
+    public void awaitProjected(String username) {
+        Long sequence = _bookingSequences.get(username);
+        if (sequence == null) {
+            return;
+        }
+        _projector.awaitProjected(sequence);
+        _bookingSequences.remove(username, sequence);
+    }
+
+    /**
+     * Restores the journaled state from the latest snapshot and the journal
+     * written since, completes each hold from its reservation's row, then
+     * rebuilds the SeatAvailabilityIndex from it and schedules the expiry of
+     * every hold. Replayed changes are projected to
+     * the tables in the background. Called when the Web service starts.
+     */
+    public void recover() {
+        Timer startupTimer = _metrics.timer("recovery.startup");
+        long start = startupTimer.start();
+        this.stopSnapshots();
+
+        try {
+            // Changes made before a restart in the same JVM are replayed, so let the tables catch up with them first
+            this.awaitProjected();
+        } catch (IllegalStateException e) {
+            _logger.warn("Recovering seats while the tables are behind the journal: " + e.getMessage());
+        }
+
+        SeatSnapshot snapshot = SeatSnapshot.readLatest();
+        List<SeatTransition> replayed = new ArrayList<>();
+        long replayNanos;
+
+        synchronized (_appendLock) {
+            _held.clear();
+            _bookedRows.clear();
+            _reservationIds.set(0);
+            _snapshotSequence = 0;
+
+            if (snapshot != null) {
+                _snapshotSequence = snapshot._sequence;
+                _reservationIds.set(snapshot._lastReservationId);
+                _bookedRows.putAll(snapshot._bookedRows);
+                for (SeatSnapshot.Hold hold : snapshot._holds) {
+                    _held.put(hold._reservationId, new HeldReservation(hold._reservationId, hold._performance,
+                            null, null, hold._seats, hold._holdTime));
+                }
+            }
+
+            Timer replayTimer = _metrics.timer("recovery.replay");
+            long replayStart = replayTimer.start();
+            _journal.replay(_snapshotSequence, transition -> {
+                this.replay(transition);
+                replayed.add(transition);
+            });
+            replayNanos = replayTimer.stop(replayStart);
+            _metrics.counter("recovery.replayedRecords").add(replayed.size());
+
+            // Always submitted, so the projector catches up with the journal even with nothing to replay
+            _projector.submit(_journal.lastSequence(), em -> projectReplayed(em, replayed));
+        }
+
+        this.resolveHolds();
+
+        _seatIndex.clear();
+        _bookedRows.forEach((performance, rows) -> {
+            PerformanceSeats seats = _seatIndex.seatsFor(performance.getConcertId(), performance.getDateTime());
+            for (SeatRow row : SeatRow.values()) {
+                for (long bits = rows[row.ordinal()]; bits != 0; bits &= bits - 1) {
+                    seats.setStatus(row, new SeatNumber(Long.numberOfTrailingZeros(bits) + 1), SeatStatus.BOOKED);
+                }
+            }
+        });
+        for (HeldReservation hold : _held.values()) {
+            PerformanceSeats seats = this.seatsOf(hold);
+            hold._seats.forEach(seat -> seats.setStatus(seat.getRow(), seat.getNumber(), SeatStatus.PENDING));
+            HoldExpiryWheel.instance().schedule(hold._id, hold._holdTime);
+        }
+
+        this.startSnapshots();
+        long startupNanos = startupTimer.stop(start);
+
+        _logger.debug("Recovered seats of " + _bookedRows.size() + " performances and " + _held.size()
+                + " held reservations in " + TimeUnit.NANOSECONDS.toMillis(startupNanos) + "ms, "
+                + (snapshot == null ? "without a snapshot" : "from the snapshot at " + snapshot._sequence)
+                + ", replaying " + replayed.size() + " journal records in "
+                + TimeUnit.NANOSECONDS.toMillis(replayNanos) + "ms ("
+                + (replayNanos == 0 ? 0 : replayed.size() * TimeUnit.SECONDS.toNanos(1) / replayNanos)
+                + " records/s)");
+    }
+
+    /**
+     * Writes a snapshot of the journaled state, if anything has been journaled
+     * since the last one, and discards the journal that the snapshots kept
+     * cover.
+     */
+    public void snapshot() {
+        this.snapshot(false);
+    }
+
+    /**
+     * @param force whether to write the snapshot even if nothing has been
+     *              journaled since the last one, e.g. because state has been
+     *              dropped without being journaled.
+     */
+    private void snapshot(boolean force) {
+        synchronized (_snapshotLock) {
+            this.writeSnapshot(force);
+        }
+    }
+
+    private void writeSnapshot(boolean force) {
+        SeatSnapshot snapshot;
+        synchronized (_appendLock) {
+            long sequence = _journal.lastSequence();
+            if (sequence == _snapshotSequence && !force) {
+                return;
+            }
+
+            Map<PerformanceKey, long[]> bookedRows = new HashMap<>();
+            _bookedRows.forEach((performance, rows) -> bookedRows.put(performance, rows.clone()));
+            List<SeatSnapshot.Hold> holds = new ArrayList<>();
+            for (HeldReservation hold : _held.values()) {
+                holds.add(new SeatSnapshot.Hold(hold._id, hold._performance, new HashSet<>(hold._seats),
+                        hold._holdTime));
+            }
+            snapshot = new SeatSnapshot(sequence, _reservationIds.get(), bookedRows, holds);
+        }
+
+        // The journal before the snapshot can only go once the tables have everything in it
+        _journal.sync(snapshot._sequence);
+        _projector.awaitProjected(snapshot._sequence);
+
+        Timer timer = _metrics.timer("snapshot.write");
+        long start = timer.start();
+        // Only the journal that every snapshot kept covers, so falling back to an older snapshot loses nothing
+        _journal.discardThrough(snapshot.write());
+        _snapshotSequence = snapshot._sequence;
+        long nanos = timer.stop(start);
+
+        _logger.debug("Wrote seat snapshot at " + snapshot._sequence + " with " + snapshot._bookedRows.size()
+                + " performances and " + snapshot._holds.size() + " held reservations in "
+                + TimeUnit.NANOSECONDS.toMillis(nanos) + "ms");
+    }
+
+    /**
+     * Drops the seats of performances that are now owned by another node of
+     * the cluster, once the tables have every change made to them, so the new
+     * owner can adopt them from the database. A snapshot is then written, so
+     * the dropped seats aren't recovered from the journal at start up.
+     *
+     * @param moved tests whether a performance has moved to another node.
+     */
+    public void handOff(Predicate<PerformanceKey> moved) {
+        List<HeldReservation> holds = new ArrayList<>();
+        for (HeldReservation hold : _held.values()) {
+            if (moved.test(hold._performance)) {
+                synchronized (hold) {
+                    hold._finished = true;
+                }
+                holds.add(hold);
+            }
+        }
+
+        Set<PerformanceKey> performances = new HashSet<>();
+        synchronized (_appendLock) {
+            holds.forEach(hold -> _held.remove(hold._id));
+            holds.forEach(hold -> performances.add(hold._performance));
+            _bookedRows.keySet().stream().filter(moved).forEach(performances::add);
+            _bookedRows.keySet().removeAll(performances);
+        }
+        if (performances.isEmpty()) {
+            return;
+        }
+
+        holds.forEach(hold -> HoldExpiryWheel.instance().cancel(hold._id));
+        performances.forEach(_seatIndex::evict);
+        this.awaitProjected();
+        this.snapshot(true);
+
+        _logger.debug("Handed off " + performances.size() + " performances with " + holds.size()
+                + " held reservations");
+    }
+
+    /**
+     * Replaces what this node knows of a performance's seats with their state
+     * in the SEATS table, e.g. when the performance has been handed over by
+     * another node of the cluster. The seats are journaled, so they're
+     * recovered at start up like any other change.
+     */
+    public void adopt(EntityManager em, PerformanceKey performance) {
+        // The table must include the changes already made here
+        this.awaitProjected();
+
+        List<Seat> seats = em.createQuery("SELECT s FROM Seat s LEFT JOIN FETCH s._reservation " +
+                "WHERE s.concert.id = :cid AND s.dateTime = :date AND s.seatStatus <> :free", Seat.class)
+                .setParameter("cid", performance.getConcertId())
+                .setParameter("date", performance.getDateTime())
+                .setParameter("free", SeatStatus.FREE)
+                .getResultList();
+
+        Map<Long, HeldReservation> holds = new HashMap<>();
+        List<SeatTransition> transitions = new ArrayList<>();
+        for (Seat seat : seats) {
+            SeatDTO dto = new SeatDTO(seat.getSeatRow(), seat.getSeatNumber());
+            long reservationId = seat.get_reservation() == null ? 0 : seat.get_reservation().getId();
+
+            if (seat.getSeatStatus() == SeatStatus.PENDING) {
+                Reservation reservation = seat.get_reservation();
+                HeldReservation hold = holds.computeIfAbsent(reservationId, id -> new HeldReservation(id,
+                        performance, reservation == null ? null : reservation.getPriceBand(),
+                        reservation == null ? null : reservation.getUser().getUsername(),
+                        new HashSet<>(), seat.getTimeStamp()));
+                hold._seats.add(dto);
+            } else {
+                transitions.add(new SeatTransition(performance, dto, SeatStatus.BOOKED, reservationId,
+                        seat.getTimeStamp()));
+            }
+        }
+        holds.values().forEach(hold -> transitions.addAll(hold.transitions(SeatStatus.PENDING)));
+
+        List<HeldReservation> replaced = new ArrayList<>();
+        for (HeldReservation hold : _held.values()) {
+            if (hold._performance.equals(performance)) {
+                synchronized (hold) {
+                    hold._finished = true;
+                }
+                replaced.add(hold);
+            }
+        }
+
+        // Nothing to project, the seats came from the tables
+        long sequence = this.append(transitions, () -> {
+            replaced.forEach(hold -> _held.remove(hold._id));
+            holds.values().forEach(hold -> _held.put(hold._id, hold));
+            holds.keySet().forEach(id -> _reservationIds.accumulateAndGet(
+                    id / ServiceConfig.RESERVATION_ID_STRIDE, Math::max));
+            _bookedRows.remove(performance);
+        }, tables -> {});
+        _journal.sync(sequence);
+
+        replaced.forEach(hold -> HoldExpiryWheel.instance().cancel(hold._id));
+        _seatIndex.evict(performance);
+        PerformanceSeats performanceSeats = _seatIndex.seatsFor(performance.getConcertId(),
+                performance.getDateTime());
+        for (Seat seat : seats) {
+            performanceSeats.setStatus(seat.getSeatRow(), seat.getSeatNumber(), seat.getSeatStatus());
+        }
+        for (HeldReservation hold : holds.values()) {
+            HoldExpiryWheel.instance().schedule(hold._id, hold._holdTime);
+        }
+
+        _logger.debug("Adopted " + performance + " with " + seats.size() + " unavailable seats and "
+                + holds.size() + " held reservations");
+    }
+
+    /**
+     * Completes the holds recovered from the snapshot and journal with their
+     * rows in the RESERVATIONS table, once the tables have caught up. A hold
+     * whose row was never inserted, e.g. because the service stopped before
+     * projecting it, can't be booked, so its seats are freed.
+     */
+    private void resolveHolds() {
+        if (_held.isEmpty()) {
+            return;
+        }
+        this.awaitProjected();
+
+        Map<Long, Object[]> rows = new HashMap<>();
+        EntityManager em = PersistenceManager.instance().createEntityManager();
+        try {
+            em.createQuery("SELECT r.id, r.priceBand, r.user.username FROM Reservation r WHERE r.id IN :ids",
+                    Object[].class)
+                    .setParameter("ids", new ArrayList<>(_held.keySet()))
+                    .getResultList()
+                    .forEach(row -> rows.put((Long) row[0], row));
+        } finally {
+            em.close();
+        }
+
+        List<HeldReservation> missing = new ArrayList<>();
+        List<SeatTransition> freed = new ArrayList<>();
+        synchronized (_appendLock) {
+            for (HeldReservation hold : new ArrayList<>(_held.values())) {
+                Object[] row = rows.get(hold._id);
+                if (row == null) {
+                    missing.add(hold);
+                    freed.addAll(hold.transitions(SeatStatus.FREE));
+                } else {
+                    _held.put(hold._id, new HeldReservation(hold._id, hold._performance, (PriceBand) row[1],
+                            (String) row[2], hold._seats, hold._holdTime));
+                }
+            }
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+
+        long sequence = this.append(freed, () -> missing.forEach(hold -> _held.remove(hold._id)),
+                tables -> missing.forEach(hold ->
+                        projectSeats(tables, hold._performance, hold._seats, SeatStatus.FREE, null, null)));
+        _journal.sync(sequence);
+
+        _metrics.counter("recovery.droppedHolds").add(missing.size());
+        _logger.warn("Freed the seats of " + missing.size()
+                + " recovered holds whose reservations never reached the database");
+    }
+
+    /**
+     * Forgets every held reservation, and empties the journal, the snapshots
+     * and the projection queue. Called when the database is cleared.
+     */
+    public void reset() {
+        this.stopSnapshots();
+        _projector.reset();
+        _journal.reset();
+        SeatSnapshot.deleteAll();
+
+        synchronized (_appendLock) {
+            _held.clear();
+            _bookedRows.clear();
+            _bookingSequences.clear();
+            _reservationIds.set(0);
+            _snapshotSequence = 0;
+        }
+    }
+
+    /**
+     * Journals transitions, applying them and any other change to the
+     * journaled state, and queues their projection.
+     */
+    private long append(List<SeatTransition> transitions, Runnable change, Consumer<EntityManager> projection) {
+        synchronized (_appendLock) {
+            long sequence = _journal.append(transitions);
+            change.run();
+            transitions.forEach(this::updateBookedRows);
+            _projector.submit(sequence, projection);
+            return sequence;
+        }
+    }
+
+    /**
+     * Applies a transition read back from the journal to the journaled state.
+     */
+    private void replay(SeatTransition transition) {
+        SeatDTO seat = new SeatDTO(transition.getRow(), transition.getNumber());
+        long reservationId = transition.getReservationId();
+
+        if (transition.getStatus() == SeatStatus.PENDING) {
+            PerformanceKey performance = new PerformanceKey(transition.getConcertId(), transition.getDateTime());
+            _held.computeIfAbsent(reservationId, id -> new HeldReservation(id, performance, null, null,
+                    new HashSet<>(), transition.getTimeStamp()))._seats.add(seat);
+            _reservationIds.accumulateAndGet(reservationId / ServiceConfig.RESERVATION_ID_STRIDE, Math::max);
+        } else {
+            // Booked or freed, so no longer held
+            HeldReservation hold = _held.get(reservationId);
+            if (hold != null && hold._seats.remove(seat) && hold._seats.isEmpty()) {
+                _held.remove(reservationId);
+            }
+        }
+        this.updateBookedRows(transition);
+    }
+
+    private void updateBookedRows(SeatTransition transition) {
+        long bit = 1L << (transition.getNumber().intValue() - 1);
+        int row = transition.getRow().ordinal();
+
+        if (transition.getStatus() == SeatStatus.BOOKED) {
+            _bookedRows.computeIfAbsent(new PerformanceKey(transition.getConcertId(), transition.getDateTime()),
+                    performance -> new long[SeatRow.values().length])[row] |= bit;
+        } else {
+            // Freed, or held again after a booking that failed to sync
+            long[] rows = _bookedRows.get(new PerformanceKey(transition.getConcertId(), transition.getDateTime()));
+            if (rows != null) {
+                rows[row] &= ~bit;
+            }
+        }
+    }
+
+    private synchronized void startSnapshots() {
+        if (ServiceConfig.SNAPSHOT_INTERVAL_MILLIS <= 0) {
+            return;
+        }
+        _snapshotExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "seat-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        _snapshotExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                this.snapshot();
+            } catch (RuntimeException e) {
+                _logger.warn("Failed to write seat snapshot: " + e.getMessage());
+            }
+        }, ServiceConfig.SNAPSHOT_INTERVAL_MILLIS, ServiceConfig.SNAPSHOT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void stopSnapshots() {
+        if (_snapshotExecutor == null) {
+            return;
+        }
+        _snapshotExecutor.shutdownNow();
+        try {
+            _snapshotExecutor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        _snapshotExecutor = null;
+    }
+
+    private PerformanceSeats seatsOf(HeldReservation hold) {
+        return _seatIndex.seatsFor(hold._performance.getConcertId(), hold._performance.getDateTime());
+    }
+
+    /**
+     * Brings the tables up to date with transitions replayed from the journal.
+     * Consecutive transitions of the same reservation to the same state are
+     * applied with a single update. Seats whose reservation never reached the
+     * RESERVATIONS table are left without one.
+     */
+    private static void projectReplayed(EntityManager em, List<SeatTransition> transitions) {
+        int start = 0;
+        while (start < transitions.size()) {
+            SeatTransition first = transitions.get(start);
+            PerformanceKey performance = new PerformanceKey(first.getConcertId(), first.getDateTime());
+            Set<SeatDTO> seats = new HashSet<>();
+
+            int end = start;
+            while (end < transitions.size() && transitions.get(end).getStatus() == first.getStatus()
+                    && transitions.get(end).getReservationId() == first.getReservationId()
+                    && transitions.get(end).getConcertId() == first.getConcertId()
+                    && transitions.get(end).getDateTime().equals(first.getDateTime())) {
+                seats.add(new SeatDTO(transitions.get(end).getRow(), transitions.get(end).getNumber()));
+                end++;
+            }
+
+            if (first.getStatus() == SeatStatus.FREE) {
+                projectSeats(em, performance, seats, SeatStatus.FREE, null, null);
+            } else {
+                if (first.getStatus() == SeatStatus.BOOKED) {
+                    em.createQuery("UPDATE Reservation r SET r.confirmed = true WHERE r.id = :id")
+                            .setParameter("id", first.getReservationId())
+                            .executeUpdate();
+                }
+                projectSeats(em, performance, seats, first.getStatus(),
+                        em.find(Reservation.class, first.getReservationId()), first.getTimeStamp());
+            }
+            start = end;
+        }
+    }
+
+    /**
+     * Sets the state of some seats of a performance in the SEATS table, with
+     * a single update.
+     */
+    private static void projectSeats(EntityManager em, PerformanceKey performance, Collection<SeatDTO> seatSet,
+                                     SeatStatus status, Reservation reservation, LocalDateTime timeStamp) {
+        List<SeatDTO> seats = new ArrayList<>(seatSet);
+        StringBuilder predicate = new StringBuilder();
+        for (int i = 0; i < seats.size(); i++) {
+            if (i > 0) {
+                predicate.append(" OR ");
+            }
+            predicate.append("(s.seatRow = :row").append(i).append(" AND s.seatNumber = :number").append(i).append(")");
+        }
+
+        Query update = em.createQuery("UPDATE VERSIONED Seat s SET s.seatStatus = :status, " +
+                "s.timeStamp = :timeStamp, s._reservation = :reservation " +
+                "WHERE s.concert.id = :cid AND s.dateTime = :date AND (" + predicate + ")")
+                .setParameter("status", status)
+                .setParameter("timeStamp", timeStamp)
+                .setParameter("reservation", reservation)
+                .setParameter("cid", performance.getConcertId())
+                .setParameter("date", performance.getDateTime());
+        for (int i = 0; i < seats.size(); i++) {
+            update.setParameter("row" + i, seats.get(i).getRow());
+            update.setParameter("number" + i, seats.get(i).getNumber());
+        }
+        update.executeUpdate();
+    }
+
+    private static class HeldReservation {
+        private final long _id;
+
+        private final PerformanceKey _performance;
+
+        // Unknown for a hold adopted from a seat that had lost its reservation
+        private final PriceBand _priceBand;
+
+        private final String _username;
+
+        private final Set<SeatDTO> _seats;
+
+        private final LocalDateTime _holdTime;
+
+        // Set once the reservation has been booked or has expired
+        private boolean _finished;
+
+        // Journal record whose projection inserts the reservation's row, or 0 if it's already there
+        private volatile long _rowSequence;
+
+        // Set once a booking has inserted the reservation's row ahead of its projection
+        private volatile boolean _rowInserted;
+
+        private HeldReservation(long id, PerformanceKey performance, PriceBand priceBand, String username,
+                                Set<SeatDTO> seats, LocalDateTime holdTime) {
+            _id = id;
+            _performance = performance;
+            _priceBand = priceBand;
+            _username = username;
+            _seats = seats;
+            _holdTime = holdTime;
+        }
+
+        private Reservation newRow(EntityManager em) {
+            Reservation row = new Reservation(
+                    em.getReference(User.class, _username),
+                    em.getReference(Concert.class, _performance.getConcertId()),
+                    _priceBand,
+                    new HashSet<>(),
+                    _performance.getDateTime());
+            row.setId(_id);
+            return row;
+        }
+
+        private boolean hasLapsed() {
+            return _holdTime.isBefore(LocalDateTime.now()
+                    .minusSeconds(SeatUtility.RESERVATION_EXPIRY_TIME_IN_SECONDS));
+        }
+
+        private List<SeatTransition> transitions(SeatStatus status) {
+            List<SeatTransition> transitions = new ArrayList<>();
+            for (SeatDTO seat : _seats) {
+                transitions.add(new SeatTransition(_performance, seat, status, _id, _holdTime));
+            }
+            return transitions;
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package nz.ac.auckland.concert.service.inventory;
+
+import nz.ac.auckland.concert.service.ServiceConfig;
+import nz.ac.auckland.concert.service.metrics.Histogram;
+import nz.ac.auckland.concert.service.metrics.MetricsRegistry;
+import nz.ac.auckland.concert.service.services.PersistenceManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.persistence.EntityManager;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the SEATS and RESERVATIONS tables up to date with the SeatJournal,
+ * on a background thread.
+ *
+ * Each change recorded in the journal is submitted with a projection that
+ * applies it to the tables. Projections are applied in journal order, in
+ * batches of up to ServiceConfig.PROJECTION_BATCH_SIZE per transaction, and
+ * only once their records are durable. Readers that need to see their own
+ * writes in the tables call awaitProjected() first.
+ *
+ * A projection that fails is retried, with backoff, and the projections after
+ * it wait, so the tables don't skip a journaled change. After
+ * ServiceConfig.PROJECTION_MAX_ATTEMPTS failures it is dead-lettered instead:
+ * logged as an error, counted in projection.deadLettered, and skipped, so one
+ * bad record can't stall every reader and booking behind it. The journal and
+ * the SeatLedger still hold the change.
+ */
+class SeatProjector {
+
+    // Bounds on the wait before retrying a projection that failed
+    private static final long MIN_BACKOFF_MILLIS = 10;
+
+    private static final long MAX_BACKOFF_MILLIS = 1000;
+
+    private static Logger _logger = LoggerFactory
+            .getLogger(SeatProjector.class);
+
+    private final SeatJournal _journal;
+
+    private final BlockingQueue<Projection> _queue = new LinkedBlockingQueue<>();
+
+    private final LongAdder _failures;
+
+    private final LongAdder _deadLettered;
+
+    private final Histogram _batchSize;
+
+    private long _projected;
+
+    private Thread _thread;
+
+    SeatProjector(SeatJournal journal) {
+        _journal = journal;
+
+        MetricsRegistry metrics = MetricsRegistry.instance();
+        _failures = metrics.counter("projection.failures");
+        _deadLettered = metrics.counter("projection.deadLettered");
+        _batchSize = metrics.histogram("projection.batchSize");
+
+        this.start();
+    }
+
+    /**
+     * Queues a projection of journal records up to a sequence number.
+     * Projections must be submitted in the order of their records.
+     */
+    void submit(long sequence, Consumer<EntityManager> projection) {
+        _queue.add(new Projection(sequence, projection));
+    }
+
+    /**
+     * Waits until every record up to a sequence number has been applied to
+     * the tables.
+     *
+     * @throws IllegalStateException if the tables don't catch up within
+     * ServiceConfig.PROJECTION_TIMEOUT_MILLIS.
+     */
+    synchronized void awaitProjected(long sequence) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ServiceConfig.PROJECTION_TIMEOUT_MILLIS);
+
+        while (_projected < sequence) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                throw new IllegalStateException("Seat tables are behind the journal at " + _projected
+                        + ", waiting for " + sequence);
+            }
+            try {
+                this.wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted waiting for seat projection", e);
+            }
+        }
+    }
+
+    /**
+     * @return whether every record up to a sequence number has been applied
+     * to the tables.
+     */
+    synchronized boolean isProjected(long sequence) {
+        return _projected >= sequence;
+    }
+
+    /**
+     * Abandons every queued projection and restarts from the beginning of the
+     * journal. Called when the database is cleared.
+     */
+    void reset() {
+        Thread thread;
+        synchronized (this) {
+            thread = _thread;
+            _thread = null;
+        }
+        thread.interrupt();
+        try {
+            thread.join(30000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this) {
+            _queue.clear();
+            _projected = 0;
+            this.notifyAll();
+        }
+        this.start();
+    }
+
+    private synchronized void start() {
+        _thread = new Thread(this::projectLoop, "seat-projector");
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+    private void projectLoop() {
+        Thread self = Thread.currentThread();
+        List<Projection> batch = new ArrayList<>();
+        long backoffMillis = 0;
+
+        try {
+            while (this.isCurrent(self)) {
+                if (batch.isEmpty()) {
+                    batch.add(_queue.take());
+                }
+                _queue.drainTo(batch, ServiceConfig.PROJECTION_BATCH_SIZE - batch.size());
+
+                int projected = this.project(self, batch);
+                batch.subList(0, projected).clear();
+
+                // Whatever failed stays at the head of the batch, so nothing later is projected before it
+                if (batch.isEmpty()) {
+                    backoffMillis = 0;
+                } else {
+                    backoffMillis = Math.min(MAX_BACKOFF_MILLIS, Math.max(MIN_BACKOFF_MILLIS, backoffMillis * 2));
+                    Thread.sleep(backoffMillis);
+                }
+            }
+        } catch (InterruptedException e) {
+            _logger.debug("Seat projector stopped");
+        }
+    }
+
+    /**
+     * Applies as much of a batch as possible, in order, once its records are
+     * durable.
+     *
+     * @return how many projections from the start of the batch were applied.
+     */
+    private int project(Thread self, List<Projection> batch) {
+        long sequence = batch.get(batch.size() - 1)._sequence;
+
+        try {
+            _journal.sync(sequence);
+        } catch (RuntimeException e) {
+            if (!this.isCurrent(self)) {
+                // Reset while waiting
+                return 0;
+            }
+            _logger.warn("Failed to sync seat journal up to " + sequence + ", will retry: " + e.getMessage());
+            _failures.increment();
+            return 0;
+        }
+
+        if (this.apply(batch) == null) {
+            _batchSize.record(batch.size());
+            this.advance(self, sequence);
+            return batch.size();
+        }
+
+        // Apply them one at a time, to get as far as the first that fails
+        for (int i = 0; i < batch.size(); i++) {
+            Projection projection = batch.get(i);
+            RuntimeException failure = this.apply(Collections.singletonList(projection));
+            if (failure != null) {
+                _failures.increment();
+                if (++projection._attempts < ServiceConfig.PROJECTION_MAX_ATTEMPTS) {
+                    _logger.warn("Failed to project seat journal record " + projection._sequence + ", will retry",
+                            failure);
+                    return i;
+                }
+                _logger.error("Dead-lettering seat journal record " + projection._sequence + " after "
+                        + projection._attempts + " failed attempts, the tables won't include it", failure);
+                _deadLettered.increment();
+            }
+            this.advance(self, projection._sequence);
+        }
+        return batch.size();
+    }
+
+    private synchronized void advance(Thread self, long sequence) {
+        if (_thread == self) {
+            _projected = sequence;
+            this.notifyAll();
+        }
+    }
+
+    private synchronized boolean isCurrent(Thread thread) {
+        return _thread == thread;
+    }
+
+    /**
+     * Applies projections in one transaction.
+     *
+     * @return null if the transaction committed, otherwise why it didn't.
+     */
+    private RuntimeException apply(List<Projection> projections) {
+        EntityManager em;
+        try {
+            em = PersistenceManager.instance().createEntityManager();
+        } catch (RuntimeException e) {
+            return e;
+        }
+
+        try {
+            em.getTransaction().begin();
+            for (Projection projection : projections) {
+                projection._apply.accept(em);
+            }
+            em.getTransaction().commit();
+            return null;
+        } catch (RuntimeException e) {
+            _logger.debug("Failed to project seat journal: " + e.getMessage());
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+            return e;
+        } finally {
+            try {
+                em.close();
+            } catch (RuntimeException e) {
+                // The database may already be shutting down
+                _logger.debug("Failed to close entity manager: " + e.getMessage());
+            }
+        }
+    }
+
+    private static class Projection {
+        private final long _sequence;
+
+        private final Consumer<EntityManager> _apply;
+
+        // Failed attempts at applying the projection on its own
+        private int _attempts;
+
+        private Projection(long sequence, Consumer<EntityManager> apply) {
+            _sequence = sequence;
+            _apply = apply;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package nz.ac.auckland.concert.service.inventory;
+
+import nz.ac.auckland.concert.common.types.SeatNumber;
+import nz.ac.auckland.concert.common.types.SeatRow;
+import nz.ac.auckland.concert.service.ServiceConfig;
+import nz.ac.auckland.concert.service.domain.Concert;
+import nz.ac.auckland.concert.service.domain.Seat;
+import nz.ac.auckland.concert.service.services.PersistenceManager;
+import nz.ac.auckland.concert.utility.TheatreLayout;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.persistence.EntityManager;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Singleton that creates the SEATS rows of a performance. Each performance is
+ * provisioned at most once: concurrent callers for the same performance wait
+ * on the same provisioning task rather than racing to insert the same rows.
+ * A caller that finds the task still queued for the background thread runs it
+ * itself, so it never waits behind the provisioning of other performances.
+ *
+ * Rows are inserted in JDBC batches of ServiceConfig.SEAT_BATCH_SIZE. When
+ * ServiceConfig.EAGER_SEAT_PROVISIONING is set, every scheduled performance is
+ * provisioned by a background thread at start up, so reservation requests
+ * don't pay for it.
+ */
+public class SeatProvisioner {
+    private static final SeatProvisioner _instance = new SeatProvisioner();
+
+    private static Logger _logger = LoggerFactory
+            .getLogger(SeatProvisioner.class);
+
+    private final Map<PerformanceKey, Provisioning> _provisioned = new ConcurrentHashMap<>();
+
+    private ExecutorService _executor = newExecutor();
+
+    protected SeatProvisioner() {}
+
+    public static SeatProvisioner instance() {
+        return _instance;
+    }
+
+    /**
+     * Makes sure the seats of a performance exist, provisioning them on the
+     * calling thread unless another thread has already started to, in which
+     * case it waits up to ServiceConfig.SEAT_PROVISIONING_TIMEOUT_MILLIS.
+     */
+    public void ensureProvisioned(long concertId, LocalDateTime dateTime) {
+        PerformanceKey key = new PerformanceKey(concertId, dateTime);
+        Provisioning provisioning = _provisioned.computeIfAbsent(key, performance -> new Provisioning());
+
+        if (provisioning.start()) {
+            this.provision(key, provisioning);
+        }
+
+        try {
+            provisioning._result.get(ServiceConfig.SEAT_PROVISIONING_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted provisioning seats for " + key, e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed provisioning seats for " + key, e.getCause());
+        } catch (TimeoutException e) {
+            throw new IllegalStateException("Timed out waiting for seats to be provisioned for " + key, e);
+        }
+    }
+
+    /**
+     * Provisions, in the background, the seats of a performance that nobody
+     * has provisioned yet.
+     */
+    public void provisionAsync(long concertId, LocalDateTime dateTime) {
+        PerformanceKey key = new PerformanceKey(concertId, dateTime);
+        Provisioning mine = new Provisioning();
+        if (_provisioned.putIfAbsent(key, mine) == null) {
+            _executor.execute(() -> {
+                // Unless a request got to it first
+                if (mine.start()) {
+                    this.provision(key, mine);
+                }
+            });
+        }
+    }
+
+    /**
+     * Provisions, in the background, the seats of every performance of every
+     * concert.
+     */
+    public void provisionAllAsync() {
+        EntityManager em = PersistenceManager.instance().createEntityManager();
+
+        try {
+            em.getTransaction().begin();
+
+            List<Object[]> performances = em
+                    .createQuery("SELECT c.id, d FROM Concert c JOIN c.dates d", Object[].class)
+                    .getResultList();
+
+            em.getTransaction().commit();
+
+            _logger.debug("Provisioning seats for " + performances.size() + " performances in the background");
+            for (Object[] performance : performances) {
+                this.provisionAsync((Long) performance[0], (LocalDateTime) performance[1]);
+            }
+        } finally {
+            em.close();
+        }
+    }
+
+    /**
+     * Abandons background provisioning and forgets which performances have
+     * been provisioned. Called when the database is cleared. Callers still
+     * waiting for an abandoned performance are failed rather than left waiting.
+     */
+    public synchronized void reset() {
+        _executor.shutdownNow();
+        try {
+            _executor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Provisioning provisioning : _provisioned.values()) {
+            provisioning._result.completeExceptionally(
+                    new IllegalStateException("Seat provisioning abandoned as the database was cleared"));
+        }
+        _provisioned.clear();
+        _executor = newExecutor();
+    }
+
+    private void provision(PerformanceKey key, Provisioning provisioning) {
+        EntityManager em = PersistenceManager.instance().createEntityManager();
+
+        try {
+            em.getTransaction().begin();
+
+            long existing = em.createQuery("SELECT COUNT(s) FROM Seat s WHERE s.concert.id = :cid " +
+                    "AND s.dateTime = :date", Long.class)
+                    .setParameter("cid", key.getConcertId())
+                    .setParameter("date", key.getDateTime())
+                    .getSingleResult();
+
+            if (existing == 0) {
+                _logger.debug("Setting up seats for " + key);
+                Concert concert = em.getReference(Concert.class, key.getConcertId());
+                int pending = 0;
+                for (SeatRow seatRow : SeatRow.values()) {
+                    for (int i = 1; i <= TheatreLayout.getNumberOfSeatsForRow(seatRow); i++) {
+                        em.persist(new Seat(concert, key.getDateTime(), seatRow, new SeatNumber(i)));
+
+                        if (++pending == ServiceConfig.SEAT_BATCH_SIZE) {
+                            em.flush();
+                            em.clear();
+                            concert = em.getReference(Concert.class, key.getConcertId());
+                            pending = 0;
+                        }
+                    }
+                }
+            }
+
+            em.getTransaction().commit();
+            provisioning._result.complete(null);
+        } catch (RuntimeException e) {
+            _logger.debug("Failed to provision seats for " + key + ": " + e.getMessage());
+            // Let a later caller try again
+            _provisioned.remove(key, provisioning);
+            provisioning._result.completeExceptionally(e);
+        } finally {
+            try {
+                em.close();
+            } catch (RuntimeException e) {
+                // The database may already be shutting down under a background task
+                _logger.debug("Failed to close entity manager for " + key + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * The provisioning of one performance's seats, which runs at most once, on
+     * whichever thread starts it first.
+     */
+    private static class Provisioning {
+        private final AtomicBoolean _started = new AtomicBoolean();
+
+        private final CompletableFuture<Void> _result = new CompletableFuture<>();
+
+        /**
+         * @return whether the caller is the one to run the provisioning.
+         */
+        private boolean start() {
+            return _started.compareAndSet(false, true);
+        }
+    }
+
+    private static ExecutorService newExecutor() {
+        return Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "seat-provisioner");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+}
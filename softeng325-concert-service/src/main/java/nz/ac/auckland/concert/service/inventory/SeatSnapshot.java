@@ -0,0 +1,255 @@
+package nz.ac.auckland.concert.service.inventory;
+
+import nz.ac.auckland.concert.common.dto.SeatDTO;
+import nz.ac.auckland.concert.common.types.SeatNumber;
+import nz.ac.auckland.concert.common.types.SeatRow;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * The seat state recorded by the SeatJournal up to a sequence number: the
+ * booked seats of every performance, as one word per row, and the seats of
+ * every held reservation. Replaying the journal after the snapshot's sequence
+ * number gives the current state.
+ *
+ * Snapshots are written to the journal directory as binary files named after
+ * their sequence number, and end with a CRC32 of their contents, so a
+ * snapshot that was only partly written is never loaded.
+ */
+class SeatSnapshot {
+
+    private static final int MAGIC = 0x53454154;
+
+    private static final int VERSION = 1;
+
+    private static final String SUFFIX = ".snapshot";
+
+    // Snapshots kept, so there's an older one to fall back on if the newest is damaged. The journal is kept
+    // back to the oldest of them, so falling back replays everything since
+    private static final int RETAINED = 2;
+
+    private static Logger _logger = LoggerFactory
+            .getLogger(SeatSnapshot.class);
+
+    final long _sequence;
+
+    final long _lastReservationId;
+
+    // Booked seats of each performance, one word per SeatRow, by ordinal
+    final Map<PerformanceKey, long[]> _bookedRows;
+
+    final List<Hold> _holds;
+
+    SeatSnapshot(long sequence, long lastReservationId, Map<PerformanceKey, long[]> bookedRows, List<Hold> holds) {
+        _sequence = sequence;
+        _lastReservationId = lastReservationId;
+        _bookedRows = bookedRows;
+        _holds = holds;
+    }
+
+    /**
+     * Writes the snapshot, then deletes all but the newest RETAINED snapshots.
+     *
+     * @return the sequence number of the oldest snapshot kept. The journal up
+     * to it may be discarded, as any snapshot kept can be recovered from.
+     */
+    long write() {
+        Path directory = SeatJournal.directory();
+        Path file = directory.resolve(String.format("%020d", _sequence) + SUFFIX);
+        Path partial = directory.resolve(file.getFileName() + ".partial");
+
+        try {
+            CRC32 crc = new CRC32();
+            try (DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(partial)), crc))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(_sequence);
+                out.writeLong(_lastReservationId);
+
+                out.writeInt(_bookedRows.size());
+                for (Map.Entry<PerformanceKey, long[]> performance : _bookedRows.entrySet()) {
+                    writePerformance(out, performance.getKey());
+                    for (long row : performance.getValue()) {
+                        out.writeLong(row);
+                    }
+                }
+
+                out.writeInt(_holds.size());
+                for (Hold hold : _holds) {
+                    out.writeLong(hold._reservationId);
+                    writePerformance(out, hold._performance);
+                    out.writeLong(SeatTransition.toMillis(hold._holdTime));
+                    out.writeShort(hold._seats.size());
+                    for (SeatDTO seat : hold._seats) {
+                        out.writeByte(seat.getRow().ordinal());
+                        out.writeByte(seat.getNumber().intValue());
+                    }
+                }
+
+                out.writeInt((int) crc.getValue());
+            }
+            try (FileChannel channel = FileChannel.open(partial, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            Files.move(partial, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to write seat snapshot " + file, e);
+        }
+
+        List<Path> snapshots = snapshotPaths();
+        int oldest = Math.max(0, snapshots.size() - RETAINED);
+        for (int i = 0; i < oldest; i++) {
+            delete(snapshots.get(i));
+        }
+        return sequenceOf(snapshots.get(oldest));
+    }
+
+    /**
+     * @return the newest snapshot that can be read, or null if there is none.
+     */
+    static SeatSnapshot readLatest() {
+        List<Path> snapshots = snapshotPaths();
+        Collections.reverse(snapshots);
+
+        for (Path snapshot : snapshots) {
+            try {
+                return read(snapshot);
+            } catch (IOException | RuntimeException e) {
+                _logger.warn("Skipping unreadable seat snapshot " + snapshot + ", falling back to an older one: "
+                        + e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Deletes every snapshot. Called when the database is cleared.
+     */
+    static void deleteAll() {
+        snapshotPaths().forEach(SeatSnapshot::delete);
+    }
+
+    private static SeatSnapshot read(Path file) throws IOException {
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new CheckedInputStream(
+                new BufferedInputStream(Files.newInputStream(file)), crc))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a version " + VERSION + " seat snapshot");
+            }
+            long sequence = in.readLong();
+            long lastReservationId = in.readLong();
+
+            int performances = in.readInt();
+            Map<PerformanceKey, long[]> bookedRows = new HashMap<>();
+            for (int i = 0; i < performances; i++) {
+                PerformanceKey performance = readPerformance(in);
+                long[] rows = new long[SeatRow.values().length];
+                for (int row = 0; row < rows.length; row++) {
+                    rows[row] = in.readLong();
+                }
+                bookedRows.put(performance, rows);
+            }
+
+            int holdCount = in.readInt();
+            List<Hold> holds = new ArrayList<>();
+            for (int i = 0; i < holdCount; i++) {
+                long reservationId = in.readLong();
+                PerformanceKey performance = readPerformance(in);
+                LocalDateTime holdTime = SeatTransition.fromMillis(in.readLong());
+                int seatCount = in.readShort();
+                Set<SeatDTO> seats = new HashSet<>();
+                for (int seat = 0; seat < seatCount; seat++) {
+                    seats.add(new SeatDTO(SeatRow.values()[in.readByte()], new SeatNumber(in.readByte())));
+                }
+                holds.add(new Hold(reservationId, performance, seats, holdTime));
+            }
+
+            int expected = (int) crc.getValue();
+            if (in.readInt() != expected) {
+                throw new IOException("Seat snapshot checksum mismatch");
+            }
+            return new SeatSnapshot(sequence, lastReservationId, bookedRows, holds);
+        }
+    }
+
+    private static void writePerformance(DataOutputStream out, PerformanceKey performance) throws IOException {
+        out.writeLong(performance.getConcertId());
+        out.writeLong(SeatTransition.toMillis(performance.getDateTime()));
+    }
+
+    private static PerformanceKey readPerformance(DataInputStream in) throws IOException {
+        return new PerformanceKey(in.readLong(), SeatTransition.fromMillis(in.readLong()));
+    }
+
+    /**
+     * @return the paths of the snapshots, oldest first.
+     */
+    private static List<Path> snapshotPaths() {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> snapshots = Files.newDirectoryStream(SeatJournal.directory(), "*" + SUFFIX)) {
+            snapshots.forEach(paths::add);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to list seat snapshots", e);
+        }
+        Collections.sort(paths);
+        return paths;
+    }
+
+    private static long sequenceOf(Path snapshot) {
+        String name = snapshot.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    }
+
+    private static void delete(Path snapshot) {
+        try {
+            Files.delete(snapshot);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to delete seat snapshot " + snapshot, e);
+        }
+    }
+
+    /**
+     * The seats held by one reservation.
+     */
+    static class Hold {
+        final long _reservationId;
+
+        final PerformanceKey _performance;
+
+        final Set<SeatDTO> _seats;
+
+        final LocalDateTime _holdTime;
+
+        Hold(long reservationId, PerformanceKey performance, Set<SeatDTO> seats, LocalDateTime holdTime) {
+            _reservationId = reservationId;
+            _performance = performance;
+            _seats = seats;
+            _holdTime = holdTime;
+        }
+    }
+}
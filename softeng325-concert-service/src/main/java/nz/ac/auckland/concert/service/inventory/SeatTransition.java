@@ -0,0 +1,160 @@
+package nz.ac.auckland.concert.service.inventory;
+
+import nz.ac.auckland.concert.common.dto.SeatDTO;
+import nz.ac.auckland.concert.common.types.SeatNumber;
+import nz.ac.auckland.concert.common.types.SeatRow;
+import nz.ac.auckland.concert.common.types.SeatStatus;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.zip.CRC32;
+
+/**
+ * A change of state of one seat, as recorded in the SeatJournal.
+ *
+ * Each transition is written as a fixed-size record of SIZE bytes:
+ *
+ *  0  sequence number
+ *  8  concert id
+ * 16  performance date/time, in epoch milliseconds
+ * 24  reservation id, or 0 for none
+ * 32  time stamp of the hold, in epoch milliseconds, or Long.MIN_VALUE for none
+ * 40  seat row ordinal
+ * 41  seat number
+ * 42  seat status ordinal
+ * 43  unused
+ * 44  CRC32 of bytes 0 to 43
+ */
+public class SeatTransition {
+
+    public static final int SIZE = 48;
+
+    private static final int CHECKSUMMED_BYTES = 44;
+
+    private static final long NO_TIME_STAMP = Long.MIN_VALUE;
+
+    private final long _concertId;
+
+    private final LocalDateTime _dateTime;
+
+    private final SeatRow _row;
+
+    private final SeatNumber _number;
+
+    private final SeatStatus _status;
+
+    private final long _reservationId;
+
+    private final LocalDateTime _timeStamp;
+
+    public SeatTransition(PerformanceKey performance, SeatDTO seat, SeatStatus status, long reservationId,
+                          LocalDateTime timeStamp) {
+        this(performance.getConcertId(), performance.getDateTime(), seat.getRow(), seat.getNumber(), status,
+                reservationId, timeStamp);
+    }
+
+    public SeatTransition(long concertId, LocalDateTime dateTime, SeatRow row, SeatNumber number, SeatStatus status,
+                          long reservationId, LocalDateTime timeStamp) {
+        _concertId = concertId;
+        _dateTime = dateTime;
+        _row = row;
+        _number = number;
+        _status = status;
+        _reservationId = reservationId;
+        _timeStamp = timeStamp;
+    }
+
+    public long getConcertId() {
+        return _concertId;
+    }
+
+    public LocalDateTime getDateTime() {
+        return _dateTime;
+    }
+
+    public SeatRow getRow() {
+        return _row;
+    }
+
+    public SeatNumber getNumber() {
+        return _number;
+    }
+
+    public SeatStatus getStatus() {
+        return _status;
+    }
+
+    public long getReservationId() {
+        return _reservationId;
+    }
+
+    public LocalDateTime getTimeStamp() {
+        return _timeStamp;
+    }
+
+    /**
+     * Writes this transition as a record at the buffer's position.
+     */
+    void writeTo(ByteBuffer buffer, long sequence) {
+        ByteBuffer record = ByteBuffer.allocate(SIZE);
+        record.putLong(sequence)
+                .putLong(_concertId)
+                .putLong(toMillis(_dateTime))
+                .putLong(_reservationId)
+                .putLong(_timeStamp == null ? NO_TIME_STAMP : toMillis(_timeStamp))
+                .put((byte) _row.ordinal())
+                .put((byte) _number.intValue())
+                .put((byte) _status.ordinal())
+                .put((byte) 0);
+        record.putInt(checksum(record.array()));
+
+        buffer.put(record.array());
+    }
+
+    /**
+     * Reads the record at the buffer's position.
+     *
+     * @return the transition, or null if no record has been written there or
+     * the record is torn, i.e. its checksum doesn't match.
+     */
+    static SeatTransition readFrom(ByteBuffer buffer) {
+        byte[] bytes = new byte[SIZE];
+        buffer.get(bytes);
+        ByteBuffer record = ByteBuffer.wrap(bytes);
+
+        if (record.getLong(0) == 0 || record.getInt(CHECKSUMMED_BYTES) != checksum(bytes)) {
+            return null;
+        }
+
+        long timeStamp = record.getLong(32);
+        return new SeatTransition(
+                record.getLong(8),
+                fromMillis(record.getLong(16)),
+                SeatRow.values()[record.get(40)],
+                new SeatNumber(record.get(41)),
+                SeatStatus.values()[record.get(42)],
+                record.getLong(24),
+                timeStamp == NO_TIME_STAMP ? null : fromMillis(timeStamp));
+    }
+
+    private static int checksum(byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, CHECKSUMMED_BYTES);
+        return (int) crc.getValue();
+    }
+
+    static long toMillis(LocalDateTime dateTime) {
+        return dateTime.toInstant(ZoneOffset.UTC).toEpochMilli();
+    }
+
+    static LocalDateTime fromMillis(long millis) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneOffset.UTC);
+    }
+
+    @Override
+    public String toString() {
+        return _concertId + "@" + _dateTime + " " + _row + _number + " -> " + _status;
+    }
+}
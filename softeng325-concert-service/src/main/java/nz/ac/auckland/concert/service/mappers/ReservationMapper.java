@@ -21,6 +21,15 @@ public class ReservationMapper {
         );
     }
 
+    public static ReservationDTO toDTO(Reservation reservation, ReservationRequestDTO reservationRequestDTO,
+                                       Set<SeatDTO> seats) {
+        return new ReservationDTO(
+                reservation.getId(),
+                reservationRequestDTO,
+                seats
+        );
+    }
+
     public static BookingDTO reservationDomainToBookingDTO(Reservation reservation) {
         Concert concert = reservation.getConcert();
 
@@ -0,0 +1,64 @@
+package nz.ac.auckland.concert.service.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of recorded values over fixed buckets whose upper bounds are
+ * the powers of two, 1, 2, 4, ... 2^(BUCKETS - 2), plus a final bucket for
+ * anything larger.
+ */
+public class Histogram {
+
+    static final int BUCKETS = 16;
+
+    private final AtomicLongArray _buckets = new AtomicLongArray(BUCKETS);
+
+    private final LongAdder _count = new LongAdder();
+
+    private final LongAdder _sum = new LongAdder();
+
+    Histogram() {}
+
+    public void record(long value) {
+        _buckets.incrementAndGet(bucketOf(value));
+        _count.increment();
+        _sum.add(value);
+    }
+
+    public long getCount() {
+        return _count.sum();
+    }
+
+    public long getSum() {
+        return _sum.sum();
+    }
+
+    /**
+     * @return the number of recorded values no greater than the upper bound of
+     * the given bucket.
+     */
+    public long getCumulativeCount(int bucket) {
+        long count = 0;
+        for (int i = 0; i <= bucket; i++) {
+            count += _buckets.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @return the upper bound of a bucket, or Long.MAX_VALUE for the last one.
+     */
+    public static long upperBound(int bucket) {
+        return bucket == BUCKETS - 1 ? Long.MAX_VALUE : 1L << bucket;
+    }
+
+    private static int bucketOf(long value) {
+        if (value <= 1) {
+            return 0;
+        }
+        // The smallest power of two that is >= value
+        int bucket = Long.SIZE - Long.numberOfLeadingZeros(value - 1);
+        return Math.min(bucket, BUCKETS - 1);
+    }
+}
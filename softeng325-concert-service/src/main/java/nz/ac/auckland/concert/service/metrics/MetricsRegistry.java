@@ -0,0 +1,84 @@
+package nz.ac.auckland.concert.service.metrics;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Singleton registry of the Web service's counters and timers, by name.
+ * Metrics are created on first use and are never removed, so callers may
+ * keep hold of the metrics they update. Gauges instead report a value read
+ * from elsewhere whenever a snapshot is taken.
+ */
+public class MetricsRegistry {
+    private static final MetricsRegistry _instance = new MetricsRegistry();
+
+    private final Map<String, LongAdder> _counters = new ConcurrentHashMap<>();
+
+    private final Map<String, Timer> _timers = new ConcurrentHashMap<>();
+
+    private final Map<String, Histogram> _histograms = new ConcurrentHashMap<>();
+
+    private final Map<String, Supplier<Number>> _gauges = new ConcurrentHashMap<>();
+
+    private final long _startMillis = System.currentTimeMillis();
+
+    protected MetricsRegistry() {}
+
+    public static MetricsRegistry instance() {
+        return _instance;
+    }
+
+    public LongAdder counter(String name) {
+        return _counters.computeIfAbsent(name, key -> new LongAdder());
+    }
+
+    public Timer timer(String name) {
+        return _timers.computeIfAbsent(name, key -> new Timer());
+    }
+
+    public Histogram histogram(String name) {
+        return _histograms.computeIfAbsent(name, key -> new Histogram());
+    }
+
+    /**
+     * Reports a value under a name, replacing any gauge of that name.
+     */
+    public void gauge(String name, Supplier<Number> value) {
+        _gauges.put(name, value);
+    }
+
+    /**
+     * @return the current value of every metric, by name. Each timer is
+     * reported as its count, total, mean and max, and its throughput since the
+     * Web service started. Each histogram is reported as its count, sum and
+     * the cumulative count of each bucket, by the bucket's upper bound.
+     */
+    public SortedMap<String, Number> snapshot() {
+        SortedMap<String, Number> values = new TreeMap<>();
+        double uptimeSeconds = Math.max(1, System.currentTimeMillis() - _startMillis) / 1000.0;
+
+        values.put("uptime.seconds", uptimeSeconds);
+        _counters.forEach((name, counter) -> values.put(name, counter.sum()));
+        _gauges.forEach((name, gauge) -> values.put(name, gauge.get()));
+        _timers.forEach((name, timer) -> {
+            long count = timer.getCount();
+            values.put(name + ".count", count);
+            values.put(name + ".totalMillis", timer.getTotalMillis());
+            values.put(name + ".meanMillis", count == 0 ? 0 : timer.getTotalMillis() / count);
+            values.put(name + ".maxMillis", timer.getMaxMillis());
+            values.put(name + ".perSecond", count / uptimeSeconds);
+        });
+        _histograms.forEach((name, histogram) -> {
+            values.put(name + ".count", histogram.getCount());
+            values.put(name + ".sum", histogram.getSum());
+            for (int i = 0; i < Histogram.BUCKETS - 1; i++) {
+                values.put(name + ".le." + Histogram.upperBound(i), histogram.getCumulativeCount(i));
+            }
+        });
+        return values;
+    }
+}
@@ -0,0 +1,59 @@
+package nz.ac.auckland.concert.service.metrics;
+
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.MetricsTrackerFactory;
+import com.zaxxer.hikari.metrics.PoolStats;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records the events of the database connection pool in the MetricsRegistry:
+ * how long requests wait for a connection (db.pool.acquire), how long they
+ * hold it (db.pool.usage), how long connections take to open
+ * (db.pool.create) and how many requests gave up waiting (db.pool.timeouts).
+ */
+public class PoolMetricsTracker implements IMetricsTracker {
+
+    private final Timer _acquire;
+
+    private final Timer _usage;
+
+    private final Timer _create;
+
+    private final LongAdder _timeouts;
+
+    private PoolMetricsTracker(MetricsRegistry metrics) {
+        _acquire = metrics.timer("db.pool.acquire");
+        _usage = metrics.timer("db.pool.usage");
+        _create = metrics.timer("db.pool.create");
+        _timeouts = metrics.counter("db.pool.timeouts");
+    }
+
+    /**
+     * @return a factory that the pool calls to create its tracker.
+     */
+    public static MetricsTrackerFactory factory() {
+        return (String poolName, PoolStats poolStats) -> new PoolMetricsTracker(MetricsRegistry.instance());
+    }
+
+    @Override
+    public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) {
+        _acquire.record(elapsedAcquiredNanos);
+    }
+
+    @Override
+    public void recordConnectionUsageMillis(long elapsedBorrowedMillis) {
+        _usage.record(TimeUnit.MILLISECONDS.toNanos(elapsedBorrowedMillis));
+    }
+
+    @Override
+    public void recordConnectionCreatedMillis(long connectionCreatedMillis) {
+        _create.record(TimeUnit.MILLISECONDS.toNanos(connectionCreatedMillis));
+    }
+
+    @Override
+    public void recordConnectionTimeout() {
+        _timeouts.increment();
+    }
+}
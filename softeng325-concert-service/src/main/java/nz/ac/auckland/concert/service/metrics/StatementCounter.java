@@ -0,0 +1,21 @@
+package nz.ac.auckland.concert.service.metrics;
+
+import org.hibernate.resource.jdbc.spi.StatementInspector;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hibernate StatementInspector that counts every SQL statement prepared
+ * against the database, as the db.statements counter. Registered through the
+ * hibernate.session_factory.statement_inspector property in persistence.xml.
+ */
+public class StatementCounter implements StatementInspector {
+
+    private final LongAdder _statements = MetricsRegistry.instance().counter("db.statements");
+
+    @Override
+    public String inspect(String sql) {
+        _statements.increment();
+        return sql;
+    }
+}
@@ -0,0 +1,53 @@
+package nz.ac.auckland.concert.service.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records how many times an operation has run and how long it took.
+ */
+public class Timer {
+
+    private final LongAdder _count = new LongAdder();
+
+    private final LongAdder _totalNanos = new LongAdder();
+
+    private final AtomicLong _maxNanos = new AtomicLong();
+
+    Timer() {}
+
+    /**
+     * @return the current time, to be passed to stop() when the operation ends.
+     */
+    public long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * @return the time the operation took, in nanoseconds.
+     */
+    public long stop(long start) {
+        long nanos = System.nanoTime() - start;
+        this.record(nanos);
+        return nanos;
+    }
+
+    public void record(long nanos) {
+        _count.increment();
+        _totalNanos.add(nanos);
+        _maxNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    public long getCount() {
+        return _count.sum();
+    }
+
+    public double getTotalMillis() {
+        return _totalNanos.sum() / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    public double getMaxMillis() {
+        return _maxNanos.get() / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
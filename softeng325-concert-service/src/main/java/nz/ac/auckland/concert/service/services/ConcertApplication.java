@@ -1,6 +1,17 @@
 package nz.ac.auckland.concert.service.services;
 
+import com.fasterxml.jackson.jaxrs.smile.JacksonJaxbSmileProvider;
+import nz.ac.auckland.concert.service.ServiceConfig;
+import nz.ac.auckland.concert.service.admission.AdmissionControl;
+import nz.ac.auckland.concert.service.auth.AuthFilter;
+import nz.ac.auckland.concert.service.auth.AuthTokens;
+import nz.ac.auckland.concert.service.auth.PrincipalCache;
+import nz.ac.auckland.concert.service.cluster.ClusterMembership;
+import nz.ac.auckland.concert.service.cluster.PeerFilter;
 import nz.ac.auckland.concert.service.domain.*;
+import nz.ac.auckland.concert.service.inventory.HoldExpiryWheel;
+import nz.ac.auckland.concert.service.inventory.SeatLedger;
+import nz.ac.auckland.concert.service.inventory.SeatProvisioner;
 import nz.ac.auckland.concert.service.services.resources.*;
 
 import javax.persistence.EntityManager;
@@ -26,12 +37,33 @@ public class ConcertApplication extends Application {
         _classes.add(PerformerResource.class);
         _classes.add(UserResource.class);
         _classes.add(BookingResource.class);
+        _classes.add(MetricsResource.class);
+        _classes.add(ClusterResource.class);
+        _classes.add(AuthFilter.class);
+        _classes.add(PeerFilter.class);
+        // JSON is written by RESTEasy's built-in Jackson provider, but Smile must be registered
+        _classes.add(JacksonJaxbSmileProvider.class);
 
         _singletons.add(new NewsItemResource());
 
         _persistenceManager = PersistenceManager.instance();
 
-        this.clearDB();
+        SeatProvisioner.instance().reset();
+        HoldExpiryWheel.instance().reset();
+        AdmissionControl.instance().reset();
+        IdempotencyStore.instance().reset();
+        PrincipalCache.instance().reset();
+        if (ServiceConfig.CLEAR_DATABASE_AT_STARTUP) {
+            SeatLedger.instance().reset();
+            this.clearDB();
+        }
+        AuthTokens.instance().reload();
+        SeatLedger.instance().recover();
+        ClusterMembership.instance().reset();
+
+        if (ServiceConfig.EAGER_SEAT_PROVISIONING) {
+            SeatProvisioner.instance().provisionAllAsync();
+        }
     }
 
     @Override
@@ -54,10 +86,6 @@ public class ConcertApplication extends Application {
                     .createQuery("SELECT u FROM User u", User.class)
                     .getResultList();
 
-            List<Seat> seats = em
-                    .createQuery("SELECT s FROM Seat s", Seat.class)
-                    .getResultList();
-
             List<CreditCard> creditCards = em
                     .createQuery("SELECT c FROM CreditCard c", CreditCard.class)
                     .getResultList();
@@ -74,9 +102,8 @@ public class ConcertApplication extends Application {
                 em.remove(u);
             }
 
-            for(Seat s: seats) {
-                em.remove(s);
-            }
+            em.createQuery("DELETE FROM Seat s").executeUpdate();
+            em.createQuery("DELETE FROM RevokedToken r").executeUpdate();
 
             for (CreditCard c : creditCards) {
                 em.remove(c);
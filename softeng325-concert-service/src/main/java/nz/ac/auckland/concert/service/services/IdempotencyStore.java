@@ -0,0 +1,274 @@
+package nz.ac.auckland.concert.service.services;
+
+import nz.ac.auckland.concert.common.message.Messages;
+import nz.ac.auckland.concert.service.ServiceConfig;
+import nz.ac.auckland.concert.service.metrics.MetricsRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Singleton store of the responses to requests that carried an
+ * Idempotency-Key, so that a client which retries a request, e.g. after a
+ * timeout, gets the original response rather than having the request
+ * processed twice.
+ *
+ * Responses, with their headers, are kept for
+ * ServiceConfig.IDEMPOTENCY_TTL_MILLIS, and at most
+ * ServiceConfig.IDEMPOTENCY_MAX_ENTRIES are kept, the oldest being evicted
+ * first. Each key is bound to a SHA-256 digest of the request body, and a
+ * request that reuses a key with a different body is rejected with 422. A
+ * retry that arrives while the original request is still being processed
+ * waits up to ServiceConfig.IDEMPOTENCY_WAIT_MILLIS for its response, and is
+ * then told to retry later with 409. Server errors and 503 responses aren't
+ * stored, so a retry after one of them is processed again.
+ */
+public class IdempotencyStore {
+    private static final IdempotencyStore _instance = new IdempotencyStore();
+
+    private static final int UNPROCESSABLE_ENTITY = 422;
+
+    private static Logger _logger = LoggerFactory
+            .getLogger(IdempotencyStore.class);
+
+    // Insertion ordered, so the eldest entry is always the first to expire
+    private final LinkedHashMap<String, Entry> _entries = new LinkedHashMap<>();
+
+    private final Map<Class<?>, JAXBContext> _contexts = new ConcurrentHashMap<>();
+
+    private final MetricsRegistry _metrics = MetricsRegistry.instance();
+
+    private final LongSupplier _clock;
+
+    protected IdempotencyStore() {
+        this(System::currentTimeMillis);
+    }
+
+    IdempotencyStore(LongSupplier clock) {
+        _clock = clock;
+    }
+
+    public static IdempotencyStore instance() {
+        return _instance;
+    }
+
+    /**
+     * Processes a request, unless a request with the same key has already been
+     * processed, in which case its response is returned instead.
+     *
+     * @param scope identifies the operation and the caller, so that keys
+     *              chosen by different users never collide, or null to
+     *              always process the request.
+     * @param key   the request's Idempotency-Key, or null to always process it.
+     * @param body  the request's JAXB annotated body, which a retry must repeat.
+     */
+    public Response execute(String scope, String key, Object body, Supplier<Response> request) {
+        if (scope == null || key == null) {
+            return request.get();
+        }
+
+        String id = scope + ":" + key;
+        byte[] fingerprint = this.fingerprint(body);
+        while (true) {
+            Entry mine = new Entry(_clock.getAsLong(), fingerprint);
+            Entry original = this.putIfAbsent(id, mine);
+
+            if (original == null) {
+                return this.process(id, mine, request);
+            }
+
+            if (!Arrays.equals(original._fingerprint, fingerprint)) {
+                _logger.debug("Idempotency key " + key + " reused with a different request");
+                _metrics.counter("idempotency.mismatches").increment();
+                return Response
+                        .status(UNPROCESSABLE_ENTITY)
+                        .entity(Messages.IDEMPOTENCY_KEY_REUSED)
+                        .build();
+            }
+
+            StoredResponse stored;
+            try {
+                stored = await(original._response);
+            } catch (TimeoutException e) {
+                _logger.debug("Gave up waiting for original request with idempotency key " + key);
+                _metrics.counter("idempotency.waitTimeouts").increment();
+                return Response
+                        .status(Response.Status.CONFLICT)
+                        .entity(Messages.IDEMPOTENT_REQUEST_IN_PROGRESS)
+                        .header(HttpHeaders.RETRY_AFTER, 1)
+                        .build();
+            }
+
+            if (stored != null) {
+                _logger.debug("Replaying response for idempotency key " + key);
+                _metrics.counter("idempotency.replays").increment();
+                return stored.toResponse();
+            }
+            // The original wasn't stored, so process this request after all
+        }
+    }
+
+    /**
+     * Forgets every stored response. Called when the database is cleared.
+     */
+    public synchronized void reset() {
+        _entries.clear();
+    }
+
+    private Response process(String id, Entry entry, Supplier<Response> request) {
+        Response response = null;
+        try {
+            response = request.get();
+            return response;
+        } finally {
+            int status = response == null ? Response.Status.INTERNAL_SERVER_ERROR.getStatusCode() : response.getStatus();
+            if (status >= 500) {
+                this.remove(id, entry);
+                entry._response.complete(null);
+            } else {
+                _metrics.counter("idempotency.stored").increment();
+                entry._response.complete(new StoredResponse(status, response.getEntity(), response.getMetadata()));
+            }
+        }
+    }
+
+    private synchronized Entry putIfAbsent(String id, Entry entry) {
+        this.expire();
+
+        Entry original = _entries.get(id);
+        if (original != null) {
+            return original;
+        }
+
+        _entries.put(id, entry);
+        if (_entries.size() > ServiceConfig.IDEMPOTENCY_MAX_ENTRIES) {
+            Iterator<Entry> eldest = _entries.values().iterator();
+            eldest.next();
+            eldest.remove();
+        }
+        return null;
+    }
+
+    private synchronized void remove(String id, Entry entry) {
+        _entries.remove(id, entry);
+    }
+
+    private void expire() {
+        long now = _clock.getAsLong();
+        Iterator<Entry> entries = _entries.values().iterator();
+        while (entries.hasNext() && now - entries.next()._createdAt > ServiceConfig.IDEMPOTENCY_TTL_MILLIS) {
+            entries.remove();
+        }
+    }
+
+    /**
+     * Digests the XML form of a request body, which is the same for equal DTOs.
+     */
+    private byte[] fingerprint(Object body) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            if (body != null) {
+                JAXBContext context = _contexts.computeIfAbsent(body.getClass(), IdempotencyStore::contextFor);
+                try (OutputStream out = new DigestOutputStream(NullOutputStream.INSTANCE, digest)) {
+                    context.createMarshaller().marshal(body, out);
+                }
+            }
+            return digest.digest();
+        } catch (NoSuchAlgorithmException | JAXBException | IOException e) {
+            throw new IllegalStateException("Unable to fingerprint request body", e);
+        }
+    }
+
+    private static JAXBContext contextFor(Class<?> type) {
+        try {
+            return JAXBContext.newInstance(type);
+        } catch (JAXBException e) {
+            throw new IllegalStateException("Unable to fingerprint request bodies of " + type, e);
+        }
+    }
+
+    private static StoredResponse await(CompletableFuture<StoredResponse> response) throws TimeoutException {
+        try {
+            return response.get(ServiceConfig.IDEMPOTENCY_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for original response", e);
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    private static class Entry {
+        private final long _createdAt;
+
+        private final byte[] _fingerprint;
+
+        private final CompletableFuture<StoredResponse> _response = new CompletableFuture<>();
+
+        private Entry(long createdAt, byte[] fingerprint) {
+            _createdAt = createdAt;
+            _fingerprint = fingerprint;
+        }
+    }
+
+    private static class StoredResponse {
+        private final int _status;
+
+        private final Object _entity;
+
+        // Location, Retry-After etc. are part of the response a retry must see
+        private final MultivaluedMap<String, Object> _headers;
+
+        private StoredResponse(int status, Object entity, MultivaluedMap<String, Object> headers) {
+            _status = status;
+            _entity = entity;
+            _headers = copy(headers);
+        }
+
+        private Response toResponse() {
+            return Response
+                    .status(_status)
+                    .entity(_entity)
+                    .replaceAll(copy(_headers))
+                    .build();
+        }
+
+        private static MultivaluedMap<String, Object> copy(MultivaluedMap<String, Object> headers) {
+            MultivaluedMap<String, Object> copy = new MultivaluedHashMap<>();
+            headers.forEach(copy::addAll);
+            return copy;
+        }
+    }
+
+    private static class NullOutputStream extends OutputStream {
+        private static final NullOutputStream INSTANCE = new NullOutputStream();
+
+        @Override
+        public void write(int b) {}
+
+        @Override
+        public void write(byte[] b, int off, int len) {}
+    }
+}
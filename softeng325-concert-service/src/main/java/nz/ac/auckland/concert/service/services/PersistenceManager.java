@@ -1,8 +1,28 @@
 package nz.ac.auckland.concert.service.services;
 
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import nz.ac.auckland.concert.service.ServiceConfig;
+import nz.ac.auckland.concert.service.catalogue.CatalogueListener;
+import nz.ac.auckland.concert.service.metrics.MetricsRegistry;
+import nz.ac.auckland.concert.service.metrics.PoolMetricsTracker;
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.jpa.boot.internal.EntityManagerFactoryBuilderImpl;
+import org.hibernate.jpa.boot.spi.IntegratorProvider;
+import org.hibernate.stat.SecondLevelCacheStatistics;
+import org.hibernate.stat.Statistics;
+
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.Persistence;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
 /**
  * Singleton class that manages an EntityManagerFactory. When a
@@ -14,25 +34,99 @@ import javax.persistence.Persistence;
  * persistence context, it should call the PersistentManager's 
  * createEntityManager() method to acquire one.
  * 
+ * The EntityManagerFactory takes its JDBC connections from a bounded pool,
+ * sized by ServiceConfig. The pool's active, idle and total connections, and
+ * the threads waiting for one, are reported as db.pool.* gauges. The schema
+ * is prepared as ServiceConfig.DB_SCHEMA_ACTION says.
+ * 
+ * Concerts and performers, their collections and the lists of them are kept
+ * in Hibernate's second-level cache. Each region's hits, misses, hit ratio and
+ * size are reported as cache.<region>.* gauges. Writes of either are passed
+ * on to the CatalogueCache once they have committed, which passes them on to
+ * the other nodes of a cluster.
  */
 public class PersistenceManager {
-	private static PersistenceManager _instance = null;
+	// Query cache regions of the lists of concerts and of performers. Hibernate invalidates a region's
+	// results when a table they were read from is written, so creating a performer leaves concerts cached
+	public static final String CONCERTS_QUERY_REGION = "query.concerts";
+	public static final String PERFORMERS_QUERY_REGION = "query.performers";
+	
+	private static final String DOMAIN_PACKAGE = "nz.ac.auckland.concert.service.domain.";
+	
+	private static final PersistenceManager _instance = new PersistenceManager();
+	
+	private HikariDataSource _dataSource;
 	
 	private EntityManagerFactory _entityManagerFactory;
 	
 	protected PersistenceManager() {
-		_entityManagerFactory = Persistence.createEntityManagerFactory("nz.ac.auckland.concert");
+		HikariConfig config = new HikariConfig();
+		config.setPoolName("concert-db");
+		config.setJdbcUrl(ServiceConfig.DB_URL);
+		config.setUsername(ServiceConfig.DB_USER);
+		config.setPassword(ServiceConfig.DB_PASSWORD);
+		config.setMaximumPoolSize(ServiceConfig.DB_POOL_MAX_SIZE);
+		config.setMinimumIdle(Math.min(ServiceConfig.DB_POOL_MIN_IDLE, ServiceConfig.DB_POOL_MAX_SIZE));
+		config.setConnectionTimeout(ServiceConfig.DB_POOL_CONNECTION_TIMEOUT_MILLIS);
+		config.setLeakDetectionThreshold(ServiceConfig.DB_POOL_LEAK_DETECTION_MILLIS);
+		config.setMetricsTrackerFactory(PoolMetricsTracker.factory());
+		_dataSource = new HikariDataSource(config);
+		
+		HikariPoolMXBean pool = _dataSource.getHikariPoolMXBean();
+		MetricsRegistry metrics = MetricsRegistry.instance();
+		metrics.gauge("db.pool.active", pool::getActiveConnections);
+		metrics.gauge("db.pool.idle", pool::getIdleConnections);
+		metrics.gauge("db.pool.total", pool::getTotalConnections);
+		metrics.gauge("db.pool.waiting", pool::getThreadsAwaitingConnection);
+		
+		Map<String, Object> properties = new HashMap<>();
+		properties.put(AvailableSettings.DATASOURCE, _dataSource);
+		properties.put(AvailableSettings.HBM2DDL_DATABASE_ACTION, ServiceConfig.DB_SCHEMA_ACTION);
+		properties.put(EntityManagerFactoryBuilderImpl.INTEGRATOR_PROVIDER,
+				(IntegratorProvider) () -> Collections.singletonList(CatalogueListener.integrator()));
+		_entityManagerFactory = Persistence.createEntityManagerFactory("nz.ac.auckland.concert", properties);
+		
+		Statistics statistics = _entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+		Set<String> regions = new TreeSet<>(Arrays.asList(statistics.getSecondLevelCacheRegionNames()));
+		regions.add(CONCERTS_QUERY_REGION);
+		regions.add(PERFORMERS_QUERY_REGION);
+		for (String region : regions) {
+			String name = "cache." + (region.startsWith(DOMAIN_PACKAGE) ? region.substring(DOMAIN_PACKAGE.length()) : region);
+			metrics.gauge(name + ".hits", () -> regionStatistics(statistics, region).getHitCount());
+			metrics.gauge(name + ".misses", () -> regionStatistics(statistics, region).getMissCount());
+			metrics.gauge(name + ".hitRatio", () -> hitRatio(regionStatistics(statistics, region)));
+			metrics.gauge(name + ".entries", () -> regionStatistics(statistics, region).getElementCountInMemory());
+		}
 	}
 	
 	public EntityManager createEntityManager() {
 		return _entityManagerFactory.createEntityManager();
 	}
 	
+	/**
+	 * Drops an entity from the second-level cache, with every cached
+	 * collection and the lists in a query region, after another node of the
+	 * cluster has written it. Hibernate only does this for writes made through
+	 * this node.
+	 */
+	public void evict(Class<?> entity, String queryRegion) {
+		org.hibernate.Cache cache = _entityManagerFactory.unwrap(SessionFactory.class).getCache();
+		cache.evictEntityRegion(entity);
+		cache.evictCollectionRegions();
+		cache.evictQueryRegion(queryRegion);
+	}
+	
 	public static PersistenceManager instance() {
-		if(_instance == null) {
-			_instance = new PersistenceManager();
-		}
 		return _instance;
 	}
+	
+	private static SecondLevelCacheStatistics regionStatistics(Statistics statistics, String region) {
+		return statistics.getSecondLevelCacheStatistics(region);
+	}
+	
+	private static double hitRatio(SecondLevelCacheStatistics region) {
+		long lookups = region.getHitCount() + region.getMissCount();
+		return lookups == 0 ? 0 : region.getHitCount() / (double) lookups;
+	}
 
 }
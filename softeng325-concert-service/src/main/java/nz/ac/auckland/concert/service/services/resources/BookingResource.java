@@ -1,37 +1,68 @@
 package nz.ac.auckland.concert.service.services.resources;
 
 import nz.ac.auckland.concert.common.Config;
+import nz.ac.auckland.concert.common.dto.AdmissionTicketDTO;
 import nz.ac.auckland.concert.common.dto.BookingDTO;
 import nz.ac.auckland.concert.common.dto.ReservationDTO;
 import nz.ac.auckland.concert.common.dto.ReservationRequestDTO;
+import nz.ac.auckland.concert.common.dto.ReservationResultDTO;
 import nz.ac.auckland.concert.common.dto.SeatDTO;
 import nz.ac.auckland.concert.common.message.Messages;
-import nz.ac.auckland.concert.common.types.SeatNumber;
-import nz.ac.auckland.concert.common.types.SeatRow;
-import nz.ac.auckland.concert.common.types.SeatStatus;
 import nz.ac.auckland.concert.service.domain.Concert;
 import nz.ac.auckland.concert.service.domain.Reservation;
-import nz.ac.auckland.concert.service.domain.Seat;
 import nz.ac.auckland.concert.service.domain.User;
+import nz.ac.auckland.concert.service.inventory.HoldExpiryWheel;
+import nz.ac.auckland.concert.service.ServiceConfig;
+import nz.ac.auckland.concert.service.admission.Admission;
+import nz.ac.auckland.concert.service.admission.AdmissionControl;
+import nz.ac.auckland.concert.service.auth.AuthFilter;
+import nz.ac.auckland.concert.service.cluster.ClusterMembership;
+import nz.ac.auckland.concert.service.cluster.ShardForwarder;
+import nz.ac.auckland.concert.service.inventory.PerformanceKey;
+import nz.ac.auckland.concert.service.inventory.PerformanceLocks;
+import nz.ac.auckland.concert.service.inventory.PerformanceSeats;
+import nz.ac.auckland.concert.service.inventory.SeatAvailabilityIndex;
+import nz.ac.auckland.concert.service.inventory.SeatLedger;
+import nz.ac.auckland.concert.service.inventory.SeatProvisioner;
 import nz.ac.auckland.concert.service.mappers.ReservationMapper;
-import nz.ac.auckland.concert.service.mappers.SeatMapper;
+import nz.ac.auckland.concert.service.metrics.MetricsRegistry;
+import nz.ac.auckland.concert.service.metrics.Timer;
+import nz.ac.auckland.concert.service.services.IdempotencyStore;
 import nz.ac.auckland.concert.service.services.PersistenceManager;
-import nz.ac.auckland.concert.service.util.TheatreUtility;
-import nz.ac.auckland.concert.utility.SeatUtility;
-import nz.ac.auckland.concert.utility.TheatreLayout;
+import nz.ac.auckland.concert.service.util.RetryExecutor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.persistence.EntityManager;
-import javax.persistence.LockModeType;
-import javax.persistence.OptimisticLockException;
+import javax.persistence.PersistenceException;
 import javax.ws.rs.*;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.*;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Principal;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 @Path("/bookings")
@@ -42,18 +73,57 @@ public class BookingResource {
             .entity(Messages.RESERVATION_REQUEST_WITH_MISSING_FIELDS)
             .build();
 
+    // Longest time a poll for admission is held open, which must be well under ADMISSION_ABANDON_MILLIS
+    private static final int MAX_ADMISSION_WAIT_SECONDS = 20;
+
     private PersistenceManager _persistenceManager;
 
+    private SeatAvailabilityIndex _seatIndex;
+
+    private SeatProvisioner _seatProvisioner;
+
+    private HoldExpiryWheel _expiryWheel;
+
+    private SeatLedger _seatLedger;
+
+    private PerformanceLocks _performanceLocks;
+
+    private MetricsRegistry _metrics;
+
+    private AdmissionControl _admissionControl;
+
+    private IdempotencyStore _idempotencyStore;
+
+    private ClusterMembership _cluster;
+
+    private ShardForwarder _forwarder;
+
+    private RetryExecutor _provisionRetry;
+
     private Logger _logger = LoggerFactory
             .getLogger(BookingResource.class);
 
     public BookingResource() {
         _persistenceManager = PersistenceManager.instance();
+        _seatIndex = SeatAvailabilityIndex.instance();
+        _seatProvisioner = SeatProvisioner.instance();
+        _expiryWheel = HoldExpiryWheel.instance();
+        _seatLedger = SeatLedger.instance();
+        _performanceLocks = PerformanceLocks.instance();
+        _metrics = MetricsRegistry.instance();
+        _admissionControl = AdmissionControl.instance();
+        _idempotencyStore = IdempotencyStore.instance();
+        _cluster = ClusterMembership.instance();
+        _forwarder = ShardForwarder.instance();
+        _provisionRetry = new RetryExecutor("provision",
+                e -> e instanceof IllegalStateException || e instanceof PersistenceException);
     }
 
     @GET
-    @Produces(MediaType.APPLICATION_XML)
-    public Response getBookings(@CookieParam("AuthToken") Cookie authToken) {
+    @Produces({MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON, Config.APPLICATION_SMILE})
+    public Response getBookings(@CookieParam("AuthToken") Cookie authToken,
+                                @Context SecurityContext securityContext,
+                                @Context Request request) {
         EntityManager em = _persistenceManager.createEntityManager();
 
         try {
@@ -67,9 +137,8 @@ public class BookingResource {
                         .build();
             }
 
-            // Check there is a user with auth token
-            User user = em.createQuery("SELECT u from User u WHERE u.authToken = :token", User.class)
-                    .setParameter("token", authToken.getValue()).getSingleResult();
+            // Check there is a user with auth token. Only their username is needed, so they aren't loaded
+            Principal user = securityContext.getUserPrincipal();
 
             if (user == null) {
                 _logger.debug("No user corresponding to auth token");
@@ -79,24 +148,40 @@ public class BookingResource {
                         .build();
             }
 
+            // Make sure the tables include this user's latest bookings, but not everyone else's
+            _seatLedger.awaitProjected(user.getName());
+
             List<Reservation> reservations = em
-                    .createQuery("SELECT r FROM Reservation r WHERE r.user.username = :username", Reservation.class)
-                    .setParameter("username", user.getUsername())
+                    .createQuery("SELECT r FROM Reservation r WHERE r.user.username = :username " +
+                            "AND r.confirmed = true", Reservation.class)
+                    .setParameter("username", user.getName())
                     .getResultList();
 
-            Set<BookingDTO> bookingDTOS = reservations.stream().filter(Reservation::getConfirmed)
+            CacheControl cacheControl = new CacheControl();
+            cacheControl.setMaxAge(Config.CACHE_EXPIRY_SECONDS);
+            cacheControl.setPrivate(true);
+
+            // Confirmed reservations never change, so the user's bookings are unchanged
+            // for as long as the same reservations are confirmed
+            EntityTag tag = bookingsTag(user.getName(), reservations);
+            Response.ResponseBuilder notModified = request.evaluatePreconditions(tag);
+            if (notModified != null) {
+                em.getTransaction().commit();
+                _metrics.counter("bookings.notModified").increment();
+                return notModified.cacheControl(cacheControl).build();
+            }
+
+            Set<BookingDTO> bookingDTOS = reservations.stream()
                     .map(ReservationMapper::reservationDomainToBookingDTO).collect(Collectors.toSet());
 
             GenericEntity<Set<BookingDTO>> genericEntity = new GenericEntity<Set<BookingDTO>>(bookingDTOS) {};
 
             em.getTransaction().commit();
 
-            CacheControl cacheControl = new CacheControl();
-            cacheControl.setMaxAge(Config.CACHE_EXPIRY_SECONDS);
-            cacheControl.setPrivate(true);
-
+            _metrics.counter("bookings.served").increment();
             return Response
                     .ok(genericEntity)
+                    .tag(tag)
                     .cacheControl(cacheControl)
                     .build();
         } catch (Exception e) {
@@ -108,28 +193,97 @@ public class BookingResource {
 
     @POST
     @Path("/reserve")
-    @Consumes(MediaType.APPLICATION_XML)
+    @Consumes({MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON, Config.APPLICATION_SMILE})
     public Response requestReservation(ReservationRequestDTO reservationRequestDTO,
-                                       @CookieParam("AuthToken") Cookie authToken) {
-        EntityManager em = _persistenceManager.createEntityManager();
+                                       @CookieParam("AuthToken") Cookie authToken,
+                                       @HeaderParam(Config.ADMISSION_TICKET_HEADER) String admissionTicket,
+                                       @HeaderParam(Config.IDEMPOTENCY_KEY_HEADER) String idempotencyKey,
+                                       @HeaderParam(HttpHeaders.ACCEPT) String accept,
+                                       @HeaderParam(ShardForwarder.FORWARDED_HEADER) String forwarded,
+                                       @Context UriInfo uriInfo,
+                                       @Context SecurityContext securityContext) {
+        // The performance's owner queues the request, and remembers its idempotency key
+        URI owner = _cluster.route(reservationRequestDTO.getConcertId(), reservationRequestDTO.getDate(),
+                uriInfo.getBaseUri(), forwarded != null);
+        if (owner != null) {
+            Map<String, String> headers = new HashMap<>();
+            headers.put(Config.ADMISSION_TICKET_HEADER, admissionTicket);
+            headers.put(Config.IDEMPOTENCY_KEY_HEADER, idempotencyKey);
+            headers.put(HttpHeaders.ACCEPT, accept);
+            return _forwarder.forward(owner, "bookings/reserve", HttpMethod.POST,
+                    Entity.entity(reservationRequestDTO, MediaType.APPLICATION_XML), authToken, headers);
+        }
 
-        try {
-            em.getTransaction().begin();
-            // Check auth token is not null
-            if (authToken == null) {
-                _logger.debug("No auth token");
+        return _idempotencyStore.execute(idempotencyScope("reserve", securityContext), idempotencyKey, reservationRequestDTO,
+                () -> this.reserve(reservationRequestDTO, authToken, securityContext, admissionTicket));
+    }
+
+    private Response reserve(ReservationRequestDTO reservationRequestDTO, Cookie authToken,
+                             SecurityContext securityContext, String admissionTicket) {
+        // Check auth token is not null
+        if (authToken == null) {
+            _logger.debug("No auth token");
+            return Response
+                    .status(Response.Status.UNAUTHORIZED)
+                    .entity(Messages.UNAUTHENTICATED_REQUEST)
+                    .build();
+        }
+
+        // Check there is a user with auth token, before the request can take a place in a queue
+        Principal principal = securityContext.getUserPrincipal();
+
+        if (principal == null) {
+            _logger.debug("No user corresponding to auth token");
+            return Response
+                    .status(Response.Status.UNAUTHORIZED)
+                    .entity(Messages.BAD_AUTHENTICATON_TOKEN)
+                    .build();
+        }
+
+        // Turn away requests for a sold out price band before they queue or use the database
+        if (this.isSoldOut(reservationRequestDTO)) {
+            _logger.debug("Price band sold out");
+            _metrics.counter("reserve.soldOut").increment();
+            return Response
+                    .status(Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE)
+                    .entity(Messages.INSUFFICIENT_SEATS_AVAILABLE_FOR_RESERVATION)
+                    .build();
+        }
+
+        // Only admitted requests go on to use the database, the rest queue for their concert
+        Admission admission = null;
+        if (reservationRequestDTO.getConcertId() != null) {
+            // Only concerts that exist get a queue
+            if (!this.concertExists(reservationRequestDTO.getConcertId())) {
+                _logger.debug("No concert " + reservationRequestDTO.getConcertId());
                 return Response
-                        .status(Response.Status.UNAUTHORIZED)
-                        .entity(Messages.UNAUTHENTICATED_REQUEST)
+                        .status(Response.Status.BAD_REQUEST)
+                        .entity(Messages.CONCERT_NOT_SCHEDULED_ON_RESERVATION_DATE)
+                        .build();
+            }
+            admission = _admissionControl.admit(reservationRequestDTO.getConcertId(), principal.getName(),
+                    admissionTicket);
+            if (!admission.isAdmitted()) {
+                _logger.debug("Queued reservation request: " + admission.getTicket());
+                return Response
+                        .status(Response.Status.SERVICE_UNAVAILABLE)
+                        .entity(admission.getTicket())
+                        .header(HttpHeaders.RETRY_AFTER, 1)
+                        .location(URI.create("/bookings/admission/" + admission.getTicket().getId()))
                         .build();
             }
+        }
+
+        EntityManager em = _persistenceManager.createEntityManager();
+
+        try {
+            em.getTransaction().begin();
 
             // Get corresponding concert
             Concert concert = em.find(Concert.class, reservationRequestDTO.getConcertId());
 
             // Check there is a user with auth token
-            User user = em.createQuery("SELECT u from User u WHERE u.authToken = :token", User.class)
-                    .setParameter("token", authToken.getValue()).getSingleResult();
+            User user = AuthFilter.userOf(em, securityContext);
 
             if (user == null) {
                 _logger.debug("No user corresponding to auth token");
@@ -170,7 +324,10 @@ public class BookingResource {
 
             this.initSeats(concert, reservationRequestDTO);
 
-            ReservationDTO reservationDTO = this.reserveSeatsForRequest(concert, reservationRequestDTO, user);
+            PerformanceSeats performanceSeats = _seatIndex.seatsFor(concert.getId(), reservationRequestDTO.getDate());
+            ReservationDTO reservationDTO = this.withPerformanceLock(concert.getId(), reservationRequestDTO.getDate(),
+                    "reserve", () -> this.reserveSeats("reserve", performanceSeats, concert,
+                            Collections.singletonList(reservationRequestDTO), user).get(0));
 
             if (reservationDTO == null) {
                 return Response
@@ -185,14 +342,316 @@ public class BookingResource {
             return Response.serverError().entity(Messages.SERVICE_COMMUNICATION_ERROR).build();
         } finally {
             em.close();
+            if (admission != null) {
+                admission.leave();
+            }
         }
     }
 
+    /**
+     * Reserves seats for many requests in one call. Requests are grouped by
+     * performance, and the seats of each group are held in a single
+     * transaction. The response lists one ReservationResultDTO per request, in
+     * the order of the requests. Requests for performances owned by other
+     * nodes of the cluster are sent on to them as smaller batches.
+     */
+    @POST
+    @Path("/reserve/batch")
+    @Consumes({MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON, Config.APPLICATION_SMILE})
+    @Produces({MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON, Config.APPLICATION_SMILE})
+    public Response requestReservations(List<ReservationRequestDTO> reservationRequestDTOs,
+                                        @CookieParam("AuthToken") Cookie authToken,
+                                        @HeaderParam(ShardForwarder.FORWARDED_HEADER) String forwarded,
+                                        @Context UriInfo uriInfo,
+                                        @Context SecurityContext securityContext) {
+        // Split the batch between the owners of its performances
+        Map<URI, List<Integer>> shards = new LinkedHashMap<>();
+        List<Integer> local = new ArrayList<>();
+        for (int i = 0; i < reservationRequestDTOs.size(); i++) {
+            ReservationRequestDTO request = reservationRequestDTOs.get(i);
+            URI owner = _cluster.route(request.getConcertId(), request.getDate(), uriInfo.getBaseUri(),
+                    forwarded != null);
+            if (owner == null) {
+                local.add(i);
+            } else {
+                shards.computeIfAbsent(owner, node -> new ArrayList<>()).add(i);
+            }
+        }
+        if (shards.isEmpty()) {
+            return this.reserveBatch(reservationRequestDTOs, authToken, securityContext);
+        }
+
+        ReservationResultDTO[] results = new ReservationResultDTO[reservationRequestDTOs.size()];
+        if (!local.isEmpty()) {
+            Response response = this.reserveBatch(subList(reservationRequestDTOs, local), authToken, securityContext);
+            if (response.getStatus() != Response.Status.OK.getStatusCode()) {
+                return response;
+            }
+            // The response holds the list itself, unwrapped from its GenericEntity
+            @SuppressWarnings("unchecked")
+            List<ReservationResultDTO> localResults = (List<ReservationResultDTO>) response.getEntity();
+            for (int i = 0; i < local.size(); i++) {
+                results[local.get(i)] = localResults.get(i);
+            }
+        }
+
+        for (Map.Entry<URI, List<Integer>> shard : shards.entrySet()) {
+            List<ReservationResultDTO> shardResults;
+            try {
+                Response response = _forwarder.send(shard.getKey(), "bookings/reserve/batch", HttpMethod.POST,
+                        Entity.entity(new GenericEntity<List<ReservationRequestDTO>>(
+                                subList(reservationRequestDTOs, shard.getValue())) {}, MediaType.APPLICATION_XML),
+                        authToken, Collections.emptyMap());
+                try {
+                    if (response.getStatus() != Response.Status.OK.getStatusCode()) {
+                        return Response.status(response.getStatus())
+                                .entity(response.readEntity(String.class))
+                                .build();
+                    }
+                    shardResults = response.readEntity(new GenericType<List<ReservationResultDTO>>() {});
+                } finally {
+                    response.close();
+                }
+            } catch (ProcessingException e) {
+                _logger.debug("Failed to forward a batch to " + shard.getKey() + ": " + e.getMessage());
+                shardResults = new ArrayList<>();
+                for (int i = 0; i < shard.getValue().size(); i++) {
+                    shardResults.add(new ReservationResultDTO(Messages.SERVICE_COMMUNICATION_ERROR));
+                }
+            }
+            for (int i = 0; i < shard.getValue().size(); i++) {
+                results[shard.getValue().get(i)] = shardResults.get(i);
+            }
+        }
+
+        GenericEntity<List<ReservationResultDTO>> genericEntity =
+                new GenericEntity<List<ReservationResultDTO>>(Arrays.asList(results)) {};
+
+        return Response
+                .ok(genericEntity)
+                .build();
+    }
+
+    private Response reserveBatch(List<ReservationRequestDTO> reservationRequestDTOs, Cookie authToken,
+                                  SecurityContext securityContext) {
+        // Check auth token is not null
+        if (authToken == null) {
+            _logger.debug("No auth token");
+            return Response
+                    .status(Response.Status.UNAUTHORIZED)
+                    .entity(Messages.UNAUTHENTICATED_REQUEST)
+                    .build();
+        }
+
+        EntityManager em = _persistenceManager.createEntityManager();
+        ReservationResultDTO[] results = new ReservationResultDTO[reservationRequestDTOs.size()];
+        Map<PerformanceKey, List<Integer>> groups = new LinkedHashMap<>();
+        Map<Long, Concert> concerts;
+        User user;
+
+        try {
+            em.getTransaction().begin();
+
+            // Check there is a user with auth token
+            user = AuthFilter.userOf(em, securityContext);
+
+            if (user == null) {
+                _logger.debug("No user corresponding to auth token");
+                return Response
+                        .status(Response.Status.UNAUTHORIZED)
+                        .entity(Messages.BAD_AUTHENTICATON_TOKEN)
+                        .build();
+            }
+
+            // Fetch every concert named in the batch at once
+            Set<Long> concertIds = reservationRequestDTOs.stream().map(ReservationRequestDTO::getConcertId)
+                    .filter(Objects::nonNull).collect(Collectors.toSet());
+            concerts = concertIds.isEmpty() ? new HashMap<>() : em
+                    .createQuery("SELECT c FROM Concert c LEFT JOIN FETCH c.dates WHERE c.id IN :ids", Concert.class)
+                    .setParameter("ids", concertIds)
+                    .getResultList()
+                    .stream().collect(Collectors.toMap(Concert::getId, c -> c, (a, b) -> a));
+
+            em.getTransaction().commit();
+        } catch (Exception e) {
+            return Response.serverError().entity(Messages.SERVICE_COMMUNICATION_ERROR).build();
+        } finally {
+            em.close();
+        }
+
+        // Check each request, grouping the valid ones by performance
+        for (int i = 0; i < results.length; i++) {
+            ReservationRequestDTO request = reservationRequestDTOs.get(i);
+            if (request.getNumberOfSeats() == 0 || request.getConcertId() == null
+                    || request.getDate() == null || request.getSeatType() == null) {
+                results[i] = new ReservationResultDTO(Messages.RESERVATION_REQUEST_WITH_MISSING_FIELDS);
+            } else if (!concerts.containsKey(request.getConcertId())
+                    || !concerts.get(request.getConcertId()).getDates().contains(request.getDate())) {
+                results[i] = new ReservationResultDTO(Messages.CONCERT_NOT_SCHEDULED_ON_RESERVATION_DATE);
+            } else if (this.isSoldOut(request)) {
+                _metrics.counter("reserve.soldOut").increment();
+                results[i] = new ReservationResultDTO(Messages.INSUFFICIENT_SEATS_AVAILABLE_FOR_RESERVATION);
+            } else {
+                groups.computeIfAbsent(new PerformanceKey(request.getConcertId(), request.getDate()),
+                        key -> new ArrayList<>()).add(i);
+            }
+        }
+
+        for (Map.Entry<PerformanceKey, List<Integer>> group : groups.entrySet()) {
+            Concert concert = concerts.get(group.getKey().getConcertId());
+            List<ReservationRequestDTO> requests = group.getValue().stream()
+                    .map(reservationRequestDTOs::get).collect(Collectors.toList());
+            List<ReservationResultDTO> groupResults = this.reserveGroup(concert, requests, user);
+
+            for (int i = 0; i < requests.size(); i++) {
+                results[group.getValue().get(i)] = groupResults.get(i);
+            }
+        }
+
+        GenericEntity<List<ReservationResultDTO>> genericEntity =
+                new GenericEntity<List<ReservationResultDTO>>(Arrays.asList(results)) {};
+
+        return Response
+                .ok(genericEntity)
+                .build();
+    }
+
+    /**
+     * @return whether a concert exists. Concerts are held in the second-level
+     * cache, so this seldom uses the database.
+     */
+    private boolean concertExists(long concertId) {
+        EntityManager em = _persistenceManager.createEntityManager();
+        try {
+            return em.find(Concert.class, concertId) != null;
+        } finally {
+            em.close();
+        }
+    }
+
+    /**
+     * @return whether a request's price band is known to have too few free
+     * seats left, going by the availability counts of the seat index.
+     */
+    private boolean isSoldOut(ReservationRequestDTO request) {
+        if (request.getNumberOfSeats() <= 0 || request.getConcertId() == null
+                || request.getDate() == null || request.getSeatType() == null) {
+            return false;
+        }
+        PerformanceSeats seats = _seatIndex.find(request.getConcertId(), request.getDate());
+        return seats != null && seats.availableSeats(request.getSeatType()) < request.getNumberOfSeats();
+    }
+
+    private static <T> List<T> subList(List<T> list, List<Integer> indices) {
+        return indices.stream().map(list::get).collect(Collectors.toList());
+    }
+
+    /**
+     * Reserves seats for requests that are all for the same performance, if
+     * its concert admits them.
+     *
+     * @return the result of each request, in the order of the requests.
+     */
+    private List<ReservationResultDTO> reserveGroup(Concert concert, List<ReservationRequestDTO> requests, User user) {
+        List<ReservationResultDTO> results = new ArrayList<>();
+        Admission admission = _admissionControl.tryAdmit(concert.getId());
+
+        try {
+            if (!admission.isAdmitted()) {
+                _logger.debug("Concert " + concert.getId() + " is too busy for a batch");
+                requests.forEach(request -> results.add(
+                        new ReservationResultDTO(Messages.CONCERT_BUSY_FOR_RESERVATION)));
+                return results;
+            }
+
+            LocalDateTime date = requests.get(0).getDate();
+            this.initSeats(concert, requests.get(0));
+
+            List<ReservationDTO> reservations = this.withPerformanceLock(concert.getId(), date, "reserveBatch",
+                    () -> this.reserveSeats("reserveBatch", _seatIndex.seatsFor(concert.getId(), date), concert,
+                            requests, user));
+
+            for (ReservationDTO reservation : reservations) {
+                results.add(reservation == null
+                        ? new ReservationResultDTO(Messages.INSUFFICIENT_SEATS_AVAILABLE_FOR_RESERVATION)
+                        : new ReservationResultDTO(reservation));
+            }
+        } catch (Exception e) {
+            _logger.debug("Failed to reserve a batch for concert " + concert.getId() + ": " + e.getMessage());
+            results.clear();
+            requests.forEach(request -> results.add(new ReservationResultDTO(Messages.SERVICE_COMMUNICATION_ERROR)));
+        } finally {
+            admission.leave();
+        }
+        return results;
+    }
+
+    /**
+     * Reports the state of an admission ticket. With a wait parameter, the
+     * request is held for up to that many seconds, or until the ticket is
+     * admitted.
+     */
+    @GET
+    @Path("/admission/{ticket}")
+    @Produces({MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON, Config.APPLICATION_SMILE})
+    public void getAdmission(@PathParam("ticket") String ticketId,
+                             @QueryParam("wait") @DefaultValue("0") int waitSeconds,
+                             @Suspended AsyncResponse response) {
+        CompletableFuture<Void> admitted = _admissionControl.whenAdmitted(ticketId);
+
+        if (admitted == null || admitted.isDone() || waitSeconds <= 0) {
+            response.resume(this.admissionStatus(ticketId));
+            return;
+        }
+
+        response.setTimeout(Math.min(waitSeconds, MAX_ADMISSION_WAIT_SECONDS), TimeUnit.SECONDS);
+        response.setTimeoutHandler(timedOut -> timedOut.resume(this.admissionStatus(ticketId)));
+        // Resume off the thread that admitted the ticket, which holds its queue
+        admitted.thenRunAsync(() -> response.resume(this.admissionStatus(ticketId)));
+    }
+
+    private Response admissionStatus(String ticketId) {
+        AdmissionTicketDTO ticket = _admissionControl.status(ticketId);
+        if (ticket == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+
+        CacheControl cacheControl = new CacheControl();
+        cacheControl.setNoCache(true);
+
+        return Response
+                .ok(ticket)
+                .cacheControl(cacheControl)
+                .build();
+    }
+
     @POST
     @Path("/book")
-    @Consumes(MediaType.APPLICATION_XML)
+    @Consumes({MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON, Config.APPLICATION_SMILE})
     public Response makeReservation(ReservationDTO reservationDTO,
-                                    @CookieParam("AuthToken") Cookie authToken) {
+                                    @CookieParam("AuthToken") Cookie authToken,
+                                    @HeaderParam(Config.IDEMPOTENCY_KEY_HEADER) String idempotencyKey,
+                                    @HeaderParam(HttpHeaders.ACCEPT) String accept,
+                                    @HeaderParam(ShardForwarder.FORWARDED_HEADER) String forwarded,
+                                    @Context UriInfo uriInfo,
+                                    @Context SecurityContext securityContext) {
+        // The reservation's seats are held by the owner of its performance
+        ReservationRequestDTO request = reservationDTO.getReservationRequest();
+        URI owner = request == null ? null : _cluster.route(request.getConcertId(), request.getDate(),
+                uriInfo.getBaseUri(), forwarded != null);
+        if (owner != null) {
+            Map<String, String> headers = new HashMap<>();
+            headers.put(Config.IDEMPOTENCY_KEY_HEADER, idempotencyKey);
+            headers.put(HttpHeaders.ACCEPT, accept);
+            return _forwarder.forward(owner, "bookings/book", HttpMethod.POST,
+                    Entity.entity(reservationDTO, MediaType.APPLICATION_XML), authToken, headers);
+        }
+
+        return _idempotencyStore.execute(idempotencyScope("book", securityContext), idempotencyKey, reservationDTO,
+                () -> this.book(reservationDTO, authToken, securityContext));
+    }
+
+    private Response book(ReservationDTO reservationDTO, Cookie authToken, SecurityContext securityContext) {
         EntityManager em = _persistenceManager.createEntityManager();
 
         _logger.debug("Confirming booking for reservation " + reservationDTO.getId());
@@ -211,8 +670,7 @@ public class BookingResource {
             }
 
             // Check there is a user with auth token
-            User user = em.createQuery("SELECT u from User u WHERE u.authToken = :token", User.class)
-                    .setParameter("token", authToken.getValue()).getSingleResult();
+            User user = AuthFilter.userOf(em, securityContext);
 
             if (user == null) {
                 _logger.debug("No user corresponding to auth token");
@@ -229,8 +687,12 @@ public class BookingResource {
                         .entity(Messages.CREDIT_CARD_NOT_REGISTERED)
                         .build();
             }
+            // Gives the connection back, as booking may need one of its own to insert the reservation's row
+            em.getTransaction().commit();
 
-            List<Seat> seats = this.bookSeats(reservationDTO);
+            ReservationRequestDTO request = reservationDTO.getReservationRequest();
+            Set<SeatDTO> seats = request == null ? this.bookSeats(reservationDTO) : this.withPerformanceLock(
+                    request.getConcertId(), request.getDate(), "book", () -> this.bookSeats(reservationDTO));
 
             if (seats == null || seats.isEmpty()) {
                 return Response
@@ -249,200 +711,160 @@ public class BookingResource {
     }
 
     /**
-     * Book seats.
-     *
-     * @return List of booked seats. Return null if seats timed out.
+     * @return the scope in which an operation's idempotency keys are unique,
+     * which is the user making the request, so that a retry made after
+     * logging in again still matches. Null if the request is unauthenticated,
+     * in which case keys are ignored.
      */
-    private List<Seat> bookSeats(ReservationDTO reservationDTO) {
-        EntityManager em = _persistenceManager.createEntityManager();
-        List<Seat> seats = new ArrayList<>();
-
-        try {
-            em.getTransaction().begin();
+    private static String idempotencyScope(String operation, SecurityContext securityContext) {
+        Principal principal = securityContext.getUserPrincipal();
+        return principal == null ? null : operation + ":" + principal.getName();
+    }
 
-            Reservation reservation = em.find(Reservation.class, reservationDTO.getId());
+    /**
+     * Runs a reserve or book operation on a performance, timing it. In
+     * PESSIMISTIC mode the operation holds the performance's stripe of the
+     * PerformanceLocks table, so its seat claims never conflict with another
+     * operation on the same performance.
+     */
+    private <T> T withPerformanceLock(long concertId, LocalDateTime dateTime, String operation, Supplier<T> action) {
+        Timer timer = _metrics.timer(metricName(operation));
+        long start = timer.start();
 
-            List<Seat> reservedSeats = em.createQuery("SELECT s FROM Seat s WHERE s._reservation.id = :id", Seat.class)
-                    .setParameter("id", reservation.getId())
-                    .setLockMode(LockModeType.OPTIMISTIC)
-                    .getResultList();
-            _logger.debug("Booking " + reservation.getSeats().size() + " seats");
-            for (Seat seat : reservedSeats) {
-                if (!LocalDateTime.now().isAfter(seat.getTimeStamp()
-                        .plusSeconds(SeatUtility.RESERVATION_EXPIRY_TIME_IN_SECONDS))) {
-                    _logger.debug("Booking seat " + seat.getSeatNumber() + seat.getSeatRow());
-                    seat.setSeatStatus(SeatStatus.BOOKED);
-                    seats.add(seat);
-                } else {
-                    _logger.debug("Seat res timed out!");
-                    return null;
-                }
+        try {
+            if (ServiceConfig.BOOKING_LOCK_MODE != ServiceConfig.LockMode.PESSIMISTIC) {
+                return action.get();
             }
 
-            // Merge the booked seats
-            for (Seat s : seats) {
-                em.merge(s);
+            Lock lock = _performanceLocks.lockFor(concertId, dateTime);
+            lock.lock();
+            try {
+                return action.get();
+            } finally {
+                lock.unlock();
             }
-
-            // Merge confirmed reservation
-            reservation.setConfirmed(true);
-            em.merge(reservation);
-
-            em.getTransaction().commit();
-        } catch (OptimisticLockException e) {
-            em.close();
-            seats = this.bookSeats(reservationDTO);
         } finally {
-            em.close();
+            timer.stop(start);
         }
-        return seats;
     }
 
     /**
-     * Places reservations on some seats
-     *
-     * @return Null if not seats could be booked due to insufficient seats, Otherwise returns a reservationDTO object
-     *      representing the reservation just made.
+     * @return the name of a booking metric for the current locking mode, e.g.
+     * booking.optimistic.reserve
      */
-    private ReservationDTO reserveSeatsForRequest(Concert concert, ReservationRequestDTO reservationRequestDTO, User user) {
-        ReservationDTO reservationDTO;
-        EntityManager em = _persistenceManager.createEntityManager();
-
-        try {
-            em.getTransaction().begin();
-
-            // Get list of all not available seats
-            _logger.debug("Get unavailable seats");
-            List<Seat> unavailableSeats = em.createQuery("SELECT s FROM Seat s WHERE s.concert.id = :cid AND " +
-                    "s.dateTime=:date AND s.priceBand = :priceBand AND s.seatStatus = :status " +
-                    "OR s.seatStatus = :status2", Seat.class)
-                    .setParameter("cid", concert.getId())
-                    .setParameter("date", reservationRequestDTO.getDate())
-                    .setParameter("priceBand", reservationRequestDTO.getSeatType())
-                    .setParameter("status", SeatStatus.BOOKED)
-                    .setParameter("status2", SeatStatus.PENDING)
-                    .setLockMode(LockModeType.OPTIMISTIC)
-                    .getResultList();
-
-            _logger.debug(unavailableSeats.size() + " unavailable seats");
-
-            // Convert unavailable seats to DTO
-            Set<SeatDTO> unavailableSeatDTOList =
-                    unavailableSeats.stream().map(SeatMapper::toDTO).collect(Collectors.toSet());
+    private static String metricName(String metric) {
+        return "booking." + ServiceConfig.BOOKING_LOCK_MODE.name().toLowerCase() + "." + metric;
+    }
 
-            _logger.debug("Size of dto unavailable seats: " + unavailableSeatDTOList.size());
+    /**
+     * Books the seats of a reservation through the SeatLedger.
+     *
+     * @return Set of booked seats. Return null if seats timed out.
+     */
+    private Set<SeatDTO> bookSeats(ReservationDTO reservationDTO) {
+        Set<SeatDTO> seats = _seatLedger.book(reservationDTO.getId());
 
-            // Get available seats
-            Set<SeatDTO> availableSeats = TheatreUtility.findAvailableSeats(
-                    reservationRequestDTO.getNumberOfSeats(),
-                    reservationRequestDTO.getSeatType(),
-                    unavailableSeatDTOList);
+        if (seats == null) {
+            _logger.debug("Seat res timed out!");
+            return null;
+        }
+        _logger.debug("Booked " + seats.size() + " seats");
+        _expiryWheel.cancel(reservationDTO.getId());
+        return seats;
+    }
 
-            // Check if enough seats are available
-            if (availableSeats.isEmpty() || availableSeats.size() < reservationRequestDTO.getNumberOfSeats()) {
-                _logger.debug("Not enough seats available");
-                return null;
+    /**
+     * Places reservations for requests that are all for the same performance.
+     * Seats are claimed in the in-memory index first, so concurrent requests
+     * never pick the same seats, and the claims of all the requests are then
+     * held together by the SeatLedger. Claims that had to be redone because
+     * another request changed the same row are counted as the operation's
+     * aborts, e.g. booking.optimistic.reserve.aborts.
+     *
+     * @return the reservation made for each request, in the order of the
+     * requests, with null for a request that couldn't be given enough seats.
+     */
+    private List<ReservationDTO> reserveSeats(String operation, PerformanceSeats performanceSeats, Concert concert,
+                                              List<ReservationRequestDTO> requests, User user) {
+        LongAdder aborts = _metrics.counter(metricName(operation + ".aborts"));
+        List<Set<SeatDTO>> claims = new ArrayList<>();
+        List<Reservation> reservations = new ArrayList<>();
+        List<Set<SeatDTO>> heldSeats = new ArrayList<>();
+
+        for (ReservationRequestDTO request : requests) {
+            Set<SeatDTO> claim = performanceSeats.claimSeats(request.getNumberOfSeats(), request.getSeatType(),
+                    aborts);
+            claims.add(claim);
+
+            if (!claim.isEmpty()) {
+                reservations.add(new Reservation(
+                        user,
+                        concert,
+                        request.getSeatType(),
+                        new HashSet<>(),
+                        request.getDate()
+                ));
+                heldSeats.add(claim);
             }
-            // Set status to pending for required amount of seats
-            _logger.debug("Retrieving " + reservationRequestDTO.getNumberOfSeats() + " seats");
-            _logger.debug(availableSeats.size() + " available seats");
-            Set<Seat> pendingSeats = new HashSet<>();
-            for (SeatDTO s : availableSeats) {
-                _logger.debug("Adding pending seat with row " + s.getRow() + " and number " + s.getNumber());
-                Seat seatToReserve = em.createQuery("SELECT s FROM Seat s WHERE s.concert.id = :cid " +
-                        "AND s.dateTime = :date AND s.seatRow = :row AND s.seatNumber = :number", Seat.class)
-                        .setParameter("cid", concert.getId())
-                        .setParameter("date", reservationRequestDTO.getDate())
-                        .setParameter("row", s.getRow())
-                        .setParameter("number", s.getNumber())
-                        .getSingleResult();
+        }
 
-                seatToReserve.setTimeStamp(LocalDateTime.now());
-                seatToReserve.setSeatStatus(SeatStatus.PENDING);
+        List<ReservationDTO> reservationDTOs = new ArrayList<>();
+        if (reservations.isEmpty()) {
+            _logger.debug("Not enough seats available");
+            requests.forEach(request -> reservationDTOs.add(null));
+            return reservationDTOs;
+        }
 
-                pendingSeats.add(seatToReserve);
-                em.merge(seatToReserve);
+        LocalDateTime now = LocalDateTime.now();
+        boolean held = false;
+        try {
+            _seatLedger.hold(reservations, heldSeats, now);
+            held = true;
+        } finally {
+            if (!held) {
+                claims.forEach(performanceSeats::release);
             }
+        }
 
-            _logger.debug(pendingSeats.size() + " Pending seats");
-
-            Reservation reservation = new Reservation(
-                    user,
-                    concert,
-                    reservationRequestDTO.getSeatType(),
-                    pendingSeats,
-                    reservationRequestDTO.getDate()
-            );
-
-            _logger.debug(reservation.getSeats().size() + " Pending seats in res " + reservation.getId());
-
-            em.persist(reservation);
-
-            for (Seat seat : pendingSeats) {
-                seat.set_reservation(reservation);
-                em.persist(seat);
+        Iterator<Reservation> heldReservations = reservations.iterator();
+        for (int i = 0; i < requests.size(); i++) {
+            if (claims.get(i).isEmpty()) {
+                reservationDTOs.add(null);
+                continue;
             }
 
-            reservationDTO = ReservationMapper.toDTO(reservation, reservationRequestDTO);
-            em.getTransaction().commit();
-        } catch (OptimisticLockException e) {
-            // Failed comitting to db cause incorrect seat version
-            em.close();
-            reservationDTO = this.reserveSeatsForRequest(concert, reservationRequestDTO, user);
-        } finally {
-            em.close();
+            Reservation reservation = heldReservations.next();
+            _logger.debug("Reserved " + claims.get(i).size() + " seats for res " + reservation.getId());
+            _expiryWheel.schedule(reservation.getId(), now);
+            reservationDTOs.add(ReservationMapper.toDTO(reservation, requests.get(i), claims.get(i)));
         }
-
-        return reservationDTO;
+        return reservationDTOs;
     }
 
     /**
-     * Makes sure seats are initialised
+     * @return a weak entity tag for a user's bookings, a SHA-256 digest of
+     * their username and the sorted ids of their confirmed reservations.
      */
-    private void initSeats (Concert concert, ReservationRequestDTO reservationRequestDTO) {
-        EntityManager em = _persistenceManager.createEntityManager();
+    private static EntityTag bookingsTag(String username, List<Reservation> reservations) {
+        String ids = reservations.stream().mapToLong(Reservation::getId).sorted()
+                .mapToObj(Long::toString).collect(Collectors.joining(","));
         try {
-            em.getTransaction().begin();
-            List<Seat> seats = em.createQuery("SELECT s from Seat s WHERE s.concert.id = :cid " +
-                    "AND s.dateTime = :date", Seat.class)
-                    .setParameter("cid", concert.getId())
-                    .setParameter("date", reservationRequestDTO.getDate())
-                    .setLockMode(LockModeType.OPTIMISTIC)
-                    .getResultList();
-
-            // If no seats exist for concert create them
-            if (seats.isEmpty()) {
-                _logger.debug("Setting up seats");
-                for (SeatRow seatRow : SeatRow.values()) {
-                    for (int i = 1; i <= TheatreLayout.getNumberOfSeatsForRow(seatRow); i++) {
-                        Seat seat = new Seat(
-                                concert,
-                                reservationRequestDTO.getDate(),
-                                seatRow,
-                                new SeatNumber(i));
-                        em.persist(seat);
-                    }
-                }
-            } else {
-                _logger.debug("Freeing expired seats");
-                for (Seat s : seats) {
-                    if (s.getSeatStatus().equals(SeatStatus.PENDING)) {
-                        if (LocalDateTime.now().isAfter(s.getTimeStamp()
-                                .plusSeconds(SeatUtility.RESERVATION_EXPIRY_TIME_IN_SECONDS))) {
-                            _logger.debug("Freeing up seat: " + s.getSeatNumber() + s.getSeatRow());
-                            s.setSeatStatus(SeatStatus.FREE);
-                            em.merge(s);
-                        }
-                    }
-                }
-            }
-            em.getTransaction().commit();
-        } catch (OptimisticLockException e) {
-            // Failed comitting to db cause incorrect seat version
-            em.close();
-            this.initSeats(concert, reservationRequestDTO);
-        } finally {
-            em.close();
+            byte[] digest = MessageDigest.getInstance("SHA-256")
+                    .digest((username + ":" + ids).getBytes(StandardCharsets.UTF_8));
+            return new EntityTag(Base64.getUrlEncoder().withoutPadding().encodeToString(digest), true);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
         }
     }
+
+    /**
+     * Makes sure seats are initialised. Seats whose reservation has expired are
+     * freed in the background by the HoldExpiryWheel.
+     */
+    private void initSeats (Concert concert, ReservationRequestDTO reservationRequestDTO) {
+        _provisionRetry.execute(() -> {
+            _seatProvisioner.ensureProvisioned(concert.getId(), reservationRequestDTO.getDate());
+            return null;
+        });
+    }
 }
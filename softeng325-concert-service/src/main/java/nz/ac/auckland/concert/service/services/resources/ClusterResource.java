@@ -0,0 +1,245 @@
+package nz.ac.auckland.concert.service.services.resources;
+
+import nz.ac.auckland.concert.common.message.Messages;
+import nz.ac.auckland.concert.service.catalogue.CatalogueCache;
+import nz.ac.auckland.concert.service.cluster.ClusterMembership;
+import nz.ac.auckland.concert.service.cluster.ShardForwarder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.*;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriInfo;
+import java.net.URI;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Manages the nodes that seat inventory is sharded across. Nodes are listed
+ * as plain text, one base URI per line.
+ *
+ * A node is added with a POST of its base URI to /cluster/nodes, and removed
+ * with a DELETE of /cluster/nodes?node=<uri>, on any member. That member then
+ * PUTs the new membership to every other node, old and new, each of which
+ * has handed over the performances it no longer owns by the time it replies.
+ * Changes are only accepted with the cluster key in
+ * ShardForwarder.CLUSTER_KEY_HEADER, which nodes send each other and an
+ * administrator must send when adding or removing a node.
+ *
+ * Nodes also DELETE /cluster/catalogues/<catalogue> on each other when they
+ * write a concert or performer, so that every node's CatalogueCache drops it.
+ */
+@Path("/cluster")
+public class ClusterResource {
+
+    private ClusterMembership _cluster;
+
+    private ShardForwarder _forwarder;
+
+    private Logger _logger = LoggerFactory
+            .getLogger(ClusterResource.class);
+
+    public ClusterResource() {
+        _cluster = ClusterMembership.instance();
+        _forwarder = ShardForwarder.instance();
+    }
+
+    @GET
+    @Path("/nodes")
+    @Produces(MediaType.TEXT_PLAIN)
+    public Response getNodes() {
+        CacheControl cacheControl = new CacheControl();
+        cacheControl.setNoCache(true);
+
+        return Response
+                .ok(format(_cluster.nodes()))
+                .cacheControl(cacheControl)
+                .build();
+    }
+
+    @POST
+    @Path("/nodes")
+    @Consumes(MediaType.TEXT_PLAIN)
+    @Produces(MediaType.TEXT_PLAIN)
+    public Response joinNode(String node,
+                             @HeaderParam(ShardForwarder.CLUSTER_KEY_HEADER) String clusterKey,
+                             @Context UriInfo uriInfo) {
+        if (!_forwarder.isPeer(clusterKey)) {
+            return untrusted();
+        }
+
+        URI uri = parseNode(node);
+        if (uri == null) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+
+        Set<URI> previous = new LinkedHashSet<>(_cluster.nodes());
+        if (!_cluster.join(uri)) {
+            return this.getNodes();
+        }
+        return this.propagate(previous, uriInfo.getBaseUri());
+    }
+
+    @DELETE
+    @Path("/nodes")
+    @Produces(MediaType.TEXT_PLAIN)
+    public Response leaveNode(@QueryParam("node") String node,
+                              @HeaderParam(ShardForwarder.CLUSTER_KEY_HEADER) String clusterKey,
+                              @Context UriInfo uriInfo) {
+        if (!_forwarder.isPeer(clusterKey)) {
+            return untrusted();
+        }
+
+        URI uri = parseNode(node);
+        if (uri == null) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+
+        Set<URI> previous = new LinkedHashSet<>(_cluster.nodes());
+        if (!_cluster.leave(uri)) {
+            return this.getNodes();
+        }
+        return this.propagate(previous, uriInfo.getBaseUri());
+    }
+
+    /**
+     * Replaces the membership, as sent by the node that handled a join or
+     * leave.
+     */
+    @PUT
+    @Path("/nodes")
+    @Consumes(MediaType.TEXT_PLAIN)
+    @Produces(MediaType.TEXT_PLAIN)
+    public Response putNodes(String nodes, @HeaderParam(ShardForwarder.CLUSTER_KEY_HEADER) String clusterKey) {
+        if (!_forwarder.isPeer(clusterKey)) {
+            return untrusted();
+        }
+
+        List<URI> members = new ArrayList<>();
+        for (String node : nodes.split("\n")) {
+            if (!node.trim().isEmpty()) {
+                URI uri = parseNode(node);
+                if (uri == null) {
+                    return Response.status(Response.Status.BAD_REQUEST).build();
+                }
+                members.add(uri);
+            }
+        }
+
+        _cluster.setNodes(members);
+        return this.getNodes();
+    }
+
+    /**
+     * Reports the node that owns a performance.
+     */
+    @GET
+    @Path("/owner")
+    @Produces(MediaType.TEXT_PLAIN)
+    public Response getOwner(@QueryParam("concertId") long concertId, @QueryParam("date") String date) {
+        if (date == null) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+
+        LocalDateTime dateTime;
+        try {
+            dateTime = LocalDateTime.parse(date);
+        } catch (DateTimeParseException e) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+
+        URI owner = _cluster.ownerOf(concertId, dateTime);
+        if (owner == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        return Response.ok(owner.toString()).build();
+    }
+
+    /**
+     * Sends the current membership to every node that was or is a member,
+     * other than this one.
+     */
+    private Response propagate(Set<URI> previous, URI baseUri) {
+        Set<URI> nodes = new LinkedHashSet<>(previous);
+        nodes.addAll(_cluster.nodes());
+        nodes.remove(ClusterMembership.normalise(baseUri));
+
+        String membership = format(_cluster.nodes());
+        boolean failed = false;
+        for (URI node : nodes) {
+            try {
+                Response response = _forwarder.send(node, "cluster/nodes", HttpMethod.PUT,
+                        Entity.entity(membership, MediaType.TEXT_PLAIN), null, Collections.emptyMap());
+                failed |= response.getStatus() != Response.Status.OK.getStatusCode();
+                response.close();
+            } catch (ProcessingException e) {
+                _logger.debug("Failed to send cluster membership to " + node + ": " + e.getMessage());
+                failed = true;
+            }
+        }
+
+        if (failed) {
+            return Response.serverError().entity(Messages.SERVICE_COMMUNICATION_ERROR).build();
+        }
+        return this.getNodes();
+    }
+
+    /**
+     * Discards this node's copy of a catalogue, CONCERTS or PERFORMERS, after
+     * another node has written to it.
+     */
+    @DELETE
+    @Path("/catalogues/{catalogue}")
+    public Response invalidateCatalogue(@PathParam("catalogue") String catalogue,
+                                        @HeaderParam(ShardForwarder.CLUSTER_KEY_HEADER) String clusterKey) {
+        if (!_forwarder.isPeer(clusterKey)) {
+            return untrusted();
+        }
+
+        CatalogueCache.Catalogue changed;
+        try {
+            changed = CatalogueCache.Catalogue.valueOf(catalogue);
+        } catch (IllegalArgumentException e) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+
+        CatalogueCache.instance().invalidateFromPeer(changed);
+        return Response.noContent().build();
+    }
+
+    private static URI parseNode(String node) {
+        if (node == null) {
+            return null;
+        }
+
+        try {
+            URI uri = URI.create(node.trim());
+            return uri.isAbsolute() ? ClusterMembership.normalise(uri) : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private Response untrusted() {
+        _logger.debug("Refused cluster request without the cluster key");
+        return Response
+                .status(Response.Status.FORBIDDEN)
+                .entity(Messages.UNTRUSTED_CLUSTER_NODE)
+                .build();
+    }
+
+    private static String format(Set<URI> nodes) {
+        StringBuilder body = new StringBuilder();
+        nodes.forEach(node -> body.append(node).append('\n'));
+        return body.toString();
+    }
+}
@@ -1,73 +1,137 @@
 package nz.ac.auckland.concert.service.services.resources;
 
 import nz.ac.auckland.concert.common.Config;
+import nz.ac.auckland.concert.common.dto.AvailabilityDTO;
 import nz.ac.auckland.concert.common.dto.ConcertDTO;
 import nz.ac.auckland.concert.common.message.Messages;
+import nz.ac.auckland.concert.common.types.PriceBand;
+import nz.ac.auckland.concert.common.types.SeatStatus;
+import nz.ac.auckland.concert.service.catalogue.CatalogueCache;
+import nz.ac.auckland.concert.service.catalogue.CataloguePager;
+import nz.ac.auckland.concert.service.catalogue.SerializedCatalogue;
+import nz.ac.auckland.concert.service.cluster.ClusterMembership;
+import nz.ac.auckland.concert.service.cluster.ShardForwarder;
 import nz.ac.auckland.concert.service.domain.Concert;
+import nz.ac.auckland.concert.service.inventory.PerformanceSeats;
+import nz.ac.auckland.concert.service.inventory.SeatAvailabilityIndex;
 import nz.ac.auckland.concert.service.mappers.ConcertMapper;
+import nz.ac.auckland.concert.service.metrics.MetricsRegistry;
 import nz.ac.auckland.concert.service.services.PersistenceManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.persistence.EntityManager;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.HttpMethod;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
+import javax.ws.rs.ProcessingException;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.GenericEntity;
+import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriInfo;
+import javax.ws.rs.core.Variant;
+import javax.ws.rs.ext.Providers;
+import java.net.URI;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.TreeSet;
 
 @Path("/concerts")
 public class ConcertResource {
 
     private PersistenceManager _persistenceManager;
 
+    private SeatAvailabilityIndex _seatIndex;
+
+    private ClusterMembership _cluster;
+
+    private ShardForwarder _forwarder;
+
+    private MetricsRegistry _metrics;
+
+    private CatalogueCache _catalogue;
+
+    private CataloguePager _pager;
+
     private static Logger _logger = LoggerFactory
             .getLogger(ConcertResource.class);
 
     public ConcertResource() {
         _persistenceManager = PersistenceManager.instance();
+        _seatIndex = SeatAvailabilityIndex.instance();
+        _cluster = ClusterMembership.instance();
+        _forwarder = ShardForwarder.instance();
+        _metrics = MetricsRegistry.instance();
+        _catalogue = CatalogueCache.instance();
+        _pager = CataloguePager.instance();
     }
 
+    /**
+     * Serves the list of concerts from the CatalogueCache, in the media type
+     * negotiated with the client. A client that sends the entity tag of the
+     * current list is answered with a 304.
+     *
+     * With limit or after, a page of concerts is returned instead, and with
+     * stream=true the concerts are streamed from the database (see
+     * CataloguePager).
+     */
     @GET
-    @Produces(MediaType.APPLICATION_XML)
-    public Response getConcerts() {
-        EntityManager em = _persistenceManager.createEntityManager();
-
+    @Produces({MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON, Config.APPLICATION_SMILE})
+    public Response getConcerts(@HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch,
+                                @HeaderParam(HttpHeaders.ACCEPT_ENCODING) String acceptEncoding,
+                                @QueryParam("limit") Integer limit,
+                                @QueryParam("after") Long after,
+                                @QueryParam("stream") boolean stream,
+                                @Context UriInfo uriInfo,
+                                @Context Request request,
+                                @Context Providers providers) {
         try {
             _logger.debug("Retrieving all concerts");
 
-            em.getTransaction().begin();
-
             CacheControl cacheControl = new CacheControl();
             cacheControl.setMaxAge(Config.CACHE_EXPIRY_SECONDS);
             cacheControl.setPrivate(true);
 
-            List<Concert> concerts = em.createQuery("SELECT c FROM Concert c", Concert.class).getResultList();
-
-            em.getTransaction().commit();
+            Variant variant = request.selectVariant(CatalogueCache.VARIANTS);
+            if (variant == null) {
+                return Response.notAcceptable(CatalogueCache.VARIANTS).build();
+            }
 
-            List<ConcertDTO> concertDTOS = concerts.stream().map(ConcertMapper::toDTO).collect(Collectors.toList());
+            if (stream) {
+                return _pager.stream(CatalogueCache.Catalogue.CONCERTS, variant.getMediaType(), limit, after,
+                        cacheControl);
+            } else if (limit != null || after != null) {
+                return _pager.page(CatalogueCache.Catalogue.CONCERTS, limit, after, uriInfo, cacheControl);
+            }
 
-            GenericEntity<List<ConcertDTO>> entity = new GenericEntity<List<ConcertDTO>>(concertDTOS) {
-            };
+            SerializedCatalogue concerts = _catalogue.get(CatalogueCache.Catalogue.CONCERTS,
+                    variant.getMediaType(), providers);
 
             _logger.debug("Successfully retrieved all concerts");
-            return Response.ok(entity).cacheControl(cacheControl).build();
+            return concerts.toResponse(ifNoneMatch, acceptEncoding, cacheControl);
         } catch (Exception e) {
             return Response.serverError().entity(Messages.SERVICE_COMMUNICATION_ERROR).build();
-        } finally {
-            em.close();
         }
     }
 
     @GET
     @Path("{id}")
-    @Produces(MediaType.APPLICATION_XML)
+    @Produces({MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON, Config.APPLICATION_SMILE})
     public Response getConcert(@PathParam("id") long id) {
         EntityManager em = _persistenceManager.createEntityManager();
 
@@ -96,4 +160,225 @@ public class ConcertResource {
         }
     }
 
+    /**
+     * Returns the availability of every seat for a performance, as a bitset
+     * of free seats per row. The map is read from the SeatAvailabilityIndex
+     * and is tagged with its version, so a poll whose If-None-Match matches
+     * the current version is answered with 304 without building the map or
+     * touching the database.
+     *
+     * @param dateTime the date/time of the performance, in ISO-8601 format.
+     */
+    @GET
+    @Path("{id}/performances/{dateTime}/seats")
+    @Produces({MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON, Config.APPLICATION_SMILE})
+    public Response getSeatMap(@PathParam("id") long id,
+                               @PathParam("dateTime") String dateTime,
+                               @HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch,
+                               @HeaderParam(HttpHeaders.ACCEPT) String accept,
+                               @HeaderParam(ShardForwarder.FORWARDED_HEADER) String forwarded,
+                               @Context Request request,
+                               @Context UriInfo uriInfo) {
+        LocalDateTime date;
+        try {
+            date = LocalDateTime.parse(dateTime);
+        } catch (DateTimeParseException e) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+
+        URI owner = _cluster.route(id, date, uriInfo.getBaseUri(), forwarded != null);
+        if (owner != null) {
+            Map<String, String> headers = new HashMap<>();
+            headers.put(HttpHeaders.IF_NONE_MATCH, ifNoneMatch);
+            headers.put(HttpHeaders.ACCEPT, accept);
+            return _forwarder.forward(owner, "concerts/" + id + "/performances/" + dateTime + "/seats",
+                    HttpMethod.GET, null, null, headers);
+        }
+
+        PerformanceSeats seats = _seatIndex.find(id, date);
+        if (seats == null) {
+            // Nothing has been reserved for the performance yet, if it exists at all
+            Response invalid = this.checkPerformance(id, date);
+            if (invalid != null) {
+                return invalid;
+            }
+            seats = _seatIndex.seatsFor(id, date);
+        }
+
+        CacheControl cacheControl = new CacheControl();
+        cacheControl.setNoCache(true);
+
+        long version = seats.getVersion();
+        EntityTag tag = new EntityTag(seats.getTag(version));
+        Response.ResponseBuilder notModified = request.evaluatePreconditions(tag);
+        if (notModified != null) {
+            _metrics.counter("seatMap.notModified").increment();
+            return notModified.cacheControl(cacheControl).build();
+        }
+
+        _metrics.counter("seatMap.served").increment();
+        return Response
+                .ok(seats.toSeatMap(id, date))
+                .tag(tag)
+                .cacheControl(cacheControl)
+                .build();
+    }
+
+    /**
+     * Returns the number of free, pending and booked seats in each price band
+     * of every performance of a concert, from the counts kept by the seat
+     * index. Performances owned by other nodes of the cluster are asked for
+     * their counts.
+     */
+    @GET
+    @Path("{id}/availability")
+    @Produces({MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON, Config.APPLICATION_SMILE})
+    public Response getAvailability(@PathParam("id") long id,
+                                    @HeaderParam(ShardForwarder.FORWARDED_HEADER) String forwarded,
+                                    @Context UriInfo uriInfo) {
+        EntityManager em = _persistenceManager.createEntityManager();
+        TreeSet<LocalDateTime> dates;
+
+        try {
+            em.getTransaction().begin();
+
+            Concert concert = em.find(Concert.class, id);
+            if (concert == null) {
+                _logger.debug("Could not find concert with id: " + id);
+                return Response.status(Response.Status.NOT_FOUND).build();
+            }
+            dates = new TreeSet<>(concert.getDates());
+
+            em.getTransaction().commit();
+        } catch (Exception e) {
+            return Response.serverError().entity(Messages.SERVICE_COMMUNICATION_ERROR).build();
+        } finally {
+            em.close();
+        }
+
+        List<AvailabilityDTO> availability = new ArrayList<>();
+        for (LocalDateTime date : dates) {
+            URI owner = _cluster.route(id, date, uriInfo.getBaseUri(), forwarded != null);
+            if (owner == null) {
+                availability.addAll(availabilityOf(id, date, _seatIndex.find(id, date)));
+                continue;
+            }
+
+            try {
+                Response response = _forwarder.send(owner, "concerts/" + id + "/performances/" + date + "/availability",
+                        HttpMethod.GET, null, null, Collections.emptyMap());
+                try {
+                    if (response.getStatus() != Response.Status.OK.getStatusCode()) {
+                        return Response.serverError().entity(Messages.SERVICE_COMMUNICATION_ERROR).build();
+                    }
+                    availability.addAll(response.readEntity(new GenericType<List<AvailabilityDTO>>() {}));
+                } finally {
+                    response.close();
+                }
+            } catch (ProcessingException e) {
+                _logger.debug("Failed to get availability from " + owner + ": " + e.getMessage());
+                return Response.serverError().entity(Messages.SERVICE_COMMUNICATION_ERROR).build();
+            }
+        }
+
+        return this.availabilityResponse(availability);
+    }
+
+    /**
+     * Returns the number of free, pending and booked seats in each price band
+     * of one performance.
+     *
+     * @param dateTime the date/time of the performance, in ISO-8601 format.
+     */
+    @GET
+    @Path("{id}/performances/{dateTime}/availability")
+    @Produces({MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON, Config.APPLICATION_SMILE})
+    public Response getPerformanceAvailability(@PathParam("id") long id,
+                                               @PathParam("dateTime") String dateTime,
+                                               @HeaderParam(HttpHeaders.ACCEPT) String accept,
+                                               @HeaderParam(ShardForwarder.FORWARDED_HEADER) String forwarded,
+                                               @Context UriInfo uriInfo) {
+        LocalDateTime date;
+        try {
+            date = LocalDateTime.parse(dateTime);
+        } catch (DateTimeParseException e) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+
+        URI owner = _cluster.route(id, date, uriInfo.getBaseUri(), forwarded != null);
+        if (owner != null) {
+            return _forwarder.forward(owner, "concerts/" + id + "/performances/" + dateTime + "/availability",
+                    HttpMethod.GET, null, null, Collections.singletonMap(HttpHeaders.ACCEPT, accept));
+        }
+
+        PerformanceSeats seats = _seatIndex.find(id, date);
+        if (seats == null) {
+            Response invalid = this.checkPerformance(id, date);
+            if (invalid != null) {
+                return invalid;
+            }
+        }
+        return this.availabilityResponse(availabilityOf(id, date, seats));
+    }
+
+    private Response availabilityResponse(List<AvailabilityDTO> availability) {
+        CacheControl cacheControl = new CacheControl();
+        cacheControl.setNoCache(true);
+
+        GenericEntity<List<AvailabilityDTO>> entity = new GenericEntity<List<AvailabilityDTO>>(availability) {
+        };
+        return Response.ok(entity).cacheControl(cacheControl).build();
+    }
+
+    /**
+     * @param seats the performance's seats, or null if nothing has been
+     *              reserved for it.
+     */
+    private static List<AvailabilityDTO> availabilityOf(long id, LocalDateTime date, PerformanceSeats seats) {
+        List<AvailabilityDTO> availability = new ArrayList<>();
+        for (PriceBand priceBand : PriceBand.values()) {
+            if (seats == null) {
+                availability.add(new AvailabilityDTO(id, date, priceBand, PerformanceSeats.capacityOf(priceBand), 0, 0));
+            } else {
+                availability.add(new AvailabilityDTO(id, date, priceBand,
+                        seats.countSeats(priceBand, SeatStatus.FREE),
+                        seats.countSeats(priceBand, SeatStatus.PENDING),
+                        seats.countSeats(priceBand, SeatStatus.BOOKED)));
+            }
+        }
+        return availability;
+    }
+
+    /**
+     * @return a response rejecting a request for a performance that isn't
+     * scheduled, or null if the concert is on at the date/time.
+     */
+    private Response checkPerformance(long id, LocalDateTime date) {
+        EntityManager em = _persistenceManager.createEntityManager();
+
+        try {
+            em.getTransaction().begin();
+
+            Concert concert = em.find(Concert.class, id);
+
+            em.getTransaction().commit();
+
+            if (concert == null) {
+                _logger.debug("Could not find concert with id: " + id);
+                return Response.status(Response.Status.NOT_FOUND).build();
+            }
+            if (!concert.getDates().contains(date)) {
+                _logger.debug("Concert with id: " + id + " isn't scheduled on " + date);
+                return Response
+                        .status(Response.Status.NOT_FOUND)
+                        .entity(Messages.CONCERT_NOT_SCHEDULED_ON_RESERVATION_DATE)
+                        .build();
+            }
+            return null;
+        } catch (Exception e) {
+            return Response.serverError().entity(Messages.SERVICE_COMMUNICATION_ERROR).build();
+        } finally {
+            em.close();
+        }
+    }
 }
@@ -0,0 +1,40 @@
+package nz.ac.auckland.concert.service.services.resources;
+
+import nz.ac.auckland.concert.service.metrics.MetricsRegistry;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+/**
+ * Reports the Web service's metrics as plain text, one "name value" pair per
+ * line.
+ */
+@Path("/metrics")
+public class MetricsResource {
+
+    private MetricsRegistry _metrics;
+
+    public MetricsResource() {
+        _metrics = MetricsRegistry.instance();
+    }
+
+    @GET
+    @Produces(MediaType.TEXT_PLAIN)
+    public Response getMetrics() {
+        StringBuilder body = new StringBuilder();
+        _metrics.snapshot().forEach((name, value) ->
+                body.append(name).append(' ').append(value).append('\n'));
+
+        CacheControl cacheControl = new CacheControl();
+        cacheControl.setNoCache(true);
+
+        return Response
+                .ok(body.toString())
+                .cacheControl(cacheControl)
+                .build();
+    }
+}
@@ -1,7 +1,11 @@
 package nz.ac.auckland.concert.service.services.resources;
 
+import nz.ac.auckland.concert.common.Config;
 import nz.ac.auckland.concert.common.dto.NewsItemDTO;
 import nz.ac.auckland.concert.common.message.Messages;
+import nz.ac.auckland.concert.service.auth.AuthFilter;
+import nz.ac.auckland.concert.service.auth.PrincipalCache;
+import nz.ac.auckland.concert.service.auth.UserPrincipal;
 import nz.ac.auckland.concert.service.domain.NewsItem;
 import nz.ac.auckland.concert.service.domain.User;
 import nz.ac.auckland.concert.service.mappers.NewsItemMapper;
@@ -13,9 +17,11 @@ import javax.persistence.EntityManager;
 import javax.ws.rs.*;
 import javax.ws.rs.container.AsyncResponse;
 import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.core.Cookie;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.SecurityContext;
 import java.net.URI;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
@@ -26,16 +32,19 @@ public class NewsItemResource {
 
     private PersistenceManager persistenceManager;
 
+    private PrincipalCache principals;
+
     private Logger logger =
             LoggerFactory.getLogger(NewsItemResource.class);
 
     public NewsItemResource() {
         this.responseList = new ConcurrentHashMap<>();
         this.persistenceManager = PersistenceManager.instance();
+        this.principals = PrincipalCache.instance();
     }
 
     @POST
-    @Consumes({MediaType.APPLICATION_XML})
+    @Consumes({MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON, Config.APPLICATION_SMILE})
     public Response createNewsItem(NewsItemDTO newsItemDTO) {
         EntityManager em = this.persistenceManager.createEntityManager();
 
@@ -68,8 +77,9 @@ public class NewsItemResource {
 
     @GET
     @Path("/sub")
-    @Consumes(MediaType.APPLICATION_XML)
-    public Response subscribe(@Suspended AsyncResponse response, @CookieParam("AuthToken") Cookie authToken) {
+    @Consumes({MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON, Config.APPLICATION_SMILE})
+    public Response subscribe(@Suspended AsyncResponse response, @CookieParam("AuthToken") Cookie authToken,
+                              @Context SecurityContext securityContext) {
         EntityManager em = this.persistenceManager.createEntityManager();
         this.logger.debug("Creating sub at server");
 
@@ -86,8 +96,7 @@ public class NewsItemResource {
             }
 
             // Check there is a user with auth token
-            User user = em.createQuery("SELECT u from User u WHERE u.authToken = :token", User.class)
-                    .setParameter("token", authToken.getValue()).getSingleResult();
+            User user = AuthFilter.userOf(em, securityContext);
 
             if (user == null) {
                 this.logger.debug("No user corresponding to auth token");
@@ -129,9 +138,10 @@ public class NewsItemResource {
 
     @DELETE
     @Path("/sub")
-    @Consumes(MediaType.APPLICATION_XML)
-    @Produces(MediaType.APPLICATION_XML)
-    public Response unsubscribe(@CookieParam("AuthToken") Cookie authToken) {
+    @Consumes({MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON, Config.APPLICATION_SMILE})
+    @Produces({MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON, Config.APPLICATION_SMILE})
+    public Response unsubscribe(@CookieParam("AuthToken") Cookie authToken,
+                                @Context SecurityContext securityContext) {
         EntityManager em = this.persistenceManager.createEntityManager();
 
         try {
@@ -146,8 +156,7 @@ public class NewsItemResource {
             }
 
             // Check there is a user with auth token
-            User user = em.createQuery("SELECT u from User u WHERE u.authToken = :token", User.class)
-                    .setParameter("token", authToken.getValue()).getSingleResult();
+            User user = AuthFilter.userOf(em, securityContext);
 
             if (user == null) {
                 this.logger.debug("No user corresponding to auth token");
@@ -188,9 +197,8 @@ public class NewsItemResource {
             for (Cookie authToken : this.responseList.keySet()) {
                 this.responseList.get(authToken).resume(newsItemDTO);
 
-                User user = em.createQuery("SELECT u FROM User u WHERE u.authToken = :authToken", User.class)
-                        .setParameter("authToken", authToken.getValue())
-                        .getSingleResult();
+                UserPrincipal principal = this.principals.resolve(authToken.getValue());
+                User user = principal == null ? null : em.find(User.class, principal.getName());
                 NewsItem newsItem = em.find(NewsItem.class, newsItemDTO.getId());
 
                 if (user != null) {
@@ -3,6 +3,9 @@ package nz.ac.auckland.concert.service.services.resources;
 import nz.ac.auckland.concert.common.Config;
 import nz.ac.auckland.concert.common.dto.PerformerDTO;
 import nz.ac.auckland.concert.common.message.Messages;
+import nz.ac.auckland.concert.service.catalogue.CatalogueCache;
+import nz.ac.auckland.concert.service.catalogue.CataloguePager;
+import nz.ac.auckland.concert.service.catalogue.SerializedCatalogue;
 import nz.ac.auckland.concert.service.domain.Performer;
 import nz.ac.auckland.concert.service.mappers.PerformerMapper;
 import nz.ac.auckland.concert.service.services.PersistenceManager;
@@ -12,26 +15,35 @@ import org.slf4j.LoggerFactory;
 import javax.persistence.EntityManager;
 import javax.ws.rs.*;
 import javax.ws.rs.core.CacheControl;
-import javax.ws.rs.core.GenericEntity;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriInfo;
+import javax.ws.rs.core.Variant;
+import javax.ws.rs.ext.Providers;
 import java.net.URI;
-import java.util.List;
-import java.util.stream.Collectors;
 
 @Path("/performers")
 public class PerformerResource {
     private PersistenceManager _persistenceManager;
 
+    private CatalogueCache _catalogue;
+
+    private CataloguePager _pager;
+
     private Logger _logger = LoggerFactory
             .getLogger(PerformerResource.class);
 
     public PerformerResource() {
         _persistenceManager = PersistenceManager.instance();
+        _catalogue = CatalogueCache.instance();
+        _pager = CataloguePager.instance();
     }
 
     @POST
-    @Consumes(MediaType.APPLICATION_XML)
+    @Consumes({MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON, Config.APPLICATION_SMILE})
     public Response createPerformer(PerformerDTO performerDTO) {
         EntityManager em = this._persistenceManager.createEntityManager();
 
@@ -61,43 +73,58 @@ public class PerformerResource {
         }
     }
 
+    /**
+     * Serves the list of performers from the CatalogueCache, in the media
+     * type negotiated with the client. The list is rebuilt whenever a
+     * performer is created. A client that sends the entity tag of the current
+     * list is answered with a 304.
+     *
+     * With limit or after, a page of performers is returned instead, and
+     * with stream=true the performers are streamed from the database (see
+     * CataloguePager).
+     */
     @GET
-    @Produces(MediaType.APPLICATION_XML)
-    public Response getPerformers() {
-        EntityManager em = _persistenceManager.createEntityManager();
-
+    @Produces({MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON, Config.APPLICATION_SMILE})
+    public Response getPerformers(@HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch,
+                                  @HeaderParam(HttpHeaders.ACCEPT_ENCODING) String acceptEncoding,
+                                  @QueryParam("limit") Integer limit,
+                                  @QueryParam("after") Long after,
+                                  @QueryParam("stream") boolean stream,
+                                  @Context UriInfo uriInfo,
+                                  @Context Request request,
+                                  @Context Providers providers) {
         try {
             _logger.debug("Retrieving all performers...");
 
-            em.getTransaction().begin();
-
-            List<Performer> performers = em.createQuery("SELECT p FROM Performer p", Performer.class).getResultList();
-
-            em.getTransaction().commit();
-
-            List<PerformerDTO> performerDTOs;
-
-            performerDTOs = performers.stream().map(PerformerMapper::toDTO).collect(Collectors.toList());
-
-            GenericEntity<List<PerformerDTO>> entity = new GenericEntity<List<PerformerDTO>>(performerDTOs) {
-            };
-
             CacheControl cacheControl = new CacheControl();
             cacheControl.setMaxAge(Config.CACHE_EXPIRY_SECONDS);
             cacheControl.setPrivate(true);
 
+            Variant variant = request.selectVariant(CatalogueCache.VARIANTS);
+            if (variant == null) {
+                return Response.notAcceptable(CatalogueCache.VARIANTS).build();
+            }
+
+            if (stream) {
+                return _pager.stream(CatalogueCache.Catalogue.PERFORMERS, variant.getMediaType(), limit, after,
+                        cacheControl);
+            } else if (limit != null || after != null) {
+                return _pager.page(CatalogueCache.Catalogue.PERFORMERS, limit, after, uriInfo, cacheControl);
+            }
+
+            SerializedCatalogue performers = _catalogue.get(CatalogueCache.Catalogue.PERFORMERS,
+                    variant.getMediaType(), providers);
+
             _logger.debug("Successfully retrieved performers");
-            return Response.ok(entity).cacheControl(cacheControl).build();
+            return performers.toResponse(ifNoneMatch, acceptEncoding, cacheControl);
         } catch (Exception e) {
             return Response.serverError().entity(Messages.SERVICE_COMMUNICATION_ERROR).build();
-        } finally {
-            em.close();
         }
     }
 
     @GET
     @Path("{id}")
-    @Produces(MediaType.APPLICATION_XML)
+    @Produces({MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON, Config.APPLICATION_SMILE})
     public Response getPerformer(@PathParam("id") long id) {
         EntityManager em = _persistenceManager.createEntityManager();
 
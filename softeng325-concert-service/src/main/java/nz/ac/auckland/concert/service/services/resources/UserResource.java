@@ -1,8 +1,14 @@
 package nz.ac.auckland.concert.service.services.resources;
 
+import nz.ac.auckland.concert.common.Config;
 import nz.ac.auckland.concert.common.dto.CreditCardDTO;
 import nz.ac.auckland.concert.common.dto.UserDTO;
 import nz.ac.auckland.concert.common.message.Messages;
+import nz.ac.auckland.concert.service.auth.AuthFilter;
+import nz.ac.auckland.concert.service.auth.AuthTokens;
+import nz.ac.auckland.concert.service.auth.PrincipalCache;
+import nz.ac.auckland.concert.service.cluster.ClusterMembership;
+import nz.ac.auckland.concert.service.cluster.ShardForwarder;
 import nz.ac.auckland.concert.service.domain.CreditCard;
 import nz.ac.auckland.concert.service.domain.User;
 import nz.ac.auckland.concert.service.mappers.CreditCardMapper;
@@ -13,29 +19,46 @@ import org.slf4j.LoggerFactory;
 
 import javax.persistence.EntityManager;
 import javax.ws.rs.*;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.core.Cookie;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.NewCookie;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.SecurityContext;
+import javax.ws.rs.core.UriInfo;
 import java.net.URI;
+import java.time.Instant;
 import java.time.LocalDate;
+import java.time.ZoneId;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.UUID;
 
 @Path("/users")
 public class UserResource {
     private PersistenceManager _persistenceManager;
 
+    private PrincipalCache _principals;
+
+    private AuthTokens _tokens;
+
+    private ClusterMembership _cluster;
+
+    private ShardForwarder _forwarder;
+
     private static Logger _logger = LoggerFactory
             .getLogger(UserResource.class);
 
     public UserResource() {
         _persistenceManager = PersistenceManager.instance();
+        _principals = PrincipalCache.instance();
+        _tokens = AuthTokens.instance();
+        _cluster = ClusterMembership.instance();
+        _forwarder = ShardForwarder.instance();
     }
 
     @GET
-    @Produces(MediaType.APPLICATION_XML)
+    @Produces({MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON, Config.APPLICATION_SMILE})
     public Response getUser(@PathParam("id") long id) {
         EntityManager em = _persistenceManager.createEntityManager();
 
@@ -65,7 +88,7 @@ public class UserResource {
     }
 
     @POST
-    @Consumes(MediaType.APPLICATION_XML)
+    @Consumes({MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON, Config.APPLICATION_SMILE})
     public Response postUser(UserDTO userDTO){
         EntityManager em = _persistenceManager.createEntityManager();
 
@@ -98,11 +121,7 @@ public class UserResource {
             }
 
             User user = UserMapper.toDomain(userDTO);
-
-            String authToken = UUID.randomUUID().toString();
-            user.setAuthToken(authToken);
-            user.setAuthTokenTimeStamp(LocalDate.now());
-            _logger.debug("Generated Auth token: " + authToken);
+            this.issueAuthToken(user);
 
             em.persist(user);
 
@@ -122,7 +141,7 @@ public class UserResource {
 
     @PUT
     @Path("/auth")
-    @Consumes(MediaType.APPLICATION_XML)
+    @Consumes({MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON, Config.APPLICATION_SMILE})
     public Response authenticateUser(UserDTO userDTO) {
         EntityManager em = _persistenceManager.createEntityManager();
 
@@ -163,16 +182,19 @@ public class UserResource {
                         .build();
             }
 
-            if (user.getAuthToken() == null) {
-                String authToken = UUID.randomUUID().toString();
-                user.setAuthToken(authToken);
-                user.setAuthTokenTimeStamp(LocalDate.now());
-                _logger.debug("Generated Auth token: " + authToken);
+            String previous = user.getAuthToken();
+            if (_tokens.needsReissue(previous)) {
+                this.issueAuthToken(user);
                 em.merge(user);
             }
 
             em.getTransaction().commit();
 
+            // Only once the new token is committed, or the old one could be cached again
+            if (!user.getAuthToken().equals(previous)) {
+                _principals.invalidate(previous);
+            }
+
             return Response
                     .accepted(UserMapper.toDTO(user))
                     .cookie(new NewCookie("AuthToken", user.getAuthToken()))
@@ -184,10 +206,86 @@ public class UserResource {
         }
     }
 
+    /**
+     * Logs a user out, so that their auth token is no longer accepted by any
+     * node. The node that receives the request sends it on to the others.
+     */
+    @DELETE
+    @Path("/auth")
+    public Response logoutUser(@CookieParam("AuthToken") Cookie authToken,
+                               @HeaderParam(ShardForwarder.FORWARDED_HEADER) boolean forwarded,
+                               @Context SecurityContext securityContext,
+                               @Context UriInfo uriInfo) {
+        if (authToken == null) {
+            _logger.debug("No auth token");
+            return Response
+                    .status(Response.Status.UNAUTHORIZED)
+                    .entity(Messages.UNAUTHENTICATED_REQUEST)
+                    .build();
+        }
+
+        // The node that forwarded the logout has already checked the token and recorded its revocation in the
+        // database. Only other nodes can claim to have forwarded it, as PeerFilter drops the header otherwise
+        if (forwarded) {
+            _tokens.revoke(authToken.getValue());
+        } else {
+            if (securityContext.getUserPrincipal() == null) {
+                _logger.debug("No user corresponding to auth token");
+                return Response
+                        .status(Response.Status.UNAUTHORIZED)
+                        .entity(Messages.BAD_AUTHENTICATON_TOKEN)
+                        .build();
+            }
+
+            EntityManager em = _persistenceManager.createEntityManager();
+
+            try {
+                em.getTransaction().begin();
+
+                User user = AuthFilter.userOf(em, securityContext);
+                if (user != null && authToken.getValue().equals(user.getAuthToken())) {
+                    user.setAuthToken(null);
+                    em.merge(user);
+                }
+                _tokens.revoke(em, authToken.getValue());
+
+                em.getTransaction().commit();
+            } catch (Exception e) {
+                return Response.serverError().entity(Messages.SERVICE_COMMUNICATION_ERROR).build();
+            } finally {
+                em.close();
+            }
+        }
+
+        _principals.invalidate(authToken.getValue());
+
+        if (!forwarded) {
+            URI self = ClusterMembership.self(uriInfo.getBaseUri());
+            for (URI node : _cluster.nodes()) {
+                if (node.equals(self)) {
+                    continue;
+                }
+                try {
+                    _forwarder.send(node, "users/auth", HttpMethod.DELETE, null, authToken,
+                            Collections.emptyMap()).close();
+                } catch (ProcessingException e) {
+                    _logger.debug("Failed to send logout to " + node + ": " + e.getMessage());
+                }
+            }
+        }
+
+        _logger.debug("Logged out user");
+        return Response
+                .noContent()
+                .cookie(new NewCookie(authToken, null, 0, false))
+                .build();
+    }
+
     @POST
     @Path("/credit_card")
     public Response addCreditCard(CreditCardDTO creditCardDTO,
-                                  @CookieParam("AuthToken") Cookie authToken) {
+                                  @CookieParam("AuthToken") Cookie authToken,
+                                  @Context SecurityContext securityContext) {
         EntityManager em = _persistenceManager.createEntityManager();
 
         try {
@@ -204,8 +302,7 @@ public class UserResource {
             }
 
             // Check there is a user with auth token
-            User user = em.createQuery("SELECT u from User u WHERE u.authToken = :token", User.class)
-                    .setParameter("token", authToken.getValue()).getSingleResult();
+            User user = AuthFilter.userOf(em, securityContext);
 
             if (user == null) {
                 _logger.debug("No user corresponding to auth token");
@@ -235,4 +332,16 @@ public class UserResource {
             em.close();
         }
     }
+
+    /**
+     * Gives a user a new auth token. The caller must invalidate the one it
+     * replaces once the new one is committed.
+     */
+    private void issueAuthToken(User user) {
+        long issuedAt = System.currentTimeMillis();
+        String authToken = _tokens.issue(user.getUsername(), issuedAt);
+        user.setAuthToken(authToken);
+        user.setAuthTokenTimeStamp(LocalDate.from(Instant.ofEpochMilli(issuedAt).atZone(ZoneId.systemDefault())));
+        _logger.debug("Generated auth token for user: " + user.getUsername());
+    }
 }
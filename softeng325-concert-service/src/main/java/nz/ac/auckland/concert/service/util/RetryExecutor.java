@@ -0,0 +1,163 @@
+package nz.ac.auckland.concert.service.util;
+
+import nz.ac.auckland.concert.service.ServiceConfig;
+import nz.ac.auckland.concert.service.metrics.Histogram;
+import nz.ac.auckland.concert.service.metrics.MetricsRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Runs an operation, retrying it when it fails with a retryable exception.
+ * Retries are bounded both by a number of attempts and by a deadline for the
+ * whole operation, and are spaced by exponential backoff with full jitter, so
+ * that operations that conflicted with each other don't simply collide again.
+ *
+ * For an executor named "x", the following metrics are kept:
+ * retry.x.retries   counter of attempts that were retried.
+ * retry.x.giveUps   counter of operations abandoned after their last attempt.
+ * retry.x.attempts  histogram of attempts per operation.
+ * retry.x.retryMillis histogram of time spent on operations that needed a retry.
+ */
+public class RetryExecutor {
+
+    private static Logger _logger = LoggerFactory
+            .getLogger(RetryExecutor.class);
+
+    private final String _name;
+
+    private final int _maxAttempts;
+
+    private final long _initialBackoffMillis;
+
+    private final long _maxBackoffMillis;
+
+    private final long _deadlineMillis;
+
+    private final Predicate<? super RuntimeException> _retryable;
+
+    private final LongSupplier _clock;
+
+    private final Sleeper _sleeper;
+
+    private final LongAdder _retries;
+
+    private final LongAdder _giveUps;
+
+    private final Histogram _attempts;
+
+    private final Histogram _retryMillis;
+
+    /**
+     * Creates an executor with the attempt, backoff and deadline settings of
+     * ServiceConfig.
+     */
+    public RetryExecutor(String name, Predicate<? super RuntimeException> retryable) {
+        this(name, ServiceConfig.RETRY_MAX_ATTEMPTS, ServiceConfig.RETRY_INITIAL_BACKOFF_MILLIS,
+                ServiceConfig.RETRY_MAX_BACKOFF_MILLIS, ServiceConfig.RETRY_DEADLINE_MILLIS, retryable);
+    }
+
+    public RetryExecutor(String name, int maxAttempts, long initialBackoffMillis, long maxBackoffMillis,
+                         long deadlineMillis, Predicate<? super RuntimeException> retryable) {
+        this(name, maxAttempts, initialBackoffMillis, maxBackoffMillis, deadlineMillis, retryable,
+                System::nanoTime, Thread::sleep);
+    }
+
+    /**
+     * Creates an executor that reads the time from a nanosecond clock and
+     * waits between attempts with a sleeper, so that tests can fake both.
+     */
+    RetryExecutor(String name, int maxAttempts, long initialBackoffMillis, long maxBackoffMillis,
+                  long deadlineMillis, Predicate<? super RuntimeException> retryable, LongSupplier clock,
+                  Sleeper sleeper) {
+        _name = name;
+        _maxAttempts = Math.max(1, maxAttempts);
+        _initialBackoffMillis = initialBackoffMillis;
+        _maxBackoffMillis = maxBackoffMillis;
+        _deadlineMillis = deadlineMillis;
+        _retryable = retryable;
+        _clock = clock;
+        _sleeper = sleeper;
+
+        MetricsRegistry metrics = MetricsRegistry.instance();
+        _retries = metrics.counter("retry." + name + ".retries");
+        _giveUps = metrics.counter("retry." + name + ".giveUps");
+        _attempts = metrics.histogram("retry." + name + ".attempts");
+        _retryMillis = metrics.histogram("retry." + name + ".retryMillis");
+    }
+
+    /**
+     * Runs an operation until it succeeds, fails with an exception that isn't
+     * retryable, or runs out of attempts or time.
+     *
+     * @return the result of the successful attempt.
+     * @throws RuntimeException the exception of the last attempt, if the
+     * operation never succeeded.
+     */
+    public <T> T execute(Supplier<T> operation) {
+        long start = _clock.getAsLong();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(_deadlineMillis);
+
+        for (int attempt = 1; ; attempt++) {
+            try {
+                T result = operation.get();
+                this.finished(attempt, start);
+                return result;
+            } catch (RuntimeException e) {
+                if (!_retryable.test(e)) {
+                    this.finished(attempt, start);
+                    throw e;
+                }
+
+                long backoffMillis = this.backoffMillis(attempt);
+                if (attempt >= _maxAttempts
+                        || _clock.getAsLong() + TimeUnit.MILLISECONDS.toNanos(backoffMillis) > deadline) {
+                    _logger.debug("Giving up " + _name + " after " + attempt + " attempts: " + e.getMessage());
+                    _giveUps.increment();
+                    this.finished(attempt, start);
+                    throw e;
+                }
+
+                _logger.debug("Retrying " + _name + " in " + backoffMillis + "ms after attempt " + attempt
+                        + ": " + e.getMessage());
+                _retries.increment();
+                try {
+                    _sleeper.sleep(backoffMillis);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    this.finished(attempt, start);
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return a random delay between zero and the exponential backoff for an
+     * attempt, which is capped at the maximum backoff.
+     */
+    private long backoffMillis(int attempt) {
+        long backoff = _initialBackoffMillis << Math.min(attempt - 1, 30);
+        if (backoff <= 0 || backoff > _maxBackoffMillis) {
+            backoff = _maxBackoffMillis;
+        }
+        return ThreadLocalRandom.current().nextLong(backoff + 1);
+    }
+
+    private void finished(int attempts, long start) {
+        _attempts.record(attempts);
+        if (attempts > 1) {
+            _retryMillis.record(TimeUnit.NANOSECONDS.toMillis(_clock.getAsLong() - start));
+        }
+    }
+
+    interface Sleeper {
+        void sleep(long millis) throws InterruptedException;
+    }
+}
@@ -13,7 +13,7 @@ import nz.ac.auckland.concert.common.types.SeatRow;
 import nz.ac.auckland.concert.utility.TheatreLayout;
 
 /**
- * Utility class with a search method that identifies seats that are available
+ * Utility class with search methods that identify seats that are available
  * to reserve.
  *
  */
@@ -83,4 +83,64 @@ public class TheatreUtility {
 		}
 		return openSeats;
 	}
+
+	/**
+	 * Returns the length of the longest run of adjacent free seats in a row.
+	 * 
+	 * @param freeSeats
+	 *            the free seats of the row, where seat number n is bit n - 1.
+	 */
+	public static int longestFreeRun(long freeSeats) {
+		int run = 0;
+		while (freeSeats != 0) {
+			freeSeats &= freeSeats >>> 1;
+			run++;
+		}
+		return run;
+	}
+
+	/**
+	 * Attempts to find a block of adjacent free seats in a row, choosing the
+	 * block closest to the centre of the row.
+	 * 
+	 * @param freeSeats
+	 *            the free seats of the row, where seat number n is bit n - 1.
+	 * @param numberOfSeats
+	 *            the number of seats required.
+	 * @param seatsInRow
+	 *            the number of seats in the row.
+	 * 
+	 * @return the seats of the block, in the same form as freeSeats, or 0 if
+	 *         the row has no block of numberOfSeats free seats.
+	 * 
+	 */
+	public static long findSeatBlock(long freeSeats, int numberOfSeats,
+			int seatsInRow) {
+		if (numberOfSeats <= 0 || numberOfSeats >= Long.SIZE) {
+			return 0;
+		}
+
+		// Bit i of starts is set when seats i + 1 to i + numberOfSeats are all free
+		long starts = freeSeats;
+		for (int i = 1; i < numberOfSeats && starts != 0; i++) {
+			starts &= freeSeats >>> i;
+		}
+
+		int bestStart = -1;
+		int bestDistance = Integer.MAX_VALUE;
+		while (starts != 0) {
+			int start = Long.numberOfTrailingZeros(starts);
+			int distance = Math.abs(2 * start + numberOfSeats - seatsInRow);
+			if (distance < bestDistance) {
+				bestStart = start;
+				bestDistance = distance;
+			}
+			starts &= starts - 1;
+		}
+
+		if (bestStart < 0) {
+			return 0;
+		}
+		return ((1L << numberOfSeats) - 1) << bestStart;
+	}
 }
@@ -0,0 +1,157 @@
+package nz.ac.auckland.concert.service.admission;
+
+import nz.ac.auckland.concert.service.ServiceConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for ConcertQueue, against a fake clock.
+ */
+public class ConcertQueueTest {
+
+	private static final int CAP = 2;
+
+	private static final String USERNAME = "alice";
+
+	private final Map<String, Ticket> _tickets = new ConcurrentHashMap<>();
+
+	private int _cap;
+
+	private long _millis;
+
+	private ConcertQueue _queue;
+
+	@Before
+	public void setUp() {
+		_cap = ServiceConfig.ADMISSION_CAP_PER_CONCERT;
+		ServiceConfig.ADMISSION_CAP_PER_CONCERT = CAP;
+		_millis = 0;
+		_queue = new ConcertQueue(1, _tickets, () -> _millis);
+	}
+
+	@After
+	public void tearDown() {
+		ServiceConfig.ADMISSION_CAP_PER_CONCERT = _cap;
+	}
+
+	@Test
+	public void testRequestsQueueOnceCapIsReached() {
+		assertNull(_queue.enter(USERNAME));
+		assertTrue(_queue.tryEnter());
+
+		Ticket ticket = _queue.enter(USERNAME);
+		assertNotNull(ticket);
+		assertEquals(Ticket.State.WAITING, ticket.getState());
+		assertEquals(USERNAME, ticket.getUsername());
+		assertSame(ticket, _tickets.get(ticket.getId()));
+		assertFalse(_queue.tryEnter());
+	}
+
+	@Test
+	public void testTicketsAreAdmittedInOrder() {
+		this.fill();
+		Ticket first = _queue.enter(USERNAME);
+		Ticket second = _queue.enter(USERNAME);
+		Ticket third = _queue.enter(USERNAME);
+
+		assertEquals(0, _queue.position(first));
+		assertEquals(1, _queue.position(second));
+		assertEquals(2, _queue.position(third));
+
+		_queue.leave();
+		assertEquals(Ticket.State.ADMITTED, first.getState());
+		assertTrue(first.whenAdmitted().isDone());
+		assertFalse(second.whenAdmitted().isDone());
+		assertEquals(0, _queue.position(second));
+		assertEquals(1, _queue.position(third));
+
+		// Admitted tickets hold their slot, so nobody else gets in
+		assertFalse(_queue.enter(second));
+		assertFalse(_queue.tryEnter());
+
+		assertTrue(_queue.enter(first));
+		assertEquals(Ticket.State.USED, first.getState());
+		assertFalse(_tickets.containsKey(first.getId()));
+		assertFalse(_queue.enter(first));
+
+		_queue.leave();
+		assertEquals(Ticket.State.ADMITTED, second.getState());
+		assertEquals(Ticket.State.WAITING, third.getState());
+	}
+
+	@Test
+	public void testUnusedAdmissionExpires() {
+		this.fill();
+		Ticket first = _queue.enter(USERNAME);
+		Ticket second = _queue.enter(USERNAME);
+		_queue.leave();
+
+		_millis += ServiceConfig.ADMISSION_PASS_MILLIS;
+		assertEquals(0, _queue.position(second));
+		assertEquals(Ticket.State.ADMITTED, first.getState());
+
+		_millis++;
+		assertEquals(0, _queue.position(second));
+		assertEquals(Ticket.State.EXPIRED, first.getState());
+		assertFalse(_tickets.containsKey(first.getId()));
+		assertEquals(Ticket.State.ADMITTED, second.getState());
+		assertFalse(_queue.enter(first));
+		assertTrue(_queue.enter(second));
+	}
+
+	@Test
+	public void testAbandonedTicketExpires() {
+		this.fill();
+		Ticket first = _queue.enter(USERNAME);
+		Ticket second = _queue.enter(USERNAME);
+		Ticket third = _queue.enter(USERNAME);
+
+		_millis += ServiceConfig.ADMISSION_ABANDON_MILLIS - 1;
+		_queue.position(first);
+		_queue.position(third);
+
+		_millis += 2;
+		assertEquals(1, _queue.position(third));
+		assertEquals(Ticket.State.EXPIRED, second.getState());
+		assertTrue(second.whenAdmitted().isDone());
+		assertFalse(_tickets.containsKey(second.getId()));
+		assertEquals(Ticket.State.WAITING, first.getState());
+
+		_queue.leave();
+		assertEquals(Ticket.State.ADMITTED, first.getState());
+		assertEquals(0, _queue.position(third));
+	}
+
+	@Test
+	public void testClearExpiresEveryTicket() {
+		this.fill();
+		Ticket admitted = _queue.enter(USERNAME);
+		Ticket waiting = _queue.enter(USERNAME);
+		_queue.leave();
+		assertEquals(Ticket.State.ADMITTED, admitted.getState());
+
+		_queue.clear();
+
+		assertEquals(Ticket.State.EXPIRED, admitted.getState());
+		assertEquals(Ticket.State.EXPIRED, waiting.getState());
+		assertTrue(waiting.whenAdmitted().isDone());
+		assertEquals(0, _queue.position(waiting));
+	}
+
+	private void fill() {
+		for (int i = 0; i < CAP; i++) {
+			assertNull(_queue.enter(USERNAME));
+		}
+	}
+}
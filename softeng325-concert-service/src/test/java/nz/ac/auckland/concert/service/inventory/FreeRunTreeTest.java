@@ -0,0 +1,98 @@
+package nz.ac.auckland.concert.service.inventory;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Unit tests for FreeRunTree.
+ */
+public class FreeRunTreeTest {
+
+	@Test
+	public void testEmptyTreeHasNoRow() {
+		assertEquals(-1, new FreeRunTree(0).nearest(1, 0));
+	}
+
+	@Test
+	public void testFullTreeHasNoRow() {
+		FreeRunTree tree = new FreeRunTree(10);
+
+		assertEquals(-1, tree.nearest(1, 5));
+	}
+
+	@Test
+	public void testNearestRowWithLongEnoughRun() {
+		FreeRunTree tree = new FreeRunTree(10);
+		tree.update(1, 4);
+		tree.update(4, 2);
+		tree.update(8, 6);
+
+		assertEquals(4, tree.nearest(2, 5));
+		assertEquals(1, tree.nearest(3, 3));
+		assertEquals(8, tree.nearest(5, 0));
+		assertEquals(-1, tree.nearest(7, 5));
+	}
+
+	@Test
+	public void testCentreRowIsPreferred() {
+		FreeRunTree tree = new FreeRunTree(5);
+		tree.update(1, 3);
+		tree.update(2, 3);
+		tree.update(3, 3);
+
+		assertEquals(2, tree.nearest(3, 2));
+	}
+
+	@Test
+	public void testTieGoesToLaterRow() {
+		FreeRunTree tree = new FreeRunTree(7);
+		tree.update(1, 2);
+		tree.update(5, 2);
+
+		assertEquals(5, tree.nearest(2, 3));
+	}
+
+	@Test
+	public void testUpdateReplacesRun() {
+		FreeRunTree tree = new FreeRunTree(4);
+		tree.update(2, 5);
+		assertEquals(2, tree.nearest(5, 0));
+
+		tree.update(2, 1);
+		assertEquals(-1, tree.nearest(5, 0));
+		assertEquals(2, tree.nearest(1, 0));
+	}
+
+	@Test
+	public void testMatchesLinearScan() {
+		Random random = new Random(325);
+		for (int size = 1; size <= 40; size++) {
+			FreeRunTree tree = new FreeRunTree(size);
+			int[] runs = new int[size];
+			for (int i = 0; i < 200; i++) {
+				int row = random.nextInt(size);
+				runs[row] = random.nextInt(8);
+				tree.update(row, runs[row]);
+
+				int minRun = 1 + random.nextInt(7);
+				int centre = random.nextInt(size);
+				assertEquals(nearest(runs, minRun, centre), tree.nearest(minRun, centre));
+			}
+		}
+	}
+
+	private static int nearest(int[] runs, int minRun, int centre) {
+		for (int distance = 0; distance < runs.length; distance++) {
+			if (centre + distance < runs.length && runs[centre + distance] >= minRun) {
+				return centre + distance;
+			}
+			if (centre - distance >= 0 && runs[centre - distance] >= minRun) {
+				return centre - distance;
+			}
+		}
+		return -1;
+	}
+}
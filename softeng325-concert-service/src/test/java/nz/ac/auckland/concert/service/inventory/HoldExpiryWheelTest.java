@@ -0,0 +1,136 @@
+package nz.ac.auckland.concert.service.inventory;
+
+import nz.ac.auckland.concert.service.ServiceConfig;
+import nz.ac.auckland.concert.utility.SeatUtility;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Unit tests for HoldExpiryWheel, turned by hand against a fake clock.
+ */
+public class HoldExpiryWheelTest {
+
+	private final long _tickNanos = TimeUnit.MILLISECONDS.toNanos(ServiceConfig.EXPIRY_TICK_MILLIS);
+
+	private final List<Long> _expired = new ArrayList<>();
+
+	private long _nanos;
+
+	// Number of attempts to expire each hold that fail before one succeeds
+	private int _notYetLapsed;
+
+	private HoldExpiryWheel _wheel;
+
+	@Before
+	public void setUp() {
+		_nanos = 0;
+		_notYetLapsed = 0;
+		_wheel = new HoldExpiryWheel(reservationId -> {
+			if (_notYetLapsed > 0) {
+				_notYetLapsed--;
+				return false;
+			}
+			_expired.add(reservationId);
+			return true;
+		}, () -> _nanos);
+	}
+
+	@Test
+	public void testHoldExpiresAfterItsDeadline() {
+		_wheel.schedule(1, this.holdTime(3));
+
+		this.turn(3);
+		assertEquals(Collections.emptyList(), _expired);
+
+		this.turn(2);
+		assertEquals(Collections.singletonList(1L), _expired);
+
+		this.turn(10);
+		assertEquals(Collections.singletonList(1L), _expired);
+	}
+
+	@Test
+	public void testLapsedHoldExpiresOnNextTick() {
+		_wheel.schedule(1, LocalDateTime.now().minusSeconds(SeatUtility.RESERVATION_EXPIRY_TIME_IN_SECONDS + 1));
+
+		this.turn(1);
+		assertEquals(Collections.singletonList(1L), _expired);
+	}
+
+	@Test
+	public void testHoldWaitsForItsRound() {
+		// Longer than one turn of the wheel, so the hold's bucket comes round
+		// once before it is due
+		_wheel.schedule(1, this.holdTime(600));
+		_wheel.schedule(2, this.holdTime(5));
+
+		this.turn(600);
+		assertEquals(Collections.singletonList(2L), _expired);
+
+		this.turn(2);
+		assertEquals(Arrays.asList(2L, 1L), _expired);
+	}
+
+	@Test
+	public void testCancelledHoldNeverExpires() {
+		_wheel.schedule(1, this.holdTime(3));
+		_wheel.schedule(2, this.holdTime(3));
+		this.turn(1);
+
+		_wheel.cancel(1);
+		this.turn(10);
+
+		assertEquals(Collections.singletonList(2L), _expired);
+	}
+
+	@Test
+	public void testRescheduledHoldReplacesEarlierOne() {
+		_wheel.schedule(1, this.holdTime(3));
+		_wheel.schedule(1, this.holdTime(10));
+
+		this.turn(5);
+		assertEquals(Collections.emptyList(), _expired);
+
+		this.turn(7);
+		assertEquals(Collections.singletonList(1L), _expired);
+	}
+
+	@Test
+	public void testHoldThatHasNotLapsedIsRetried() {
+		_notYetLapsed = 2;
+		_wheel.schedule(1, this.holdTime(3));
+
+		this.turn(5);
+		assertEquals(Collections.emptyList(), _expired);
+
+		this.turn(10);
+		assertEquals(Collections.singletonList(1L), _expired);
+	}
+
+	/**
+	 * Returns a hold time that lapses half way through the given tick, so
+	 * that the time taken to run the test doesn't move it into another tick.
+	 */
+	private LocalDateTime holdTime(int ticks) {
+		long millis = TimeUnit.NANOSECONDS.toMillis(ticks * _tickNanos + _tickNanos / 2);
+		return LocalDateTime.now()
+				.plusNanos(TimeUnit.MILLISECONDS.toNanos(millis))
+				.minusSeconds(SeatUtility.RESERVATION_EXPIRY_TIME_IN_SECONDS);
+	}
+
+	private void turn(int ticks) {
+		for (int i = 0; i < ticks; i++) {
+			_nanos += _tickNanos;
+			_wheel.tick();
+		}
+	}
+}
@@ -0,0 +1,184 @@
+package nz.ac.auckland.concert.service.inventory;
+
+import nz.ac.auckland.concert.common.dto.SeatDTO;
+import nz.ac.auckland.concert.common.types.PriceBand;
+import nz.ac.auckland.concert.common.types.SeatNumber;
+import nz.ac.auckland.concert.common.types.SeatRow;
+import nz.ac.auckland.concert.common.types.SeatStatus;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for PerformanceSeats, including many threads claiming seats of
+ * the same price band at once.
+ */
+public class PerformanceSeatsTest {
+
+	private static final PriceBand BAND = PriceBand.PriceBandA;
+
+	private static final int THREADS = 8;
+
+	@Test
+	public void testBlockIsClaimedInOneRow() {
+		PerformanceSeats seats = new PerformanceSeats();
+
+		Set<SeatDTO> claimed = seats.claimSeats(4, BAND);
+
+		assertEquals(4, claimed.size());
+		assertAdjacentInOneRow(claimed);
+		for (SeatDTO seat : claimed) {
+			assertEquals(SeatStatus.PENDING, seats.statusOf(seat.getRow(), seat.getNumber()));
+		}
+		assertEquals(PerformanceSeats.capacityOf(BAND) - 4, seats.availableSeats(BAND));
+		assertEquals(4, seats.countSeats(BAND, SeatStatus.PENDING));
+	}
+
+	@Test
+	public void testSeatsAreScatteredWhenNoRowHasABlock() {
+		PerformanceSeats seats = new PerformanceSeats();
+		PriceBandLayout layout = PriceBandLayout.of(BAND);
+
+		// Book every other seat, so no row has two adjacent free seats
+		for (int i = 0; i < layout.getNumberOfRows(); i++) {
+			SeatRow row = layout.getRow(i);
+			int rowSize = Long.bitCount(layout.getFullRowMask(i));
+			for (int number = 2; number <= rowSize; number += 2) {
+				seats.setStatus(row, new SeatNumber(number), SeatStatus.BOOKED);
+			}
+		}
+
+		Set<SeatDTO> claimed = seats.claimSeats(3, BAND);
+
+		assertEquals(3, claimed.size());
+		for (SeatDTO seat : claimed) {
+			assertEquals(1, seat.getNumber().intValue() % 2);
+			assertEquals(SeatStatus.PENDING, seats.statusOf(seat.getRow(), seat.getNumber()));
+		}
+	}
+
+	@Test
+	public void testNothingIsClaimedWithoutEnoughSeats() {
+		PerformanceSeats seats = new PerformanceSeats();
+		int capacity = PerformanceSeats.capacityOf(BAND);
+
+		assertTrue(seats.claimSeats(capacity + 1, BAND).isEmpty());
+		assertEquals(capacity, seats.availableSeats(BAND));
+
+		assertEquals(capacity, seats.claimSeats(capacity, BAND).size());
+		assertTrue(seats.claimSeats(1, BAND).isEmpty());
+	}
+
+	@Test
+	public void testReleasedSeatsCanBeClaimedAgain() {
+		PerformanceSeats seats = new PerformanceSeats();
+		int capacity = PerformanceSeats.capacityOf(BAND);
+		Set<SeatDTO> claimed = seats.claimSeats(capacity, BAND);
+
+		seats.release(claimed);
+
+		assertEquals(capacity, seats.availableSeats(BAND));
+		assertEquals(0, seats.countSeats(BAND, SeatStatus.PENDING));
+		assertEquals(claimed, seats.claimSeats(capacity, BAND));
+	}
+
+	@Test
+	public void testConcurrentBlockClaimsAreDisjoint() throws Exception {
+		this.claimConcurrently(new PerformanceSeats(), 2);
+	}
+
+	@Test
+	public void testConcurrentScatteredClaimsAreDisjoint() throws Exception {
+		PerformanceSeats seats = new PerformanceSeats();
+		PriceBandLayout layout = PriceBandLayout.of(BAND);
+		for (int i = 0; i < layout.getNumberOfRows(); i++) {
+			SeatRow row = layout.getRow(i);
+			int rowSize = Long.bitCount(layout.getFullRowMask(i));
+			for (int number = 2; number <= rowSize; number += 2) {
+				seats.setStatus(row, new SeatNumber(number), SeatStatus.BOOKED);
+			}
+		}
+
+		this.claimConcurrently(seats, 3);
+	}
+
+	/**
+	 * Claims seats of BAND from THREADS threads at once, until it runs out,
+	 * and checks that no seat was claimed twice and that the band's counts
+	 * add up. Threads that lose a race for the last seats of the band give up
+	 * early, so whatever they left is claimed afterwards.
+	 */
+	private void claimConcurrently(PerformanceSeats seats, int numberOfSeats) throws Exception {
+		int free = seats.availableSeats(BAND);
+		int booked = seats.countSeats(BAND, SeatStatus.BOOKED);
+		LongAdder conflicts = new LongAdder();
+		CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		List<Future<List<Set<SeatDTO>>>> futures = new ArrayList<>();
+
+		try {
+			for (int i = 0; i < THREADS; i++) {
+				futures.add(executor.submit(() -> {
+					List<Set<SeatDTO>> claims = new ArrayList<>();
+					start.await();
+					while (true) {
+						Set<SeatDTO> claim = seats.claimSeats(numberOfSeats, BAND, conflicts);
+						if (claim.isEmpty()) {
+							return claims;
+						}
+						claims.add(claim);
+					}
+				}));
+			}
+			start.countDown();
+
+			List<Set<SeatDTO>> claims = new ArrayList<>();
+			for (Future<List<Set<SeatDTO>>> future : futures) {
+				claims.addAll(future.get(30, TimeUnit.SECONDS));
+			}
+			for (Set<SeatDTO> claim = seats.claimSeats(numberOfSeats, BAND); !claim.isEmpty();
+					claim = seats.claimSeats(numberOfSeats, BAND)) {
+				claims.add(claim);
+			}
+
+			Set<SeatDTO> claimed = new HashSet<>();
+			for (Set<SeatDTO> claim : claims) {
+				assertEquals(numberOfSeats, claim.size());
+				for (SeatDTO seat : claim) {
+					assertTrue("Seat claimed twice: " + seat, claimed.add(seat));
+					assertEquals(SeatStatus.PENDING, seats.statusOf(seat.getRow(), seat.getNumber()));
+				}
+			}
+			assertEquals(free - free % numberOfSeats, claimed.size());
+			assertEquals(free - claimed.size(), seats.availableSeats(BAND));
+			assertEquals(claimed.size(), seats.countSeats(BAND, SeatStatus.PENDING));
+			assertEquals(booked, seats.countSeats(BAND, SeatStatus.BOOKED));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static void assertAdjacentInOneRow(Set<SeatDTO> seats) {
+		SeatRow row = seats.iterator().next().getRow();
+		int lowest = Integer.MAX_VALUE;
+		int highest = Integer.MIN_VALUE;
+		for (SeatDTO seat : seats) {
+			assertEquals(row, seat.getRow());
+			lowest = Math.min(lowest, seat.getNumber().intValue());
+			highest = Math.max(highest, seat.getNumber().intValue());
+		}
+		assertEquals(seats.size() - 1, highest - lowest);
+	}
+}
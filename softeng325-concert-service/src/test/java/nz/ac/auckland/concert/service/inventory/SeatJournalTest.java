@@ -0,0 +1,229 @@
+package nz.ac.auckland.concert.service.inventory;
+
+import nz.ac.auckland.concert.common.types.SeatNumber;
+import nz.ac.auckland.concert.common.types.SeatRow;
+import nz.ac.auckland.concert.common.types.SeatStatus;
+import nz.ac.auckland.concert.service.ServiceConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for SeatJournal, restarting it over segments in a temporary
+ * directory.
+ */
+public class SeatJournalTest {
+
+	private static final int SEGMENT_RECORDS = 4;
+
+	private static final LocalDateTime DATE_TIME = LocalDateTime.of(2017, 9, 15, 20, 0);
+
+	private String _journalDir;
+
+	private int _segmentRecords;
+
+	private Path _directory;
+
+	private SeatJournal _journal;
+
+	@Before
+	public void setUp() throws IOException {
+		_journalDir = ServiceConfig.JOURNAL_DIR;
+		_segmentRecords = ServiceConfig.JOURNAL_SEGMENT_RECORDS;
+		_directory = Files.createTempDirectory("seat-journal");
+		ServiceConfig.JOURNAL_DIR = _directory.toString();
+		ServiceConfig.JOURNAL_SEGMENT_RECORDS = SEGMENT_RECORDS;
+		_journal = new SeatJournal();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		_journal.close();
+		for (Path path : this.files()) {
+			Files.delete(path);
+		}
+		Files.delete(_directory);
+		ServiceConfig.JOURNAL_DIR = _journalDir;
+		ServiceConfig.JOURNAL_SEGMENT_RECORDS = _segmentRecords;
+	}
+
+	@Test
+	public void testRecordsAreReplayedAfterRestart() {
+		this.append(1, 6);
+
+		this.restart();
+
+		assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L, 6L), this.replay(0));
+		assertEquals(6, _journal.lastSequence());
+		assertEquals(Arrays.asList("00000000000000000001.journal", "00000000000000000005.journal"),
+				this.names());
+	}
+
+	@Test
+	public void testRecordsCoveredBySnapshotAreSkipped() {
+		this.append(1, 6);
+
+		this.restart();
+
+		assertEquals(Arrays.asList(4L, 5L, 6L), this.replay(3));
+		assertEquals(6, _journal.lastSequence());
+	}
+
+	@Test
+	public void testTornTailIsDiscardedAndOverwritten() throws IOException {
+		this.append(1, 6);
+		_journal.close();
+		this.tear("00000000000000000005.journal", 1);
+
+		_journal = new SeatJournal();
+		assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L), this.replay(0));
+		assertEquals(5, _journal.lastSequence());
+
+		// Appending carries on from the last good record, over the torn one
+		this.append(60, 61);
+		this.restart();
+
+		assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L, 60L, 61L), this.replay(0));
+		assertEquals(7, _journal.lastSequence());
+	}
+
+	@Test
+	public void testSegmentsAfterTornRecordAreDeleted() throws IOException {
+		this.append(1, 10);
+		_journal.close();
+		this.tear("00000000000000000005.journal", 2);
+
+		_journal = new SeatJournal();
+		assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L, 6L), this.replay(0));
+		assertEquals(Arrays.asList("00000000000000000001.journal", "00000000000000000005.journal"),
+				this.names());
+
+		// The blanked tail isn't mistaken for a torn record on the next replay
+		this.restart();
+		assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L, 6L), this.replay(0));
+	}
+
+	@Test
+	public void testDiscardDeletesOnlySegmentsCoveredBySnapshot() {
+		this.append(1, 10);
+
+		_journal.discardThrough(3);
+		assertEquals(3, this.names().size());
+
+		_journal.discardThrough(4);
+		assertEquals(Arrays.asList("00000000000000000005.journal", "00000000000000000009.journal"),
+				this.names());
+
+		// The last segment is always kept, as it is still being appended to
+		_journal.discardThrough(10);
+		assertEquals(Collections.singletonList("00000000000000000009.journal"), this.names());
+
+		this.restart();
+		assertEquals(Arrays.asList(9L, 10L), this.replay(8));
+		assertEquals(10, _journal.lastSequence());
+	}
+
+	@Test
+	public void testReplayRefusesToSkipDiscardedRecords() {
+		this.append(1, 10);
+		_journal.discardThrough(4);
+
+		this.restart();
+		try {
+			_journal.replay(3, transition -> fail("Replayed " + transition));
+			fail();
+		} catch (IllegalStateException e) {
+			// Record 4 is only in the discarded segment
+		}
+
+		assertEquals(Arrays.asList(5L, 6L, 7L, 8L, 9L, 10L), this.replay(4));
+	}
+
+	@Test
+	public void testEmptyJournalReplaysNothing() {
+		assertEquals(Collections.emptyList(), this.replay(0));
+		assertEquals(0, _journal.lastSequence());
+
+		assertEquals(Collections.emptyList(), this.replay(7));
+		assertEquals(7, _journal.lastSequence());
+	}
+
+	/**
+	 * Appends and syncs transitions for the reservations from first to last,
+	 * one at a time.
+	 */
+	private void append(long first, long last) {
+		for (long reservationId = first; reservationId <= last; reservationId++) {
+			long sequence = _journal.append(Collections.singletonList(new SeatTransition(1, DATE_TIME,
+					SeatRow.A, new SeatNumber((int) reservationId % 20 + 1), SeatStatus.PENDING, reservationId,
+					null)));
+			_journal.sync(sequence);
+		}
+	}
+
+	/**
+	 * @return the reservation ids of the transitions replayed after a
+	 * sequence number.
+	 */
+	private List<Long> replay(long afterSequence) {
+		List<Long> reservationIds = new ArrayList<>();
+		long replayed = _journal.replay(afterSequence, transition -> {
+			assertEquals(DATE_TIME, transition.getDateTime());
+			assertNull(transition.getTimeStamp());
+			reservationIds.add(transition.getReservationId());
+		});
+		assertEquals(reservationIds.size(), replayed);
+		return reservationIds;
+	}
+
+	private void restart() {
+		_journal.close();
+		_journal = new SeatJournal();
+	}
+
+	/**
+	 * Corrupts a record of a segment, as if the service had stopped while
+	 * writing it.
+	 */
+	private void tear(String segment, int record) throws IOException {
+		try (FileChannel channel = FileChannel.open(_directory.resolve(segment), StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.wrap(new byte[]{(byte) 0xff}), record * SeatTransition.SIZE + 41);
+		}
+	}
+
+	private List<String> names() {
+		List<String> names = new ArrayList<>();
+		for (Path path : this.files()) {
+			names.add(path.getFileName().toString());
+		}
+		return names;
+	}
+
+	private List<Path> files() {
+		List<Path> paths = new ArrayList<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(_directory)) {
+			files.forEach(paths::add);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		Collections.sort(paths);
+		return paths;
+	}
+}
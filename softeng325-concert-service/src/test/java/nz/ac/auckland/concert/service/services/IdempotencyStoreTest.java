@@ -0,0 +1,201 @@
+package nz.ac.auckland.concert.service.services;
+
+import nz.ac.auckland.concert.common.dto.ReservationRequestDTO;
+import nz.ac.auckland.concert.common.types.PriceBand;
+import nz.ac.auckland.concert.service.ServiceConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import java.net.URI;
+import java.time.LocalDateTime;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Unit tests for IdempotencyStore, using a fake clock in place of the time.
+ */
+public class IdempotencyStoreTest {
+
+	private static final ReservationRequestDTO BODY = new ReservationRequestDTO(2, PriceBand.PriceBandA, 1L,
+			LocalDateTime.of(2017, 2, 24, 20, 0));
+
+	private final AtomicLong _now = new AtomicLong();
+
+	private final AtomicInteger _processed = new AtomicInteger();
+
+	private IdempotencyStore _store;
+
+	private long _ttlMillis;
+
+	private int _maxEntries;
+
+	private long _waitMillis;
+
+	@Before
+	public void setUp() {
+		_ttlMillis = ServiceConfig.IDEMPOTENCY_TTL_MILLIS;
+		_maxEntries = ServiceConfig.IDEMPOTENCY_MAX_ENTRIES;
+		_waitMillis = ServiceConfig.IDEMPOTENCY_WAIT_MILLIS;
+
+		_store = new IdempotencyStore(_now::get);
+	}
+
+	@After
+	public void tearDown() {
+		ServiceConfig.IDEMPOTENCY_TTL_MILLIS = _ttlMillis;
+		ServiceConfig.IDEMPOTENCY_MAX_ENTRIES = _maxEntries;
+		ServiceConfig.IDEMPOTENCY_WAIT_MILLIS = _waitMillis;
+	}
+
+	@Test
+	public void testRetryReplaysResponseWithItsHeaders() {
+		Response original = _store.execute("reserve:user", "key", BODY, this::created);
+		Response retry = _store.execute("reserve:user", "key", BODY, this::created);
+
+		assertEquals(1, _processed.get());
+		assertEquals(Response.Status.CREATED.getStatusCode(), retry.getStatus());
+		assertSame(original.getEntity(), retry.getEntity());
+		assertEquals(original.getLocation(), retry.getLocation());
+		assertEquals("1", retry.getHeaderString(HttpHeaders.RETRY_AFTER));
+	}
+
+	@Test
+	public void testKeysAreScoped() {
+		_store.execute("reserve:user", "key", BODY, this::created);
+		_store.execute("reserve:other", "key", BODY, this::created);
+
+		assertEquals(2, _processed.get());
+	}
+
+	@Test
+	public void testReusedKeyWithDifferentBodyIsRejected() {
+		_store.execute("reserve:user", "key", BODY, this::created);
+
+		ReservationRequestDTO other = new ReservationRequestDTO(3, BODY.getSeatType(), BODY.getConcertId(),
+				BODY.getDate());
+		Response response = _store.execute("reserve:user", "key", other, this::created);
+
+		assertEquals(422, response.getStatus());
+		assertEquals(1, _processed.get());
+	}
+
+	@Test
+	public void testServerErrorsAreNotStored() {
+		_store.execute("reserve:user", "key", BODY, () -> {
+			_processed.incrementAndGet();
+			return Response.serverError().build();
+		});
+		_store.execute("reserve:user", "key", BODY, this::created);
+
+		assertEquals(2, _processed.get());
+	}
+
+	@Test
+	public void testConcurrentDuplicateWaitsForOriginal() throws Exception {
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+
+		try {
+			Future<Response> original = executor.submit(() -> _store.execute("reserve:user", "key", BODY, () -> {
+				started.countDown();
+				await(release);
+				return this.created();
+			}));
+			started.await();
+
+			Future<Response> duplicate = executor.submit(() -> _store.execute("reserve:user", "key", BODY,
+					this::created));
+			release.countDown();
+
+			assertSame(original.get(5, TimeUnit.SECONDS).getEntity(), duplicate.get(5, TimeUnit.SECONDS).getEntity());
+			assertEquals(1, _processed.get());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testConcurrentDuplicateGivesUpWaiting() throws Exception {
+		ServiceConfig.IDEMPOTENCY_WAIT_MILLIS = 10;
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+
+		try {
+			executor.submit(() -> _store.execute("reserve:user", "key", BODY, () -> {
+				started.countDown();
+				await(release);
+				return this.created();
+			}));
+			started.await();
+
+			Response duplicate = _store.execute("reserve:user", "key", BODY, this::created);
+
+			assertEquals(Response.Status.CONFLICT.getStatusCode(), duplicate.getStatus());
+			assertEquals("1", duplicate.getHeaderString(HttpHeaders.RETRY_AFTER));
+		} finally {
+			release.countDown();
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testResponsesExpire() {
+		ServiceConfig.IDEMPOTENCY_TTL_MILLIS = 1000;
+
+		_store.execute("reserve:user", "key", BODY, this::created);
+		_now.addAndGet(1000);
+		_store.execute("reserve:user", "key", BODY, this::created);
+		assertEquals(1, _processed.get());
+
+		_now.addAndGet(1);
+		_store.execute("reserve:user", "key", BODY, this::created);
+		assertEquals(2, _processed.get());
+	}
+
+	@Test
+	public void testEldestResponseIsEvicted() {
+		ServiceConfig.IDEMPOTENCY_MAX_ENTRIES = 2;
+
+		_store.execute("reserve:user", "first", BODY, this::created);
+		_store.execute("reserve:user", "second", BODY, this::created);
+		_store.execute("reserve:user", "third", BODY, this::created);
+		assertEquals(3, _processed.get());
+
+		_store.execute("reserve:user", "third", BODY, this::created);
+		_store.execute("reserve:user", "second", BODY, this::created);
+		assertEquals(3, _processed.get());
+
+		_store.execute("reserve:user", "first", BODY, this::created);
+		assertEquals(4, _processed.get());
+	}
+
+	private Response created() {
+		int id = _processed.incrementAndGet();
+		return Response
+				.created(URI.create("http://localhost/bookings/" + id))
+				.entity("reservation " + id)
+				.header(HttpHeaders.RETRY_AFTER, 1)
+				.build();
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,173 @@
+package nz.ac.auckland.concert.service.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for RetryExecutor, against a fake clock that only moves when the
+ * executor sleeps or an attempt says so.
+ */
+public class RetryExecutorTest {
+
+	private static final Predicate<RuntimeException> RETRY_ILLEGAL_STATE = e -> e instanceof IllegalStateException;
+
+	private final List<Long> _sleeps = new ArrayList<>();
+
+	private long _nanos;
+
+	@Test
+	public void testSucceedsAfterRetries() {
+		RetryExecutor retry = this.executor(5, 10, 100, 10_000);
+		int[] attempts = {0};
+
+		String result = retry.execute(() -> {
+			if (++attempts[0] < 3) {
+				throw new IllegalStateException("conflict");
+			}
+			return "done";
+		});
+
+		assertEquals("done", result);
+		assertEquals(3, attempts[0]);
+		assertEquals(2, _sleeps.size());
+	}
+
+	@Test
+	public void testNonRetryableExceptionIsThrownAtOnce() {
+		RetryExecutor retry = this.executor(5, 10, 100, 10_000);
+		IllegalArgumentException failure = new IllegalArgumentException("bad request");
+		int[] attempts = {0};
+
+		try {
+			retry.execute(() -> {
+				attempts[0]++;
+				throw failure;
+			});
+			fail();
+		} catch (IllegalArgumentException e) {
+			assertSame(failure, e);
+		}
+		assertEquals(1, attempts[0]);
+		assertTrue(_sleeps.isEmpty());
+	}
+
+	@Test
+	public void testGivesUpAfterMaxAttempts() {
+		RetryExecutor retry = this.executor(4, 10, 100, 10_000);
+		int[] attempts = {0};
+
+		try {
+			retry.execute(() -> {
+				throw new IllegalStateException("attempt " + ++attempts[0]);
+			});
+			fail();
+		} catch (IllegalStateException e) {
+			assertEquals("attempt 4", e.getMessage());
+		}
+		assertEquals(4, attempts[0]);
+		assertEquals(3, _sleeps.size());
+	}
+
+	@Test
+	public void testBackoffGrowsExponentiallyUpToMaximum() {
+		for (int run = 0; run < 50; run++) {
+			_sleeps.clear();
+			RetryExecutor retry = this.executor(8, 10, 100, TimeUnit.DAYS.toMillis(1));
+
+			try {
+				retry.execute(() -> {
+					throw new IllegalStateException("conflict");
+				});
+				fail();
+			} catch (IllegalStateException e) {
+				// Expected
+			}
+
+			assertEquals(7, _sleeps.size());
+			long[] limits = {10, 20, 40, 80, 100, 100, 100};
+			for (int i = 0; i < limits.length; i++) {
+				long sleep = _sleeps.get(i);
+				assertTrue("Backoff " + sleep + " of attempt " + (i + 1), sleep >= 0 && sleep <= limits[i]);
+			}
+		}
+	}
+
+	@Test
+	public void testBackoffDoesNotOverflow() {
+		RetryExecutor retry = this.executor(70, 1_000, 5_000, TimeUnit.DAYS.toMillis(1));
+
+		try {
+			retry.execute(() -> {
+				throw new IllegalStateException("conflict");
+			});
+			fail();
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+
+		assertEquals(69, _sleeps.size());
+		for (long sleep : _sleeps) {
+			assertTrue(sleep >= 0 && sleep <= 5_000);
+		}
+	}
+
+	@Test
+	public void testGivesUpWhenBackoffWouldPassDeadline() {
+		// Each attempt takes 60ms and backs off at most 10ms, so the second
+		// attempt ends after the 100ms deadline
+		RetryExecutor retry = this.executor(10, 10, 10, 100);
+		int[] attempts = {0};
+
+		try {
+			retry.execute(() -> {
+				attempts[0]++;
+				_nanos += TimeUnit.MILLISECONDS.toNanos(60);
+				throw new IllegalStateException("conflict");
+			});
+			fail();
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+
+		assertEquals(2, attempts[0]);
+		assertEquals(1, _sleeps.size());
+	}
+
+	@Test
+	public void testInterruptedBackoffStopsRetrying() {
+		RetryExecutor retry = new RetryExecutor("test", 5, 10, 100, 10_000, RETRY_ILLEGAL_STATE,
+				() -> _nanos, millis -> {
+					throw new InterruptedException();
+				});
+		int[] attempts = {0};
+
+		try {
+			retry.execute(() -> {
+				attempts[0]++;
+				throw new IllegalStateException("conflict");
+			});
+			fail();
+		} catch (IllegalStateException e) {
+			assertTrue(Thread.interrupted());
+		}
+		assertEquals(1, attempts[0]);
+	}
+
+	private RetryExecutor executor(int maxAttempts, long initialBackoffMillis, long maxBackoffMillis,
+								   long deadlineMillis) {
+		return new RetryExecutor("test", maxAttempts, initialBackoffMillis, maxBackoffMillis, deadlineMillis,
+				RETRY_ILLEGAL_STATE, () -> _nanos, millis -> {
+					_sleeps.add(millis);
+					_nanos += TimeUnit.MILLISECONDS.toNanos(millis);
+				});
+	}
+}